@@ -0,0 +1,82 @@
+package org.coderclan.knots.benchmark;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.coderclan.knots.IdempotentHandler;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.aop.framework.AopProxyUtils;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of {@link org.coderclan.knots.IdempotentAspect#aroundService(ProceedingJoinPoint)} compared with the raw
+ * call of the target. With handler "none" every call locks and saves through a handler which does nothing, so only the
+ * aspect (plan lookup, ID fetching, single-flight) is measured; with handler "memory" every call but the first replays
+ * the result from {@link org.coderclan.knots.InMemoryIdempotentHandler}.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AspectBenchmark {
+    @Param({"none", "memory"})
+    public String handler;
+
+    private AnnotationConfigApplicationContext context;
+    private BenchmarkService proxy;
+    private BenchmarkService target;
+
+    @Setup
+    public void setup() {
+        if ("none".equals(handler)) {
+            context = BenchmarkContext.start(Collections.emptyMap(), Collections.singletonMap(IdempotentHandler.class, new LockOnlyIdempotentHandler()));
+        } else {
+            context = BenchmarkContext.start(Collections.singletonMap("store", handler), Collections.emptyMap());
+        }
+        proxy = context.getBean(BenchmarkService.class);
+        target = (BenchmarkService) AopProxyUtils.getSingletonTarget(proxy);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public Long raw(Call call) {
+        return target.process(call.request);
+    }
+
+    @Benchmark
+    public Long aspect(Call call) {
+        return proxy.process(call.request);
+    }
+
+    /**
+     * Request of a benchmark thread, threads do NOT share Idempotent IDs.
+     */
+    @State(Scope.Thread)
+    public static class Call {
+        final BenchmarkRequest request = new BenchmarkRequest(UUID.randomUUID().toString(), 1L);
+    }
+
+    /**
+     * Always locks, saves nothing.
+     */
+    static class LockOnlyIdempotentHandler implements IdempotentHandler {
+        @Override
+        public Object lockOrReturnPreviousResult(String idempotentId, ProceedingJoinPoint joinPoint) {
+            return null;
+        }
+
+        @Override
+        public void saveResult(String idempotentId, Object result, boolean success, ProceedingJoinPoint joinPoint) {
+        }
+    }
+}
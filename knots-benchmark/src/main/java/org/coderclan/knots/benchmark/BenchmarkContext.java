@@ -0,0 +1,64 @@
+package org.coderclan.knots.benchmark;
+
+import org.coderclan.knots.IdempotentAutoConfiguration;
+import org.coderclan.knots.ResultChecker;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.EnableAspectJAutoProxy;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.env.MapPropertySource;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Spring context of benchmarks, configured by {@link IdempotentAutoConfiguration} as applications are.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+@Configuration
+@EnableAspectJAutoProxy
+@Import(IdempotentAutoConfiguration.class)
+public class BenchmarkContext {
+
+    @Bean
+    ResultChecker resultChecker() {
+        return result -> true;
+    }
+
+    @Bean
+    BenchmarkService benchmarkService() {
+        return new BenchmarkService();
+    }
+
+    /**
+     * @return a new embedded H2 database.
+     */
+    public static DataSource h2() {
+        return JdbcConnectionPool.create("jdbc:h2:mem:knots-benchmark-" + System.nanoTime() + ";DB_CLOSE_DELAY=-1", "sa", "sa");
+    }
+
+    /**
+     * @param properties properties of Knots, without the prefix {@code org.coderclan.knots.}
+     * @param beans      extra beans, e.g. a DataSource or an IdempotentHandler, by type.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public static AnnotationConfigApplicationContext start(Map<String, Object> properties, Map<Class<?>, Object> beans) {
+        Map<String, Object> source = new HashMap<>();
+        properties.forEach((k, v) -> source.put("org.coderclan.knots." + k, v));
+        // poll soon, the contended benchmark waits for each other.
+        source.putIfAbsent("org.coderclan.knots.retry-wait", 1);
+        source.putIfAbsent("org.coderclan.knots.retries", 5000);
+
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("benchmark", source));
+        beans.forEach((type, bean) -> context.registerBean((Class) type, (Supplier) () -> bean));
+        context.register(BenchmarkContext.class);
+        context.refresh();
+        return context;
+    }
+}
@@ -0,0 +1,28 @@
+package org.coderclan.knots.benchmark;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Run JMH benchmarks, results are written in JSON to {@code knots-benchmark.json} unless {@code -rf} or {@code -rff}
+ * is specified, so results of releases can be compared. All JMH options are supported, e.g. {@code -h}.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-rf")) {
+            options.add(0, "-rf");
+            options.add(1, "json");
+        }
+        if (!options.contains("-rff")) {
+            options.add(0, "-rff");
+            options.add(1, "knots-benchmark.json");
+        }
+        Main.main(options.toArray(new String[0]));
+    }
+}
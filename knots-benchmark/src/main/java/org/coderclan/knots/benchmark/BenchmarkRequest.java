@@ -0,0 +1,27 @@
+package org.coderclan.knots.benchmark;
+
+import org.coderclan.knots.annotation.IdempotentId;
+
+/**
+ * Argument of {@link BenchmarkService}.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class BenchmarkRequest {
+    private final String requestId;
+    private final long amount;
+
+    public BenchmarkRequest(String requestId, long amount) {
+        this.requestId = requestId;
+        this.amount = amount;
+    }
+
+    @IdempotentId
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+}
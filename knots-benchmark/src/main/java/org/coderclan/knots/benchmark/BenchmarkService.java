@@ -0,0 +1,15 @@
+package org.coderclan.knots.benchmark;
+
+import org.coderclan.knots.annotation.IdempotentIdExpression;
+
+/**
+ * Idempotent method to be measured, it does (almost) nothing, so the cost of the idempotence is measured.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class BenchmarkService {
+    @IdempotentIdExpression("arg[0].requestId")
+    public Long process(BenchmarkRequest request) {
+        return request.getAmount() + 1;
+    }
+}
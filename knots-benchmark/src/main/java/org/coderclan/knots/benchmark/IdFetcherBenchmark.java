@@ -0,0 +1,58 @@
+package org.coderclan.knots.benchmark;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.coderclan.knots.AnnotatedIdempotentIdFetcher;
+import org.coderclan.knots.ArgumentIdempotentIdFetcher;
+import org.coderclan.knots.InvocationPlan;
+import org.coderclan.knots.InvocationPlanRegistry;
+import org.coderclan.knots.JoinPointStub;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.expression.spel.SpelCompilerMode;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetching the Idempotent ID of {@link BenchmarkService#process(BenchmarkRequest)}: by the SpEL expression
+ * ({@link ArgumentIdempotentIdFetcher}) compiled or interpreted, and by {@code @IdempotentId}
+ * ({@link AnnotatedIdempotentIdFetcher}).
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IdFetcherBenchmark {
+    private final ArgumentIdempotentIdFetcher spelFetcher = new ArgumentIdempotentIdFetcher();
+    private final AnnotatedIdempotentIdFetcher annotatedFetcher = new AnnotatedIdempotentIdFetcher();
+    private InvocationPlan compiledPlan;
+    private InvocationPlan interpretedPlan;
+    private ProceedingJoinPoint joinPoint;
+
+    @Setup
+    public void setup() throws NoSuchMethodException {
+        BenchmarkService service = new BenchmarkService();
+        Method method = BenchmarkService.class.getMethod("process", BenchmarkRequest.class);
+        compiledPlan = new InvocationPlanRegistry(SpelCompilerMode.IMMEDIATE).getPlan(method, BenchmarkService.class);
+        interpretedPlan = new InvocationPlanRegistry(SpelCompilerMode.OFF).getPlan(method, BenchmarkService.class);
+        joinPoint = JoinPointStub.of(service, method, new BenchmarkRequest("6f1c3a52-98d4-4c3e-b1a1-9f0e53c7d2aa", 1L));
+    }
+
+    @Benchmark
+    public String spelCompiled() {
+        return spelFetcher.getIdempotentId(joinPoint, compiledPlan);
+    }
+
+    @Benchmark
+    public String spelInterpreted() {
+        return spelFetcher.getIdempotentId(joinPoint, interpretedPlan);
+    }
+
+    @Benchmark
+    public String annotated() {
+        return annotatedFetcher.getIdempotentId(joinPoint, compiledPlan);
+    }
+}
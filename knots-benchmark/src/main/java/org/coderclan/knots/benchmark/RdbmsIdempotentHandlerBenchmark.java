@@ -0,0 +1,74 @@
+package org.coderclan.knots.benchmark;
+
+import org.coderclan.knots.IdempotentHandler;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import javax.sql.DataSource;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link org.coderclan.knots.RdbmsIdempotentHandler} against an embedded H2 database:
+ * <ul>
+ *     <li>firstCall: lock a new Idempotent ID and save the result.</li>
+ *     <li>replay: return the saved result.</li>
+ *     <li>contended: 4 threads invoke the same Idempotent IDs, one of them locks and saves, the others wait for the
+ *     result or replay it.</li>
+ * </ul>
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RdbmsIdempotentHandlerBenchmark {
+    private static final Long RESULT = 42L;
+    private static final String REPLAYED_ID = "replayed";
+    private static final int CONTENDERS = 4;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private AnnotationConfigApplicationContext context;
+    private IdempotentHandler handler;
+
+    @Setup
+    public void setup() throws Exception {
+        context = BenchmarkContext.start(Collections.emptyMap(), Collections.singletonMap(DataSource.class, BenchmarkContext.h2()));
+        handler = context.getBean(IdempotentHandler.class);
+        handler.lockOrReturnPreviousResult(REPLAYED_ID, null);
+        handler.saveResult(REPLAYED_ID, RESULT, true, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public Object firstCall() throws Exception {
+        String id = "first-" + sequence.incrementAndGet();
+        Object result = handler.lockOrReturnPreviousResult(id, null);
+        handler.saveResult(id, RESULT, true, null);
+        return result;
+    }
+
+    @Benchmark
+    public Object replay() throws Exception {
+        return handler.lockOrReturnPreviousResult(REPLAYED_ID, null);
+    }
+
+    @Benchmark
+    @Threads(CONTENDERS)
+    public Object contended() throws Exception {
+        String id = "contended-" + sequence.incrementAndGet() / CONTENDERS;
+        Object result = handler.lockOrReturnPreviousResult(id, null);
+        if (result == null) {
+            handler.saveResult(id, RESULT, true, null);
+        }
+        return result;
+    }
+}
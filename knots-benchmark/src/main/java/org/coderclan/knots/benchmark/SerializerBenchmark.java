@@ -0,0 +1,93 @@
+package org.coderclan.knots.benchmark;
+
+import org.coderclan.knots.BinarySerializer;
+import org.coderclan.knots.CompressingSerializer;
+import org.coderclan.knots.JdkSerializer;
+import org.coderclan.knots.Serializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.Serializable;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing and round trips (serializing and deserializing) of results of several sizes.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializerBenchmark {
+    @Param({"jdk", "binary", "compressed-binary"})
+    public String serializer;
+    /**
+     * Count of items of the result.
+     */
+    @Param({"1", "10", "100", "1000"})
+    public int size;
+
+    private Serializer instance;
+    private Type type;
+    private List<Item> result;
+
+    @Setup
+    public void setup() throws NoSuchMethodException {
+        switch (serializer) {
+            case "jdk":
+                instance = new JdkSerializer();
+                break;
+            case "binary":
+                instance = new BinarySerializer();
+                break;
+            default:
+                instance = new CompressingSerializer(new BinarySerializer(), 2048, 1);
+        }
+        type = SerializerBenchmark.class.getDeclaredMethod("items").getGenericReturnType();
+        result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(new Item("item-" + i, i, BigDecimal.valueOf(i * 100L + 99, 2)));
+        }
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Exception {
+        return instance.serialize(result, type);
+    }
+
+    @Benchmark
+    public Object roundTrip() throws Exception {
+        return instance.deserialize(new ByteArrayInputStream(instance.serialize(result, type)), type);
+    }
+
+    /**
+     * Declares the type of the result.
+     */
+    List<Item> items() {
+        return result;
+    }
+
+    public static class Item implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private String name;
+        private int quantity;
+        private BigDecimal price;
+
+        public Item() {
+        }
+
+        Item(String name, int quantity, BigDecimal price) {
+            this.name = name;
+            this.quantity = quantity;
+            this.price = price;
+        }
+    }
+}
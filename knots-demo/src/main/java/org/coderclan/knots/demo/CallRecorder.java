@@ -0,0 +1,44 @@
+package org.coderclan.knots.demo;
+
+import org.coderclan.knots.IdempotenceMetrics;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Method;
+
+/**
+ * Records what happened to the idempotent call of the current thread, used by {@link LoadTest} to classify calls.
+ */
+@Component
+public class CallRecorder implements IdempotenceMetrics {
+    private final ThreadLocal<Call> calls = ThreadLocal.withInitial(Call::new);
+
+    public Call start() {
+        Call call = calls.get();
+        call.outcome = null;
+        call.waited = false;
+        return call;
+    }
+
+    @Override
+    public void recordLookup(Method method, Outcome outcome, long nanos) {
+        calls.get().outcome = outcome;
+    }
+
+    @Override
+    public void recordWait(Method method) {
+        calls.get().waited = true;
+    }
+
+    public static class Call {
+        private Outcome outcome;
+        private boolean waited;
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        public boolean isWaited() {
+            return waited;
+        }
+    }
+}
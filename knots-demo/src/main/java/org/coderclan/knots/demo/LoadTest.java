@@ -0,0 +1,205 @@
+package org.coderclan.knots.demo;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.coderclan.knots.IdempotenceMetrics;
+import org.coderclan.knots.IdempotentTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.SQLTransientConnectionException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Fires storms of duplicate request IDs from many threads at {@link TestService}, reports throughput, latency of
+ * first/replay/waiting calls, connection pool saturation and timeouts, and verifies every request ID took effect on
+ * {@link RewardPointRepository} exactly once. Run by {@link LoadTestApplication}.
+ */
+@Component
+public class LoadTest {
+    private static final Logger log = LoggerFactory.getLogger(LoadTest.class);
+
+    private static final String FIRST = "first";
+    private static final String REPLAY = "replay";
+    private static final String WAITING = "waiting";
+    private static final String TIMEOUT = "timeout";
+    private static final String POOL_TIMEOUT = "pool";
+    private static final String FAILED = "failed";
+
+    @Autowired
+    private TestService testService;
+    @Autowired
+    private RewardPointRepository rewardPointRepository;
+    @Autowired
+    private CallRecorder callRecorder;
+    @Autowired
+    private DataSource dataSource;
+
+    // concurrent callers. each caller may hold 2 connections: one of the @Transactional, one of knots (unless
+    // org.coderclan.knots.join-transaction=true), the pool is exhausted if there are more callers than the pool size.
+    @Value("${demo.load-test.threads:16}")
+    private int threads;
+    // unique request IDs.
+    @Value("${demo.load-test.request-ids:500}")
+    private int requestIds;
+    // calls of each request ID.
+    @Value("${demo.load-test.duplicates:4}")
+    private int duplicates;
+    @Value("${demo.load-test.customers:10}")
+    private int customers;
+    // false: calls of the same request ID are fired together (a storm), true: they are spread over the test.
+    @Value("${demo.load-test.shuffle:false}")
+    private boolean shuffle;
+
+    private final Map<String, List<Long>> latencies = new ConcurrentHashMap<>();
+    private final Map<String, Request<IncreaseRewardPointRequestDto>> succeeded = new ConcurrentHashMap<>();
+
+    /**
+     * @return true if every succeeded request ID took effect exactly once.
+     */
+    public boolean run() throws InterruptedException {
+        List<Request<IncreaseRewardPointRequestDto>> calls = new ArrayList<>(requestIds * duplicates);
+        Random random = new Random();
+        for (int i = 0; i < requestIds; i++) {
+            IncreaseRewardPointRequestDto dto = new IncreaseRewardPointRequestDto();
+            dto.setCustomerId(String.valueOf(random.nextInt(customers) + 1));
+            dto.setAmount(random.nextInt(10) + 1);
+            Request<IncreaseRewardPointRequestDto> request = new Request<>(dto, UUID.randomUUID().toString());
+            for (int j = 0; j < duplicates; j++) {
+                calls.add(request);
+            }
+        }
+        if (shuffle) {
+            Collections.shuffle(calls, random);
+        }
+        log.info("Load test started: threads={}, requestIds={}, duplicates={}, shuffle={}", threads, requestIds, duplicates, shuffle);
+
+        PoolSampler sampler = new PoolSampler();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (Request<IncreaseRewardPointRequestDto> request : calls) {
+            executor.execute(() -> call(request));
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+        sampler.stop();
+
+        report(calls.size(), elapsed, sampler);
+        return verify();
+    }
+
+    private void call(Request<IncreaseRewardPointRequestDto> request) {
+        CallRecorder.Call call = callRecorder.start();
+        long start = System.nanoTime();
+        String category;
+        try {
+            Result<Void> result = testService.increaseRewardPoint(request);
+            if (Boolean.TRUE.equals(result.getSuccess())) {
+                succeeded.putIfAbsent(request.getRequestId(), request);
+            }
+            if (call.getOutcome() == IdempotenceMetrics.Outcome.EXECUTED) {
+                category = FIRST;
+            } else {
+                category = call.isWaited() ? WAITING : REPLAY;
+            }
+        } catch (RuntimeException e) {
+            category = isCausedBy(e, IdempotentTimeoutException.class) ? TIMEOUT : isCausedBy(e, SQLTransientConnectionException.class) ? POOL_TIMEOUT : FAILED;
+        }
+        latencies.computeIfAbsent(category, k -> Collections.synchronizedList(new ArrayList<>())).add(System.nanoTime() - start);
+    }
+
+    private static boolean isCausedBy(Throwable e, Class<? extends Throwable> type) {
+        for (; e != null; e = e.getCause()) {
+            if (type.isInstance(e)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void report(int total, long elapsed, PoolSampler sampler) {
+        log.info("{} calls in {} ms, throughput: {} calls/s", total, TimeUnit.NANOSECONDS.toMillis(elapsed), String.format("%.1f", total * 1e9 / elapsed));
+        log.info(String.format("%-8s %8s %10s %10s %10s %10s", "calls", "count", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)"));
+        for (String category : Arrays.asList(FIRST, REPLAY, WAITING, TIMEOUT, POOL_TIMEOUT, FAILED)) {
+            List<Long> list = latencies.getOrDefault(category, Collections.emptyList());
+            long[] sorted = list.stream().mapToLong(Long::longValue).sorted().toArray();
+            log.info(String.format("%-8s %8d %10.1f %10.1f %10.1f %10.1f", category, sorted.length,
+                    percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999), percentile(sorted, 1)));
+        }
+        if (sampler.pool != null) {
+            log.info("Connection pool: size={}, max active={}, max awaiting threads={}, saturated {}% of the time",
+                    sampler.maximumPoolSize, sampler.maxActive, sampler.maxAwaiting, String.format("%.1f", sampler.saturated * 100.0 / Math.max(1, sampler.samples)));
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    private boolean verify() {
+        Map<String, Integer> expected = new HashMap<>();
+        for (Request<IncreaseRewardPointRequestDto> request : succeeded.values()) {
+            expected.merge(request.getData().getCustomerId(), request.getData().getAmount(), Integer::sum);
+        }
+        Map<String, Integer> actual = rewardPointRepository.snapshot();
+        if (expected.equals(actual)) {
+            log.info("Exactly-once verified: {} request IDs succeeded, reward points of {} customers match.", succeeded.size(), actual.size());
+            return true;
+        }
+        Set<String> customerIds = new TreeSet<>(expected.keySet());
+        customerIds.addAll(actual.keySet());
+        for (String customerId : customerIds) {
+            if (!Objects.equals(expected.get(customerId), actual.get(customerId))) {
+                log.error("Reward points mismatch! customerId={}, expected={}, actual={}", customerId, expected.get(customerId), actual.get(customerId));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Samples the Hikari connection pool periodically.
+     */
+    private class PoolSampler {
+        private final HikariPoolMXBean pool;
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        private int maximumPoolSize;
+        private int maxActive;
+        private int maxAwaiting;
+        private long samples;
+        private long saturated;
+
+        PoolSampler() {
+            pool = dataSource instanceof HikariDataSource ? ((HikariDataSource) dataSource).getHikariPoolMXBean() : null;
+            if (pool == null) {
+                return;
+            }
+            maximumPoolSize = ((HikariDataSource) dataSource).getMaximumPoolSize();
+            scheduler.scheduleAtFixedRate(this::sample, 0, 5, TimeUnit.MILLISECONDS);
+        }
+
+        private void sample() {
+            int active = pool.getActiveConnections();
+            maxActive = Math.max(maxActive, active);
+            maxAwaiting = Math.max(maxAwaiting, pool.getThreadsAwaitingConnection());
+            samples++;
+            if (active >= maximumPoolSize) {
+                saturated++;
+            }
+        }
+
+        void stop() throws InterruptedException {
+            scheduler.shutdown();
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        }
+    }
+}
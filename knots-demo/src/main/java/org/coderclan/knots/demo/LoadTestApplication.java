@@ -0,0 +1,32 @@
+package org.coderclan.knots.demo;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs {@link LoadTest} against the embedded H2 database and exits, with status 1 if exactly-once is violated.
+ * Options (e.g. {@code --demo.load-test.threads=64 --org.coderclan.knots.retry-wait=50
+ * --spring.datasource.hikari.maximum-pool-size=10 --demo.slow-rate=0.1}):
+ * <ul>
+ *     <li>demo.load-test.threads, request-ids, duplicates, customers, shuffle: the load, check {@link LoadTest}.</li>
+ *     <li>demo.failure-rate, demo.slow-rate, demo.slow-time: behaviors of {@link TestService}.</li>
+ * </ul>
+ */
+public class LoadTestApplication {
+    public static void main(String[] args) throws Exception {
+        SpringApplication application = new SpringApplication(KnotsDemoApplication.class);
+        Map<String, Object> defaults = new HashMap<>();
+        defaults.put("spring.main.web-application-type", "none");
+        // logs of every call would be measured.
+        defaults.put("logging.level.org.coderclan.knots", "warn");
+        defaults.put("logging.level.org.coderclan.knots.demo", "info");
+        application.setDefaultProperties(defaults);
+
+        ConfigurableApplicationContext context = application.run(args);
+        boolean passed = context.getBean(LoadTest.class).run();
+        System.exit(SpringApplication.exit(context, () -> passed ? 0 : 1));
+    }
+}
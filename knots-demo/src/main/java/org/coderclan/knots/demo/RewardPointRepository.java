@@ -0,0 +1,33 @@
+package org.coderclan.knots.demo;
+
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reward points of customers, the effects of {@link TestService}.
+ */
+@Component
+public class RewardPointRepository {
+    private ConcurrentHashMap<String, Integer> map = new ConcurrentHashMap<>();
+
+    public void increase(String customerId, int amount) {
+        customerId = customerId.intern();
+        synchronized (customerId) {
+            Integer points = map.get(customerId);
+
+            if (Objects.isNull(points)) {
+                points = 0;
+            }
+            points += amount;
+            map.put(customerId, points);
+        }
+    }
+
+    public Map<String, Integer> snapshot() {
+        return new HashMap<>(map);
+    }
+}
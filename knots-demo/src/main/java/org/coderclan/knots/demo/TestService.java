@@ -1,48 +1,45 @@
 package org.coderclan.knots.demo;
 
 import org.coderclan.knots.annotation.IdempotentIdExpression;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.util.Objects;
-import java.util.concurrent.ConcurrentHashMap;
-
 @Service
 @IdempotentIdExpression("arg[0].requestId")
 //@Idempotent
 public class TestService {
 
-    private ConcurrentHashMap<String, Integer> map = new ConcurrentHashMap<>();
+    @Autowired
+    private RewardPointRepository rewardPointRepository;
+    @Value("${demo.failure-rate:0.3}")
+    private double failureRate;
+    @Value("${demo.slow-rate:0.3}")
+    private double slowRate;
+    @Value("${demo.slow-time:5000}")
+    private long slowTime;
 
     // @IdempotentIdExpression("arg[0].requestId")
     // @Idempotent
     @Transactional
     public Result<Void> increaseRewardPoint(Request<IncreaseRewardPointRequestDto> request) {
         // to test Exception
-        if (Math.random() > 0.7d) {
+        if (Math.random() < failureRate) {
             throw new RuntimeException("Mu ha ha ha!");
         }
 
         // to test method invocation need a lot of time.
-        if (Math.random() > 0.7d) {
+        if (Math.random() < slowRate) {
             try {
-                Thread.sleep(5 * 1000);
+                Thread.sleep(slowTime);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             }
         }
 
         IncreaseRewardPointRequestDto dto = request.getData();
-        String customerId = dto.getCustomerId().intern();
-        synchronized (customerId) {
-            Integer amount = map.get(customerId);
-
-            if (Objects.isNull(amount)) {
-                amount = 0;
-            }
-            amount += dto.getAmount();
-            map.put(customerId, amount);
-        }
+        rewardPointRepository.increase(dto.getCustomerId(), dto.getAmount());
         return new Result<>(true, null);
     }
 }
@@ -0,0 +1,69 @@
+package org.coderclan.knots;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Exponential backoff whose first pause is predicted by the EWMA (Exponentially Weighted Moving Average)
+ * of the observed execution time of the method. Waiters of a fast method poll soon, waiters of a slow method do NOT
+ * poll uselessly before the previous invocation is likely to finish.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class AdaptiveWaitStrategy extends ExponentialWaitStrategy {
+    private final double alpha;
+    private final ConcurrentHashMap<Method, Ewma> executionTimes = new ConcurrentHashMap<>();
+
+    /**
+     * @param alpha weight (0 to 1) of the latest execution time in the EWMA.
+     * @see ExponentialWaitStrategy#ExponentialWaitStrategy(long, long, double, double, long)
+     */
+    public AdaptiveWaitStrategy(long initialWait, long maxPause, double multiplier, double jitter, long timeout, double alpha) {
+        super(initialWait, maxPause, multiplier, jitter, timeout);
+        if (alpha <= 0.0d || alpha > 1.0d) {
+            throw new IllegalArgumentException("alpha should be in (0, 1], alpha=" + alpha);
+        }
+        this.alpha = alpha;
+    }
+
+    @Override
+    public Wait start(Method method) {
+        Ewma ewma = method == null ? null : executionTimes.get(method);
+        if (ewma == null) {
+            // no execution observed yet.
+            return super.start(method);
+        }
+        long predicted = (long) ewma.value;
+        return new BackoffWait(Math.max(getInitialWait(), Math.min(predicted, getTimeout())));
+    }
+
+    @Override
+    public void recordExecution(Method method, long elapsed) {
+        Ewma ewma = executionTimes.get(method);
+        if (ewma == null) {
+            ewma = executionTimes.computeIfAbsent(method, m -> new Ewma(elapsed));
+        }
+        ewma.update(elapsed, alpha);
+    }
+
+    /**
+     * @return the EWMA of execution time (unit: millisecond) of the method, negative if not observed.
+     */
+    public double getExecutionTime(Method method) {
+        Ewma ewma = executionTimes.get(method);
+        return ewma == null ? -1.0d : ewma.value;
+    }
+
+    private static class Ewma {
+        private volatile double value;
+
+        private Ewma(double value) {
+            this.value = value;
+        }
+
+        private void update(double sample, double alpha) {
+            // races between updates only lose a sample, which is acceptable for a moving average.
+            value = value + alpha * (sample - value);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.coderclan.knots.annotation.IdempotentId;
+import org.coderclan.knots.annotation.IdempotentIdExpression;
+
+/**
+ * Get Idempotent ID from the parameters, fields or getters marked by {@link IdempotentId}, by accessors generated when
+ * the application is started. If the method (or the class) is annotated by {@link IdempotentIdExpression}, or nothing is
+ * marked, calculate it by the expression as {@link ArgumentIdempotentIdFetcher} does, the explicit expression wins.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class AnnotatedIdempotentIdFetcher extends ArgumentIdempotentIdFetcher {
+    public AnnotatedIdempotentIdFetcher() {
+    }
+
+    /**
+     * @param invocationPlanRegistry registry of the plans used by {@link #getIdempotentId(ProceedingJoinPoint)}.
+     */
+    public AnnotatedIdempotentIdFetcher(InvocationPlanRegistry invocationPlanRegistry) {
+        super(invocationPlanRegistry);
+    }
+
+    @Override
+    public String getIdempotentId(ProceedingJoinPoint proceedingJoinPoint, InvocationPlan plan) {
+        IdempotentIdExtractor extractor = plan.getIdExtractor();
+        if (extractor == null) {
+            return super.getIdempotentId(proceedingJoinPoint, plan);
+        }
+        return extractor.extract(proceedingJoinPoint.getArgs());
+    }
+}
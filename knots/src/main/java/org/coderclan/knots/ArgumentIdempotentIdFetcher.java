@@ -1,24 +1,33 @@
 package org.coderclan.knots;
 
 import org.aspectj.lang.ProceedingJoinPoint;
-import org.aspectj.lang.reflect.MethodSignature;
 import org.coderclan.knots.annotation.IdempotentIdExpression;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.expression.Expression;
-import org.springframework.expression.ExpressionParser;
-import org.springframework.expression.spel.standard.SpelExpressionParser;
-
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Calculate Idempotent Id by SPEL expression. The SPEL expression is presented by {@link IdempotentIdExpression#value()}.
+ * Annotations and parsed expressions are cached by {@link InvocationPlanRegistry}.
  *
  * @author aray(dot)chou(dot)cn(at)gmail(dot)com
  */
 public class ArgumentIdempotentIdFetcher implements IdempotentIdFetcher {
-    private static final Logger log = LoggerFactory.getLogger(ArgumentIdempotentIdFetcher.class);
+    /**
+     * The registry of the application if the fetcher is a bean, a private one if it is created outside Spring.
+     */
+    @Autowired(required = false)
+    private InvocationPlanRegistry invocationPlanRegistry;
+
+    public ArgumentIdempotentIdFetcher() {
+        this(new InvocationPlanRegistry());
+    }
+
+    /**
+     * @param invocationPlanRegistry registry of the plans used by {@link #getIdempotentId(ProceedingJoinPoint)}.
+     */
+    public ArgumentIdempotentIdFetcher(InvocationPlanRegistry invocationPlanRegistry) {
+        this.invocationPlanRegistry = invocationPlanRegistry;
+    }
 
     /**
      * Calculate Idempotent Id by SPEL expression. This method look for {@link IdempotentIdExpression} annotation on the Method or Class,
@@ -30,48 +39,20 @@ public class ArgumentIdempotentIdFetcher implements IdempotentIdFetcher {
      */
     @Override
     public String getIdempotentId(ProceedingJoinPoint proceedingJoinPoint) {
+        InvocationPlan plan = proceedingJoinPoint instanceof PlannedJoinPoint
+                ? ((PlannedJoinPoint) proceedingJoinPoint).getPlan() : invocationPlanRegistry.getPlan(proceedingJoinPoint);
+        return getIdempotentId(proceedingJoinPoint, plan);
+    }
 
-        // find @IdempotentIdExpression on method
-        IdempotentIdExpression idempotentIdExpression = ((MethodSignature) proceedingJoinPoint.getSignature()).getMethod().getAnnotation(IdempotentIdExpression.class);
-
-        if (idempotentIdExpression == null) {
-            // find @IdempotentIdExpression from class or its super class, if there is no @IdempotentIdExpression on method.
-            idempotentIdExpression = AnnotationUtils.findAnnotation(proceedingJoinPoint.getTarget().getClass(), IdempotentIdExpression.class);
-        }
-
-        if (idempotentIdExpression == null) {
-            throw new IllegalStateException("No @IdempotentIdExpression found on " + ((MethodSignature) proceedingJoinPoint.getSignature()).getMethod() + " or its Class");
+    @Override
+    public String getIdempotentId(ProceedingJoinPoint proceedingJoinPoint, InvocationPlan plan) {
+        Expression exp = plan.getIdExpression();
+        if (exp == null) {
+            throw new IllegalStateException("No @IdempotentIdExpression found on " + plan.getMethod() + " or its Class");
         }
 
-//        if (idempotentIdExpression.value() == null) {
-//            throw new IllegalStateException("idempotentIdExpression.value() can NOT be null.");
-//        }
-
-        Expression exp = getExpression(proceedingJoinPoint, idempotentIdExpression);
         IdempotentElRoot root = new IdempotentElRoot(proceedingJoinPoint.getArgs());
         Object idempotentId = exp.getValue(root);
         return idempotentId == null ? null : idempotentId.toString();
     }
-
-
-    private static final ConcurrentHashMap<String, Expression> EL_EXPRESSION_CACHE = new ConcurrentHashMap<>();
-
-    private Expression getExpression(ProceedingJoinPoint joinPoint, IdempotentIdExpression idempotent) {
-
-        String key = joinPoint.getSignature().toLongString();
-
-        Expression exp = EL_EXPRESSION_CACHE.get(key);
-        if (exp == null) {
-            synchronized (EL_EXPRESSION_CACHE) {
-                exp = EL_EXPRESSION_CACHE.get(key);
-                if (exp == null) {
-                    String idempotentIdEl = idempotent.value();
-                    ExpressionParser parser = new SpelExpressionParser();
-                    exp = parser.parseExpression(idempotentIdEl);
-                    EL_EXPRESSION_CACHE.put(key, exp);
-                }
-            }
-        }
-        return exp;
-    }
 }
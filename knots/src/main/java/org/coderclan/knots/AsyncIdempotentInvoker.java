@@ -0,0 +1,330 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.task.TaskDecorator;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Invoke idempotent methods which return {@link CompletionStage}, {@link CompletableFuture} or Reactor {@code Mono}
+ * (check {@link AsyncReturnType}) without blocking the calling thread.
+ * <p>
+ * The caller gets a future (or a Mono, which starts the invocation when it is subscribed) at once. The
+ * {@link IdempotentHandler} is called by threads of this invoker, so event-loop threads are never blocked by the store.
+ * The value of the invocation is checked by {@link ResultChecker} and saved when the invocation completes.
+ * Duplicates are NOT parked: the previous invocation is polled by {@link IdempotentHandler#tryLockOrReturnPreviousResult}
+ * after pauses of {@link WaitStrategy}, scheduled by this invoker; duplicates of this JVM wait for the in-flight
+ * invocation by {@link InFlightRegistry.Flight#toFuture()}.
+ * <p>
+ * The method itself is invoked by {@code joinPoint.proceed()} after the Idempotent ID is locked, NOT on the calling
+ * thread but on a thread of this invoker (or of the {@code invocationExecutor}), thread-bound state of the caller is
+ * lost by default. The {@link TaskDecorator} passed in decorates the invocation on the calling thread (on the
+ * subscribing thread for a Mono), so it can capture the state (e.g. MDC, security context) there and restore it around
+ * {@code proceed()}. Transactions of the caller are NOT propagated anyway, the asynchronous method should start its own.
+ * Advisors ordered after the aspect which rely on {@code ExposeInvocationInterceptor} do NOT work on these threads,
+ * order them before the aspect.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class AsyncIdempotentInvoker implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncIdempotentInvoker.class);
+
+    @Autowired
+    private IdempotentHandler idempotentHandler;
+    @Autowired
+    private ResultChecker resultChecker;
+    @Autowired
+    private InFlightRegistry inFlightRegistry;
+    @Autowired
+    private KnotsProperties properties;
+    @Autowired
+    private WaitStrategy waitStrategy;
+    @Autowired
+    private IdempotenceMetrics metrics;
+    @Autowired
+    private InvocationMonitor monitor;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Executor invocationExecutor;
+    private final TaskDecorator taskDecorator;
+
+    /**
+     * @param threads number of threads which call the {@link IdempotentHandler}.
+     */
+    public AsyncIdempotentInvoker(int threads) {
+        this(threads, null, null);
+    }
+
+    /**
+     * @param threads            number of threads which call the {@link IdempotentHandler}.
+     * @param invocationExecutor executor which invokes the method, null to invoke it by the threads of this invoker.
+     * @param taskDecorator      decorator of the invocation, applied on the calling thread, e.g. to propagate MDC or
+     *                           security context, null if nothing is propagated.
+     */
+    public AsyncIdempotentInvoker(int threads, Executor invocationExecutor, TaskDecorator taskDecorator) {
+        this.invocationExecutor = invocationExecutor;
+        this.taskDecorator = taskDecorator;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread thread = new Thread(r, "knots-async-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return a {@link CompletableFuture}, or a Mono if the method returns a Mono, of the value of the invocation.
+     */
+    public Object invoke(String idempotentId, ProceedingJoinPoint joinPoint, InvocationPlan plan) {
+        if (plan.getAsyncReturnType() == AsyncReturnType.MONO) {
+            return ReactorAdapter.defer(() -> start(idempotentId, joinPoint, plan));
+        }
+        return start(idempotentId, joinPoint, plan);
+    }
+
+    private CompletableFuture<Object> start(String idempotentId, ProceedingJoinPoint joinPoint, InvocationPlan plan) {
+        Call call = new Call(idempotentId, joinPoint, plan);
+        executor.execute(call::join);
+        return call.promise;
+    }
+
+    /**
+     * State of one asynchronous invocation.
+     */
+    private class Call {
+        private final String idempotentId;
+        private final ProceedingJoinPoint joinPoint;
+        private final InvocationPlan plan;
+        private final Method method;
+        private final CompletableFuture<Object> promise = new CompletableFuture<>();
+        private final long deadline;
+        private final InvocationMonitor.Entry entry;
+        /**
+         * Invokes the method, decorated on the calling thread.
+         */
+        private final Runnable invocation;
+        private CompletableFuture<Object> returned;
+        private boolean executing;
+        private WaitStrategy.Wait wait;
+        private boolean waited;
+        private long lookupStart;
+
+        private Call(String idempotentId, ProceedingJoinPoint joinPoint, InvocationPlan plan) {
+            this.idempotentId = idempotentId;
+            this.joinPoint = joinPoint;
+            this.plan = plan;
+            this.method = plan.getMethod();
+            this.deadline = System.currentTimeMillis() + waitStrategy.getTimeout();
+            this.entry = monitor.enter(idempotentId, method);
+            promise.whenComplete((value, error) -> monitor.exit(entry));
+            this.invocation = taskDecorator == null ? this::proceed : taskDecorator.decorate(this::proceed);
+        }
+
+        /**
+         * Join the in-flight invocation of this JVM, or go to the {@link IdempotentHandler}.
+         */
+        private void join() {
+            if (!properties.isSingleFlight()) {
+                lookup(null);
+                return;
+            }
+            InFlightRegistry.Flight flight = inFlightRegistry.join(idempotentId, method, promise);
+            if (flight.isOwner(promise)) {
+                lookup(flight);
+                return;
+            }
+
+            // the same idempotentId is being invoked by this JVM, wait for its result.
+            waiting();
+            long start = System.nanoTime();
+            ScheduledFuture<?> timeout = executor.schedule(() -> {
+                if (promise.completeExceptionally(new IdempotentTimeoutException("Waiting for in-flight invocation timeout! idempotentId=" + idempotentId))) {
+                    metrics.recordLookup(method, IdempotenceMetrics.Outcome.TIMEOUT, System.nanoTime() - start);
+                    monitor.recordDuplicate(idempotentId);
+                    logger.error("Waiting for in-flight invocation timeout! idempotentId={}", idempotentId);
+                }
+            }, Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            flight.toFuture().thenAccept(result -> {
+                timeout.cancel(false);
+                if (promise.isDone()) {
+                    return;
+                }
+                if (result != InFlightRegistry.RETRY) {
+                    metrics.recordLookup(method, IdempotenceMetrics.Outcome.REPLAYED, System.nanoTime() - start);
+                    monitor.recordDuplicate(idempotentId);
+                    logger.info("Repeat invoke found for in-flight idempotentId={}, return directly!", idempotentId);
+                    promise.complete(plan.toReplayed(result));
+                } else {
+                    // the owner did not succeed, try again. one of the waiters will be the new owner.
+                    executor.execute(this::join);
+                }
+            });
+        }
+
+        /**
+         * Try to lock the idempotentId by {@link IdempotentHandler}, poll again after a pause if the previous
+         * invocation has NOT been finished.
+         */
+        private void lookup(InFlightRegistry.Flight flight) {
+            if (lookupStart == 0) {
+                lookupStart = System.nanoTime();
+            }
+            Object previous;
+            try {
+                previous = idempotentHandler.tryLockOrReturnPreviousResult(idempotentId, joinPoint);
+            } catch (Exception e) {
+                logger.error("Exception countered while checking result. idempotentId={}", idempotentId, e);
+                finish(flight, null, null, false, e);
+                return;
+            }
+
+            if (previous == IdempotentHandler.IN_PROGRESS) {
+                if (wait == null) {
+                    waiting();
+                    wait = waitStrategy.start(method);
+                }
+                long pause = wait.nextPause();
+                if (pause < 0) {
+                    metrics.recordLookup(method, IdempotenceMetrics.Outcome.TIMEOUT, System.nanoTime() - lookupStart);
+                    monitor.recordDuplicate(idempotentId);
+                    logger.error("Found previous invoke but previous invoke is timeout! idempotentId={}", idempotentId);
+                    finish(flight, null, null, false, new IdempotentTimeoutException("Found previous invoke but previous invoke is timeout! idempotentId=" + idempotentId));
+                    return;
+                }
+                metrics.recordRetry(method);
+                executor.schedule(() -> lookup(flight), pause, TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            metrics.recordLookup(method, previous == null ? IdempotenceMetrics.Outcome.EXECUTED : IdempotenceMetrics.Outcome.REPLAYED, System.nanoTime() - lookupStart);
+            if (previous != null) {
+                monitor.recordDuplicate(idempotentId);
+                logger.info("Repeat invoke found for idempotentId={}, return directly!", idempotentId);
+                finish(flight, previous, plan.toReplayed(previous), true, null);
+                return;
+            }
+            execute(flight);
+        }
+
+        private void waiting() {
+            if (!waited) {
+                waited = true;
+                metrics.recordWait(method);
+            }
+        }
+
+        /**
+         * Invoke the method, save the value when it completes.
+         */
+        private void execute(InFlightRegistry.Flight flight) {
+            executing = true;
+            monitor.executing(entry);
+            if (invocationExecutor == null) {
+                invoke(flight);
+                return;
+            }
+            try {
+                invocationExecutor.execute(() -> invoke(flight));
+            } catch (RuntimeException e) {
+                logger.error("Invocation rejected by the executor. idempotentId={}", idempotentId, e);
+                save(flight, null, e, System.currentTimeMillis());
+            }
+        }
+
+        private void invoke(InFlightRegistry.Flight flight) {
+            long start = System.currentTimeMillis();
+            try {
+                invocation.run();
+            } catch (RuntimeException e) {
+                // thrown by the decorator.
+                if (returned == null) {
+                    returned = new CompletableFuture<>();
+                    returned.completeExceptionally(e);
+                }
+            }
+            if (returned == null) {
+                returned = new CompletableFuture<>();
+                returned.completeExceptionally(new IllegalStateException("Method NOT invoked by the TaskDecorator. method=" + method));
+            }
+            returned.whenCompleteAsync((value, error) -> save(flight, value, unwrap(error), start), executor);
+        }
+
+        private void proceed() {
+            try {
+                Object value = joinPoint.proceed();
+                if (value == null) {
+                    throw new IllegalStateException("Asynchronous method returned null. method=" + method);
+                }
+                returned = plan.getAsyncReturnType() == AsyncReturnType.MONO ? ReactorAdapter.toFuture(value) : ((CompletionStage<?>) value).toCompletableFuture().<Object>thenApply(v -> v);
+            } catch (Throwable e) {
+                returned = new CompletableFuture<>();
+                returned.completeExceptionally(e);
+            }
+        }
+
+        private void save(InFlightRegistry.Flight flight, Object value, Throwable error, long start) {
+            boolean success = false;
+            if (error == null) {
+                waitStrategy.recordExecution(method, System.currentTimeMillis() - start);
+                try {
+                    success = resultChecker.isSuccess(value);
+                } catch (RuntimeException e) {
+                    error = e;
+                }
+            } else {
+                logger.info("Exception countered while invoking idempotentId={}", idempotentId);
+            }
+
+            Object saved = plan.toSaved(value);
+            try {
+                long saveStart = System.nanoTime();
+                idempotentHandler.saveResult(idempotentId, saved, success, joinPoint);
+                metrics.recordSave(method, System.nanoTime() - saveStart);
+            } catch (Exception e) {
+                success = false;
+                if (error == null) {
+                    error = new RuntimeException("Exception countered while save result. idempotentId=" + idempotentId, e);
+                }
+            }
+            finish(flight, saved, value, success, error);
+        }
+
+        /**
+         * Complete the flight and the promise.
+         *
+         * @param handover what the waiters of the flight get: the saved result, or the previous result.
+         */
+        private void finish(InFlightRegistry.Flight flight, Object handover, Object value, boolean success, Throwable error) {
+            if (executing) {
+                executing = false;
+                monitor.executed(entry);
+            }
+            if (flight != null) {
+                inFlightRegistry.complete(flight, handover, success);
+            }
+            if (error != null) {
+                promise.completeExceptionally(error);
+            } else {
+                promise.complete(value);
+            }
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+}
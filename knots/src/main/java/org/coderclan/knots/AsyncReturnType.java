@@ -0,0 +1,54 @@
+package org.coderclan.knots;
+
+import org.springframework.core.ResolvableType;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Asynchronous return types supported by {@link AsyncIdempotentInvoker}. Results of asynchronous methods are the values
+ * they complete with, and they are saved when the invocations complete.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public enum AsyncReturnType {
+    /**
+     * {@link CompletionStage} or {@link CompletableFuture}.
+     */
+    COMPLETION_STAGE,
+    /**
+     * Reactor {@code Mono}.
+     */
+    MONO;
+
+    private static final String MONO_CLASS = "reactor.core.publisher.Mono";
+
+    /**
+     * @return the asynchronous return type of the method, null if the method is synchronous.
+     */
+    public static AsyncReturnType of(Method method) {
+        Class<?> type = method.getReturnType();
+        if (CompletionStage.class.isAssignableFrom(type) && type.isAssignableFrom(CompletableFuture.class)) {
+            return COMPLETION_STAGE;
+        }
+        if (MONO_CLASS.equals(type.getName())) {
+            return MONO;
+        }
+        return null;
+    }
+
+    /**
+     * @return generic type of the result of the method, which is the type of the value of asynchronous methods.
+     */
+    public static Type getResultType(Method method) {
+        AsyncReturnType async = of(method);
+        if (async == null) {
+            return method.getGenericReturnType();
+        }
+        // the declared type is CompletionStage<T>, CompletableFuture<T> or Mono<T>.
+        ResolvableType value = ResolvableType.forMethodReturnType(method).getGeneric(0);
+        return value == ResolvableType.NONE ? Object.class : value.getType();
+    }
+}
@@ -0,0 +1,53 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.coderclan.knots.annotation.IdempotentBatch;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Idempotent Handler which locks, looks up and saves many Idempotent IDs at once, it is used by
+ * {@link BatchIdempotentInvoker} for methods annotated by {@link IdempotentBatch}. Other handlers are called once per
+ * item.
+ * <p>
+ * Results are the items of the list returned by the method, {@link JoinPoints#getReturnType(ProceedingJoinPoint)}
+ * returns type of the items.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public interface BatchIdempotentHandler extends IdempotentHandler {
+    /**
+     * Try to obtain locks of the Idempotent IDs once, without waiting for previous invocations.
+     *
+     * @param idempotentIds Idempotent IDs, without duplications.
+     * @param joinPoint     the intercepted invocation.
+     * @return value of each Idempotent ID: null if locked successfully, {@link #IN_PROGRESS} if the previous invocation
+     * has NOT been finished, the result of the previous invocation otherwise.
+     */
+    Map<String, Object> tryLockOrReturnPreviousResults(Collection<String> idempotentIds, ProceedingJoinPoint joinPoint) throws Exception;
+
+    /**
+     * Save results of the Idempotent IDs locked by {@link #tryLockOrReturnPreviousResults(Collection, ProceedingJoinPoint)}.
+     * Make sure the results are saved to the same datasource of business logics, check
+     * {@link #saveResult(String, Object, boolean, ProceedingJoinPoint)}.
+     *
+     * @param results   result by Idempotent ID, the result may be null.
+     * @param failed    Idempotent IDs whose invocation failed (thrown exception, or {@link ResultChecker} reported failure)
+     * @param joinPoint the intercepted invocation.
+     */
+    void saveResults(Map<String, Object> results, Set<String> failed, ProceedingJoinPoint joinPoint) throws Exception;
+
+    /**
+     * Save results like {@link #saveResults(Map, Set, ProceedingJoinPoint)}, and tell which of them are stored, check
+     * {@link #trySaveResult(String, Object, boolean, ProceedingJoinPoint)}. The default implementation saves by
+     * {@link #saveResults(Map, Set, ProceedingJoinPoint)} and returns all the Idempotent IDs.
+     *
+     * @return the stored Idempotent IDs.
+     */
+    default Set<String> trySaveResults(Map<String, Object> results, Set<String> failed, ProceedingJoinPoint joinPoint) throws Exception {
+        saveResults(results, failed, joinPoint);
+        return results.keySet();
+    }
+}
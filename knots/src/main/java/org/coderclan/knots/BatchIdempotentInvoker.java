@@ -0,0 +1,252 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.coderclan.knots.annotation.IdempotentBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * Invoke methods annotated by {@link IdempotentBatch}. The Idempotent IDs of all items are locked and looked up at once
+ * (in one round trip if the {@link IdempotentHandler} is a {@link BatchIdempotentHandler}), the method is invoked with
+ * the items which have NOT been processed only, and their results are saved at once.
+ * <p>
+ * Items which are being processed by other invocations are polled after pauses of {@link WaitStrategy}, if they failed,
+ * the method is invoked again with them. Items of the same Idempotent ID in one batch are processed once.
+ * Batches are NOT coalesced by {@link InFlightRegistry}.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class BatchIdempotentInvoker {
+    private static final Logger logger = LoggerFactory.getLogger(BatchIdempotentInvoker.class);
+
+    @Autowired
+    private IdempotentHandler idempotentHandler;
+    @Autowired
+    private ResultChecker resultChecker;
+    @Autowired
+    private WaitStrategy waitStrategy;
+    @Autowired
+    private IdempotenceMetrics metrics;
+    @Autowired
+    private InvocationMonitor monitor;
+
+    /**
+     * @return results of the items, in the order of the items.
+     */
+    public Object invoke(ProceedingJoinPoint joinPoint, InvocationPlan plan) {
+        BatchPlan batch = plan.getBatch();
+        Method method = plan.getMethod();
+        Object[] args = joinPoint.getArgs();
+        Iterable<?> items = (Iterable<?>) args[batch.getParameter()];
+        if (items == null) {
+            return proceed(joinPoint, args);
+        }
+
+        List<String> ids = new ArrayList<>();
+        // the first item of each Idempotent ID which has NOT been processed.
+        Map<String, Object> pending = new LinkedHashMap<>();
+        for (Object item : items) {
+            String idempotentId = batch.getIdempotentId(item);
+            if (Objects.isNull(idempotentId)) {
+                throw new IllegalStateException("Idempotent ID is null, method=" + method);
+            }
+            ids.add(idempotentId);
+            pending.putIfAbsent(idempotentId, item);
+        }
+
+        Map<String, InvocationMonitor.Entry> entries = new HashMap<>(pending.size() * 2);
+        for (String idempotentId : pending.keySet()) {
+            entries.put(idempotentId, monitor.enter(idempotentId, method));
+        }
+        try {
+            return invoke(ids, pending, entries, joinPoint, plan);
+        } finally {
+            for (InvocationMonitor.Entry entry : entries.values()) {
+                monitor.exit(entry);
+            }
+        }
+    }
+
+    /**
+     * @param ids     Idempotent IDs of all items.
+     * @param pending the first item of each Idempotent ID.
+     * @param entries entries of the Idempotent IDs in {@link InvocationMonitor}.
+     * @return results of the items, in the order of the items.
+     */
+    private List<Object> invoke(List<String> ids, Map<String, Object> pending, Map<String, InvocationMonitor.Entry> entries, ProceedingJoinPoint joinPoint, InvocationPlan plan) {
+        Method method = plan.getMethod();
+        Object[] args = joinPoint.getArgs();
+        Map<String, Object> results = new HashMap<>(pending.size() * 2);
+        WaitStrategy.Wait wait = null;
+        while (!pending.isEmpty()) {
+            long lookupStart = System.nanoTime();
+            Map<String, Object> previous;
+            try {
+                previous = lookup(pending.keySet(), joinPoint);
+            } catch (Exception e) {
+                logger.error("Exception countered while checking results. idempotentIds={}", pending.keySet(), e);
+                throw new RuntimeException(e);
+            }
+            long lookupTime = (System.nanoTime() - lookupStart) / pending.size();
+
+            Map<String, Object> locked = new LinkedHashMap<>();
+            int replayed = 0;
+            for (Iterator<Map.Entry<String, Object>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Object> entry = it.next();
+                Object result = previous.get(entry.getKey());
+                if (result == IdempotentHandler.IN_PROGRESS) {
+                    continue;
+                }
+                if (Objects.isNull(result)) {
+                    locked.put(entry.getKey(), entry.getValue());
+                    metrics.recordLookup(method, IdempotenceMetrics.Outcome.EXECUTED, lookupTime);
+                } else {
+                    results.put(entry.getKey(), plan.toReplayed(result));
+                    replayed++;
+                    monitor.recordDuplicate(entry.getKey());
+                    metrics.recordLookup(method, IdempotenceMetrics.Outcome.REPLAYED, lookupTime);
+                }
+                it.remove();
+            }
+            if (replayed > 0) {
+                logger.info("Repeat invoke found for {} items, return directly! method={}", replayed, method);
+            }
+
+            if (!locked.isEmpty()) {
+                for (String idempotentId : locked.keySet()) {
+                    monitor.executing(entries.get(idempotentId));
+                }
+                try {
+                    execute(locked, joinPoint, args, plan, results);
+                } finally {
+                    for (String idempotentId : locked.keySet()) {
+                        monitor.executed(entries.get(idempotentId));
+                    }
+                }
+            }
+            if (pending.isEmpty()) {
+                break;
+            }
+
+            // the others are being processed by other invocations, wait.
+            logger.info("Found previous invokes but they have NOT returned yet! idempotentIds={}", pending.keySet());
+            if (wait == null) {
+                metrics.recordWait(method);
+                wait = waitStrategy.start(method);
+            }
+            long pause = wait.nextPause();
+            if (pause < 0) {
+                for (String idempotentId : pending.keySet()) {
+                    metrics.recordLookup(method, IdempotenceMetrics.Outcome.TIMEOUT, 0L);
+                    monitor.recordDuplicate(idempotentId);
+                }
+                logger.error("Found previous invokes but previous invokes are timeout! idempotentIds={}", pending.keySet());
+                throw new IdempotentTimeoutException("Found previous invokes but previous invokes are timeout! idempotentIds=" + pending.keySet());
+            }
+            try {
+                Thread.sleep(pause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            metrics.recordRetry(method);
+        }
+
+        List<Object> list = new ArrayList<>(ids.size());
+        for (String idempotentId : ids) {
+            list.add(results.get(idempotentId));
+        }
+        return list;
+    }
+
+    /**
+     * Invoke the method with the locked items, and save their results.
+     *
+     * @param locked the locked items, by Idempotent ID.
+     * @param results results of the items are put into it.
+     */
+    private void execute(Map<String, Object> locked, ProceedingJoinPoint joinPoint, Object[] args, InvocationPlan plan, Map<String, Object> results) {
+        BatchPlan batch = plan.getBatch();
+        Method method = plan.getMethod();
+        Object[] lockedArgs = args.clone();
+        lockedArgs[batch.getParameter()] = new ArrayList<>(locked.values());
+
+        Map<String, Object> lockedResults = new HashMap<>(locked.size() * 2);
+        Set<String> failed = new HashSet<>();
+        try {
+            long start = System.currentTimeMillis();
+            List<?> returned = (List<?>) joinPoint.proceed(lockedArgs);
+            waitStrategy.recordExecution(method, System.currentTimeMillis() - start);
+            if (returned == null || returned.size() != locked.size()) {
+                throw new IllegalStateException("@IdempotentBatch method should return one result per item. items="
+                        + locked.size() + ", results=" + (returned == null ? null : returned.size()) + ", method=" + method);
+            }
+            Iterator<?> it = returned.iterator();
+            for (String idempotentId : locked.keySet()) {
+                Object result = it.next();
+                lockedResults.put(idempotentId, result);
+                if (!resultChecker.isSuccess(result)) {
+                    failed.add(idempotentId);
+                }
+            }
+        } catch (Throwable e) {
+            failed.addAll(locked.keySet());
+            lockedResults.clear();
+            logger.info("Exception countered while invoking idempotentIds={}", locked.keySet());
+            throw new RuntimeException(e);
+        } finally {
+            for (String idempotentId : locked.keySet()) {
+                lockedResults.putIfAbsent(idempotentId, null);
+            }
+            try {
+                long saveStart = System.nanoTime();
+                Map<String, Object> saved = lockedResults;
+                if (plan.getAcknowledgement() != null) {
+                    saved = new HashMap<>(lockedResults.size() * 2);
+                    for (String idempotentId : lockedResults.keySet()) {
+                        saved.put(idempotentId, IdempotentHandler.ACKNOWLEDGED);
+                    }
+                }
+                save(saved, failed, joinPoint);
+                metrics.recordSave(method, System.nanoTime() - saveStart);
+            } catch (Exception e) {
+                // IdempotentAspect should be wrapped by @Transactional, check IdempotentAspect.invoke()
+                throw new RuntimeException("Exception countered while save results. idempotentIds=" + locked.keySet(), e);
+            }
+        }
+        results.putAll(lockedResults);
+    }
+
+    private Map<String, Object> lookup(Collection<String> idempotentIds, ProceedingJoinPoint joinPoint) throws Exception {
+        if (idempotentHandler instanceof BatchIdempotentHandler) {
+            return ((BatchIdempotentHandler) idempotentHandler).tryLockOrReturnPreviousResults(idempotentIds, joinPoint);
+        }
+        Map<String, Object> previous = new HashMap<>(idempotentIds.size() * 2);
+        for (String idempotentId : idempotentIds) {
+            previous.put(idempotentId, idempotentHandler.tryLockOrReturnPreviousResult(idempotentId, joinPoint));
+        }
+        return previous;
+    }
+
+    private void save(Map<String, Object> results, Set<String> failed, ProceedingJoinPoint joinPoint) throws Exception {
+        if (idempotentHandler instanceof BatchIdempotentHandler) {
+            ((BatchIdempotentHandler) idempotentHandler).saveResults(results, failed, joinPoint);
+            return;
+        }
+        for (Map.Entry<String, Object> entry : results.entrySet()) {
+            idempotentHandler.saveResult(entry.getKey(), entry.getValue(), !failed.contains(entry.getKey()), joinPoint);
+        }
+    }
+
+    private Object proceed(ProceedingJoinPoint joinPoint, Object[] args) {
+        try {
+            return joinPoint.proceed(args);
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
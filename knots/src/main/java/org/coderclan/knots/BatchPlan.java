@@ -0,0 +1,84 @@
+package org.coderclan.knots;
+
+import org.coderclan.knots.annotation.IdempotentBatch;
+import org.coderclan.knots.annotation.IdempotentId;
+import org.springframework.core.ResolvableType;
+import org.springframework.expression.Expression;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+
+/**
+ * Everything {@link BatchIdempotentInvoker} needs to know about a method annotated by {@link IdempotentBatch}, part of
+ * the {@link InvocationPlan} of the method.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class BatchPlan {
+    private final int parameter;
+    private final Expression idExpression;
+    private final IdempotentIdExtractor idExtractor;
+
+    /**
+     * @param idExpression parsed expression of {@link IdempotentBatch#value()}, null if it is empty.
+     * @throws IllegalStateException if the method does NOT match the requirements of {@link IdempotentBatch}.
+     */
+    BatchPlan(Method method, IdempotentBatch annotation, Expression idExpression) {
+        this.parameter = annotation.parameter();
+        if (parameter < 0 || parameter >= method.getParameterCount()
+                || !method.getParameterTypes()[parameter].isAssignableFrom(ArrayList.class)
+                || !Iterable.class.isAssignableFrom(method.getParameterTypes()[parameter])) {
+            throw new IllegalStateException("@IdempotentBatch parameter " + parameter + " should be a List, Collection or Iterable. method=" + method);
+        }
+        if (!method.getReturnType().isAssignableFrom(ArrayList.class) || !Iterable.class.isAssignableFrom(method.getReturnType())) {
+            throw new IllegalStateException("@IdempotentBatch method should return a List. method=" + method);
+        }
+
+        this.idExpression = idExpression;
+        if (idExpression == null) {
+            Class<?> itemType = ResolvableType.forMethodParameter(method, parameter).as(Iterable.class).resolveGeneric(0);
+            this.idExtractor = itemType == null ? null : IdempotentIdExtractor.of(itemType);
+            if (idExtractor == null) {
+                throw new IllegalStateException("Idempotent ID of items is neither defined by @IdempotentBatch nor marked by @IdempotentId. method=" + method);
+            }
+        } else {
+            this.idExtractor = null;
+        }
+    }
+
+    /**
+     * @return index of the parameter of the items.
+     */
+    public int getParameter() {
+        return parameter;
+    }
+
+    /**
+     * @return Idempotent ID of the item, null if it is null.
+     */
+    public String getIdempotentId(Object item) {
+        if (idExtractor != null) {
+            return idExtractor.extract(new Object[]{item});
+        }
+        Object id = idExpression.getValue(item);
+        return id == null ? null : id.toString();
+    }
+
+    /**
+     * @return generic type of the items of the list returned by the method, which are the results saved by
+     * {@link IdempotentHandler}.
+     */
+    public static Type getResultType(Method method) {
+        // the declared type is List<T>, Collection<T> or Iterable<T>.
+        ResolvableType item = ResolvableType.forMethodReturnType(method).getGeneric(0);
+        return item == ResolvableType.NONE ? Object.class : item.getType();
+    }
+
+    /**
+     * @return true if the method is annotated by {@link IdempotentBatch}.
+     */
+    static boolean isBatch(Method method) {
+        return method.isAnnotationPresent(IdempotentBatch.class);
+    }
+}
@@ -0,0 +1,855 @@
+package org.coderclan.knots;
+
+import org.springframework.core.CollectionFactory;
+import org.springframework.core.ResolvableType;
+import org.springframework.objenesis.SpringObjenesis;
+import org.springframework.objenesis.instantiator.ObjectInstantiator;
+import org.springframework.util.ClassUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Compact binary Serializer. Objects are written field by field, without class descriptors, by codecs which are
+ * derived from the generic return type of the intercepted method (e.g. {@code Result<Void>}) and cached per type.
+ * The return value does NOT need to implement {@link java.io.Serializable}.
+ * <p>
+ * Format: a header ({@link #MAGIC}, version and hash of the schema of the return type), and then the value. Values whose
+ * class differs from the declared type(e.g. the declared type is an interface) are written with their class name and the
+ * hash of the schema of their class, so results of changed classes fail to be read instead of being read misaligned.
+ * Enums are written by names, adding constants does NOT change the schema.
+ * Classes of the JDK which are not supported natively are written by {@link JdkSerializer}. Payloads written by
+ * {@link JdkSerializer} can still be read, so it can replace {@link JdkSerializer} on an existing log.
+ * <p>
+ * Limitations: object graphs with cycles are NOT supported, and collections or maps are rebuilt by default
+ * implementations of the declared type (e.g. {@link ArrayList} for {@link List}).
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class BinarySerializer implements Serializer {
+    /**
+     * The first byte of payloads written by this Serializer.
+     */
+    public static final byte MAGIC = 'K';
+    private static final byte VERSION = 2;
+    /**
+     * The first byte of payloads written by {@link java.io.ObjectOutputStream}.
+     */
+    private static final int JDK_MAGIC = 0xAC;
+
+    private static final byte NULL = 0;
+    /**
+     * The value is of the declared type.
+     */
+    private static final byte EXACT = 1;
+    /**
+     * The value is of another class, the class name follows.
+     */
+    private static final byte NAMED = 2;
+
+    /**
+     * Buffers larger than this are NOT kept for reuse.
+     */
+    private static final int MAX_POOLED = 64 * 1024;
+
+    private static final Map<Class<?>, Codec> SIMPLE = new HashMap<>();
+
+    static {
+        simple(Boolean.class, (out, v) -> out.writeByte((Boolean) v ? 1 : 0), in -> in.readByte() != 0);
+        simple(Byte.class, (out, v) -> out.writeByte((Byte) v), Input::readByte);
+        simple(Short.class, (out, v) -> out.writeZigZag((Short) v), in -> (short) in.readZigZag());
+        simple(Character.class, (out, v) -> out.writeVarLong((Character) v), in -> (char) in.readVarLong());
+        simple(Integer.class, (out, v) -> out.writeZigZag((Integer) v), in -> (int) in.readZigZag());
+        simple(Long.class, (out, v) -> out.writeZigZag((Long) v), Input::readZigZag);
+        simple(Float.class, (out, v) -> out.writeFixed(Float.floatToIntBits((Float) v), 4), in -> Float.intBitsToFloat((int) in.readFixed(4)));
+        simple(Double.class, (out, v) -> out.writeFixed(Double.doubleToLongBits((Double) v), 8), in -> Double.longBitsToDouble(in.readFixed(8)));
+        simple(String.class, (out, v) -> out.writeString((String) v), Input::readString);
+        simple(byte[].class, (out, v) -> out.writeBytes((byte[]) v), Input::readBytes);
+        simple(BigInteger.class, (out, v) -> out.writeBytes(((BigInteger) v).toByteArray()), in -> new BigInteger(in.readBytes()));
+        simple(BigDecimal.class, (out, v) -> {
+            out.writeBytes(((BigDecimal) v).unscaledValue().toByteArray());
+            out.writeZigZag(((BigDecimal) v).scale());
+        }, in -> new BigDecimal(new BigInteger(in.readBytes()), (int) in.readZigZag()));
+        simple(Date.class, (out, v) -> out.writeZigZag(((Date) v).getTime()), in -> new Date(in.readZigZag()));
+        simple(UUID.class, (out, v) -> {
+            out.writeFixed(((UUID) v).getMostSignificantBits(), 8);
+            out.writeFixed(((UUID) v).getLeastSignificantBits(), 8);
+        }, in -> new UUID(in.readFixed(8), in.readFixed(8)));
+        simple(Instant.class, (out, v) -> {
+            out.writeZigZag(((Instant) v).getEpochSecond());
+            out.writeVarLong(((Instant) v).getNano());
+        }, in -> Instant.ofEpochSecond(in.readZigZag(), in.readVarLong()));
+        simple(LocalDate.class, (out, v) -> out.writeZigZag(((LocalDate) v).toEpochDay()), in -> LocalDate.ofEpochDay(in.readZigZag()));
+        simple(LocalTime.class, (out, v) -> out.writeVarLong(((LocalTime) v).toNanoOfDay()), in -> LocalTime.ofNanoOfDay(in.readVarLong()));
+        simple(LocalDateTime.class, (out, v) -> {
+            out.writeZigZag(((LocalDateTime) v).toLocalDate().toEpochDay());
+            out.writeVarLong(((LocalDateTime) v).toLocalTime().toNanoOfDay());
+        }, in -> LocalDateTime.of(LocalDate.ofEpochDay(in.readZigZag()), LocalTime.ofNanoOfDay(in.readVarLong())));
+    }
+
+    private final JdkSerializer jdkSerializer = new JdkSerializer();
+    private final SpringObjenesis objenesis = new SpringObjenesis();
+    private final ClassLoader classLoader = ClassUtils.getDefaultClassLoader();
+    private final Codec dynamic = new DynamicCodec();
+    /**
+     * Codecs by type, e.g. {@code org.example.Result<java.lang.Void>}.
+     */
+    private final ConcurrentHashMap<String, Codec> codecs = new ConcurrentHashMap<>();
+    /**
+     * Codecs and schema hashes by return type.
+     */
+    private final ConcurrentHashMap<Type, Root> roots = new ConcurrentHashMap<>();
+    /**
+     * Codecs being created by current thread, they are published after all codecs they depend on are created.
+     */
+    private final ThreadLocal<Map<String, Codec>> building = ThreadLocal.withInitial(HashMap::new);
+    private final ThreadLocal<Output> outputs = ThreadLocal.withInitial(Output::new);
+    private final ThreadLocal<Input> inputs = ThreadLocal.withInitial(Input::new);
+    private final Root untyped = new Root(dynamic);
+
+    @Override
+    public Object deserialize(InputStream is) throws Exception {
+        return deserialize(is, null);
+    }
+
+    @Override
+    public byte[] serialize(Object obj) throws Exception {
+        return serialize(obj, null);
+    }
+
+    @Override
+    public Object deserialize(InputStream is, Type type) throws Exception {
+        if (Objects.isNull(is)) {
+            return null;
+        }
+        Input in = inputs.get();
+        try {
+            in.readFrom(is);
+            if (in.limit == 0) {
+                return null;
+            }
+            int magic = in.buf[0] & 0xFF;
+            if (magic == JDK_MAGIC) {
+                // written by JdkSerializer
+                return jdkSerializer.deserialize(new ByteArrayInputStream(in.buf, 0, in.limit));
+            }
+            if (magic != MAGIC) {
+                throw new IllegalStateException("Unknown format: " + magic);
+            }
+            in.pos = 1;
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new IllegalStateException("Unknown version: " + version);
+            }
+            Root root = root(type);
+            int hash = (int) in.readFixed(4);
+            if (hash != root.codec.hash()) {
+                throw new IllegalStateException("Schema of " + (type == null ? "untyped result" : type.getTypeName()) + " has been changed, the result can NOT be read.");
+            }
+            return readValue(in, root.codec);
+        } finally {
+            in.release();
+        }
+    }
+
+    @Override
+    public byte[] serialize(Object obj, Type type) throws Exception {
+        if (Objects.isNull(obj)) {
+            return null;
+        }
+        Output out = encode(obj, type);
+        try {
+            return Arrays.copyOf(out.buf, out.pos);
+        } finally {
+            out.release();
+        }
+    }
+
+    @Override
+    public void serialize(Object obj, Type type, OutputStream os) throws Exception {
+        if (Objects.isNull(obj)) {
+            return;
+        }
+        Output out = encode(obj, type);
+        try {
+            os.write(out.buf, 0, out.pos);
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * @return the buffer of current thread which contains the payload, it should be released after used.
+     */
+    private Output encode(Object obj, Type type) throws Exception {
+        Root root = root(type);
+        Output out = outputs.get();
+        try {
+            out.writeByte(MAGIC);
+            out.writeByte(VERSION);
+            out.writeFixed(root.codec.hash(), 4);
+            writeValue(out, root.codec, obj);
+            return out;
+        } catch (Exception | Error e) {
+            out.release();
+            throw e;
+        }
+    }
+
+    private Root root(Type type) {
+        return type == null ? untyped : roots.computeIfAbsent(type, t -> new Root(codec(ResolvableType.forType(t))));
+    }
+
+    private void writeValue(Output out, Codec codec, Object value) throws Exception {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (codec.accepts(value)) {
+            out.writeByte(EXACT);
+            codec.write(out, value);
+        } else {
+            Class<?> type = portable(value);
+            Codec named = codec(ResolvableType.forClass(type));
+            out.writeByte(NAMED);
+            out.writeString(type.getName());
+            out.writeFixed(named.hash(), 4);
+            named.write(out, value);
+        }
+    }
+
+    private Object readValue(Input in, Codec codec) throws Exception {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case EXACT:
+                return codec.read(in);
+            case NAMED:
+                String name = in.readString();
+                Codec named = codec(ResolvableType.forClass(ClassUtils.forName(name, classLoader)));
+                if ((int) in.readFixed(4) != named.hash()) {
+                    throw new IllegalStateException("Schema of " + name + " has been changed, the result can NOT be read.");
+                }
+                return named.read(in);
+            default:
+                throw new IllegalStateException("Corrupted payload, unknown tag: " + tag);
+        }
+    }
+
+    /**
+     * @return the class to write for the value, collections and maps which can NOT be instantiated are replaced by
+     * default implementations.
+     */
+    private static Class<?> portable(Object value) {
+        Class<?> type = value.getClass();
+        if (value instanceof Enum) {
+            return ((Enum<?>) value).getDeclaringClass();
+        }
+        if (!(value instanceof Collection || value instanceof Map)
+                || (Modifier.isPublic(type.getModifiers()) && ClassUtils.hasConstructor(type))) {
+            return type;
+        }
+        if (value instanceof SortedSet) {
+            return TreeSet.class;
+        } else if (value instanceof Set) {
+            return LinkedHashSet.class;
+        } else if (value instanceof Queue && !(value instanceof List)) {
+            return ArrayDeque.class;
+        } else if (value instanceof Collection) {
+            return ArrayList.class;
+        } else if (value instanceof SortedMap) {
+            return TreeMap.class;
+        } else {
+            return LinkedHashMap.class;
+        }
+    }
+
+    private Codec codec(ResolvableType type) {
+        String key = type.toString();
+        Codec codec = codecs.get(key);
+        if (codec != null) {
+            return codec;
+        }
+        Map<String, Codec> pending = building.get();
+        codec = pending.get(key);
+        if (codec != null) {
+            // referenced by itself, e.g. a tree node.
+            return codec;
+        }
+        boolean outermost = pending.isEmpty();
+        try {
+            codec = create(type, key, pending);
+            pending.put(key, codec);
+            if (outermost) {
+                codecs.putAll(pending);
+            }
+            return codec;
+        } finally {
+            if (outermost) {
+                pending.clear();
+            }
+        }
+    }
+
+    private Codec create(ResolvableType type, String key, Map<String, Codec> pending) {
+        Class<?> raw = ClassUtils.resolvePrimitiveIfNecessary(type.resolve(Object.class));
+        Codec simple = SIMPLE.get(raw);
+        if (simple != null) {
+            return simple;
+        }
+        if (raw.isEnum()) {
+            return new EnumCodec(raw);
+        }
+        if (raw.isArray()) {
+            return new ArrayCodec(raw, codec(type.getComponentType()));
+        }
+        if (Collection.class.isAssignableFrom(raw)) {
+            return new CollectionCodec(raw, type.asCollection().getGeneric(0));
+        }
+        if (Map.class.isAssignableFrom(raw)) {
+            return new MapCodec(raw, type.asMap().getGeneric(0), type.asMap().getGeneric(1));
+        }
+        if (raw.isInterface() || Modifier.isAbstract(raw.getModifiers()) || raw == Object.class) {
+            return dynamic;
+        }
+        if (raw.getName().startsWith("java.") || raw.getName().startsWith("javax.")) {
+            return new JdkCodec(raw);
+        }
+        BeanCodec codec = new BeanCodec(raw);
+        // register before creating codecs of the fields, the fields may reference the bean itself.
+        pending.put(key, codec);
+        codec.init(type);
+        return codec;
+    }
+
+    private static void simple(Class<?> type, BiConsumer<Output, Object> writer, Function<Input, Object> reader) {
+        SIMPLE.put(type, new SimpleCodec(type, writer, reader));
+    }
+
+    private static final class Root {
+        private final Codec codec;
+
+        private Root(Codec codec) {
+            this.codec = codec;
+        }
+    }
+
+    private abstract static class Codec {
+        protected final Class<?> type;
+        private volatile Integer hash;
+
+        private Codec(Class<?> type) {
+            this.type = type;
+        }
+
+        /**
+         * @return true if the value can be written without its class name.
+         */
+        boolean accepts(Object value) {
+            return value.getClass() == type;
+        }
+
+        abstract void write(Output out, Object value) throws Exception;
+
+        abstract Object read(Input in) throws Exception;
+
+        /**
+         * Describe the schema, to detect changes of the classes.
+         */
+        void describe(StringBuilder schema, Set<Codec> visited) {
+            schema.append(type.getName());
+        }
+
+        /**
+         * @return hash of the schema, written with the values.
+         */
+        int hash() {
+            Integer h = hash;
+            if (h == null) {
+                StringBuilder schema = new StringBuilder();
+                describe(schema, new HashSet<>());
+                hash = h = schema.toString().hashCode();
+            }
+            return h;
+        }
+    }
+
+    private static final class SimpleCodec extends Codec {
+        private final BiConsumer<Output, Object> writer;
+        private final Function<Input, Object> reader;
+
+        private SimpleCodec(Class<?> type, BiConsumer<Output, Object> writer, Function<Input, Object> reader) {
+            super(type);
+            this.writer = writer;
+            this.reader = reader;
+        }
+
+        @Override
+        void write(Output out, Object value) {
+            writer.accept(out, value);
+        }
+
+        @Override
+        Object read(Input in) {
+            return reader.apply(in);
+        }
+    }
+
+    /**
+     * Codec of Object, interfaces and abstract classes, values are always written with their class names.
+     */
+    private static final class DynamicCodec extends Codec {
+        private DynamicCodec() {
+            super(Object.class);
+        }
+
+        @Override
+        boolean accepts(Object value) {
+            return false;
+        }
+
+        @Override
+        void write(Output out, Object value) {
+            throw new IllegalArgumentException("Can NOT serialize instance of " + value.getClass().getName());
+        }
+
+        @Override
+        Object read(Input in) {
+            throw new IllegalStateException("Corrupted payload.");
+        }
+
+        @Override
+        void describe(StringBuilder schema, Set<Codec> visited) {
+            schema.append('*');
+        }
+    }
+
+    private final class JdkCodec extends Codec {
+        private JdkCodec(Class<?> type) {
+            super(type);
+        }
+
+        @Override
+        void write(Output out, Object value) throws Exception {
+            out.writeBytes(jdkSerializer.serialize(value));
+        }
+
+        @Override
+        Object read(Input in) throws Exception {
+            int length = (int) in.readVarLong();
+            Object value = jdkSerializer.deserialize(new ByteArrayInputStream(in.buf, in.pos, length));
+            in.pos += length;
+            return value;
+        }
+    }
+
+    private static final class EnumCodec extends Codec {
+        private final Map<String, Object> byName = new HashMap<>();
+
+        private EnumCodec(Class<?> type) {
+            super(type);
+            for (Object constant : type.getEnumConstants()) {
+                byName.put(((Enum<?>) constant).name(), constant);
+            }
+        }
+
+        @Override
+        boolean accepts(Object value) {
+            return type.isInstance(value);
+        }
+
+        @Override
+        void write(Output out, Object value) {
+            out.writeString(((Enum<?>) value).name());
+        }
+
+        @Override
+        Object read(Input in) {
+            String name = in.readString();
+            Object constant = byName.get(name);
+            if (constant == null) {
+                throw new IllegalStateException("Constant " + name + " of " + type.getName() + " has been removed, the result can NOT be read.");
+            }
+            return constant;
+        }
+    }
+
+    private final class ArrayCodec extends Codec {
+        private final Class<?> componentType;
+        private final Codec component;
+
+        private ArrayCodec(Class<?> type, Codec component) {
+            super(type);
+            this.componentType = type.getComponentType();
+            this.component = component;
+        }
+
+        @Override
+        void write(Output out, Object value) throws Exception {
+            int length = Array.getLength(value);
+            out.writeVarLong(length);
+            for (int i = 0; i < length; i++) {
+                if (componentType.isPrimitive()) {
+                    component.write(out, Array.get(value, i));
+                } else {
+                    writeValue(out, component, Array.get(value, i));
+                }
+            }
+        }
+
+        @Override
+        Object read(Input in) throws Exception {
+            int length = (int) in.readVarLong();
+            Object value = Array.newInstance(componentType, length);
+            for (int i = 0; i < length; i++) {
+                Array.set(value, i, componentType.isPrimitive() ? component.read(in) : readValue(in, component));
+            }
+            return value;
+        }
+
+        @Override
+        void describe(StringBuilder schema, Set<Codec> visited) {
+            component.describe(schema, visited);
+            schema.append("[]");
+        }
+    }
+
+    private final class CollectionCodec extends Codec {
+        private final Class<?> elementType;
+        private final Codec element;
+
+        private CollectionCodec(Class<?> type, ResolvableType elementType) {
+            super(type);
+            this.elementType = elementType.resolve();
+            this.element = codec(elementType);
+        }
+
+        @Override
+        boolean accepts(Object value) {
+            return type.isInterface() || Modifier.isAbstract(type.getModifiers()) ? type.isInstance(value) : value.getClass() == type;
+        }
+
+        @Override
+        void write(Output out, Object value) throws Exception {
+            Collection<?> collection = (Collection<?>) value;
+            out.writeVarLong(collection.size());
+            for (Object e : collection) {
+                writeValue(out, element, e);
+            }
+        }
+
+        @Override
+        Object read(Input in) throws Exception {
+            int size = (int) in.readVarLong();
+            Collection<Object> collection = newCollection(size);
+            for (int i = 0; i < size; i++) {
+                collection.add(readValue(in, element));
+            }
+            return collection;
+        }
+
+        private Collection<Object> newCollection(int size) {
+            if (type == Collection.class || type == List.class) {
+                return new ArrayList<>(size);
+            }
+            if (type == Queue.class || type == Deque.class) {
+                return new ArrayDeque<>(size);
+            }
+            return CollectionFactory.createCollection(type, elementType, size);
+        }
+
+        @Override
+        void describe(StringBuilder schema, Set<Codec> visited) {
+            schema.append(type.getName()).append('<');
+            element.describe(schema, visited);
+            schema.append('>');
+        }
+    }
+
+    private final class MapCodec extends Codec {
+        private final Class<?> keyType;
+        private final Codec key;
+        private final Codec value;
+
+        private MapCodec(Class<?> type, ResolvableType keyType, ResolvableType valueType) {
+            super(type);
+            this.keyType = keyType.resolve();
+            this.key = codec(keyType);
+            this.value = codec(valueType);
+        }
+
+        @Override
+        boolean accepts(Object value) {
+            return type.isInterface() || Modifier.isAbstract(type.getModifiers()) ? type.isInstance(value) : value.getClass() == type;
+        }
+
+        @Override
+        void write(Output out, Object value) throws Exception {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeVarLong(map.size());
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                writeValue(out, key, e.getKey());
+                writeValue(out, this.value, e.getValue());
+            }
+        }
+
+        @Override
+        Object read(Input in) throws Exception {
+            int size = (int) in.readVarLong();
+            Map<Object, Object> map = CollectionFactory.createMap(type, keyType, size);
+            for (int i = 0; i < size; i++) {
+                map.put(readValue(in, key), readValue(in, this.value));
+            }
+            return map;
+        }
+
+        @Override
+        void describe(StringBuilder schema, Set<Codec> visited) {
+            schema.append(type.getName()).append('<');
+            key.describe(schema, visited);
+            schema.append(',');
+            value.describe(schema, visited);
+            schema.append('>');
+        }
+    }
+
+    /**
+     * Codec of other classes, non-static and non-transient fields are written in order, without names.
+     */
+    private final class BeanCodec extends Codec {
+        private ObjectInstantiator<?> instantiator;
+        private Field[] fields;
+        private Codec[] fieldCodecs;
+
+        private BeanCodec(Class<?> type) {
+            super(type);
+        }
+
+        private void init(ResolvableType beanType) {
+            List<Field> list = new ArrayList<>();
+            List<Class<?>> hierarchy = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                hierarchy.add(0, c);
+            }
+            for (Class<?> c : hierarchy) {
+                Field[] declared = c.getDeclaredFields();
+                Arrays.sort(declared, Comparator.comparing(Field::getName));
+                for (Field field : declared) {
+                    if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers()) && !field.isSynthetic()) {
+                        field.setAccessible(true);
+                        list.add(field);
+                    }
+                }
+            }
+            this.fields = list.toArray(new Field[0]);
+            this.fieldCodecs = new Codec[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                fieldCodecs[i] = codec(ResolvableType.forField(fields[i], beanType));
+            }
+            this.instantiator = objenesis.getInstantiatorOf(type);
+        }
+
+        @Override
+        void write(Output out, Object value) throws Exception {
+            for (int i = 0; i < fields.length; i++) {
+                if (fields[i].getType().isPrimitive()) {
+                    fieldCodecs[i].write(out, fields[i].get(value));
+                } else {
+                    writeValue(out, fieldCodecs[i], fields[i].get(value));
+                }
+            }
+        }
+
+        @Override
+        Object read(Input in) throws Exception {
+            Object value = instantiator.newInstance();
+            for (int i = 0; i < fields.length; i++) {
+                fields[i].set(value, fields[i].getType().isPrimitive() ? fieldCodecs[i].read(in) : readValue(in, fieldCodecs[i]));
+            }
+            return value;
+        }
+
+        @Override
+        void describe(StringBuilder schema, Set<Codec> visited) {
+            schema.append(type.getName());
+            if (!visited.add(this)) {
+                return;
+            }
+            schema.append('{');
+            for (int i = 0; i < fields.length; i++) {
+                schema.append(fields[i].getName()).append(':');
+                fieldCodecs[i].describe(schema, visited);
+                schema.append(';');
+            }
+            schema.append('}');
+        }
+    }
+
+    /**
+     * Reusable output buffer of a thread.
+     */
+    private static final class Output {
+        private byte[] buf = new byte[256];
+        private int pos;
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeFixed(long v, int bytes) {
+            ensure(bytes);
+            for (int i = bytes - 1; i >= 0; i--) {
+                buf[pos++] = (byte) (v >>> (i * 8));
+            }
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void writeZigZag(long v) {
+            writeVarLong((v << 1) ^ (v >> 63));
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        /**
+         * Number of chars, and then chars encoded like UTF-8.
+         */
+        void writeString(String s) {
+            int length = s.length();
+            writeVarLong(length);
+            ensure(length * 3);
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buf[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[pos++] = (byte) (0xC0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else {
+                    buf[pos++] = (byte) (0xE0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        void release() {
+            pos = 0;
+            if (buf.length > MAX_POOLED) {
+                buf = new byte[256];
+            }
+        }
+    }
+
+    /**
+     * Reusable input buffer of a thread.
+     */
+    private static final class Input {
+        private byte[] buf = new byte[256];
+        private int pos;
+        private int limit;
+
+        void readFrom(InputStream is) throws IOException {
+            pos = 0;
+            limit = 0;
+            int n;
+            while ((n = is.read(buf, limit, buf.length - limit)) >= 0) {
+                limit += n;
+                if (limit == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+            }
+        }
+
+        byte readByte() {
+            return buf[pos++];
+        }
+
+        long readFixed(int bytes) {
+            long v = 0;
+            for (int i = 0; i < bytes; i++) {
+                v = (v << 8) | (buf[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readVarLong() {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+        }
+
+        long readZigZag() {
+            long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        byte[] readBytes() {
+            int length = (int) readVarLong();
+            byte[] bytes = Arrays.copyOfRange(buf, pos, pos + length);
+            pos += length;
+            return bytes;
+        }
+
+        String readString() {
+            int length = (int) readVarLong();
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                int b = buf[pos++] & 0xFF;
+                if (b < 0x80) {
+                    chars[i] = (char) b;
+                } else if (b < 0xE0) {
+                    chars[i] = (char) (((b & 0x1F) << 6) | (buf[pos++] & 0x3F));
+                } else {
+                    chars[i] = (char) (((b & 0x0F) << 12) | ((buf[pos++] & 0x3F) << 6) | (buf[pos++] & 0x3F));
+                }
+            }
+            return new String(chars);
+        }
+
+        void release() {
+            if (buf.length > MAX_POOLED) {
+                buf = new byte[256];
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.coderclan.knots;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Per-node poller of previous invocations which have NOT been finished. Waiting threads register their Idempotent IDs
+ * and park, the poller checks all the registered Idempotent IDs by one batched query per tick, and wakes up the waiters
+ * of the finished ones, which look up the results by themselves. The number of polling queries scales with the nodes
+ * instead of the waiting threads, waiters of the same Idempotent ID share one check.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class CompletionPoller {
+    private static final Logger log = LoggerFactory.getLogger(CompletionPoller.class);
+
+    /**
+     * Checks a batch of Idempotent IDs.
+     */
+    @FunctionalInterface
+    public interface Check {
+        /**
+         * @return Idempotent IDs which are NOT in progress any more(finished, failed, or the owner may have crashed).
+         */
+        Set<String> ready(Collection<String> idempotentIds) throws Exception;
+    }
+
+    private final Check check;
+    private final ConcurrentHashMap<String, Waiters> waiting = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param name     name of the polling thread.
+     * @param interval pause (unit: millisecond) between ticks.
+     */
+    public CompletionPoller(Check check, String name, long interval) {
+        this.check = check;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::poll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Park current thread until the Idempotent ID is NOT in progress.
+     *
+     * @param timeout maximum time (unit: millisecond) to wait.
+     * @return true if the Idempotent ID is NOT in progress, false if timeout.
+     */
+    public boolean await(String idempotentId, long timeout) throws InterruptedException {
+        Waiters waiters = waiting.compute(idempotentId, (k, w) -> {
+            if (w == null) {
+                w = new Waiters();
+            }
+            w.count++;
+            return w;
+        });
+        try {
+            waiters.ready.get(Math.max(0L, timeout), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException e) {
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } finally {
+            waiting.computeIfPresent(idempotentId, (k, w) -> w == waiters && --w.count == 0 ? null : w);
+        }
+    }
+
+    /**
+     * @return number of Idempotent IDs being polled.
+     */
+    public int size() {
+        return waiting.size();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void poll() {
+        if (waiting.isEmpty()) {
+            return;
+        }
+        List<String> idempotentIds = new ArrayList<>(waiting.keySet());
+        Set<String> ready;
+        try {
+            ready = check.ready(idempotentIds);
+        } catch (Exception e) {
+            // wake up all the waiters, they look up the previous invocations by themselves.
+            log.error("Exception countered while polling previous invocations. idempotentIds={}", idempotentIds.size(), e);
+            ready = waiting.keySet();
+        }
+        for (String idempotentId : ready) {
+            Waiters waiters = waiting.remove(idempotentId);
+            if (waiters != null) {
+                waiters.ready.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Threads waiting for an Idempotent ID, updated within {@link ConcurrentHashMap#compute}.
+     */
+    private static final class Waiters {
+        private final CompletableFuture<Void> ready = new CompletableFuture<>();
+        private int count;
+    }
+}
@@ -0,0 +1,117 @@
+package org.coderclan.knots;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.lang.reflect.Type;
+import java.util.Objects;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Serializer which compresses large payloads of the delegate by Deflate.
+ * <p>
+ * Payloads larger than {@code threshold} bytes are written as {@link #COMPRESSED} followed by the deflated payload,
+ * smaller ones are written as they are. Payloads written without compression(e.g. by the delegate directly) can still
+ * be read, as long as they do NOT start with {@link #COMPRESSED}, which is true for {@link BinarySerializer} and
+ * {@link JdkSerializer}.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class CompressingSerializer implements Serializer {
+    /**
+     * The first byte of compressed payloads.
+     */
+    public static final byte COMPRESSED = 'Z';
+
+    private final Serializer delegate;
+    private final int threshold;
+    private final int level;
+    private final ThreadLocal<PayloadBuffer> buffers = ThreadLocal.withInitial(PayloadBuffer::new);
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * @param threshold payloads larger than this (unit: byte) are compressed.
+     * @param level     compression level of {@link Deflater}, 1 (fastest) to 9 (smallest).
+     */
+    public CompressingSerializer(Serializer delegate, int threshold, int level) {
+        this.delegate = delegate;
+        this.threshold = threshold;
+        this.level = level;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    @Override
+    public Object deserialize(InputStream is) throws Exception {
+        return deserialize(is, null);
+    }
+
+    @Override
+    public byte[] serialize(Object obj) throws Exception {
+        return serialize(obj, null);
+    }
+
+    @Override
+    public Object deserialize(InputStream is, Type type) throws Exception {
+        if (Objects.isNull(is)) {
+            return null;
+        }
+        PushbackInputStream in = new PushbackInputStream(is, 1);
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        if (first != COMPRESSED) {
+            in.unread(first);
+            return delegate.deserialize(in, type);
+        }
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        return delegate.deserialize(new InflaterInputStream(in, inflater), type);
+    }
+
+    @Override
+    public byte[] serialize(Object obj, Type type) throws Exception {
+        if (Objects.isNull(obj)) {
+            return null;
+        }
+        PayloadBuffer out = new PayloadBuffer();
+        serialize(obj, type, out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public void serialize(Object obj, Type type, OutputStream os) throws Exception {
+        if (Objects.isNull(obj)) {
+            return;
+        }
+        PayloadBuffer buffer = buffers.get();
+        try {
+            delegate.serialize(obj, type, buffer);
+            if (buffer.size() <= threshold) {
+                buffer.writeTo(os);
+                return;
+            }
+            os.write(COMPRESSED);
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            DeflaterOutputStream deflated = new DeflaterOutputStream(os, deflater, 4096);
+            buffer.writeTo(deflated);
+            // do NOT close the stream of the caller.
+            deflated.finish();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+}
@@ -0,0 +1,90 @@
+package org.coderclan.knots;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Pause between polling grows exponentially from {@code initialWait} up to {@code maxPause}. Pauses are randomized by
+ * {@code jitter} to spread the polling of concurrent waiters.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class ExponentialWaitStrategy implements WaitStrategy {
+    private final long initialWait;
+    private final long maxPause;
+    private final double multiplier;
+    private final double jitter;
+    private final long timeout;
+
+    /**
+     * @param initialWait first pause (unit: millisecond).
+     * @param maxPause    maximum pause (unit: millisecond).
+     * @param multiplier  multiplier applied to the pause after each polling.
+     * @param jitter      0 to 1, a pause is reduced randomly by at most {@code jitter * pause}.
+     * @param timeout     maximum time (unit: millisecond) to wait.
+     */
+    public ExponentialWaitStrategy(long initialWait, long maxPause, double multiplier, double jitter, long timeout) {
+        if (initialWait <= 0 || maxPause < initialWait || multiplier < 1.0d || jitter < 0.0d || jitter > 1.0d) {
+            throw new IllegalArgumentException("Illegal exponential wait parameters. initialWait=" + initialWait
+                    + ", maxPause=" + maxPause + ", multiplier=" + multiplier + ", jitter=" + jitter);
+        }
+        this.initialWait = initialWait;
+        this.maxPause = maxPause;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public Wait start(Method method) {
+        return new BackoffWait(initialWait);
+    }
+
+    @Override
+    public long getTimeout() {
+        return timeout;
+    }
+
+    protected long getInitialWait() {
+        return initialWait;
+    }
+
+    protected long getMaxPause() {
+        return maxPause;
+    }
+
+    /**
+     * Exponential backoff bounded by {@link #getTimeout()}.
+     */
+    protected class BackoffWait implements Wait {
+        private final long deadline = System.currentTimeMillis() + timeout;
+        private long firstPause;
+        private double pause = initialWait;
+
+        /**
+         * @param firstPause the first pause (unit: millisecond), the following pauses grow from {@code initialWait}.
+         */
+        protected BackoffWait(long firstPause) {
+            this.firstPause = firstPause;
+        }
+
+        @Override
+        public long nextPause() {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return -1L;
+            }
+
+            double base;
+            if (firstPause > 0) {
+                base = firstPause;
+                firstPause = 0;
+            } else {
+                pause = Math.min(maxPause, pause * multiplier);
+                base = pause;
+            }
+            long next = (long) (base * (1.0d - jitter * ThreadLocalRandom.current().nextDouble()));
+            return Math.max(1L, Math.min(next, remaining));
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.coderclan.knots;
+
+import java.lang.reflect.Method;
+
+/**
+ * Pause a fixed time between polling, at most {@code retries} times.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class FixedWaitStrategy implements WaitStrategy {
+    private final int retries;
+    private final long retryWait;
+
+    /**
+     * @param retries   times of retrying to get previous invocation result.
+     * @param retryWait pause (unit: millisecond) between retrying.
+     */
+    public FixedWaitStrategy(int retries, long retryWait) {
+        this.retries = retries;
+        this.retryWait = retryWait;
+    }
+
+    @Override
+    public Wait start(Method method) {
+        return new Wait() {
+            private int tried;
+
+            @Override
+            public long nextPause() {
+                return tried++ < retries ? retryWait : -1L;
+            }
+        };
+    }
+
+    @Override
+    public long getTimeout() {
+        return retries * retryWait;
+    }
+}
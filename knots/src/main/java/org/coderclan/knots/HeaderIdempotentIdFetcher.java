@@ -0,0 +1,61 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.springframework.util.ClassUtils;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.method.HandlerMethod;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.Method;
+
+/**
+ * Get Idempotent ID from a header of the current HTTP request, e.g. {@code Idempotency-Key}. The header is used by the
+ * handler (controller) method of the request ONLY, methods invoked by the handler, or NOT invoked within a HTTP request,
+ * or requests without the header, get it as {@link AnnotatedIdempotentIdFetcher} does.
+ * <p>
+ * Keys are scoped by the handler method and the user ({@link HttpServletRequest#getRemoteUser()}) of the request, the
+ * Idempotent ID is built as {@link IdempotencyKeyFilter#idempotentId(String, String)} does.
+ * <p>
+ * It makes controller methods annotated by {@link org.coderclan.knots.annotation.Idempotent} idempotent by the header,
+ * check {@link IdempotencyKeyFilter} to replay responses before the request is dispatched.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class HeaderIdempotentIdFetcher extends AnnotatedIdempotentIdFetcher {
+    /**
+     * Value of {@code org.springframework.web.servlet.HandlerMapping#BEST_MATCHING_HANDLER_ATTRIBUTE}, spring-webmvc is
+     * NOT required.
+     */
+    static final String HANDLER_ATTRIBUTE = "org.springframework.web.servlet.HandlerMapping.bestMatchingHandler";
+
+    private final String headerName;
+
+    public HeaderIdempotentIdFetcher(String headerName) {
+        this.headerName = headerName;
+    }
+
+    @Override
+    public String getIdempotentId(ProceedingJoinPoint proceedingJoinPoint, InvocationPlan plan) {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes instanceof ServletRequestAttributes) {
+            HttpServletRequest request = ((ServletRequestAttributes) attributes).getRequest();
+            String key = request.getHeader(headerName);
+            Method method = JoinPoints.getMethod(proceedingJoinPoint);
+            if (key != null && isHandler(request.getAttribute(HANDLER_ATTRIBUTE), method)) {
+                return IdempotencyKeyFilter.idempotentId(method + " " + request.getRemoteUser(), key);
+            }
+        }
+        return super.getIdempotentId(proceedingJoinPoint, plan);
+    }
+
+    private static boolean isHandler(Object handler, Method method) {
+        if (!(handler instanceof HandlerMethod) || method == null) {
+            return false;
+        }
+        HandlerMethod handlerMethod = (HandlerMethod) handler;
+        return handlerMethod.getMethod().equals(method)
+                || handlerMethod.getMethod().equals(ClassUtils.getMostSpecificMethod(method, handlerMethod.getBeanType()));
+    }
+}
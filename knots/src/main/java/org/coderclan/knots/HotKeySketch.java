@@ -0,0 +1,160 @@
+package org.coderclan.knots;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded top-K of the most frequent keys. Frequencies are estimated by a Count-Min sketch(fixed memory, lock-free
+ * increments), keys whose estimates exceed the smallest one of the current top-K are admitted into it under a lock,
+ * so the lock is NOT taken for keys which are already in it or too cold to enter it.
+ * <p>
+ * Counts are halved every half-life, so keys which are no longer hot leave the top-K. Estimates may be a bit larger
+ * than the real counts(never smaller).
+ * <p>
+ * The counters of a key are picked by a seeded 64-bit hash of its characters, NOT by {@link String#hashCode()}: keys
+ * which collide in {@code hashCode()} are easy to craft(e.g. "Aa" and "BB"), and would share the counters of all rows.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+final class HotKeySketch {
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+
+    private final AtomicLongArray counters = new AtomicLongArray(DEPTH * WIDTH);
+    private final long seed = ThreadLocalRandom.current().nextLong();
+    private final int capacity;
+    private final long halfLife;
+    private final AtomicLong nextDecay;
+    /**
+     * Keys of the top-K, counts are estimated by the sketch when they are read.
+     */
+    private final Set<String> top = ConcurrentHashMap.newKeySet();
+    /**
+     * Smallest estimate of the top-K if it is full, 0 otherwise.
+     */
+    private volatile long threshold;
+
+    /**
+     * @param capacity number of keys to keep.
+     * @param halfLife counts are halved after this period (unit: millisecond), never if it is not positive.
+     */
+    HotKeySketch(int capacity, long halfLife) {
+        this.capacity = capacity;
+        this.halfLife = halfLife;
+        this.nextDecay = new AtomicLong(halfLife > 0 ? System.currentTimeMillis() + halfLife : Long.MAX_VALUE);
+    }
+
+    /**
+     * Count one occurrence of the key.
+     */
+    void add(String key) {
+        decayIfDue();
+        long h = hash(key);
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, counters.incrementAndGet(index(h, i)));
+        }
+        if (estimate > threshold && !top.contains(key)) {
+            admit(key);
+        }
+    }
+
+    /**
+     * @return keys of the top-K and their estimated counts, the most frequent first.
+     */
+    List<Map.Entry<String, Long>> top() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(top.size());
+        for (String key : top) {
+            long estimate = estimate(key);
+            if (estimate > 0) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(key, estimate));
+            }
+        }
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        return entries;
+    }
+
+    private synchronized void admit(String key) {
+        top.add(key);
+        if (top.size() > capacity) {
+            top.remove(coldest());
+        }
+        updateThreshold();
+    }
+
+    private String coldest() {
+        String coldest = null;
+        long min = Long.MAX_VALUE;
+        for (String key : top) {
+            long estimate = estimate(key);
+            if (estimate < min) {
+                min = estimate;
+                coldest = key;
+            }
+        }
+        return coldest;
+    }
+
+    private void updateThreshold() {
+        threshold = top.size() < capacity ? 0 : estimate(coldest());
+    }
+
+    private long estimate(String key) {
+        long h = hash(key);
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, counters.get(index(h, i)));
+        }
+        return estimate;
+    }
+
+    /**
+     * @return index of the counter of the key in the row, the hashes of rows are derived from the two halves of the
+     * hash of the key.
+     */
+    private static int index(long h, int row) {
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        return row * WIDTH + ((h1 + row * h2) & (WIDTH - 1));
+    }
+
+    private void decayIfDue() {
+        long due = nextDecay.get();
+        long now = System.currentTimeMillis();
+        if (now < due || !nextDecay.compareAndSet(due, now + halfLife)) {
+            return;
+        }
+        // concurrent increments may be lost or NOT halved, it's fine for estimates.
+        for (int i = 0; i < counters.length(); i++) {
+            long count = counters.get(i);
+            if (count > 0) {
+                counters.set(i, count >> 1);
+            }
+        }
+        synchronized (this) {
+            top.removeIf(key -> estimate(key) == 0);
+            updateThreshold();
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a of the characters of the key, started from the seed and finalized by fmix64 of MurmurHash3, so
+     * both halves depend on all the characters.
+     */
+    private long hash(String key) {
+        long h = seed ^ 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,90 @@
+package org.coderclan.knots;
+
+import java.lang.reflect.Method;
+
+/**
+ * Observer of the idempotence pipeline, called by {@link IdempotentAspect} and {@link IdempotentHandler}s.
+ * Implementations should be cheap, they are called on every idempotent invocation. {@link #NOOP} is used if no
+ * metrics backend is available.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ * @see MicrometerIdempotenceMetrics
+ */
+public interface IdempotenceMetrics {
+    /**
+     * Record nothing.
+     */
+    IdempotenceMetrics NOOP = new IdempotenceMetrics() {
+    };
+
+    /**
+     * Outcome of looking up the previous invocation of the same Idempotent ID.
+     */
+    enum Outcome {
+        /**
+         * No successful previous invocation, the method is executed.
+         */
+        EXECUTED,
+        /**
+         * The result of the previous invocation is returned.
+         */
+        REPLAYED,
+        /**
+         * Waiting for the previous invocation timeout.
+         */
+        TIMEOUT
+    }
+
+    /**
+     * Record the lookup of the previous invocation, including waiting for it.
+     *
+     * @param method  the invoked method, null if unknown.
+     * @param outcome outcome of the lookup.
+     * @param nanos   time spent in {@link IdempotentHandler#lockOrReturnPreviousResult} (unit: nanosecond), or
+     *                waiting for the in-flight invocation of this JVM.
+     */
+    default void recordLookup(Method method, Outcome outcome, long nanos) {
+    }
+
+    /**
+     * Record an invocation which has to wait for the previous invocation which has NOT been finished.
+     *
+     * @param method the invoked method, null if unknown.
+     */
+    default void recordWait(Method method) {
+    }
+
+    /**
+     * Record one more poll of the previous invocation result after a pause.
+     *
+     * @param method the invoked method, null if unknown.
+     */
+    default void recordRetry(Method method) {
+    }
+
+    /**
+     * Record the execution of an Idempotent ID whose previous invocation failed.
+     *
+     * @param method the invoked method, null if unknown.
+     */
+    default void recordReExecution(Method method) {
+    }
+
+    /**
+     * Record {@link IdempotentHandler#saveResult}.
+     *
+     * @param method the invoked method, null if unknown.
+     * @param nanos  time spent (unit: nanosecond).
+     */
+    default void recordSave(Method method, long nanos) {
+    }
+
+    /**
+     * Record the size of a serialized result.
+     *
+     * @param method the invoked method, null if unknown.
+     * @param bytes  size (unit: byte).
+     */
+    default void recordPayloadSize(Method method, int bytes) {
+    }
+}
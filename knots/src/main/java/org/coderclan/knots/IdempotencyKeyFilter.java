@@ -0,0 +1,173 @@
+package org.coderclan.knots;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Make HTTP requests idempotent by the {@code Idempotency-Key} header, before the request is dispatched to the
+ * controller.
+ * <p>
+ * The first request of a key is processed as usual, its response(status, headers and body) is saved by
+ * {@link IdempotentHandler} if the status is 2xx. Following requests of the same key get the saved response directly,
+ * the body of the request is NOT parsed, and the controller is NOT invoked. Requests of the same key which are still
+ * in progress after the timeout of {@link WaitStrategy} are responded by 409 (Conflict).
+ * <p>
+ * Keys are scoped by the HTTP method, the URI and the user ({@link HttpServletRequest#getRemoteUser()}) of the request,
+ * the same key sent by another user or to another endpoint is a different request. Idempotent IDs are
+ * {@link #KEY_PREFIX}, a fingerprint of the scope and the key, check {@link #idempotentId(String, String)}. Responses
+ * should NOT be larger than the result column of the {@link IdempotentHandler} (10KB for {@link RdbmsIdempotentHandler},
+ * after serialized and compressed).
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class IdempotencyKeyFilter extends OncePerRequestFilter {
+    private static final Logger log = LoggerFactory.getLogger(IdempotencyKeyFilter.class);
+
+    public static final String DEFAULT_HEADER = "Idempotency-Key";
+    public static final String KEY_PREFIX = "http:";
+    /**
+     * Idempotent IDs are stored in varchar(64), or varchar(1024) if keys are hashed.
+     */
+    public static final int MAX_ID_LENGTH = 64;
+    public static final int MAX_HASHED_ID_LENGTH = 1024;
+    /**
+     * Headers which are NOT saved.
+     */
+    private static final Set<String> EXCLUDED_HEADERS = new HashSet<>(Arrays.asList(
+            "set-cookie", "date", "content-length", "content-type", "transfer-encoding", "connection"));
+
+    private final IdempotentHandler idempotentHandler;
+    private final String headerName;
+    private final Set<String> methods;
+    private final int maxIdLength;
+
+    /**
+     * @param headerName name of the header of the key.
+     * @param methods    HTTP methods which are handled, e.g. POST.
+     */
+    public IdempotencyKeyFilter(IdempotentHandler idempotentHandler, String headerName, Collection<String> methods) {
+        this(idempotentHandler, headerName, methods, MAX_ID_LENGTH);
+    }
+
+    /**
+     * @param headerName  name of the header of the key.
+     * @param methods     HTTP methods which are handled, e.g. POST.
+     * @param maxIdLength maximum length of Idempotent IDs accepted by the {@link IdempotentHandler}, longer keys are
+     *                    rejected by 400 (Bad Request).
+     */
+    public IdempotencyKeyFilter(IdempotentHandler idempotentHandler, String headerName, Collection<String> methods, int maxIdLength) {
+        this.idempotentHandler = idempotentHandler;
+        this.headerName = headerName;
+        this.maxIdLength = maxIdLength;
+        this.methods = new HashSet<>();
+        for (String method : methods) {
+            this.methods.add(method.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !methods.contains(request.getMethod()) || request.getHeader(headerName) == null;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        String scope = request.getMethod() + ' ' + request.getRequestURI() + ' ' + request.getRemoteUser();
+        String idempotentId = idempotentId(scope, request.getHeader(headerName));
+        if (idempotentId.length() > maxIdLength) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), headerName + " is too long.");
+            return;
+        }
+
+        Object previous;
+        try {
+            previous = idempotentHandler.lockOrReturnPreviousResult(idempotentId, null);
+        } catch (IdempotentTimeoutException e) {
+            response.sendError(HttpStatus.CONFLICT.value(), "Request of the same " + headerName + " is in progress.");
+            return;
+        } catch (Exception e) {
+            throw new ServletException("Exception countered while checking result. idempotentId=" + idempotentId, e);
+        }
+
+        if (previous instanceof StoredResponse) {
+            log.info("Repeat request found for idempotentId={}, replay the response directly!", idempotentId);
+            replay((StoredResponse) previous, response);
+            return;
+        }
+        if (previous != null) {
+            throw new ServletException("The Idempotent ID is used by an invocation which is NOT a HTTP request. idempotentId=" + idempotentId);
+        }
+
+        ContentCachingResponseWrapper wrapper = new ContentCachingResponseWrapper(response);
+        StoredResponse stored = null;
+        try {
+            filterChain.doFilter(request, wrapper);
+            // responses of async requests can NOT be saved here.
+            if (!request.isAsyncStarted() && HttpStatus.valueOf(wrapper.getStatus()).is2xxSuccessful()) {
+                stored = store(wrapper);
+            }
+        } finally {
+            try {
+                idempotentHandler.saveResult(idempotentId, stored, stored != null, null);
+            } catch (Exception e) {
+                throw new ServletException("Exception countered while save result. idempotentId=" + idempotentId, e);
+            }
+        }
+        wrapper.copyBodyToResponse();
+    }
+
+    /**
+     * @param scope where the key is unique, e.g. HTTP method, URI and user of the request.
+     * @param key   the key sent by the client.
+     * @return {@link #KEY_PREFIX}, the first 64 bits of SHA-256 of the scope(hex) and the key, separated by ":".
+     */
+    static String idempotentId(String scope, String key) {
+        byte[] hash = RdbmsIdempotentHandler.hash(scope);
+        StringBuilder builder = new StringBuilder(KEY_PREFIX.length() + 17 + key.length()).append(KEY_PREFIX);
+        for (int i = 0; i < 8; i++) {
+            builder.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+        }
+        return builder.append(':').append(key).toString();
+    }
+
+    private StoredResponse store(ContentCachingResponseWrapper response) {
+        List<String> headers = new ArrayList<>();
+        for (String name : response.getHeaderNames()) {
+            if (EXCLUDED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                continue;
+            }
+            for (String value : response.getHeaders(name)) {
+                headers.add(name);
+                headers.add(value);
+            }
+        }
+        return new StoredResponse(response.getStatus(), response.getContentType(), headers, response.getContentAsByteArray());
+    }
+
+    private void replay(StoredResponse stored, HttpServletResponse response) throws IOException {
+        response.setStatus(stored.getStatus());
+        if (stored.getContentType() != null) {
+            response.setContentType(stored.getContentType());
+        }
+        List<String> headers = stored.getHeaders();
+        for (int i = 0; i + 1 < headers.size(); i += 2) {
+            response.addHeader(headers.get(i), headers.get(i + 1));
+        }
+        byte[] body = stored.getBody();
+        if (body != null) {
+            response.setContentLength(body.length);
+            response.getOutputStream().write(body);
+        }
+        response.flushBuffer();
+    }
+}
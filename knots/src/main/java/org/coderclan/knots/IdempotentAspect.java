@@ -10,7 +10,9 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.Ordered;
 
+import java.lang.reflect.Method;
 import java.util.Objects;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Intercept invocation of Method to make sure invocations with the same Idempotent ID only execute once.
@@ -22,6 +24,11 @@ import java.util.Objects;
  *     <li>Any method is in a class which is Annotated by any annotation which is annotated by {@link Idempotent}. </li>
  *     <li>Any method is in a class whose parent class is annotated by {@link Idempotent} directly. </li>
  * </ul>
+ * Concurrent invocations of the same Idempotent ID within this JVM are coalesced by {@link InFlightRegistry}:
+ * only the first one touches the {@link IdempotentHandler}, the others get copies of its result in memory.
+ * Methods which return futures or Monos are invoked by {@link AsyncIdempotentInvoker}, methods annotated by
+ * {@link org.coderclan.knots.annotation.IdempotentBatch} are invoked by {@link BatchIdempotentInvoker}.
+ * Invocations in flight and duplicates are recorded by {@link InvocationMonitor}.
  *
  * @author aray(dot)chou(dot)cn(at)gmail(dot)com
  */
@@ -36,6 +43,22 @@ public class IdempotentAspect implements Ordered {
     private IdempotentHandler idempotentHandler;
     @Autowired
     private ResultChecker resultChecker;
+    @Autowired
+    private InFlightRegistry inFlightRegistry;
+    @Autowired
+    private KnotsProperties properties;
+    @Autowired
+    private WaitStrategy waitStrategy;
+    @Autowired
+    private InvocationPlanRegistry invocationPlanRegistry;
+    @Autowired
+    private IdempotenceMetrics metrics;
+    @Autowired
+    private AsyncIdempotentInvoker asyncIdempotentInvoker;
+    @Autowired
+    private BatchIdempotentInvoker batchIdempotentInvoker;
+    @Autowired
+    private InvocationMonitor monitor;
     private final int aspectOrder;
 
     public IdempotentAspect() {
@@ -56,45 +79,155 @@ public class IdempotentAspect implements Ordered {
             " || within(@(@org.coderclan.knots.annotation.Idempotent *) *)"  // Classes annotated by any annotation which is annotated by @Idempotent
     )
     public Object aroundService(ProceedingJoinPoint joinPoint) {
-        String idempotentId = idempotentIdFetcher.getIdempotentId(joinPoint);
+        InvocationPlan plan = invocationPlanRegistry.getPlan(joinPoint);
+        if (plan.isPassThrough()) {
+            return proceed(joinPoint);
+        }
+        // the handlers take the method and the result type from the plan.
+        joinPoint = PlannedJoinPoint.of(joinPoint, plan);
+        if (plan.getBatch() != null) {
+            return batchIdempotentInvoker.invoke(joinPoint, plan);
+        }
+
+        String idempotentId = idempotentIdFetcher.getIdempotentId(joinPoint, plan);
         if (Objects.isNull(idempotentId)) {
-            throw new IllegalStateException("Idempotent ID is null, method=" + joinPoint.getSignature().toLongString());
+            throw new IllegalStateException("Idempotent ID is null, method=" + plan.getMethod());
+        }
+
+        if (plan.getAsyncReturnType() != null) {
+            return asyncIdempotentInvoker.invoke(idempotentId, joinPoint, plan);
         }
 
-        Object result;
+        InvocationMonitor.Entry entry = monitor.enter(idempotentId, plan.getMethod());
         try {
-            result = idempotentHandler.lockOrReturnPreviousResult(idempotentId, joinPoint);
-        } catch (Exception e) {
-            logger.error("Exception countered while checking result. idempotentId={}", e);
-            throw new RuntimeException(e);
+            return coalesce(idempotentId, joinPoint, plan, entry);
+        } finally {
+            monitor.exit(entry);
+        }
+    }
+
+    /**
+     * Wait for the in-flight invocation of the same idempotentId of this JVM, or invoke it if there is none.
+     *
+     * @param entry entry of the idempotentId in {@link InvocationMonitor}.
+     */
+    private Object coalesce(String idempotentId, ProceedingJoinPoint joinPoint, InvocationPlan plan, InvocationMonitor.Entry entry) {
+        if (!properties.isSingleFlight()) {
+            return invoke(idempotentId, joinPoint, plan, null, entry);
+        }
+
+        Method method = plan.getMethod();
+        long deadline = System.currentTimeMillis() + waitStrategy.getTimeout();
+        boolean waited = false;
+        while (true) {
+            InFlightRegistry.Flight flight = inFlightRegistry.join(idempotentId, method);
+            if (flight.isOwner()) {
+                return invoke(idempotentId, joinPoint, plan, flight, entry);
+            }
+
+            // the same idempotentId is being invoked by other thread of this JVM, wait for its result.
+            if (!waited) {
+                waited = true;
+                metrics.recordWait(method);
+            }
+            long start = System.nanoTime();
+            Object result;
+            try {
+                result = flight.await(Math.max(0L, deadline - System.currentTimeMillis()));
+            } catch (TimeoutException e) {
+                metrics.recordLookup(method, IdempotenceMetrics.Outcome.TIMEOUT, System.nanoTime() - start);
+                monitor.recordDuplicate(idempotentId);
+                logger.error("Waiting for in-flight invocation timeout! idempotentId={}", idempotentId);
+                throw new IdempotentTimeoutException("Waiting for in-flight invocation timeout! idempotentId=" + idempotentId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+
+            if (result != InFlightRegistry.RETRY) {
+                metrics.recordLookup(method, IdempotenceMetrics.Outcome.REPLAYED, System.nanoTime() - start);
+                monitor.recordDuplicate(idempotentId);
+                logger.info("Repeat invoke found for in-flight idempotentId={}, return directly!", idempotentId);
+                return plan.toReplayed(result);
+            }
+            // the owner did not succeed, try again. one of the waiters will be the new owner.
+            logger.debug("In-flight invocation did not succeed, retry. idempotentId={}", idempotentId);
         }
+    }
 
-        if (Objects.isNull(result)) {
-            // result is null, the invocation is not executed, execute the invocation.
-            boolean fail = false;
+    /**
+     * Lock the idempotentId by {@link IdempotentHandler}, invoke the method and save the result.
+     *
+     * @param plan   plan of the invocation.
+     * @param flight the flight owned by current thread, or null if {@link KnotsProperties#isSingleFlight()} is disabled.
+     * @param entry  entry of the idempotentId in {@link InvocationMonitor}.
+     */
+    private Object invoke(String idempotentId, ProceedingJoinPoint joinPoint, InvocationPlan plan, InFlightRegistry.Flight flight, InvocationMonitor.Entry entry) {
+        Method method = plan.getMethod();
+        Object result = null;
+        // what the waiters get: the saved result, as if they were replays.
+        Object handover = null;
+        boolean saved = false;
+        try {
+            long lookupStart = System.nanoTime();
             try {
-                result = joinPoint.proceed();
-                fail = !(this.resultChecker.isSuccess(result));
-            } catch (Throwable e) {
-                fail = true;
-                logger.info("Exception countered while invoking idempotentId={}", idempotentId);
+                result = idempotentHandler.lockOrReturnPreviousResult(idempotentId, joinPoint);
+            } catch (Exception e) {
+                if (e instanceof IdempotentTimeoutException) {
+                    metrics.recordLookup(method, IdempotenceMetrics.Outcome.TIMEOUT, System.nanoTime() - lookupStart);
+                    monitor.recordDuplicate(idempotentId);
+                }
+                logger.error("Exception countered while checking result. idempotentId={}", idempotentId, e);
                 throw new RuntimeException(e);
-            } finally {
+            }
+
+            metrics.recordLookup(method, Objects.isNull(result) ? IdempotenceMetrics.Outcome.EXECUTED : IdempotenceMetrics.Outcome.REPLAYED, System.nanoTime() - lookupStart);
+
+            if (Objects.isNull(result)) {
+                // result is null, the invocation is not executed, execute the invocation.
+                boolean fail = false;
+                monitor.executing(entry);
                 try {
-                    idempotentHandler.saveResult(idempotentId, result, fail, joinPoint);
-                } catch (Exception e) {
-                    // IdempotentAspect should be wrapped by @Transactional
-                    // if save result failed, the Database Transaction will be rollback.
-                    // All database writes including the write made by org.coderclan.knots.IdempotentHandler.saveResult will be rollback
-                    throw new RuntimeException("Exception countered while save result. idempotentId=" + idempotentId, e);
+                    long start = System.currentTimeMillis();
+                    result = joinPoint.proceed();
+                    waitStrategy.recordExecution(method, System.currentTimeMillis() - start);
+                    fail = !(this.resultChecker.isSuccess(result));
+                } catch (Throwable e) {
+                    fail = true;
+                    logger.info("Exception countered while invoking idempotentId={}", idempotentId);
+                    throw new RuntimeException(e);
+                } finally {
+                    try {
+                        long saveStart = System.nanoTime();
+                        handover = plan.toSaved(result);
+                        idempotentHandler.saveResult(idempotentId, handover, !fail, joinPoint);
+                        metrics.recordSave(method, System.nanoTime() - saveStart);
+                        saved = !fail;
+                    } catch (Exception e) {
+                        // IdempotentAspect should be wrapped by @Transactional
+                        // if save result failed, the Database Transaction will be rollback.
+                        // All database writes including the write made by org.coderclan.knots.IdempotentHandler.saveResult will be rollback
+                        throw new RuntimeException("Exception countered while save result. idempotentId=" + idempotentId, e);
+                    } finally {
+                        monitor.executed(entry);
+                    }
                 }
+            } else {
+                saved = true;
+                monitor.recordDuplicate(idempotentId);
+                handover = result;
+                result = plan.toReplayed(result);
+                logger.info("Repeat invoke found for idempotentId={}, return directly!", idempotentId);
+            }
+            return result;
+        } finally {
+            if (flight != null) {
+                // hand over the result after the transaction is committed, waiters should not see uncommitted results.
+                final Object handed = handover;
+                final boolean succeeded = saved;
+                TransactionHooks.afterCompletion(committed -> inFlightRegistry.complete(flight, handed, succeeded && committed));
             }
-        } else {
-            logger.info("Repeat invoke found for idempotentId={}, return directly!", idempotentId);
         }
-        return result;
-
-
     }
 
     private Object proceed(ProceedingJoinPoint joinPoint) {
@@ -1,47 +1,256 @@
 package org.coderclan.knots;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.boot.autoconfigure.condition.AnyNestedCondition;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.TaskDecorator;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
 
 import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author aray(dot)chou(dot)cn(at)gmail(dot)com
  */
 @Configuration
 @EnableConfigurationProperties(KnotsProperties.class)
-@AutoConfigureAfter(DataSourceAutoConfiguration.class)
+@AutoConfigureAfter(value = DataSourceAutoConfiguration.class, name = {
+        "org.springframework.boot.autoconfigure.data.redis.RedisAutoConfiguration",
+        "org.springframework.boot.actuate.autoconfigure.metrics.CompositeMeterRegistryAutoConfiguration"})
 public class IdempotentAutoConfiguration {
 
     @ConditionalOnMissingBean(IdempotentHandler.class)
+    @ConditionalOnProperty(prefix = "org.coderclan.knots", name = "store", havingValue = "rdbms", matchIfMissing = true)
     @ConditionalOnBean(DataSource.class)
     @Bean
-    IdempotentHandler idempotentValidator(Serializer serializer, DataSource ds, @Value("${org.coderclan.knots.table:sys_idempotent_log}") String tableName) {
-        return new RdbmsIdempotentHandler(serializer, ds, tableName);
+    IdempotentHandler idempotentValidator(Serializer serializer, DataSource ds, @Value("${org.coderclan.knots.table:sys_idempotent_log}") String tableName, KnotsProperties properties, BeanFactory beanFactory) {
+        List<RdbmsIdempotentHandler> shards = new ArrayList<>();
+        for (DataSource dataSource : shardDataSources(ds, properties, beanFactory)) {
+            for (String shardTable : properties.getSharding().tableNames(tableName)) {
+                RdbmsIdempotentHandler handler = new RdbmsIdempotentHandler(serializer, dataSource, shardTable, properties.isJoinTransaction());
+                handler.setTableRotation(properties.getRetention().tableRotation(shardTable));
+                handler.setLeaseTime(properties.getLeaseTime());
+                handler.setDialect(properties.getDialect());
+                handler.setHashedKeys(properties.isHashedKeys());
+                handler.setSharedResults(properties.getSharedResults());
+                handler.setPollInterval(properties.getWait().getPollInterval());
+                shards.add(handler);
+            }
+        }
+        return shards.size() == 1 ? shards.get(0) : new ShardedIdempotentHandler(shards);
+    }
+
+    @ConditionalOnExpression("${org.coderclan.knots.retention.enabled:false} and '${org.coderclan.knots.store:rdbms}'.equalsIgnoreCase('rdbms')")
+    @ConditionalOnBean(DataSource.class)
+    @Bean
+    IdempotentLogPurger idempotentLogPurger(DataSource ds, @Value("${org.coderclan.knots.table:sys_idempotent_log}") String tableName, KnotsProperties properties, BeanFactory beanFactory) {
+        List<IdempotentLogPurger.Table> tables = new ArrayList<>();
+        for (DataSource dataSource : shardDataSources(ds, properties, beanFactory)) {
+            for (String shardTable : properties.getSharding().tableNames(tableName)) {
+                tables.add(new IdempotentLogPurger.Table(dataSource, shardTable, properties.getRetention().tableRotation(shardTable), properties.isHashedKeys(), properties.getSharedResults()));
+            }
+        }
+        return new IdempotentLogPurger(tables, properties.getRetention());
+    }
+
+    /**
+     * @return DataSources of the shards of the idempotent log, check {@link KnotsProperties.Sharding#getDataSources()}.
+     */
+    private static List<DataSource> shardDataSources(DataSource ds, KnotsProperties properties, BeanFactory beanFactory) {
+        List<String> names = properties.getSharding().getDataSources();
+        if (names.isEmpty()) {
+            return Collections.singletonList(ds);
+        }
+        List<DataSource> dataSources = new ArrayList<>(names.size());
+        for (String name : names) {
+            dataSources.add(beanFactory.getBean(name, DataSource.class));
+        }
+        return dataSources;
+    }
+
+    @ConditionalOnMissingBean(IdempotentHandler.class)
+    @ConditionalOnProperty(prefix = "org.coderclan.knots", name = "store", havingValue = "memory")
+    @Bean
+    IdempotentHandler inMemoryIdempotentHandler(Serializer serializer, KnotsProperties properties) {
+        KnotsProperties.Memory memory = properties.getMemory();
+        return new InMemoryIdempotentHandler(serializer, memory.getShards(), memory.getSlabSize(), memory.getMaxMemory(), memory.getTtl());
+    }
+
+    @Configuration
+    @ConditionalOnClass(name = "org.springframework.data.redis.connection.RedisConnectionFactory")
+    static class RedisStoreConfiguration {
+        @ConditionalOnMissingBean(IdempotentHandler.class)
+        @Conditional(RedisStoreCondition.class)
+        @ConditionalOnBean(RedisConnectionFactory.class)
+        @Bean
+        IdempotentHandler redisIdempotentHandler(Serializer serializer, RedisConnectionFactory connectionFactory, KnotsProperties properties) {
+            KnotsProperties.Redis redis = properties.getRedis();
+            return new RedisIdempotentHandler(serializer, connectionFactory, redis.getKeyPrefix(), redis.getLockTtl(), redis.getTtl());
+        }
+    }
+
+    /**
+     * Registered before the beans of the outer class, so {@link HeaderIdempotentIdFetcher} replaces the default
+     * {@link IdempotentIdFetcher}.
+     */
+    @Configuration
+    @ConditionalOnClass(name = {"javax.servlet.Filter", "org.springframework.web.filter.OncePerRequestFilter"})
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    static class HttpConfiguration {
+        @ConditionalOnProperty(prefix = "org.coderclan.knots.http", name = "filter-enabled", havingValue = "true")
+        @Bean
+        FilterRegistrationBean<IdempotencyKeyFilter> idempotencyKeyFilter(IdempotentHandler idempotentHandler, KnotsProperties properties) {
+            KnotsProperties.Http http = properties.getHttp();
+            FilterRegistrationBean<IdempotencyKeyFilter> registration = new FilterRegistrationBean<>(new IdempotencyKeyFilter(idempotentHandler, http.getHeader(), http.getMethods(),
+                    properties.isHashedKeys() ? IdempotencyKeyFilter.MAX_HASHED_ID_LENGTH : IdempotencyKeyFilter.MAX_ID_LENGTH));
+            registration.setOrder(http.getFilterOrder());
+            return registration;
+        }
+
+        @ConditionalOnMissingBean(IdempotentIdFetcher.class)
+        @ConditionalOnProperty(prefix = "org.coderclan.knots.http", name = "header-fetcher", havingValue = "true")
+        @Bean
+        IdempotentIdFetcher headerIdempotentIdFetcher(KnotsProperties properties) {
+            return new HeaderIdempotentIdFetcher(properties.getHttp().getHeader());
+        }
+    }
+
+    /**
+     * Registered before the beans of the outer class, so {@link MicrometerIdempotenceMetrics} replaces
+     * {@link IdempotenceMetrics#NOOP}.
+     */
+    @Configuration
+    @ConditionalOnClass(name = "io.micrometer.core.instrument.MeterRegistry")
+    static class MetricsConfiguration {
+        @ConditionalOnMissingBean(IdempotenceMetrics.class)
+        @ConditionalOnBean(MeterRegistry.class)
+        @Bean
+        IdempotenceMetrics micrometerIdempotenceMetrics(MeterRegistry registry) {
+            return new MicrometerIdempotenceMetrics(registry);
+        }
+    }
+
+    @Configuration
+    @ConditionalOnClass(name = "org.springframework.boot.actuate.endpoint.annotation.Endpoint")
+    static class EndpointConfiguration {
+        @ConditionalOnMissingBean(KnotsEndpoint.class)
+        @ConditionalOnProperty(prefix = "org.coderclan.knots.monitor", name = "enabled", havingValue = "true", matchIfMissing = true)
+        @Bean
+        KnotsEndpoint knotsEndpoint(InvocationMonitor monitor, KnotsProperties properties) {
+            return new KnotsEndpoint(monitor, properties.getMonitor().getListLimit());
+        }
+    }
+
+    /**
+     * Redis is used if it is configured explicitly, or if the store is NOT configured and there is no DataSource.
+     */
+    static class RedisStoreCondition extends AnyNestedCondition {
+        RedisStoreCondition() {
+            super(ConfigurationPhase.REGISTER_BEAN);
+        }
+
+        @ConditionalOnProperty(prefix = "org.coderclan.knots", name = "store", havingValue = "redis")
+        static class Configured {
+        }
+
+        @ConditionalOnExpression("'${org.coderclan.knots.store:}'.isEmpty()")
+        @ConditionalOnMissingBean(DataSource.class)
+        static class Implicit {
+        }
+    }
+
+    @ConditionalOnProperty(prefix = "org.coderclan.knots.near-cache", name = "enabled", havingValue = "true")
+    @Bean
+    static NearCachePostProcessor nearCachePostProcessor(ObjectProvider<KnotsProperties> properties) {
+        return new NearCachePostProcessor(properties);
     }
 
     @ConditionalOnMissingBean(IdempotentAspect.class)
     @Bean
-    IdempotentAspect idempotentAspect() {
-        return new IdempotentAspect();
+    IdempotentAspect idempotentAspect(KnotsProperties properties) {
+        return new IdempotentAspect(properties.getAspectOrder());
+    }
+
+    @ConditionalOnMissingBean(WaitStrategy.class)
+    @Bean
+    WaitStrategy waitStrategy(KnotsProperties properties) {
+        KnotsProperties.Wait wait = properties.getWait();
+        switch (wait.getStrategy()) {
+            case EXPONENTIAL:
+                return new ExponentialWaitStrategy(wait.getInitialWait(), wait.getMaxPause(), wait.getMultiplier(), wait.getJitter(), wait.getTimeout());
+            case ADAPTIVE:
+                return new AdaptiveWaitStrategy(wait.getInitialWait(), wait.getMaxPause(), wait.getMultiplier(), wait.getJitter(), wait.getTimeout(), wait.getEwmaAlpha());
+            default:
+                return new FixedWaitStrategy(properties.getRetries(), properties.getRetryWait());
+        }
+    }
+
+    @ConditionalOnMissingBean(IdempotenceMetrics.class)
+    @Bean
+    IdempotenceMetrics idempotenceMetrics() {
+        return IdempotenceMetrics.NOOP;
+    }
+
+    @ConditionalOnMissingBean(AsyncIdempotentInvoker.class)
+    @Bean
+    AsyncIdempotentInvoker asyncIdempotentInvoker(KnotsProperties properties, ObjectProvider<TaskDecorator> taskDecorator) {
+        return new AsyncIdempotentInvoker(properties.getAsync().getThreads(), null, taskDecorator.getIfUnique());
+    }
+
+    @ConditionalOnMissingBean(BatchIdempotentInvoker.class)
+    @Bean
+    BatchIdempotentInvoker batchIdempotentInvoker() {
+        return new BatchIdempotentInvoker();
+    }
+
+    @ConditionalOnMissingBean(InFlightRegistry.class)
+    @Bean
+    InFlightRegistry inFlightRegistry(Serializer serializer, KnotsProperties properties) {
+        return new InFlightRegistry(properties.isShareInFlightResults() ? null : serializer);
+    }
+
+    @ConditionalOnMissingBean(InvocationMonitor.class)
+    @Bean
+    InvocationMonitor invocationMonitor(KnotsProperties properties) {
+        KnotsProperties.Monitor monitor = properties.getMonitor();
+        return new InvocationMonitor(monitor.isEnabled(), monitor.getTopK(), monitor.getHalfLife());
+    }
+
+    @ConditionalOnMissingBean(InvocationPlanRegistry.class)
+    @Bean
+    InvocationPlanRegistry invocationPlanRegistry(KnotsProperties properties) {
+        return new InvocationPlanRegistry(properties.getSpelCompilerMode());
     }
 
     @ConditionalOnMissingBean(IdempotentIdFetcher.class)
     @Bean
-    IdempotentIdFetcher idempotentIdFetcher() {
-        return new ArgumentIdempotentIdFetcher();
+    IdempotentIdFetcher idempotentIdFetcher(InvocationPlanRegistry invocationPlanRegistry) {
+        return new AnnotatedIdempotentIdFetcher(invocationPlanRegistry);
     }
 
 
     @ConditionalOnMissingBean(Serializer.class)
     @Bean
-    Serializer serializer() {
-        return new JdkSerializer();
+    Serializer serializer(KnotsProperties properties) {
+        Serializer serializer = properties.getSerializer() == KnotsProperties.SerializerType.JDK ? new JdkSerializer() : new BinarySerializer();
+        KnotsProperties.Compression compression = properties.getCompression();
+        return compression.isEnabled() ? new CompressingSerializer(serializer, compression.getThreshold(), compression.getLevel()) : serializer;
     }
 }
@@ -10,18 +10,43 @@ import org.aspectj.lang.ProceedingJoinPoint;
  * @author aray(dot)chou(dot)cn(at)gmail(dot)com
  */
 public interface IdempotentHandler {
+    /**
+     * Returned by {@link #tryLockOrReturnPreviousResult(String, ProceedingJoinPoint)} if the previous invocation has NOT
+     * been finished.
+     */
+    Object IN_PROGRESS = new Object();
+    /**
+     * Saved instead of results of acknowledge-only methods(check {@link org.coderclan.knots.annotation.AcknowledgeOnly}),
+     * handlers should record the completion without serializing it, and return it to replays.
+     */
+    Object ACKNOWLEDGED = new Object();
+
     /**
      * Try to obtain a lock of the IdempotentId to prevent other threads to invoke the method.
      * If locked successfully, return null.
      * If failed to obtain the Lock, it means other thread has started to execute, wait other thread to finish the execution and return the result.
      *
      * @param idempotentId Idempotent ID
-     * @param joinPoint
+     * @param joinPoint    the intercepted invocation, null if it is NOT called by {@link IdempotentAspect}(e.g. by {@link IdempotencyKeyFilter}).
      * @return null if lock successfully(the invocation of the same IdempotentId has NOT started to execute), The return value of the invocation if other thread executed it.
      * @throws Exception throws when waiting for other thread finishing the execution timeout.
      */
     Object lockOrReturnPreviousResult(String idempotentId, ProceedingJoinPoint joinPoint) throws Exception;
 
+    /**
+     * Try to obtain a lock of the IdempotentId once, without waiting for the previous invocation. It is used by
+     * {@link AsyncIdempotentInvoker}, which waits without blocking threads.
+     * The default implementation waits by {@link #lockOrReturnPreviousResult(String, ProceedingJoinPoint)}.
+     *
+     * @param idempotentId Idempotent ID
+     * @param joinPoint    the intercepted invocation, null if it is NOT called by {@link IdempotentAspect}.
+     * @return null if lock successfully, {@link #IN_PROGRESS} if the previous invocation has NOT been finished, the
+     * return value of the previous invocation otherwise.
+     */
+    default Object tryLockOrReturnPreviousResult(String idempotentId, ProceedingJoinPoint joinPoint) throws Exception {
+        return lockOrReturnPreviousResult(idempotentId, joinPoint);
+    }
+
 
     /**
      * Save the information(idempotentId, return value, and success state) of the invocation.
@@ -29,8 +54,21 @@ public interface IdempotentHandler {
      *
      * @param idempotentId
      * @param result       return value of the invocation
-     * @param success      true if success invoked
-     * @param joinPoint
+     * @param success      true if success invoked, false if the invocation failed (thrown exception, or {@link ResultChecker} reported failure)
+     * @param joinPoint    the intercepted invocation, null if it is NOT called by {@link IdempotentAspect}.
      */
     void saveResult(String idempotentId, Object result, boolean success, ProceedingJoinPoint joinPoint) throws Exception;
+
+    /**
+     * Save the invocation like {@link #saveResult(String, Object, boolean, ProceedingJoinPoint)}, and tell whether it
+     * is stored. It is used by decorators(e.g. {@link NearCacheIdempotentHandler}) which should only keep results of
+     * the handler. The default implementation saves by {@link #saveResult(String, Object, boolean, ProceedingJoinPoint)}
+     * and returns true.
+     *
+     * @return true if stored, false if NOT(e.g. the lock has expired and been taken over by another invocation).
+     */
+    default boolean trySaveResult(String idempotentId, Object result, boolean success, ProceedingJoinPoint joinPoint) throws Exception {
+        saveResult(idempotentId, result, success, joinPoint);
+        return true;
+    }
 }
@@ -0,0 +1,205 @@
+package org.coderclan.knots;
+
+import org.coderclan.knots.annotation.IdempotentId;
+import org.springframework.util.ClassUtils;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Extract the Idempotent ID from the arguments of a method, as marked by {@link IdempotentId}. Fields and getters are
+ * read by accessors generated by {@link LambdaMetafactory} (or {@link MethodHandle}s if the class is NOT accessible),
+ * which are created when the plan of the method is resolved, check {@link InvocationPlanRegistry}.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class IdempotentIdExtractor {
+    private static final char SEPARATOR = ':';
+
+    private final Part[] parts;
+
+    private IdempotentIdExtractor(Part[] parts) {
+        this.parts = parts;
+    }
+
+    /**
+     * @return extractor of the method, null if no parameter is marked by {@link IdempotentId}.
+     * @throws IllegalStateException if a getter marked by {@link IdempotentId} is NOT a getter.
+     */
+    public static IdempotentIdExtractor of(Method method) {
+        List<Part> parts = new ArrayList<>();
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            IdempotentId annotation = findAnnotation(method.getParameterAnnotations()[i]);
+            if (annotation != null) {
+                parts.add(new Part(annotation.order(), i, "", null));
+                continue;
+            }
+            addMembers(parts, i, parameterTypes[i]);
+        }
+        if (parts.isEmpty()) {
+            return null;
+        }
+        parts.sort(Comparator.<Part>comparingInt(p -> p.order).thenComparingInt(p -> p.parameter).thenComparing(p -> p.member));
+        return new IdempotentIdExtractor(parts.toArray(new Part[0]));
+    }
+
+    /**
+     * @return extractor of items of the type(e.g. items of {@link org.coderclan.knots.annotation.IdempotentBatch}),
+     * which reads the fields and getters marked by {@link IdempotentId}, null if nothing is marked. The item is the
+     * only argument to extract from.
+     * @throws IllegalStateException if a getter marked by {@link IdempotentId} is NOT a getter.
+     */
+    public static IdempotentIdExtractor of(Class<?> type) {
+        List<Part> parts = new ArrayList<>();
+        addMembers(parts, 0, type);
+        if (parts.isEmpty()) {
+            return null;
+        }
+        parts.sort(Comparator.<Part>comparingInt(p -> p.order).thenComparing(p -> p.member));
+        return new IdempotentIdExtractor(parts.toArray(new Part[0]));
+    }
+
+    /**
+     * Add the fields and getters of the type marked by {@link IdempotentId} as parts of the parameter.
+     */
+    private static void addMembers(List<Part> parts, int parameter, Class<?> type) {
+        if (type.isPrimitive() || type.getName().startsWith("java.")) {
+            return;
+        }
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                IdempotentId annotation = field.getAnnotation(IdempotentId.class);
+                if (annotation != null && !Modifier.isStatic(field.getModifiers())) {
+                    parts.add(new Part(annotation.order(), parameter, field.getName(), fieldAccessor(field)));
+                }
+            }
+        }
+        for (Method getter : type.getMethods()) {
+            IdempotentId annotation = getter.getAnnotation(IdempotentId.class);
+            if (annotation == null) {
+                continue;
+            }
+            if (getter.getParameterCount() != 0 || getter.getReturnType() == void.class || Modifier.isStatic(getter.getModifiers())) {
+                throw new IllegalStateException("@IdempotentId should be on a getter, but found on " + getter);
+            }
+            parts.add(new Part(annotation.order(), parameter, getter.getName(), getterAccessor(getter)));
+        }
+    }
+
+    /**
+     * @return the Idempotent ID, null if any part is null.
+     */
+    public String extract(Object[] args) {
+        if (parts.length == 1) {
+            Object value = parts[0].get(args);
+            return value == null ? null : value.toString();
+        }
+
+        StringBuilder id = new StringBuilder(16 * parts.length);
+        for (int i = 0; i < parts.length; i++) {
+            Object value = parts[i].get(args);
+            if (value == null) {
+                return null;
+            }
+            if (i > 0) {
+                id.append(SEPARATOR);
+            }
+            if (value instanceof CharSequence) {
+                id.append((CharSequence) value);
+            } else if (value instanceof Long || value instanceof Integer) {
+                id.append(((Number) value).longValue());
+            } else {
+                id.append(value);
+            }
+        }
+        return id.toString();
+    }
+
+    private static IdempotentId findAnnotation(Annotation[] annotations) {
+        for (Annotation annotation : annotations) {
+            if (annotation instanceof IdempotentId) {
+                return (IdempotentId) annotation;
+            }
+        }
+        return null;
+    }
+
+    private static Function<Object, Object> getterAccessor(Method getter) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle handle = lookup.unreflect(getter);
+            CallSite site = LambdaMetafactory.metafactory(lookup, "apply",
+                    MethodType.methodType(Function.class),
+                    MethodType.methodType(Object.class, Object.class),
+                    handle,
+                    MethodType.methodType(ClassUtils.resolvePrimitiveIfNecessary(getter.getReturnType()), getter.getDeclaringClass()));
+            @SuppressWarnings("unchecked")
+            Function<Object, Object> accessor = (Function<Object, Object>) site.getTarget().invokeExact();
+            return accessor;
+        } catch (Throwable e) {
+            // the class is NOT accessible from here(e.g. NOT public, or loaded by another class loader).
+            getter.setAccessible(true);
+            return handleAccessor(getter, null);
+        }
+    }
+
+    private static Function<Object, Object> fieldAccessor(Field field) {
+        field.setAccessible(true);
+        return handleAccessor(null, field);
+    }
+
+    private static Function<Object, Object> handleAccessor(Method getter, Field field) {
+        MethodHandle handle;
+        try {
+            handle = getter != null ? MethodHandles.lookup().unreflect(getter) : MethodHandles.lookup().unreflectGetter(field);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Can NOT access " + (getter != null ? getter : field), e);
+        }
+        MethodHandle generic = handle.asType(MethodType.methodType(Object.class, Object.class));
+        return target -> {
+            try {
+                return generic.invokeExact(target);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    /**
+     * A part of the Idempotent ID: an argument, or a field or getter of an argument.
+     */
+    private static final class Part {
+        private final int order;
+        private final int parameter;
+        private final String member;
+        /**
+         * null if the argument itself is the part.
+         */
+        private final Function<Object, Object> accessor;
+
+        private Part(int order, int parameter, String member, Function<Object, Object> accessor) {
+            this.order = order;
+            this.parameter = parameter;
+            this.member = member;
+            this.accessor = accessor;
+        }
+
+        private Object get(Object[] args) {
+            Object arg = args[parameter];
+            if (accessor == null || arg == null) {
+                return arg;
+            }
+            return accessor.apply(arg);
+        }
+    }
+}
@@ -16,4 +16,15 @@ public interface IdempotentIdFetcher {
      * @return Idempotent Id
      */
     String getIdempotentId(ProceedingJoinPoint proceedingJoinPoint);
+
+    /**
+     * Get Idempotent ID, with the resolved plan of the invocation.
+     *
+     * @param proceedingJoinPoint Information of Invoking method, can get method arguments from it.
+     * @param plan                plan of the invocation, check {@link InvocationPlanRegistry}.
+     * @return Idempotent Id
+     */
+    default String getIdempotentId(ProceedingJoinPoint proceedingJoinPoint, InvocationPlan plan) {
+        return getIdempotentId(proceedingJoinPoint);
+    }
 }
@@ -0,0 +1,271 @@
+package org.coderclan.knots;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+
+import javax.sql.DataSource;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background purger of the idempotent log table, removes rows older than the retention period.
+ * <p>
+ * Expired rows are deleted in small batches located by the index on {@code create_time}, with a pause between batches,
+ * so the purging does not hold locks for long or saturate the database.
+ * If a {@link TableRotation} is used, the table which will receive locks next is truncated instead.
+ * All the tables of a sharded log(check {@link ShardedIdempotentHandler}) are purged one by one.
+ * <p>
+ * If results are shared(check {@link SharedResultStore}), results which are NOT referenced by the log and NOT used within
+ * the grace period are deleted in the same way after the log is purged.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class IdempotentLogPurger implements SmartLifecycle {
+    private static final Logger log = LoggerFactory.getLogger(IdempotentLogPurger.class);
+
+    private final List<Table> tables;
+    private final KnotsProperties.Retention retention;
+
+    private volatile ScheduledExecutorService executor;
+
+    /**
+     * @param tableRotation rotation of the log table, null if the log table is not rotated.
+     */
+    public IdempotentLogPurger(DataSource dataSource, String tableName, TableRotation tableRotation, KnotsProperties.Retention retention) {
+        this(Collections.singletonList(new Table(dataSource, tableName, tableRotation)), retention);
+    }
+
+    /**
+     * @param tables tables of the log, e.g. the shards.
+     */
+    public IdempotentLogPurger(List<Table> tables, KnotsProperties.Retention retention) {
+        this.tables = new ArrayList<>(tables);
+        this.retention = retention;
+    }
+
+    @Override
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "knots-purger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::purge, retention.getPurgeInterval(), retention.getPurgeInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        ScheduledExecutorService executor = this.executor;
+        this.executor = null;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return executor != null;
+    }
+
+    /**
+     * Purge expired rows.
+     */
+    public void purge() {
+        for (Table table : tables) {
+            try {
+                if (table.tableRotation == null) {
+                    deleteExpired(table);
+                } else {
+                    truncateNext(table);
+                }
+                if (table.sharedResults != null) {
+                    deleteUnreferenced(table);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Failed to purge idempotent log {}.", table.tableName, e);
+            }
+        }
+    }
+
+    private void deleteExpired(Table table) throws SQLException, InterruptedException {
+        Timestamp expiry = new Timestamp(System.currentTimeMillis() - retention.getPeriod());
+        int total = 0;
+        while (isRunning()) {
+            List<Object> ids = new ArrayList<>(retention.getBatchSize());
+            try (Connection conn = table.dataSource.getConnection()) {
+                try (PreparedStatement ps = conn.prepareStatement(table.selectSql)) {
+                    ps.setMaxRows(retention.getBatchSize());
+                    ps.setTimestamp(1, expiry);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            ids.add(rs.getObject(1));
+                        }
+                    }
+                }
+                if (ids.isEmpty()) {
+                    break;
+                }
+
+                try (PreparedStatement ps = conn.prepareStatement(table.deleteSql)) {
+                    for (Object id : ids) {
+                        ps.setObject(1, id);
+                        ps.setTimestamp(2, expiry);
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                }
+                if (!conn.getAutoCommit()) {
+                    conn.commit();
+                }
+            }
+            total += ids.size();
+
+            if (ids.size() < retention.getBatchSize()) {
+                break;
+            }
+            // throttle, let the database breathe between batches.
+            Thread.sleep(retention.getBatchPause());
+        }
+        if (total > 0) {
+            log.info("Purged {} expired rows from {}.", total, table.tableName);
+        }
+    }
+
+    private void deleteUnreferenced(Table table) throws SQLException, InterruptedException {
+        long expiry = System.currentTimeMillis() - table.sharedResults.getGracePeriod();
+        int total = 0;
+        while (isRunning()) {
+            List<byte[]> hashes = new ArrayList<>(retention.getBatchSize());
+            try (Connection conn = table.dataSource.getConnection()) {
+                try (PreparedStatement ps = conn.prepareStatement(table.selectUnreferencedSql)) {
+                    ps.setMaxRows(retention.getBatchSize());
+                    ps.setLong(1, expiry);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            hashes.add(rs.getBytes(1));
+                        }
+                    }
+                }
+                if (hashes.isEmpty()) {
+                    break;
+                }
+
+                // check again, the result may be saved again concurrently.
+                try (PreparedStatement ps = conn.prepareStatement(table.deleteUnreferencedSql)) {
+                    for (byte[] hash : hashes) {
+                        int index = 1;
+                        ps.setBytes(index++, hash);
+                        ps.setLong(index++, expiry);
+                        for (int i = 0; i < table.logTables.length; i++) {
+                            ps.setBytes(index++, hash);
+                        }
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                }
+                if (!conn.getAutoCommit()) {
+                    conn.commit();
+                }
+            }
+            total += hashes.size();
+
+            if (hashes.size() < retention.getBatchSize()) {
+                break;
+            }
+            // throttle, let the database breathe between batches.
+            Thread.sleep(retention.getBatchPause());
+        }
+        if (total > 0) {
+            log.info("Deleted {} unreferenced results from {}.", total, SharedResultStore.tableName(table.tableName));
+        }
+    }
+
+    private void truncateNext(Table table) throws SQLException {
+        TableRotation tableRotation = table.tableRotation;
+        long now = System.currentTimeMillis();
+        int next = tableRotation.next(now);
+        // truncate in the first half of the current period only,
+        // do NOT truncate a table which is becoming the current one.
+        if (next == table.truncated || tableRotation.elapsedInBucket(now) > tableRotation.getBucketLength() / 2) {
+            return;
+        }
+        String name = tableRotation.getTables()[next];
+        try (
+                Connection conn = table.dataSource.getConnection();
+                Statement statement = conn.createStatement()
+        ) {
+            statement.execute("TRUNCATE TABLE " + name);
+            if (!conn.getAutoCommit()) {
+                conn.commit();
+            }
+        }
+        table.truncated = next;
+        log.info("Truncated expired idempotent log table {}.", name);
+    }
+
+    /**
+     * A log table to purge.
+     */
+    public static class Table {
+        private final DataSource dataSource;
+        private final String tableName;
+        private final TableRotation tableRotation;
+        private final String selectSql;
+        private final String deleteSql;
+        private final KnotsProperties.SharedResults sharedResults;
+        private final String[] logTables;
+        private final String selectUnreferencedSql;
+        private final String deleteUnreferencedSql;
+        private int truncated = -1;
+
+        /**
+         * @param tableRotation rotation of the log table, null if the log table is not rotated.
+         */
+        public Table(DataSource dataSource, String tableName, TableRotation tableRotation) {
+            this(dataSource, tableName, tableRotation, false);
+        }
+
+        /**
+         * @param tableRotation rotation of the log table, null if the log table is not rotated.
+         * @param hashedKeys    true if the Primary Key is the hash of the Idempotent ID, check {@link RdbmsIdempotentHandler}.
+         */
+        public Table(DataSource dataSource, String tableName, TableRotation tableRotation, boolean hashedKeys) {
+            this(dataSource, tableName, tableRotation, hashedKeys, null);
+        }
+
+        /**
+         * @param tableRotation rotation of the log table, null if the log table is not rotated.
+         * @param hashedKeys    true if the Primary Key is the hash of the Idempotent ID, check {@link RdbmsIdempotentHandler}.
+         * @param sharedResults shared results of the log, null if results are NOT shared.
+         */
+        public Table(DataSource dataSource, String tableName, TableRotation tableRotation, boolean hashedKeys, KnotsProperties.SharedResults sharedResults) {
+            this.dataSource = dataSource;
+            this.tableName = tableName;
+            this.tableRotation = tableRotation;
+            String key = SqlDialect.keyColumn(hashedKeys);
+            this.selectSql = "select " + key + " from " + tableName + " where create_time<? order by create_time";
+            this.deleteSql = "delete from " + tableName + " where " + key + "=? and create_time<?";
+
+            this.sharedResults = sharedResults != null && sharedResults.isEnabled() ? sharedResults : null;
+            this.logTables = tableRotation == null ? new String[]{tableName} : tableRotation.getTables();
+            String results = SharedResultStore.tableName(tableName);
+            StringBuilder unreferenced = new StringBuilder();
+            StringBuilder unreferencedHash = new StringBuilder();
+            for (String logTable : logTables) {
+                unreferenced.append(" and not exists (select 1 from ").append(logTable).append(" t where t.result_hash=r.result_hash)");
+                unreferencedHash.append(" and not exists (select 1 from ").append(logTable).append(" where result_hash=?)");
+            }
+            this.selectUnreferencedSql = "select r.result_hash from " + results + " r where r.last_used<?" + unreferenced;
+            this.deleteUnreferencedSql = "delete from " + results + " where result_hash=? and last_used<?" + unreferencedHash;
+        }
+    }
+}
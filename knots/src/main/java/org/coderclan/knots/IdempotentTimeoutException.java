@@ -0,0 +1,12 @@
+package org.coderclan.knots;
+
+/**
+ * Thrown when waiting for the previous invocation of the same Idempotent ID timeout.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class IdempotentTimeoutException extends RuntimeException {
+    public IdempotentTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,214 @@
+package org.coderclan.knots;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-node registry of invocations which are being executed, keyed by Idempotent ID.
+ * It is used by {@link IdempotentAspect} to coalesce concurrent invocations of the same Idempotent ID within one JVM:
+ * only the first invocation (the owner) goes to the {@link IdempotentHandler}, the duplicates wait for the owner
+ * and get its result handed over in memory.
+ * <p>
+ * Each waiter gets its own copy of the result, serialized once by the {@link Serializer} and deserialized per waiter,
+ * so waiters and the owner never share mutable objects across threads. Without a serializer the owner's result itself
+ * is handed over to all waiters, which is safe only if results are immutable.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class InFlightRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(InFlightRegistry.class);
+    /**
+     * Result of a {@link Flight} which is not succeeded (failed, or thrown exception). Waiters should try again.
+     */
+    public static final Object RETRY = new Object();
+
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private final Serializer serializer;
+
+    /**
+     * Hand over the owner's result itself to waiters.
+     */
+    public InFlightRegistry() {
+        this(null);
+    }
+
+    /**
+     * @param serializer serializer to copy results for waiters, null to hand over the owner's result itself.
+     */
+    public InFlightRegistry(Serializer serializer) {
+        this.serializer = serializer;
+    }
+
+    /**
+     * Join the flight of the Idempotent ID. A new flight owned by current thread will be registered if there is no
+     * flight of the Idempotent ID.
+     *
+     * @param idempotentId Idempotent ID
+     * @param method       the invoked method
+     * @return the flight of the Idempotent ID, check {@link Flight#isOwner()} to know if current thread owns it.
+     */
+    public Flight join(String idempotentId, Method method) {
+        return join(idempotentId, method, Thread.currentThread());
+    }
+
+    /**
+     * Join the flight of the Idempotent ID. A new flight owned by the owner will be registered if there is no flight of
+     * the Idempotent ID.
+     *
+     * @param idempotentId Idempotent ID
+     * @param method       the invoked method
+     * @param owner        the current thread, or an object which represents an asynchronous invocation.
+     * @return the flight of the Idempotent ID, check {@link Flight#isOwner(Object)} to know if the owner owns it.
+     */
+    public Flight join(String idempotentId, Method method, Object owner) {
+        Flight flight = new Flight(idempotentId, method, owner, serializer);
+        Flight existing = flights.putIfAbsent(idempotentId, flight);
+        if (existing == null) {
+            return flight;
+        }
+        if (existing.isOwner()) {
+            // re-entrant invocation of the same Idempotent ID, waiting for itself would never finish.
+            // return a flight which is NOT registered, so the invocation goes to the IdempotentHandler directly.
+            return flight;
+        }
+        existing.waiters.incrementAndGet();
+        return existing;
+    }
+
+    /**
+     * Complete the flight, and hand over the result to waiters.
+     *
+     * @param flight  the flight owned by current thread
+     * @param result  what the invocation saved, e.g. {@link IdempotentHandler#ACKNOWLEDGED}, or the previous result
+     * @param success true if the result is saved as a successful result, waiters will get {@link #RETRY} otherwise.
+     */
+    public void complete(Flight flight, Object result, boolean success) {
+        flights.remove(flight.idempotentId, flight);
+        flight.future.complete(success ? result : RETRY);
+    }
+
+    /**
+     * @return number of flights registered.
+     */
+    public int size() {
+        return flights.size();
+    }
+
+    public static class Flight {
+        private final String idempotentId;
+        private final Method method;
+        private final Object owner;
+        private final long startTime;
+        private final AtomicInteger waiters = new AtomicInteger();
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+        private final Serializer serializer;
+        /**
+         * The result serialized by the first waiter which copies it.
+         */
+        private volatile byte[] payload;
+
+        private Flight(String idempotentId, Method method, Object owner, Serializer serializer) {
+            this.idempotentId = idempotentId;
+            this.method = method;
+            this.owner = owner;
+            this.serializer = serializer;
+            this.startTime = System.currentTimeMillis();
+        }
+
+        /**
+         * @return true if current thread is the owner of the flight.
+         */
+        public boolean isOwner() {
+            return isOwner(Thread.currentThread());
+        }
+
+        /**
+         * @return true if the flight is owned by the owner(a thread, or an asynchronous invocation).
+         */
+        public boolean isOwner(Object owner) {
+            return this.owner == owner;
+        }
+
+        /**
+         * Wait the owner to complete the flight.
+         *
+         * @param timeout maximum time (unit: millisecond) to wait.
+         * @return a copy of the result handed over by the owner, or {@link #RETRY} if the owner did not succeed.
+         * @throws TimeoutException if the owner does NOT complete the flight in time.
+         */
+        public Object await(long timeout) throws TimeoutException, InterruptedException {
+            try {
+                return copy(future.get(timeout, TimeUnit.MILLISECONDS));
+            } catch (ExecutionException e) {
+                return RETRY;
+            } finally {
+                waiters.decrementAndGet();
+            }
+        }
+
+        /**
+         * Wait the owner to complete the flight without blocking.
+         *
+         * @return future of a copy of the result handed over by the owner, or {@link #RETRY} if the owner did not
+         * succeed.
+         */
+        public CompletableFuture<Object> toFuture() {
+            return future.handle((result, e) -> {
+                waiters.decrementAndGet();
+                return e == null ? copy(result) : RETRY;
+            });
+        }
+
+        /**
+         * @return a copy of the result for a waiter, or {@link #RETRY} if it can NOT be copied, so the waiter goes to
+         * the {@link IdempotentHandler} instead.
+         */
+        private Object copy(Object result) {
+            if (serializer == null || result == null || result == RETRY || result == IdempotentHandler.ACKNOWLEDGED) {
+                return result;
+            }
+            try {
+                Type type = method == null ? null : JoinPoints.resultType(method);
+                byte[] bytes = payload;
+                if (bytes == null) {
+                    synchronized (this) {
+                        if (payload == null) {
+                            payload = serializer.serialize(result, type);
+                        }
+                        bytes = payload;
+                    }
+                }
+                return serializer.deserialize(new ByteArrayInputStream(bytes), type);
+            } catch (Exception e) {
+                logger.warn("Copying in-flight result failed. idempotentId={}", idempotentId, e);
+                return RETRY;
+            }
+        }
+
+        public String getIdempotentId() {
+            return idempotentId;
+        }
+
+        public Method getMethod() {
+            return method;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public int getWaiters() {
+            return waiters.get();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.ByteArrayInputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.*;
+
+/**
+ * Idempotent Handler which keeps locks and invocation results in memory of this JVM.
+ * It is suitable for single instance services only, since other instances do NOT share the locks and results.
+ * <p>
+ * Locks and results are spread over shards by Idempotent ID, each shard has its own map and its own
+ * {@link OffHeapStore}. Serialized results are stored out of the Java heap, so caching a large number of results does
+ * NOT inflate the heap or GC pauses. Results expire after {@code ttl} milli-seconds. {@code maxMemory} should be large
+ * enough to keep the results of {@code ttl} milli-seconds, results are never evicted before expired, the results which
+ * do NOT fit are kept in the heap instead.
+ * <p>
+ * Successful invocations which return null are recorded as done, their replays return null.
+ * <p>
+ * If the result is saved within an active Spring managed transaction, the business data may still be rollback, so the
+ * invocation is marked done after the transaction is committed, and failed if it is rollback.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class InMemoryIdempotentHandler implements IdempotentHandler, InitializingBean, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(InMemoryIdempotentHandler.class);
+    /**
+     * Kept as the result of {@link #ACKNOWLEDGED} and null, the completion without a result.
+     */
+    private static final byte[] ACKNOWLEDGED_RESULT = new byte[0];
+
+    private final Serializer serializer;
+    private final Shard[] shards;
+    private final long ttl;
+    private ScheduledExecutorService sweeper;
+    @Autowired
+    private WaitStrategy waitStrategy;
+    @Autowired
+    private IdempotenceMetrics metrics;
+
+    /**
+     * @param shards    number of shards, rounded up to a power of 2.
+     * @param slabSize  size (unit: byte) of a slab of {@link OffHeapStore}.
+     * @param maxMemory maximum memory (unit: byte) out of the Java heap used to store results, shared by all shards.
+     * @param ttl       time to live (unit: millisecond) of results.
+     */
+    public InMemoryIdempotentHandler(Serializer serializer, int shards, int slabSize, long maxMemory, long ttl) {
+        this.serializer = serializer;
+        int count = 1;
+        while (count < shards) {
+            count *= 2;
+        }
+        int slabsPerShard = (int) Math.max(1L, maxMemory / slabSize / count);
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            this.shards[i] = new Shard(new OffHeapStore(slabSize, slabsPerShard));
+        }
+        this.ttl = ttl;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        long interval = Math.max(1000L, ttl / 4);
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "knots-memory-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+
+    @Override
+    public Object lockOrReturnPreviousResult(String idempotentId, ProceedingJoinPoint joinPoint) throws Exception {
+        long deadline = 0;
+        while (true) {
+            Object previous = lookup(idempotentId, joinPoint);
+            if (!(previous instanceof Entry)) {
+                return previous;
+            }
+
+            // the previous invocation has not been finished yet, wait it to be done, no polling is needed.
+            if (deadline == 0) {
+                metrics.recordWait(JoinPoints.getMethod(joinPoint));
+                deadline = System.currentTimeMillis() + waitStrategy.getTimeout();
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                ((Entry) previous).done.get(remaining, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                break;
+            }
+        }
+        log.error("Found previous invoke but previous invoke is timeout! idempotentId={}", idempotentId);
+        throw new IdempotentTimeoutException("Found previous invoke but previous invoke is timeout! idempotentId=" + idempotentId);
+    }
+
+    @Override
+    public Object tryLockOrReturnPreviousResult(String idempotentId, ProceedingJoinPoint joinPoint) throws Exception {
+        Object previous = lookup(idempotentId, joinPoint);
+        return previous instanceof Entry ? IN_PROGRESS : previous;
+    }
+
+    /**
+     * @return null if locked, the {@link Entry} of the previous invocation if it has NOT been finished, result of the
+     * previous invocation otherwise.
+     */
+    private Object lookup(String idempotentId, ProceedingJoinPoint joinPoint) throws Exception {
+        Shard shard = shard(idempotentId);
+        while (true) {
+            Entry existing = shard.entries.get(idempotentId);
+            if (existing == null) {
+                existing = shard.entries.putIfAbsent(idempotentId, new Entry());
+                if (existing == null) {
+                    // locked
+                    return null;
+                }
+            }
+
+            boolean expired = existing.expireAt < System.currentTimeMillis();
+            if (existing.state == State.DONE && !expired) {
+                if (existing.bytes == ACKNOWLEDGED_RESULT) {
+                    return ACKNOWLEDGED;
+                }
+                byte[] bytes = existing.ref == null ? existing.bytes : shard.store.load(existing.ref);
+                if (bytes == null) {
+                    // released by the sweeper just now, it has expired.
+                    continue;
+                }
+                return serializer.deserialize(new ByteArrayInputStream(bytes), JoinPoints.getReturnType(joinPoint));
+            }
+            if (existing.state == State.FAILED || expired) {
+                // failed or expired, take it over.
+                if (shard.entries.replace(idempotentId, existing, new Entry())) {
+                    shard.release(existing);
+                    if (existing.state == State.FAILED) {
+                        metrics.recordReExecution(JoinPoints.getMethod(joinPoint));
+                    }
+                    log.info("Previous invocation failed, retry. idempotentId={}", idempotentId);
+                    return null;
+                }
+                continue;
+            }
+            return existing;
+        }
+    }
+
+    @Override
+    public void saveResult(String idempotentId, Object result, boolean success, ProceedingJoinPoint joinPoint) throws Exception {
+        Shard shard = shard(idempotentId);
+        Entry entry = shard.entries.get(idempotentId);
+        if (entry == null || entry.state != State.IN_PROGRESS) {
+            log.error("Save return result failed. idempotentId={}", idempotentId);
+            return;
+        }
+        if (!success) {
+            complete(shard, entry, State.FAILED, null, null);
+            return;
+        }
+
+        OffHeapStore.Ref ref = null;
+        byte[] bytes = null;
+        boolean serialized = false;
+        try {
+            if (result == ACKNOWLEDGED || Objects.isNull(result)) {
+                // nothing to serialize, record the completion only, replays return null.
+                bytes = ACKNOWLEDGED_RESULT;
+            } else {
+                bytes = serializer.serialize(result, JoinPoints.getReturnType(joinPoint));
+                metrics.recordPayloadSize(JoinPoints.getMethod(joinPoint), bytes.length);
+                ref = shard.store.store(bytes);
+                if (ref != null) {
+                    bytes = null;
+                }
+                // otherwise too large for a slab, or all slabs hold results which are NOT expired, keep it in the heap.
+            }
+            serialized = true;
+        } finally {
+            if (!serialized) {
+                // do NOT leave the lock IN_PROGRESS forever, the next invocation will execute again.
+                complete(shard, entry, State.FAILED, null, null);
+            }
+        }
+
+        if (!TransactionHooks.isActive()) {
+            complete(shard, entry, State.DONE, ref, bytes);
+            return;
+        }
+        // the business data may be rollback, do NOT replay the result until it is committed.
+        OffHeapStore.Ref savedRef = ref;
+        byte[] savedBytes = bytes;
+        TransactionHooks.afterCompletion(committed -> complete(shard, entry, committed ? State.DONE : State.FAILED, savedRef, savedBytes));
+    }
+
+    /**
+     * Finish the invocation, wake up the waiters. The stored result is released if it is failed.
+     */
+    private void complete(Shard shard, Entry entry, State state, OffHeapStore.Ref ref, byte[] bytes) {
+        if (state == State.FAILED) {
+            if (ref != null) {
+                shard.store.release(ref);
+            }
+        } else {
+            entry.ref = ref;
+            entry.bytes = bytes;
+        }
+        entry.expireAt = System.currentTimeMillis() + ttl;
+        entry.state = state;
+        entry.done.complete(null);
+    }
+
+    /**
+     * Remove expired results, and release their memory.
+     */
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        for (Shard shard : shards) {
+            for (Iterator<Map.Entry<String, Entry>> it = shard.entries.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Entry> e = it.next();
+                Entry entry = e.getValue();
+                if (entry.state != State.IN_PROGRESS && entry.expireAt < now && shard.entries.remove(e.getKey(), entry)) {
+                    shard.release(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of Idempotent IDs kept in memory.
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.entries.size();
+        }
+        return size;
+    }
+
+    private Shard shard(String idempotentId) {
+        int h = idempotentId.hashCode();
+        h ^= (h >>> 16);
+        return shards[h & (shards.length - 1)];
+    }
+
+    private enum State {
+        IN_PROGRESS, DONE, FAILED
+    }
+
+    private static class Entry {
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private volatile State state = State.IN_PROGRESS;
+        /**
+         * Locks never expire while IN_PROGRESS, the owner always saves the result (check {@link IdempotentAspect}).
+         */
+        private volatile long expireAt = Long.MAX_VALUE;
+        private volatile OffHeapStore.Ref ref;
+        private volatile byte[] bytes;
+    }
+
+    private static class Shard {
+        private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+        private final OffHeapStore store;
+
+        private Shard(OffHeapStore store) {
+            this.store = store;
+        }
+
+        private void release(Entry entry) {
+            OffHeapStore.Ref ref = entry.ref;
+            if (ref != null) {
+                store.release(ref);
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package org.coderclan.knots;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Per-node registry of idempotent invocations which are running, and of the Idempotent IDs which are invoked
+ * repeatedly(hot keys), exposed by {@link KnotsEndpoint}.
+ * <p>
+ * An Idempotent ID is in flight from the first invocation of this JVM until the last one returns. Threads which are
+ * waiting for it, in memory(check {@link InFlightRegistry}) or polling the {@link IdempotentHandler} for an invocation
+ * of this or another instance, are its waiters. Duplicates(replayed, or timeout while waiting) are counted by
+ * {@link HotKeySketch}, the memory is bounded and counting does NOT take locks in most cases.
+ * <p>
+ * An invocation updates the registry by one {@link ConcurrentHashMap#compute} when it enters and one when it exits,
+ * starting and ending the execution only update its entry, which stays registered until the invocation exits.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class InvocationMonitor {
+    private final boolean enabled;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final HotKeySketch hotKeys;
+
+    /**
+     * @param enabled  false to record nothing.
+     * @param topK     number of hot keys to keep.
+     * @param halfLife counts of duplicates are halved after this period (unit: millisecond).
+     */
+    public InvocationMonitor(boolean enabled, int topK, long halfLife) {
+        this.enabled = enabled;
+        this.hotKeys = enabled ? new HotKeySketch(topK, halfLife) : null;
+    }
+
+    /**
+     * An invocation of the Idempotent ID starts, it should be ended by {@link #exit(Entry)}.
+     *
+     * @return the entry of the Idempotent ID, null if disabled.
+     */
+    public Entry enter(String idempotentId, Method method) {
+        if (!enabled) {
+            return null;
+        }
+        return entries.compute(idempotentId, (k, entry) -> {
+            if (entry == null) {
+                entry = new Entry(idempotentId, method);
+            }
+            entry.threads++;
+            return entry;
+        });
+    }
+
+    /**
+     * The invocation starts to execute the method, it is NOT a waiter until {@link #executed(Entry)}.
+     *
+     * @param entry entry returned by {@link #enter(String, Method)}.
+     */
+    public void executing(Entry entry) {
+        if (entry != null) {
+            Entry.EXECUTING.incrementAndGet(entry);
+        }
+    }
+
+    /**
+     * The invocation has executed the method(and saved the result).
+     *
+     * @param entry entry returned by {@link #enter(String, Method)}.
+     */
+    public void executed(Entry entry) {
+        if (entry != null) {
+            Entry.EXECUTING.decrementAndGet(entry);
+        }
+    }
+
+    /**
+     * The invocation returns.
+     *
+     * @param entry entry returned by {@link #enter(String, Method)}.
+     */
+    public void exit(Entry entry) {
+        if (entry != null) {
+            entries.computeIfPresent(entry.idempotentId, (k, e) -> {
+                e.threads--;
+                return e.threads > 0 ? e : null;
+            });
+        }
+    }
+
+    /**
+     * Record a duplicate invocation of the Idempotent ID.
+     */
+    public void recordDuplicate(String idempotentId) {
+        if (enabled) {
+            hotKeys.add(idempotentId);
+        }
+    }
+
+    /**
+     * @param limit maximum number of Idempotent IDs to return.
+     * @return Idempotent IDs in flight, the oldest first.
+     */
+    public List<InFlight> inFlight(int limit) {
+        List<InFlight> inFlight = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Entry entry : entries.values()) {
+            int executing = entry.executing;
+            inFlight.add(new InFlight(entry.idempotentId, entry.method, now - entry.startTime, executing > 0, Math.max(0, entry.threads - executing)));
+        }
+        inFlight.sort(Comparator.comparingLong(InFlight::getAge).reversed());
+        return inFlight.size() > limit ? new ArrayList<>(inFlight.subList(0, limit)) : inFlight;
+    }
+
+    /**
+     * @return the most duplicated Idempotent IDs recently, the most duplicated first.
+     */
+    public List<HotKey> hotKeys() {
+        List<HotKey> hot = new ArrayList<>();
+        if (enabled) {
+            for (Map.Entry<String, Long> entry : hotKeys.top()) {
+                hot.add(new HotKey(entry.getKey(), entry.getValue()));
+            }
+        }
+        return hot;
+    }
+
+    /**
+     * Invocations of an Idempotent ID in this JVM, threads are updated within {@link ConcurrentHashMap#compute}.
+     */
+    public static final class Entry {
+        private static final AtomicIntegerFieldUpdater<Entry> EXECUTING = AtomicIntegerFieldUpdater.newUpdater(Entry.class, "executing");
+        private final String idempotentId;
+        private final Method method;
+        private final long startTime = System.currentTimeMillis();
+        private volatile int threads;
+        private volatile int executing;
+
+        private Entry(String idempotentId, Method method) {
+            this.idempotentId = idempotentId;
+            this.method = method;
+        }
+    }
+
+    /**
+     * Snapshot of an Idempotent ID in flight.
+     */
+    public static final class InFlight {
+        private final String idempotentId;
+        private final String method;
+        private final long age;
+        private final boolean executing;
+        private final int waiters;
+
+        private InFlight(String idempotentId, Method method, long age, boolean executing, int waiters) {
+            this.idempotentId = idempotentId;
+            this.method = method == null ? null : method.getDeclaringClass().getName() + "." + method.getName();
+            this.age = age;
+            this.executing = executing;
+            this.waiters = waiters;
+        }
+
+        public String getIdempotentId() {
+            return idempotentId;
+        }
+
+        /**
+         * @return the method of the first invocation.
+         */
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * @return time (unit: millisecond) since the first invocation.
+         */
+        public long getAge() {
+            return age;
+        }
+
+        /**
+         * @return true if the method is being executed by this JVM, false if all the invocations are waiting(e.g.
+         * for another instance).
+         */
+        public boolean isExecuting() {
+            return executing;
+        }
+
+        public int getWaiters() {
+            return waiters;
+        }
+    }
+
+    /**
+     * An Idempotent ID which is invoked repeatedly.
+     */
+    public static final class HotKey {
+        private final String idempotentId;
+        private final long duplicates;
+
+        private HotKey(String idempotentId, long duplicates) {
+            this.idempotentId = idempotentId;
+            this.duplicates = duplicates;
+        }
+
+        public String getIdempotentId() {
+            return idempotentId;
+        }
+
+        /**
+         * @return estimated number of duplicates recently, may be a bit larger than the real number.
+         */
+        public long getDuplicates() {
+            return duplicates;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.coderclan.knots;
+
+import org.coderclan.knots.annotation.IdempotentIdExpression;
+import org.springframework.expression.Expression;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+
+/**
+ * Everything {@link IdempotentAspect} needs to know about an intercepted method, resolved once per method and target
+ * class by {@link InvocationPlanRegistry}, so the invocations do NOT look up annotations or parse expressions.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class InvocationPlan {
+    private final Method method;
+    private final Class<?> targetClass;
+    private final Type returnType;
+    private final Type resultType;
+    private final IdempotentIdExpression idExpressionAnnotation;
+    private final Expression idExpression;
+    private final IdempotentIdExtractor idExtractor;
+    private final AsyncReturnType asyncReturnType;
+    private final BatchPlan batch;
+    private final ReplayResultFactory acknowledgement;
+    private final boolean passThrough;
+
+    InvocationPlan(Method method, Class<?> targetClass, IdempotentIdExpression idExpressionAnnotation, Expression idExpression, IdempotentIdExtractor idExtractor, BatchPlan batch, ReplayResultFactory acknowledgement, boolean passThrough) {
+        this.method = method;
+        this.targetClass = targetClass;
+        this.returnType = method.getGenericReturnType();
+        this.resultType = JoinPoints.resultType(method);
+        this.idExpressionAnnotation = idExpressionAnnotation;
+        this.idExpression = idExpression;
+        this.idExtractor = idExtractor;
+        this.asyncReturnType = AsyncReturnType.of(method);
+        this.batch = batch;
+        this.acknowledgement = acknowledgement;
+        this.passThrough = passThrough;
+    }
+
+    /**
+     * @return the intercepted method.
+     */
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * @return class of the target object.
+     */
+    public Class<?> getTargetClass() {
+        return targetClass;
+    }
+
+    /**
+     * @return generic return type of the method.
+     */
+    public Type getReturnType() {
+        return returnType;
+    }
+
+    /**
+     * @return generic type of the saved results: type of the value of asynchronous methods, type of the items of batch
+     * methods, the return type otherwise.
+     */
+    public Type getResultType() {
+        return resultType;
+    }
+
+    /**
+     * @return {@link IdempotentIdExpression} on the method, or on the target class, null if not found.
+     */
+    public IdempotentIdExpression getIdExpressionAnnotation() {
+        return idExpressionAnnotation;
+    }
+
+    /**
+     * @return parsed expression of {@link IdempotentIdExpression#value()}, null if the annotation is not found.
+     */
+    public Expression getIdExpression() {
+        return idExpression;
+    }
+
+    /**
+     * @return extractor of the Idempotent ID marked by {@link org.coderclan.knots.annotation.IdempotentId}, null if
+     * nothing is marked.
+     */
+    public IdempotentIdExtractor getIdExtractor() {
+        return idExtractor;
+    }
+
+    /**
+     * @return asynchronous return type of the method, null if the method is synchronous.
+     */
+    public AsyncReturnType getAsyncReturnType() {
+        return asyncReturnType;
+    }
+
+    /**
+     * @return plan of the batch, null if the method is NOT annotated by
+     * {@link org.coderclan.knots.annotation.IdempotentBatch}.
+     */
+    public BatchPlan getBatch() {
+        return batch;
+    }
+
+    /**
+     * @return factory of results returned to replays if the method is acknowledge-only, null otherwise. check
+     * {@link org.coderclan.knots.annotation.AcknowledgeOnly}.
+     */
+    public ReplayResultFactory getAcknowledgement() {
+        return acknowledgement;
+    }
+
+    /**
+     * @return what to save by {@link IdempotentHandler}: {@link IdempotentHandler#ACKNOWLEDGED} if the method is
+     * acknowledge-only, the result otherwise.
+     */
+    public Object toSaved(Object result) {
+        return acknowledgement == null ? result : IdempotentHandler.ACKNOWLEDGED;
+    }
+
+    /**
+     * @param previous result of the previous invocation returned by {@link IdempotentHandler}.
+     * @return the result returned to the replay.
+     */
+    public Object toReplayed(Object previous) {
+        if (previous != IdempotentHandler.ACKNOWLEDGED) {
+            return previous;
+        }
+        return acknowledgement == null ? null : acknowledgement.create(method);
+    }
+
+    /**
+     * @return true if the method is NOT idempotent(e.g. {@link Object#toString()} of an annotated class), it should be
+     * invoked directly.
+     */
+    public boolean isPassThrough() {
+        return passThrough;
+    }
+}
@@ -0,0 +1,179 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.coderclan.knots.annotation.AcknowledgeOnly;
+import org.coderclan.knots.annotation.Idempotent;
+import org.coderclan.knots.annotation.IdempotentBatch;
+import org.coderclan.knots.annotation.IdempotentIdExpression;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.core.MethodClassKey;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.util.ClassUtils;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolve and cache {@link InvocationPlan} of intercepted methods. Plans of the methods of idempotent beans are
+ * resolved when the application is started, others are resolved at the first invocation.
+ * <p>
+ * Expressions of {@link IdempotentIdExpression} are compiled by the SpEL compiler in the configured
+ * {@link SpelCompilerMode}, accessors of {@link org.coderclan.knots.annotation.IdempotentId} are generated by
+ * {@link IdempotentIdExtractor}.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class InvocationPlanRegistry implements BeanFactoryAware, SmartInitializingSingleton {
+    private static final Logger log = LoggerFactory.getLogger(InvocationPlanRegistry.class);
+
+    /**
+     * Plans by method, of the first target class. Most methods are invoked on one target class only.
+     */
+    private final ConcurrentHashMap<Method, InvocationPlan> plans = new ConcurrentHashMap<>();
+    /**
+     * Plans of methods which are invoked on several target classes(e.g. inherited from an annotated parent class).
+     */
+    private final ConcurrentHashMap<MethodClassKey, InvocationPlan> plansByTarget = new ConcurrentHashMap<>();
+    private final SpelExpressionParser parser;
+    private ListableBeanFactory beanFactory;
+
+    public InvocationPlanRegistry() {
+        this(SpelCompilerMode.IMMEDIATE);
+    }
+
+    /**
+     * @param compilerMode mode of the SpEL compiler for expressions of {@link IdempotentIdExpression}.
+     */
+    public InvocationPlanRegistry(SpelCompilerMode compilerMode) {
+        this.parser = new SpelExpressionParser(new SpelParserConfiguration(compilerMode, ClassUtils.getDefaultClassLoader()));
+    }
+
+    @Override
+    public void setBeanFactory(BeanFactory beanFactory) throws BeansException {
+        if (beanFactory instanceof ListableBeanFactory) {
+            this.beanFactory = (ListableBeanFactory) beanFactory;
+        }
+    }
+
+    /**
+     * Resolve plans of methods of idempotent beans in advance, wrong expressions or annotations fail the startup.
+     */
+    @Override
+    public void afterSingletonsInstantiated() {
+        if (beanFactory == null) {
+            return;
+        }
+        int count = 0;
+        for (String name : beanFactory.getBeanDefinitionNames()) {
+            Class<?> type = beanFactory.getType(name, false);
+            if (type == null) {
+                continue;
+            }
+            Class<?> userClass = ClassUtils.getUserClass(type);
+            boolean idempotentClass = AnnotatedElementUtils.hasAnnotation(userClass, Idempotent.class);
+            for (Method method : userClass.getMethods()) {
+                if (Modifier.isStatic(method.getModifiers()) || method.getDeclaringClass() == Object.class) {
+                    continue;
+                }
+                if (idempotentClass || AnnotatedElementUtils.hasAnnotation(method, Idempotent.class)) {
+                    getPlan(method, userClass);
+                    count++;
+                }
+            }
+        }
+        log.info("{} idempotent methods found.", count);
+    }
+
+    /**
+     * @return plan of the intercepted invocation.
+     */
+    public InvocationPlan getPlan(ProceedingJoinPoint joinPoint) {
+        Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        Object target = joinPoint.getTarget();
+        return getPlan(method, target == null ? method.getDeclaringClass() : target.getClass());
+    }
+
+    /**
+     * @return plan of the method invoked on an instance of the target class.
+     */
+    public InvocationPlan getPlan(Method method, Class<?> targetClass) {
+        InvocationPlan plan = plans.get(method);
+        if (plan != null && plan.getTargetClass() == targetClass) {
+            return plan;
+        }
+        if (plan == null) {
+            plan = plans.computeIfAbsent(method, m -> createPlan(m, targetClass));
+            if (plan.getTargetClass() == targetClass) {
+                return plan;
+            }
+        }
+        return plansByTarget.computeIfAbsent(new MethodClassKey(method, targetClass), k -> createPlan(method, targetClass));
+    }
+
+    private InvocationPlan createPlan(Method method, Class<?> targetClass) {
+        if (method.getDeclaringClass() == Object.class) {
+            return new InvocationPlan(method, targetClass, null, null, null, null, null, true);
+        }
+
+        // find @IdempotentIdExpression on method
+        Method specificMethod = AopUtils.getMostSpecificMethod(method, targetClass);
+        IdempotentIdExpression annotation = AnnotationUtils.findAnnotation(specificMethod, IdempotentIdExpression.class);
+        if (annotation == null) {
+            // find @IdempotentIdExpression from class or its super class, if there is no @IdempotentIdExpression on method.
+            annotation = AnnotationUtils.findAnnotation(targetClass, IdempotentIdExpression.class);
+        }
+        Expression expression = annotation == null ? null : parser.parseExpression(annotation.value());
+
+        IdempotentBatch batchAnnotation = AnnotationUtils.findAnnotation(specificMethod, IdempotentBatch.class);
+        BatchPlan batch = null;
+        if (batchAnnotation != null) {
+            Expression itemExpression = batchAnnotation.value().isEmpty() ? null : parser.parseExpression(batchAnnotation.value());
+            batch = new BatchPlan(specificMethod, batchAnnotation, itemExpression);
+        }
+        // an explicit expression wins, @IdempotentId added to a shared parameter type does NOT change the Idempotent ID.
+        IdempotentIdExtractor extractor = IdempotentIdExtractor.of(specificMethod);
+        if (annotation != null && extractor != null) {
+            log.warn("Idempotent ID of {} is defined by @IdempotentIdExpression, @IdempotentId marked on its parameters is ignored.", specificMethod);
+            extractor = null;
+        }
+        return new InvocationPlan(method, targetClass, annotation, expression, extractor, batch, acknowledgement(specificMethod, targetClass), false);
+    }
+
+    /**
+     * @return factory of results returned to replays of the acknowledge-only method, null if the method is NOT
+     * acknowledge-only.
+     */
+    @SuppressWarnings("unchecked")
+    private ReplayResultFactory acknowledgement(Method method, Class<?> targetClass) {
+        AcknowledgeOnly annotation = AnnotationUtils.findAnnotation(method, AcknowledgeOnly.class);
+        if (annotation == null) {
+            annotation = AnnotationUtils.findAnnotation(targetClass, AcknowledgeOnly.class);
+        }
+        if (annotation == null) {
+            Type resultType = JoinPoints.resultType(method);
+            return resultType == void.class || resultType == Void.class ? ReplayResultFactory.NULL : null;
+        }
+
+        Class<ReplayResultFactory> type = (Class<ReplayResultFactory>) annotation.value();
+        if (type == ReplayResultFactory.class) {
+            return beanFactory == null ? ReplayResultFactory.NULL : beanFactory.getBeanProvider(ReplayResultFactory.class).getIfAvailable(() -> ReplayResultFactory.NULL);
+        }
+        return beanFactory == null ? BeanUtils.instantiateClass(type) : beanFactory.getBeanProvider(type).getIfAvailable(() -> BeanUtils.instantiateClass(type));
+    }
+}
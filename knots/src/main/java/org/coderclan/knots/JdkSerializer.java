@@ -1,6 +1,7 @@
 package org.coderclan.knots;
 
 import java.io.*;
+import java.lang.reflect.Type;
 import java.util.Objects;
 
 /**
@@ -33,4 +34,15 @@ public class JdkSerializer implements Serializer {
             return os.toByteArray();
         }
     }
+
+    @Override
+    public void serialize(Object obj, Type type, OutputStream os) throws IOException {
+        if (Objects.isNull(obj)) {
+            return;
+        }
+        ObjectOutputStream out = new ObjectOutputStream(os);
+        out.writeObject(obj);
+        // flush only, do NOT close the stream of the caller.
+        out.flush();
+    }
 }
@@ -0,0 +1,51 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+
+/**
+ * Helpers of the intercepted invocations, the join point may be null if the handler is NOT called by
+ * {@link IdempotentAspect}. Join points passed by the aspect carry the {@link InvocationPlan}, whose cached method and
+ * result type are returned.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+final class JoinPoints {
+    private JoinPoints() {
+    }
+
+    /**
+     * @return the intercepted method, or null if the join point is null.
+     */
+    static Method getMethod(ProceedingJoinPoint joinPoint) {
+        if (joinPoint instanceof PlannedJoinPoint) {
+            return ((PlannedJoinPoint) joinPoint).getPlan().getMethod();
+        }
+        return joinPoint == null ? null : ((MethodSignature) joinPoint.getSignature()).getMethod();
+    }
+
+    /**
+     * @return generic type of the result of the intercepted method(type of the value of asynchronous methods, check
+     * {@link AsyncReturnType}, type of the items of batch methods, check {@link BatchPlan}), or null if the join point
+     * is null.
+     */
+    static Type getReturnType(ProceedingJoinPoint joinPoint) {
+        if (joinPoint instanceof PlannedJoinPoint) {
+            return ((PlannedJoinPoint) joinPoint).getPlan().getResultType();
+        }
+        if (joinPoint == null) {
+            return null;
+        }
+        return resultType(((MethodSignature) joinPoint.getSignature()).getMethod());
+    }
+
+    /**
+     * @return generic type of the result of the method, check {@link #getReturnType(ProceedingJoinPoint)}.
+     */
+    static Type resultType(Method method) {
+        return BatchPlan.isBatch(method) ? BatchPlan.getResultType(method) : AsyncReturnType.getResultType(method);
+    }
+}
@@ -0,0 +1,36 @@
+package org.coderclan.knots;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Actuator endpoint {@code knots}: Idempotent IDs in flight of this instance(age, method, waiters) and the most
+ * duplicated Idempotent IDs recently, check {@link InvocationMonitor}. Expose it by
+ * {@code management.endpoints.web.exposure.include=knots}.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+@Endpoint(id = "knots")
+public class KnotsEndpoint {
+    private final InvocationMonitor monitor;
+    private final int limit;
+
+    /**
+     * @param limit maximum number of Idempotent IDs in flight to list.
+     */
+    public KnotsEndpoint(InvocationMonitor monitor, int limit) {
+        this.monitor = monitor;
+        this.limit = limit;
+    }
+
+    @ReadOperation
+    public Map<String, Object> invocations() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("inFlight", monitor.inFlight(limit));
+        report.put("hotKeys", monitor.hotKeys());
+        return report;
+    }
+}
@@ -1,6 +1,13 @@
 package org.coderclan.knots;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.core.Ordered;
+import org.springframework.expression.spel.SpelCompilerMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Configuration Properties of the Knots.
@@ -10,13 +17,110 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 @ConfigurationProperties(prefix = "org.coderclan.knots")
 public class KnotsProperties {
     /**
-     * Times of retrying to get previous invocation result. Default: 50.
+     * Times of retrying to get previous invocation result, used by {@link WaitStrategyType#FIXED}. Default: 50.
      */
     private int retries = 50;
     /**
-     * Pause (unit: millisecond) to wait between retrying. Default: 200ms.
+     * Pause (unit: millisecond) to wait between retrying, used by {@link WaitStrategyType#FIXED}. Default: 200ms.
      */
     private int retryWait = 200;
+    /**
+     * Coalesce concurrent invocations of the same Idempotent ID within one JVM, only the first one touches the
+     * {@link IdempotentHandler}, the others wait for it and get its result in memory. Default: true.
+     */
+    private boolean singleFlight = true;
+    /**
+     * Hand the result of the coalesced invocation itself to the others, instead of a copy (serialized and
+     * deserialized by the {@link Serializer}) to each of them. Enable it only if results are immutable, since they are
+     * shared across threads. Default: false.
+     */
+    private boolean shareInFlightResults = false;
+    /**
+     * Where to keep locks and invocation results. Default: RDBMS.
+     */
+    private Store store = Store.RDBMS;
+    /**
+     * Serializer of invocation results, the format of previous versions by default. Switch to BINARY only after all
+     * instances run a version which reads it. Default: JDK.
+     */
+    private SerializerType serializer = SerializerType.JDK;
+    /**
+     * Use the connection of the active Spring managed transaction to save the lock and the result, they are committed
+     * or rollback with the business transaction. Used by {@link RdbmsIdempotentHandler}. Default: false.
+     * {@link #aspectOrder} should be lower than the order of @Transactional, so the {@link IdempotentAspect} is invoked
+     * within the transaction.
+     */
+    private boolean joinTransaction = false;
+    /**
+     * Time (unit: millisecond) to live of a lock which is NOT renewed, locks of running invocations are renewed by a
+     * heartbeat, locks of crashed invocations are taken over after it. Used by {@link RdbmsIdempotentHandler} if
+     * {@link #joinTransaction} is NOT enabled, 0 to disable. Default: 0(disabled).
+     */
+    private long leaseTime = 0;
+    /**
+     * SQL dialect of the database, used by {@link RdbmsIdempotentHandler}. Default: detected from the DataSource.
+     */
+    private SqlDialect dialect;
+    /**
+     * Use the first 128 bits of SHA-256 of Idempotent IDs as the Primary Key of the idempotent log, the Idempotent IDs
+     * are kept in a column without index. Used by {@link RdbmsIdempotentHandler}, the layout of the table is different,
+     * use a new table to switch it. Default: false.
+     */
+    private boolean hashedKeys = false;
+    /**
+     * Order of {@link IdempotentAspect}. Default: {@link org.springframework.core.Ordered#LOWEST_PRECEDENCE}.
+     */
+    private int aspectOrder = Ordered.LOWEST_PRECEDENCE;
+    /**
+     * Mode of the SpEL compiler for expressions of {@link org.coderclan.knots.annotation.IdempotentIdExpression}.
+     * Expressions compiled in IMMEDIATE mode fail if types of the arguments change between invocations, use MIXED in
+     * that case. Default: IMMEDIATE.
+     */
+    private SpelCompilerMode spelCompilerMode = SpelCompilerMode.IMMEDIATE;
+    /**
+     * How to wait for the previous invocation of the same Idempotent ID.
+     */
+    private final Wait wait = new Wait();
+    /**
+     * In memory cache of completed successful results, in front of the {@link IdempotentHandler}.
+     */
+    private final NearCache nearCache = new NearCache();
+    /**
+     * Storage of each distinct result once, check {@link SharedResultStore}.
+     */
+    private final SharedResults sharedResults = new SharedResults();
+    /**
+     * Retention of the idempotent log.
+     */
+    private final Retention retention = new Retention();
+    /**
+     * Configuration of {@link InMemoryIdempotentHandler}.
+     */
+    private final Memory memory = new Memory();
+    /**
+     * Configuration of {@link RedisIdempotentHandler}.
+     */
+    private final Redis redis = new Redis();
+    /**
+     * Compression of serialized results, check {@link CompressingSerializer}.
+     */
+    private final Compression compression = new Compression();
+    /**
+     * Idempotency of HTTP requests by header, check {@link IdempotencyKeyFilter}.
+     */
+    private final Http http = new Http();
+    /**
+     * Invocation of asynchronous methods, check {@link AsyncIdempotentInvoker}.
+     */
+    private final Async async = new Async();
+    /**
+     * Sharding of the idempotent log of {@link RdbmsIdempotentHandler}, check {@link ShardedIdempotentHandler}.
+     */
+    private final Sharding sharding = new Sharding();
+    /**
+     * Registry of running invocations and hot keys, check {@link InvocationMonitor}.
+     */
+    private final Monitor monitor = new Monitor();
 
     public int getRetries() {
         return retries;
@@ -33,4 +137,792 @@ public class KnotsProperties {
     public void setRetryWait(int retryWait) {
         this.retryWait = retryWait;
     }
+
+    public boolean isSingleFlight() {
+        return singleFlight;
+    }
+
+    public void setSingleFlight(boolean singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+    public boolean isShareInFlightResults() {
+        return shareInFlightResults;
+    }
+
+    public void setShareInFlightResults(boolean shareInFlightResults) {
+        this.shareInFlightResults = shareInFlightResults;
+    }
+
+    public Store getStore() {
+        return store;
+    }
+
+    public void setStore(Store store) {
+        this.store = store;
+    }
+
+    public SerializerType getSerializer() {
+        return serializer;
+    }
+
+    public void setSerializer(SerializerType serializer) {
+        this.serializer = serializer;
+    }
+
+    public SpelCompilerMode getSpelCompilerMode() {
+        return spelCompilerMode;
+    }
+
+    public void setSpelCompilerMode(SpelCompilerMode spelCompilerMode) {
+        this.spelCompilerMode = spelCompilerMode;
+    }
+
+    public boolean isJoinTransaction() {
+        return joinTransaction;
+    }
+
+    public void setJoinTransaction(boolean joinTransaction) {
+        this.joinTransaction = joinTransaction;
+    }
+
+    public long getLeaseTime() {
+        return leaseTime;
+    }
+
+    public void setLeaseTime(long leaseTime) {
+        this.leaseTime = leaseTime;
+    }
+
+    public SqlDialect getDialect() {
+        return dialect;
+    }
+
+    public void setDialect(SqlDialect dialect) {
+        this.dialect = dialect;
+    }
+
+    public boolean isHashedKeys() {
+        return hashedKeys;
+    }
+
+    public void setHashedKeys(boolean hashedKeys) {
+        this.hashedKeys = hashedKeys;
+    }
+
+    public int getAspectOrder() {
+        return aspectOrder;
+    }
+
+    public void setAspectOrder(int aspectOrder) {
+        this.aspectOrder = aspectOrder;
+    }
+
+    public Wait getWait() {
+        return wait;
+    }
+
+    public NearCache getNearCache() {
+        return nearCache;
+    }
+
+    public SharedResults getSharedResults() {
+        return sharedResults;
+    }
+
+    public Retention getRetention() {
+        return retention;
+    }
+
+    public Memory getMemory() {
+        return memory;
+    }
+
+    public Redis getRedis() {
+        return redis;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public Http getHttp() {
+        return http;
+    }
+
+    public Async getAsync() {
+        return async;
+    }
+
+    public Sharding getSharding() {
+        return sharding;
+    }
+
+    public Monitor getMonitor() {
+        return monitor;
+    }
+
+    public enum Store {
+        /**
+         * Relational Database, check {@link RdbmsIdempotentHandler}. A DataSource bean is required.
+         */
+        RDBMS,
+        /**
+         * Memory of this JVM, for single instance services only. check {@link InMemoryIdempotentHandler}
+         */
+        MEMORY,
+        /**
+         * Redis, check {@link RedisIdempotentHandler}. A RedisConnectionFactory bean is required.
+         */
+        REDIS
+    }
+
+    public enum SerializerType {
+        /**
+         * check {@link JdkSerializer}
+         */
+        JDK,
+        /**
+         * check {@link BinarySerializer}, it also reads results written by {@link JdkSerializer}.
+         */
+        BINARY
+    }
+
+    public enum WaitStrategyType {
+        /**
+         * Pause {@link #retryWait} between polling, at most {@link #retries} times. check {@link FixedWaitStrategy}
+         */
+        FIXED,
+        /**
+         * Exponential backoff with jitter. check {@link ExponentialWaitStrategy}
+         */
+        EXPONENTIAL,
+        /**
+         * Exponential backoff with jitter, the first pause is predicted by execution time of the method. check {@link AdaptiveWaitStrategy}
+         */
+        ADAPTIVE
+    }
+
+    /**
+     * Configuration of {@link WaitStrategy}. {@link #initialWait}, {@link #maxPause}, {@link #multiplier}, {@link #jitter}
+     * and {@link #timeout} are used by {@link WaitStrategyType#EXPONENTIAL} and {@link WaitStrategyType#ADAPTIVE} only.
+     */
+    public static class Wait {
+        /**
+         * Wait strategy. Default: FIXED.
+         */
+        private WaitStrategyType strategy = WaitStrategyType.FIXED;
+        /**
+         * First pause (unit: millisecond). Default: 10ms.
+         */
+        private long initialWait = 10;
+        /**
+         * Maximum pause (unit: millisecond) between polling. Default: 1000ms.
+         */
+        private long maxPause = 1000;
+        /**
+         * Multiplier applied to the pause after each polling. Default: 2.
+         */
+        private double multiplier = 2.0d;
+        /**
+         * 0 to 1, a pause is reduced randomly by at most jitter * pause. Default: 0.5.
+         */
+        private double jitter = 0.5d;
+        /**
+         * Maximum time (unit: millisecond) to wait for the previous invocation. Default: 10 seconds.
+         */
+        private long timeout = 10000;
+        /**
+         * Weight (0 to 1) of the latest execution time in the moving average of execution time. Default: 0.2.
+         */
+        private double ewmaAlpha = 0.2d;
+        /**
+         * Pause (unit: millisecond) between polls of {@link CompletionPoller}, which checks previous invocations for
+         * all the waiting threads of {@link RdbmsIdempotentHandler} by one query, if
+         * {@link KnotsProperties#isJoinTransaction()} is NOT enabled. 0 to let each waiting thread poll by itself after
+         * pauses of the strategy. Default: 0.
+         */
+        private long pollInterval = 0;
+
+        public WaitStrategyType getStrategy() {
+            return strategy;
+        }
+
+        public void setStrategy(WaitStrategyType strategy) {
+            this.strategy = strategy;
+        }
+
+        public long getInitialWait() {
+            return initialWait;
+        }
+
+        public void setInitialWait(long initialWait) {
+            this.initialWait = initialWait;
+        }
+
+        public long getMaxPause() {
+            return maxPause;
+        }
+
+        public void setMaxPause(long maxPause) {
+            this.maxPause = maxPause;
+        }
+
+        public double getMultiplier() {
+            return multiplier;
+        }
+
+        public void setMultiplier(double multiplier) {
+            this.multiplier = multiplier;
+        }
+
+        public double getJitter() {
+            return jitter;
+        }
+
+        public void setJitter(double jitter) {
+            this.jitter = jitter;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(long timeout) {
+            this.timeout = timeout;
+        }
+
+        public double getEwmaAlpha() {
+            return ewmaAlpha;
+        }
+
+        public void setEwmaAlpha(double ewmaAlpha) {
+            this.ewmaAlpha = ewmaAlpha;
+        }
+
+        public long getPollInterval() {
+            return pollInterval;
+        }
+
+        public void setPollInterval(long pollInterval) {
+            this.pollInterval = pollInterval;
+        }
+    }
+
+    /**
+     * Configuration of {@link NearCacheIdempotentHandler}.
+     */
+    public static class NearCache {
+        /**
+         * Decorate the {@link IdempotentHandler} by {@link NearCacheIdempotentHandler}. Default: false.
+         */
+        private boolean enabled = false;
+        /**
+         * Maximum number of cached results. Default: 10000.
+         */
+        private int maximumSize = 10000;
+        /**
+         * Time to live (unit: millisecond) of cached results. Default: 60 seconds.
+         */
+        private long ttl = 60000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaximumSize() {
+            return maximumSize;
+        }
+
+        public void setMaximumSize(int maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+
+        public long getTtl() {
+            return ttl;
+        }
+
+        public void setTtl(long ttl) {
+            this.ttl = ttl;
+        }
+    }
+
+    /**
+     * Shared results of {@link RdbmsIdempotentHandler}.
+     */
+    public static class SharedResults {
+        /**
+         * Save each distinct serialized result once into the results table({@code <table>_result}), rows of the
+         * idempotent log refer to it by hash. Unreferenced results are deleted by {@link IdempotentLogPurger}, enable
+         * {@link Retention#isEnabled()} to collect them. Default: false.
+         */
+        private boolean enabled = false;
+        /**
+         * Maximum number of deserialized results cached in memory. Default: 10000.
+         */
+        private int maximumSize = 10000;
+        /**
+         * Unreferenced results are kept at least this period (unit: millisecond), it should be much longer than the
+         * transactions which save results. Default: 1 hour.
+         */
+        private long gracePeriod = 3600L * 1000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaximumSize() {
+            return maximumSize;
+        }
+
+        public void setMaximumSize(int maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+
+        public long getGracePeriod() {
+            return gracePeriod;
+        }
+
+        public void setGracePeriod(long gracePeriod) {
+            this.gracePeriod = gracePeriod;
+        }
+    }
+
+    /**
+     * Configuration of {@link IdempotentLogPurger}.
+     */
+    public static class Retention {
+        /**
+         * Purge the idempotent log in background. Default: false.
+         */
+        private boolean enabled = false;
+        /**
+         * Rows are kept at least this period (unit: millisecond). Default: 7 days.
+         */
+        private long period = 7L * 24 * 3600 * 1000;
+        /**
+         * Pause (unit: millisecond) between purging. Default: 60 seconds.
+         */
+        private long purgeInterval = 60000;
+        /**
+         * Maximum rows deleted by one batch. Default: 500.
+         */
+        private int batchSize = 500;
+        /**
+         * Pause (unit: millisecond) between batches. Default: 100ms.
+         */
+        private long batchPause = 100;
+        /**
+         * Split the log into a ring of tables by time, truncate the expired table instead of deleting rows one by one.
+         * check {@link TableRotation}. Default: false.
+         */
+        private boolean rotation = false;
+        /**
+         * Number of tables of the ring, at least 3. Default: 4.
+         */
+        private int buckets = 4;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getPeriod() {
+            return period;
+        }
+
+        public void setPeriod(long period) {
+            this.period = period;
+        }
+
+        public long getPurgeInterval() {
+            return purgeInterval;
+        }
+
+        public void setPurgeInterval(long purgeInterval) {
+            this.purgeInterval = purgeInterval;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public long getBatchPause() {
+            return batchPause;
+        }
+
+        public void setBatchPause(long batchPause) {
+            this.batchPause = batchPause;
+        }
+
+        public boolean isRotation() {
+            return rotation;
+        }
+
+        public void setRotation(boolean rotation) {
+            this.rotation = rotation;
+        }
+
+        public int getBuckets() {
+            return buckets;
+        }
+
+        public void setBuckets(int buckets) {
+            this.buckets = buckets;
+        }
+
+        /**
+         * @return rotation of the log table, null if the log table is not rotated.
+         */
+        public TableRotation tableRotation(String tableName) {
+            return enabled && rotation ? TableRotation.of(tableName, buckets, period) : null;
+        }
+    }
+
+    /**
+     * Configuration of {@link InMemoryIdempotentHandler}.
+     */
+    public static class Memory {
+        /**
+         * Number of shards, rounded up to a power of 2. Default: 2 * available processors.
+         */
+        private int shards = 2 * Runtime.getRuntime().availableProcessors();
+        /**
+         * Size (unit: byte) of a slab of the off-heap storage. Default: 4MB.
+         */
+        private int slabSize = 4 * 1024 * 1024;
+        /**
+         * Maximum memory (unit: byte) out of the Java heap used to store results. Default: 256MB.
+         */
+        private long maxMemory = 256L * 1024 * 1024;
+        /**
+         * Time to live (unit: millisecond) of results. Default: 24 hours.
+         */
+        private long ttl = 24L * 3600 * 1000;
+
+        public int getShards() {
+            return shards;
+        }
+
+        public void setShards(int shards) {
+            this.shards = shards;
+        }
+
+        public int getSlabSize() {
+            return slabSize;
+        }
+
+        public void setSlabSize(int slabSize) {
+            this.slabSize = slabSize;
+        }
+
+        public long getMaxMemory() {
+            return maxMemory;
+        }
+
+        public void setMaxMemory(long maxMemory) {
+            this.maxMemory = maxMemory;
+        }
+
+        public long getTtl() {
+            return ttl;
+        }
+
+        public void setTtl(long ttl) {
+            this.ttl = ttl;
+        }
+    }
+
+    /**
+     * Configuration of {@link RedisIdempotentHandler}.
+     */
+    public static class Redis {
+        /**
+         * Prefix of the keys and the Pub/Sub channel. Default: knots:.
+         */
+        private String keyPrefix = "knots:";
+        /**
+         * Time to live (unit: millisecond) of locks. Locks of running invocations are renewed every {@code lockTtl / 3}
+         * milli-seconds, the lock is released if it is NOT renewed in time(e.g. the instance crashed). Default: 60
+         * seconds.
+         */
+        private long lockTtl = 60000;
+        /**
+         * Time to live (unit: millisecond) of results. Default: 24 hours.
+         */
+        private long ttl = 24L * 3600 * 1000;
+
+        public String getKeyPrefix() {
+            return keyPrefix;
+        }
+
+        public void setKeyPrefix(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        public long getLockTtl() {
+            return lockTtl;
+        }
+
+        public void setLockTtl(long lockTtl) {
+            this.lockTtl = lockTtl;
+        }
+
+        public long getTtl() {
+            return ttl;
+        }
+
+        public void setTtl(long ttl) {
+            this.ttl = ttl;
+        }
+    }
+
+    /**
+     * Compression of serialized results, check {@link CompressingSerializer}.
+     */
+    public static class Compression {
+        /**
+         * Compress large results. Enable it only after all instances run a version which reads compressed results.
+         * Default: false.
+         */
+        private boolean enabled = false;
+        /**
+         * Results larger than this (unit: byte) are compressed. Default: 2048.
+         */
+        private int threshold = 2048;
+        /**
+         * Deflate compression level, 1 (fastest) to 9 (smallest). Default: 1.
+         */
+        private int level = 1;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getThreshold() {
+            return threshold;
+        }
+
+        public void setThreshold(int threshold) {
+            this.threshold = threshold;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public void setLevel(int level) {
+            this.level = level;
+        }
+    }
+
+    /**
+     * Idempotency of HTTP requests by header, check {@link IdempotencyKeyFilter}.
+     */
+    public static class Http {
+        /**
+         * Register {@link IdempotencyKeyFilter} to replay responses of repeated requests before they are dispatched to
+         * controllers. Default: false.
+         */
+        private boolean filterEnabled = false;
+        /**
+         * Get Idempotent IDs of controller methods annotated by {@link org.coderclan.knots.annotation.Idempotent} from
+         * the header of the current request, scoped by the method and the user, check {@link HeaderIdempotentIdFetcher}.
+         * Default: false.
+         */
+        private boolean headerFetcher = false;
+        /**
+         * Name of the header of the key. Default: Idempotency-Key.
+         */
+        private String header = IdempotencyKeyFilter.DEFAULT_HEADER;
+        /**
+         * HTTP methods handled by {@link IdempotencyKeyFilter}. Default: POST, PATCH.
+         */
+        private List<String> methods = new ArrayList<>(Arrays.asList("POST", "PATCH"));
+        /**
+         * Order of {@link IdempotencyKeyFilter}, it should be invoked after the authentication filters. Default: 0.
+         */
+        private int filterOrder = 0;
+
+        public boolean isFilterEnabled() {
+            return filterEnabled;
+        }
+
+        public void setFilterEnabled(boolean filterEnabled) {
+            this.filterEnabled = filterEnabled;
+        }
+
+        public boolean isHeaderFetcher() {
+            return headerFetcher;
+        }
+
+        public void setHeaderFetcher(boolean headerFetcher) {
+            this.headerFetcher = headerFetcher;
+        }
+
+        public String getHeader() {
+            return header;
+        }
+
+        public void setHeader(String header) {
+            this.header = header;
+        }
+
+        public List<String> getMethods() {
+            return methods;
+        }
+
+        public void setMethods(List<String> methods) {
+            this.methods = methods;
+        }
+
+        public int getFilterOrder() {
+            return filterOrder;
+        }
+
+        public void setFilterOrder(int filterOrder) {
+            this.filterOrder = filterOrder;
+        }
+    }
+
+    /**
+     * Invocation of asynchronous methods, check {@link AsyncIdempotentInvoker}.
+     */
+    public static class Async {
+        /**
+         * Number of threads which call the {@link IdempotentHandler}, poll previous invocations and invoke asynchronous
+         * methods. Default: 2 * available processors.
+         */
+        private int threads = 2 * Runtime.getRuntime().availableProcessors();
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public void setThreads(int threads) {
+            this.threads = threads;
+        }
+    }
+
+    /**
+     * Configuration of {@link InvocationMonitor} and {@link KnotsEndpoint}.
+     */
+    public static class Monitor {
+        /**
+         * Record Idempotent IDs in flight and the most duplicated ones. Default: true.
+         */
+        private boolean enabled = true;
+        /**
+         * Number of the most duplicated Idempotent IDs to keep. Default: 20.
+         */
+        private int topK = 20;
+        /**
+         * Counts of duplicates are halved after this period (unit: millisecond), so the hot keys are the recent ones.
+         * Default: 60 seconds.
+         */
+        private long halfLife = 60000;
+        /**
+         * Maximum number of Idempotent IDs in flight listed by the endpoint, the oldest ones. Default: 100.
+         */
+        private int listLimit = 100;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getTopK() {
+            return topK;
+        }
+
+        public void setTopK(int topK) {
+            this.topK = topK;
+        }
+
+        public long getHalfLife() {
+            return halfLife;
+        }
+
+        public void setHalfLife(long halfLife) {
+            this.halfLife = halfLife;
+        }
+
+        public int getListLimit() {
+            return listLimit;
+        }
+
+        public void setListLimit(int listLimit) {
+            this.listLimit = listLimit;
+        }
+    }
+
+    /**
+     * Configuration of {@link ShardedIdempotentHandler}. The log is sharded into {@code tables} tables in each of the
+     * DataSources. Do NOT change it before the log expires, Idempotent IDs moved to other shards are NOT found.
+     */
+    public static class Sharding {
+        /**
+         * Number of log tables in each DataSource, named {@code <table>_<n>}(e.g. sys_idempotent_log_0) if there are
+         * more than one. Default: 1.
+         */
+        private int tables = 1;
+        /**
+         * Names of the DataSource beans to spread the log tables to. Since locks are saved to the shard of the
+         * Idempotent ID, only the DataSource of the transaction manager joins the business transaction if
+         * {@link KnotsProperties#isJoinTransaction()} is enabled. Default: the DataSource of the application.
+         */
+        private List<String> dataSources = new ArrayList<>();
+
+        public int getTables() {
+            return tables;
+        }
+
+        public void setTables(int tables) {
+            this.tables = tables;
+        }
+
+        public List<String> getDataSources() {
+            return dataSources;
+        }
+
+        public void setDataSources(List<String> dataSources) {
+            this.dataSources = dataSources;
+        }
+
+        /**
+         * @return names of the log tables in each DataSource.
+         */
+        public List<String> tableNames(String tableName) {
+            if (tables <= 1) {
+                return Collections.singletonList(tableName);
+            }
+            List<String> names = new ArrayList<>(tables);
+            for (int i = 0; i < tables; i++) {
+                names.add(tableName + "_" + i);
+            }
+            return names;
+        }
+    }
 }
@@ -0,0 +1,205 @@
+package org.coderclan.knots;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leases of the locks held by invocations of this instance, used by {@link RdbmsIdempotentHandler}. Leases of the
+ * invocations which have been running for a third of {@code leaseTime} are renewed by a heartbeat. Leases are timed by
+ * the clock of the database, sampled by the heartbeat({@link SqlDialect#currentTimeMillisSql()}).
+ * <p>
+ * If the locks are NOT leased, nothing is held, leases only carry the tokens of the lock statements.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+final class LeaseRegistry {
+    private static final Logger log = LoggerFactory.getLogger(LeaseRegistry.class);
+
+    private final DataSource dataSource;
+    private final SqlDialect dialect;
+    private final long leaseTime;
+    /**
+     * Leases of the locks held by invocations of this instance, by Idempotent ID.
+     */
+    private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<>();
+    private final String leasePrefix = UUID.randomUUID().toString() + "-";
+    private final AtomicLong leaseSequence = new AtomicLong();
+    /**
+     * Clock of the database minus clock of this instance, leases are timed by {@link #databaseTime()}.
+     */
+    private volatile long clockOffset;
+    private ScheduledExecutorService heartbeat;
+
+    /**
+     * @param leaseTime time (unit: millisecond) to live of leases which are NOT renewed, 0 if the locks are NOT leased.
+     */
+    LeaseRegistry(DataSource dataSource, SqlDialect dialect, long leaseTime) {
+        this.dataSource = dataSource;
+        this.dialect = dialect;
+        this.leaseTime = leaseTime;
+    }
+
+    boolean isLeasing() {
+        return leaseTime > 0;
+    }
+
+    /**
+     * Sample the clock of the database and start the heartbeat, if the locks are leased.
+     */
+    void start() {
+        if (!isLeasing()) {
+            return;
+        }
+        syncClock();
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "knots-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1L, leaseTime / 3);
+        heartbeat.scheduleWithFixedDelay(this::renew, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+        }
+    }
+
+    /**
+     * @return a new lease, its owner is also the token which identifies the rows inserted by one statement, even if the
+     * locks are NOT leased.
+     */
+    Lease newLease(LogTable table) {
+        return new Lease(leasePrefix + leaseSequence.incrementAndGet(), table, databaseTime());
+    }
+
+    /**
+     * Hold the lease of the lock until it is released, renew it if it is running for a while.
+     */
+    void hold(String idempotentId, Lease lease) {
+        if (isLeasing() && lease != null) {
+            leases.put(idempotentId, lease);
+        }
+    }
+
+    /**
+     * @return the lease held for the Idempotent ID, null if there is none.
+     */
+    Lease release(String idempotentId) {
+        return leases.remove(idempotentId);
+    }
+
+    /**
+     * @return owner of the lease of the row if it has expired, null if the lease is alive(or NOT leased).
+     */
+    String expiredOwner(ResultSet rs) throws SQLException {
+        if (!isLeasing()) {
+            return null;
+        }
+        String owner = rs.getString("lease_owner");
+        long expire = rs.getLong("lease_expire");
+        return owner != null && !rs.wasNull() && expire < databaseTime() ? owner : null;
+    }
+
+    /**
+     * @return current time of the database(estimated).
+     */
+    long databaseTime() {
+        return System.currentTimeMillis() + clockOffset;
+    }
+
+    /**
+     * Sample the clock of the database, by the middle of the round trip.
+     */
+    private void syncClock() {
+        String sql = dialect.currentTimeMillisSql();
+        if (sql == null) {
+            log.warn("Clock of the database is NOT supported by {}, leases are timed by the clock of this instance.", dialect);
+            return;
+        }
+        try (
+                Connection conn = dataSource.getConnection();
+                Statement statement = conn.createStatement()
+        ) {
+            long start = System.currentTimeMillis();
+            try (ResultSet rs = statement.executeQuery(sql)) {
+                rs.next();
+                clockOffset = rs.getLong(1) - (start + System.currentTimeMillis()) / 2;
+            }
+            if (!conn.getAutoCommit()) {
+                conn.commit();
+            }
+        } catch (Exception e) {
+            log.error("Failed to read the clock of the database, offset {}ms is kept.", clockOffset, e);
+        }
+    }
+
+    /**
+     * Renew leases of the invocations which have been running for a while, short invocations are finished before
+     * renewed.
+     */
+    private void renew() {
+        syncClock();
+        long now = databaseTime();
+        Map<LogTable, List<Map.Entry<String, Lease>>> running = new HashMap<>();
+        for (Map.Entry<String, Lease> entry : leases.entrySet()) {
+            if (now - entry.getValue().lockedAt >= leaseTime / 3) {
+                running.computeIfAbsent(entry.getValue().table, k -> new ArrayList<>()).add(entry);
+            }
+        }
+        for (Map.Entry<LogTable, List<Map.Entry<String, Lease>>> group : running.entrySet()) {
+            LogTable table = group.getKey();
+            try (
+                    Connection conn = dataSource.getConnection();
+                    PreparedStatement ps = conn.prepareStatement(table.renewSql)
+            ) {
+                for (Map.Entry<String, Lease> entry : group.getValue()) {
+                    ps.setLong(1, now + leaseTime); // lease_expire
+                    table.setKey(ps, 2, entry.getKey());
+                    ps.setString(3, entry.getValue().owner); // lease_owner
+                    ps.addBatch();
+                }
+                int[] counts = ps.executeBatch();
+                if (!conn.getAutoCommit()) {
+                    conn.commit();
+                }
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] == 0 && leases.get(group.getValue().get(i).getKey()) == group.getValue().get(i).getValue()) {
+                        log.error("Lease has been taken over, leaseTime may be too short. idempotentId={}", group.getValue().get(i).getKey());
+                    }
+                }
+            } catch (Exception e) {
+                log.error("Failed to renew leases of {}.", table.name, e);
+            }
+        }
+    }
+
+    /**
+     * Lease of a lock held by an invocation of this instance.
+     */
+    static final class Lease {
+        final String owner;
+        final LogTable table;
+        final long lockedAt;
+
+        private Lease(String owner, LogTable table, long lockedAt) {
+            this.owner = owner;
+            this.table = table;
+            this.lockedAt = lockedAt;
+        }
+    }
+}
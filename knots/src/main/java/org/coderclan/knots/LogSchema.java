@@ -0,0 +1,153 @@
+package org.coderclan.knots;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.*;
+
+/**
+ * Tables of the idempotent log used by {@link RdbmsIdempotentHandler}: created when starting, upgraded by the columns
+ * and indexes which tables of previous versions do NOT have, and checked by {@link ShardedIdempotentHandler}.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+final class LogSchema {
+    private static final Logger log = LoggerFactory.getLogger(LogSchema.class);
+
+    private final DataSource dataSource;
+    private final LogTable[] tables;
+    /**
+     * Store of shared results, null if results are NOT shared.
+     */
+    private final SharedResultStore resultStore;
+
+    LogSchema(DataSource dataSource, LogTable[] tables, SharedResultStore resultStore) {
+        this.dataSource = dataSource;
+        this.tables = tables;
+        this.resultStore = resultStore;
+    }
+
+    /**
+     * Create the tables which do NOT exist, add the missing columns and indexes to the existing ones.
+     *
+     * @throws IllegalStateException if the missing columns can NOT be added.
+     */
+    void create() {
+        if (resultStore != null) {
+            log.info("Shared result table name: {}", resultStore.getTable());
+            try (
+                    Connection conn = dataSource.getConnection();
+                    Statement statement = conn.createStatement()
+            ) {
+                statement.execute(tables[0].dialect.createResultTableSql(resultStore.getTable()));
+            } catch (Exception e) {
+                log.error("", e);
+            }
+        }
+        for (LogTable table : tables) {
+            log.info("Idempotent log table name: {}", table.name);
+            try (
+                    Connection conn = dataSource.getConnection();
+                    Statement statement = conn.createStatement()
+            ) {
+
+                statement.execute(table.dialect.createTableSql(table.name, table.hashedKeys));
+
+                // tables created by previous versions do NOT have the columns, statements of the handler fail without them.
+                addColumns(conn, statement, table);
+
+                // unreferenced shared results are collected by IdempotentLogPurger
+                if (table.sharedResults && !hasIndex(conn, table.name, "result_hash")) {
+                    statement.execute("CREATE INDEX " + table.name + "_ix_rh ON " + table.name + " (result_hash)");
+                }
+
+                // rows are purged by create_time, check IdempotentLogPurger
+                if (!hasIndex(conn, table.name, "create_time")) {
+                    statement.execute("CREATE INDEX " + table.name + "_ix_ct ON " + table.name + " (create_time)");
+                }
+            } catch (IllegalStateException e) {
+                throw e;
+            } catch (Exception e) {
+                log.error("", e);
+            }
+        }
+    }
+
+    /**
+     * Add the lease columns(lease_owner is the token of lock statements, lease_expire if leased) and the result_hash
+     * column(if results are shared) to a table created by a previous version.
+     *
+     * @throws IllegalStateException if they can NOT be added.
+     */
+    private static void addColumns(Connection conn, Statement statement, LogTable table) {
+        try {
+            if (!hasColumn(conn, table.name, "lease_owner")) {
+                statement.execute("ALTER TABLE " + table.name + " ADD lease_owner varchar(64)");
+            }
+            if (table.leasing && !hasColumn(conn, table.name, "lease_expire")) {
+                statement.execute("ALTER TABLE " + table.name + " ADD lease_expire bigint");
+            }
+            if (table.sharedResults && !hasColumn(conn, table.name, "result_hash")) {
+                statement.execute("ALTER TABLE " + table.name + " ADD result_hash " + table.dialect.hashType());
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to add columns to idempotent log table " + table.name
+                    + ", add them manually(check SqlDialect.createTableSql()).", e);
+        }
+    }
+
+    /**
+     * Check that all the tables exist and are accessible.
+     *
+     * @throws IllegalStateException if any of them is NOT accessible.
+     */
+    void check() {
+        for (LogTable table : tables) {
+            check(table.name, "select " + table.columns + ",create_time from " + table.name + " where 1=0");
+        }
+        if (resultStore != null) {
+            check(resultStore.getTable(), "select result_hash,method_result,last_used from " + resultStore.getTable() + " where 1=0");
+        }
+    }
+
+    private void check(String name, String probe) {
+        try (
+                Connection conn = dataSource.getConnection();
+                Statement statement = conn.createStatement();
+                ResultSet ignored = statement.executeQuery(probe)
+        ) {
+            log.debug("Idempotent log table {} is accessible.", name);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Idempotent log table " + name + " is NOT accessible.", e);
+        }
+    }
+
+    /**
+     * @return true if the table has the column.
+     */
+    static boolean hasColumn(Connection conn, String table, String column) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        String name = meta.storesUpperCaseIdentifiers() ? table.toUpperCase() : meta.storesLowerCaseIdentifiers() ? table.toLowerCase() : table;
+        String columnName = meta.storesUpperCaseIdentifiers() ? column.toUpperCase() : meta.storesLowerCaseIdentifiers() ? column.toLowerCase() : column;
+        try (ResultSet rs = meta.getColumns(conn.getCatalog(), null, name, columnName)) {
+            return rs.next();
+        }
+    }
+
+    /**
+     * @return true if there is an index whose first column is the column.
+     */
+    static boolean hasIndex(Connection conn, String table, String column) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        String name = meta.storesUpperCaseIdentifiers() ? table.toUpperCase() : meta.storesLowerCaseIdentifiers() ? table.toLowerCase() : table;
+        try (ResultSet rs = meta.getIndexInfo(conn.getCatalog(), null, name, false, true)) {
+            while (rs.next()) {
+                if (rs.getShort("ORDINAL_POSITION") == 1 && column.equalsIgnoreCase(rs.getString("COLUMN_NAME"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
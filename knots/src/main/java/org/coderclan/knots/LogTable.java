@@ -0,0 +1,173 @@
+package org.coderclan.knots;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SQL of one physical table of the idempotent log used by {@link RdbmsIdempotentHandler}, built from the
+ * {@link SqlDialect} and the layout of the table(hashed keys, shared results, leases), and the binding of its keys and
+ * locks.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+final class LogTable {
+    final String name;
+    final SqlDialect dialect;
+    final boolean hashedKeys;
+    final boolean sharedResults;
+    final boolean leasing;
+    final long leaseTime;
+    final boolean joinTransaction;
+    /**
+     * Columns read by the queries of the handler.
+     */
+    final String columns;
+    final String selectSql;
+    final String updateSql;
+    final String resetSql;
+    final String takeOverSql;
+    final String renewSql;
+    final String releaseSql;
+    /**
+     * SQL of the dialect to lock the Idempotent ID or fetch the existing row by one statement, null if NOT supported.
+     */
+    final String lockOrFetchSql;
+    /**
+     * Serializes the lock statements of H2 in this JVM, null for other databases, check {@link SqlDialect#H2}.
+     */
+    final Lock statementLock;
+    private final String key;
+    private final String insertIfAbsentSql;
+
+    /**
+     * @param leaseTime       time (unit: millisecond) to live of leases, 0 if the locks are NOT leased.
+     * @param joinTransaction true if the statements are executed by the connection of the business transaction.
+     */
+    LogTable(String name, SqlDialect dialect, boolean hashedKeys, boolean sharedResults, long leaseTime, boolean joinTransaction) {
+        this.name = name;
+        this.dialect = dialect;
+        this.hashedKeys = hashedKeys;
+        this.sharedResults = sharedResults;
+        this.leasing = leaseTime > 0;
+        this.leaseTime = leaseTime;
+        this.joinTransaction = joinTransaction;
+        this.columns = (hashedKeys ? "idempotent_key," : "") + "idempotent_id,method_result,success"
+                + (sharedResults ? ",result_hash" : "") + ",lease_owner" + (leasing ? ",lease_expire" : "");
+        // Within a transaction, lock the row to wait for the transaction which is inserting or updating it,
+        // and to read the latest committed row even if the isolation level is REPEATABLE READ.
+        this.key = SqlDialect.keyColumn(hashedKeys);
+        this.selectSql = "select " + columns + " from " + name + " where " + key + "=? " + (joinTransaction ? "for update" : "");
+        // results of invocations whose leases have been taken over are NOT saved.
+        this.updateSql = "update  " + name + "  set method_result=?, " + (sharedResults ? "result_hash=?, " : "") + "success=? where " + key + "=? " + (leasing ? "and lease_owner=?" : "");
+        this.resetSql = "update " + name + " set method_result=null, " + (sharedResults ? "result_hash=null, " : "") + "success=0" + (leasing ? ", lease_owner=?, lease_expire=?" : "") + " where " + key + "=? and success=1";
+        this.takeOverSql = "update " + name + " set lease_owner=?, lease_expire=? where " + key + "=? and lease_owner=? and lease_expire<? and success=0 and method_result is null"
+                + (sharedResults ? " and result_hash is null" : "");
+        this.renewSql = "update " + name + " set lease_expire=? where " + key + "=? and lease_owner=?";
+        this.releaseSql = "delete from " + name + " where " + key + "=? and success=0 and method_result is null" + (leasing ? " and lease_owner=?" : "");
+        this.insertIfAbsentSql = dialect.insertIfAbsentSql(name, hashedKeys, leasing, 1);
+        this.lockOrFetchSql = dialect.lockOrFetchSql(name, hashedKeys, leasing, sharedResults);
+        // locks of joined transactions are NOT committed by the statements, waiting for them in the JVM lock would
+        // block the other statements of the table.
+        this.statementLock = dialect == SqlDialect.H2 && !joinTransaction ? new ReentrantLock() : null;
+    }
+
+    /**
+     * @return SQL of the dialect to insert locks of {@code count} Idempotent IDs which do NOT exist, null if NOT
+     * supported.
+     */
+    String insertIfAbsentSql(int count) {
+        return count == 1 ? insertIfAbsentSql : dialect.insertIfAbsentSql(name, hashedKeys, leasing, count);
+    }
+
+    /**
+     * @return SQL to look up {@code count} Idempotent IDs.
+     */
+    String selectInSql(int count) {
+        return in(new StringBuilder("select ").append(columns).append(" from ").append(name), count)
+                .append(joinTransaction ? " for update" : "").toString();
+    }
+
+    /**
+     * @return SQL to check whether rows of {@code count} Idempotent IDs created after a time exist, without locking
+     * them.
+     */
+    String existsInSql(int count) {
+        return in(new StringBuilder("select idempotent_id from ").append(name), count).append(" and create_time>?").toString();
+    }
+
+    /**
+     * @return SQL to check whether {@code count} Idempotent IDs are finished, without fetching the results.
+     */
+    String pollInSql(int count) {
+        StringBuilder sql = new StringBuilder("select idempotent_id, success, case when method_result is null")
+                .append(sharedResults ? " and result_hash is null" : "").append(" then 0 else 1 end as finished")
+                .append(leasing ? ", lease_owner, lease_expire" : "").append(" from ").append(name);
+        return in(sql, count).toString();
+    }
+
+    /**
+     * @return SQL to insert locks of {@code count} Idempotent IDs.
+     */
+    String insertSql(int count) {
+        String columns = SqlDialect.lockColumns(hashedKeys, leasing);
+        StringBuilder row = new StringBuilder("(?");
+        for (int i = 1; i < columns.split(",").length; i++) {
+            row.append(",?");
+        }
+        row.append(")");
+        StringBuilder sql = new StringBuilder("insert into ").append(name).append(" (").append(columns).append(") values ");
+        for (int i = 0; i < count; i++) {
+            sql.append(i == 0 ? "" : ",").append(row);
+        }
+        return sql.toString();
+    }
+
+    private StringBuilder in(StringBuilder sql, int count) {
+        sql.append(" where ").append(key).append(" in (");
+        for (int i = 0; i < count; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        return sql.append(")");
+    }
+
+    /**
+     * Bind the key of the Idempotent ID, its hash if keys are hashed.
+     */
+    void setKey(PreparedStatement ps, int index, String idempotentId) throws SQLException {
+        if (hashedKeys) {
+            ps.setBytes(index, RdbmsIdempotentHandler.hash(idempotentId)); // idempotent_key
+        } else {
+            ps.setString(index, idempotentId); // idempotent_id
+        }
+    }
+
+    /**
+     * Bind the columns of a lock, check {@link SqlDialect#lockColumns(boolean, boolean)}.
+     *
+     * @param lease lease of the lock, its owner is written even if the lock is NOT leased.
+     * @return index of the next parameter.
+     */
+    int setLock(PreparedStatement ps, int index, String idempotentId, LeaseRegistry.Lease lease) throws SQLException {
+        setKey(ps, index++, idempotentId);
+        if (hashedKeys) {
+            ps.setString(index++, idempotentId); // idempotent_id
+        }
+        ps.setString(index++, lease.owner); // lease_owner
+        if (leasing) {
+            ps.setLong(index++, lease.lockedAt + leaseTime); // lease_expire
+        }
+        return index;
+    }
+
+    /**
+     * If keys are hashed, make sure the row is NOT of another Idempotent ID whose key is the same.
+     */
+    void verify(ResultSet rs, String idempotentId) throws SQLException {
+        if (hashedKeys && !idempotentId.equals(rs.getString("idempotent_id"))) {
+            throw new IllegalStateException("Hash collision of Idempotent IDs " + idempotentId + " and " + rs.getString("idempotent_id"));
+        }
+    }
+}
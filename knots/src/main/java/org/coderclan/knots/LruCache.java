@@ -0,0 +1,116 @@
+package org.coderclan.knots;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size and TTL bounded cache with LRU (Least Recently Used) eviction. Entries are spread over several independently
+ * locked segments to reduce lock contention, each segment evicts its least recently used entry when it is full.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class LruCache<K, V> {
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment<K, V>[] segments;
+    private final long ttl;
+
+    /**
+     * @param maximumSize maximum number of entries.
+     * @param ttl         time to live (unit: millisecond) of entries, entries never expire if it is not positive.
+     */
+    @SuppressWarnings("unchecked")
+    public LruCache(int maximumSize, long ttl) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize should be positive, maximumSize=" + maximumSize);
+        }
+        int count = 1;
+        while (count < MAX_SEGMENTS && count * 2 <= maximumSize) {
+            count *= 2;
+        }
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<>((maximumSize + count - 1) / count);
+        }
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return the cached value, null if not cached or expired.
+     */
+    public V get(K key) {
+        return segment(key).get(key);
+    }
+
+    public void put(K key, V value) {
+        segment(key).put(key, value, ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE);
+    }
+
+    public void remove(K key) {
+        segment(key).remove(key);
+    }
+
+    /**
+     * @return number of cached entries, may include expired entries which are not evicted yet.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private Segment<K, V> segment(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expireAt;
+
+        private Entry(V value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    private static class Segment<K, V> {
+        private final LinkedHashMap<K, Entry<V>> map;
+
+        private Segment(int capacity) {
+            this.map = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        private synchronized V get(K key) {
+            Entry<V> entry = map.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expireAt < System.currentTimeMillis()) {
+                map.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+
+        private synchronized void put(K key, V value, long expireAt) {
+            map.put(key, new Entry<>(value, expireAt));
+        }
+
+        private synchronized void remove(K key) {
+            map.remove(key);
+        }
+
+        private synchronized int size() {
+            return map.size();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.coderclan.knots;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link IdempotenceMetrics} which records Micrometer meters, tagged by {@code method}
+ * ({@code <simple class name>.<method name>}, or {@code none} if the method is unknown, e.g. HTTP requests):
+ * <ul>
+ *     <li>{@code knots.lookups}: timer of looking up (and waiting for) the previous invocation, tagged by {@code outcome}
+ *     (executed, replayed, timeout). Counts of the outcomes are the counts of the timer.</li>
+ *     <li>{@code knots.waits}: invocations which waited for the previous invocation.</li>
+ *     <li>{@code knots.retries}: polls of the previous invocation result after pauses.</li>
+ *     <li>{@code knots.reexecutions}: executions of Idempotent IDs whose previous invocation failed.</li>
+ *     <li>{@code knots.saves}: timer of saving results.</li>
+ *     <li>{@code knots.payload.size}: size of serialized results (unit: byte).</li>
+ * </ul>
+ * Meters of a method are registered on its first invocation and cached.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class MicrometerIdempotenceMetrics implements IdempotenceMetrics {
+    private static final String UNKNOWN = "none";
+
+    private final MeterRegistry registry;
+    private final ConcurrentHashMap<Method, Meters> meters = new ConcurrentHashMap<>();
+    private volatile Meters unknown;
+
+    public MicrometerIdempotenceMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void recordLookup(Method method, Outcome outcome, long nanos) {
+        meters(method).lookups[outcome.ordinal()].record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordWait(Method method) {
+        meters(method).waits.increment();
+    }
+
+    @Override
+    public void recordRetry(Method method) {
+        meters(method).retries.increment();
+    }
+
+    @Override
+    public void recordReExecution(Method method) {
+        meters(method).reExecutions.increment();
+    }
+
+    @Override
+    public void recordSave(Method method, long nanos) {
+        meters(method).saves.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordPayloadSize(Method method, int bytes) {
+        meters(method).payloadSize.record(bytes);
+    }
+
+    private Meters meters(Method method) {
+        if (method == null) {
+            Meters m = unknown;
+            if (m == null) {
+                unknown = m = new Meters(UNKNOWN);
+            }
+            return m;
+        }
+        Meters m = meters.get(method);
+        if (m == null) {
+            m = meters.computeIfAbsent(method, k -> new Meters(k.getDeclaringClass().getSimpleName() + "." + k.getName()));
+        }
+        return m;
+    }
+
+    /**
+     * Meters of one method.
+     */
+    private class Meters {
+        private final Timer[] lookups = new Timer[Outcome.values().length];
+        private final Counter waits;
+        private final Counter retries;
+        private final Counter reExecutions;
+        private final Timer saves;
+        private final DistributionSummary payloadSize;
+
+        private Meters(String method) {
+            for (Outcome outcome : Outcome.values()) {
+                lookups[outcome.ordinal()] = Timer.builder("knots.lookups")
+                        .description("Looking up and waiting for the previous invocation")
+                        .tag("method", method)
+                        .tag("outcome", outcome.name().toLowerCase(Locale.ROOT))
+                        .publishPercentileHistogram()
+                        .register(registry);
+            }
+            waits = Counter.builder("knots.waits")
+                    .description("Invocations which waited for the previous invocation")
+                    .tag("method", method)
+                    .register(registry);
+            retries = Counter.builder("knots.retries")
+                    .description("Polls of the previous invocation result after pauses")
+                    .tag("method", method)
+                    .register(registry);
+            reExecutions = Counter.builder("knots.reexecutions")
+                    .description("Executions of Idempotent IDs whose previous invocation failed")
+                    .tag("method", method)
+                    .register(registry);
+            saves = Timer.builder("knots.saves")
+                    .description("Saving results")
+                    .tag("method", method)
+                    .register(registry);
+            payloadSize = DistributionSummary.builder("knots.payload.size")
+                    .description("Size of serialized results")
+                    .baseUnit("bytes")
+                    .tag("method", method)
+                    .register(registry);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+
+import java.util.*;
+
+/**
+ * Decorator of {@link IdempotentHandler}, which keeps recently completed successful results in memory.
+ * Replaying a cached result does NOT touch the decorated {@link IdempotentHandler} (and the database) at all.
+ * <p>
+ * Only results which have been stored by the decorated {@link IdempotentHandler} (and committed), or have been read from
+ * it, are cached. A successful result of an Idempotent ID never changes, so a cached result never becomes stale.
+ * Cached results are shared by all replays, return values of idempotent methods should not be modified by callers.
+ * <p>
+ * Batches are passed to the decorated handler at once if it is a {@link BatchIdempotentHandler}, item by item otherwise.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class NearCacheIdempotentHandler implements BatchIdempotentHandler {
+    private final IdempotentHandler delegate;
+    private final LruCache<String, Object> cache;
+
+    /**
+     * @param delegate    the decorated {@link IdempotentHandler}
+     * @param maximumSize maximum number of cached results.
+     * @param ttl         time to live (unit: millisecond) of cached results.
+     */
+    public NearCacheIdempotentHandler(IdempotentHandler delegate, int maximumSize, long ttl) {
+        this.delegate = delegate;
+        this.cache = new LruCache<>(maximumSize, ttl);
+    }
+
+    @Override
+    public Object lockOrReturnPreviousResult(String idempotentId, ProceedingJoinPoint joinPoint) throws Exception {
+        Object result = cache.get(idempotentId);
+        if (Objects.nonNull(result)) {
+            return result;
+        }
+
+        result = delegate.lockOrReturnPreviousResult(idempotentId, joinPoint);
+        if (Objects.nonNull(result)) {
+            cache.put(idempotentId, result);
+        }
+        return result;
+    }
+
+    @Override
+    public Object tryLockOrReturnPreviousResult(String idempotentId, ProceedingJoinPoint joinPoint) throws Exception {
+        Object result = cache.get(idempotentId);
+        if (Objects.nonNull(result)) {
+            return result;
+        }
+
+        result = delegate.tryLockOrReturnPreviousResult(idempotentId, joinPoint);
+        if (Objects.nonNull(result) && result != IN_PROGRESS) {
+            cache.put(idempotentId, result);
+        }
+        return result;
+    }
+
+    @Override
+    public void saveResult(String idempotentId, Object result, boolean success, ProceedingJoinPoint joinPoint) throws Exception {
+        trySaveResult(idempotentId, result, success, joinPoint);
+    }
+
+    @Override
+    public boolean trySaveResult(String idempotentId, Object result, boolean success, ProceedingJoinPoint joinPoint) throws Exception {
+        boolean stored = delegate.trySaveResult(idempotentId, result, success, joinPoint);
+        if (stored && success && Objects.nonNull(result)) {
+            cacheAfterCommit(Collections.singletonMap(idempotentId, result));
+        }
+        return stored;
+    }
+
+    @Override
+    public Map<String, Object> tryLockOrReturnPreviousResults(Collection<String> idempotentIds, ProceedingJoinPoint joinPoint) throws Exception {
+        Map<String, Object> previousResults = new HashMap<>(idempotentIds.size() * 2);
+        List<String> missed = new ArrayList<>();
+        for (String idempotentId : idempotentIds) {
+            Object result = cache.get(idempotentId);
+            if (Objects.nonNull(result)) {
+                previousResults.put(idempotentId, result);
+            } else {
+                missed.add(idempotentId);
+            }
+        }
+        if (missed.isEmpty()) {
+            return previousResults;
+        }
+
+        Map<String, Object> results;
+        if (delegate instanceof BatchIdempotentHandler) {
+            results = ((BatchIdempotentHandler) delegate).tryLockOrReturnPreviousResults(missed, joinPoint);
+        } else {
+            results = new HashMap<>(missed.size() * 2);
+            for (String idempotentId : missed) {
+                results.put(idempotentId, delegate.tryLockOrReturnPreviousResult(idempotentId, joinPoint));
+            }
+        }
+        for (Map.Entry<String, Object> entry : results.entrySet()) {
+            if (Objects.nonNull(entry.getValue()) && entry.getValue() != IN_PROGRESS) {
+                cache.put(entry.getKey(), entry.getValue());
+            }
+        }
+        previousResults.putAll(results);
+        return previousResults;
+    }
+
+    @Override
+    public void saveResults(Map<String, Object> results, Set<String> failed, ProceedingJoinPoint joinPoint) throws Exception {
+        trySaveResults(results, failed, joinPoint);
+    }
+
+    @Override
+    public Set<String> trySaveResults(Map<String, Object> results, Set<String> failed, ProceedingJoinPoint joinPoint) throws Exception {
+        Set<String> stored;
+        if (delegate instanceof BatchIdempotentHandler) {
+            stored = ((BatchIdempotentHandler) delegate).trySaveResults(results, failed, joinPoint);
+        } else {
+            stored = new HashSet<>(results.size() * 2);
+            for (Map.Entry<String, Object> entry : results.entrySet()) {
+                if (delegate.trySaveResult(entry.getKey(), entry.getValue(), !failed.contains(entry.getKey()), joinPoint)) {
+                    stored.add(entry.getKey());
+                }
+            }
+        }
+
+        Map<String, Object> cached = new HashMap<>(stored.size() * 2);
+        for (String idempotentId : stored) {
+            Object result = results.get(idempotentId);
+            if (!failed.contains(idempotentId) && Objects.nonNull(result)) {
+                cached.put(idempotentId, result);
+            }
+        }
+        if (!cached.isEmpty()) {
+            cacheAfterCommit(cached);
+        }
+        return stored;
+    }
+
+    /**
+     * The results may be saved within the business transaction, cache them after committed.
+     */
+    private void cacheAfterCommit(Map<String, Object> results) {
+        TransactionHooks.afterCompletion(committed -> {
+            if (committed) {
+                for (Map.Entry<String, Object> entry : results.entrySet()) {
+                    cache.put(entry.getKey(), entry.getValue());
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the decorated {@link IdempotentHandler}
+     */
+    public IdempotentHandler getDelegate() {
+        return delegate;
+    }
+}
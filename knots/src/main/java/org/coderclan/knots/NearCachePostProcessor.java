@@ -0,0 +1,27 @@
+package org.coderclan.knots;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+/**
+ * Decorate {@link IdempotentHandler} beans by {@link NearCacheIdempotentHandler}.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class NearCachePostProcessor implements BeanPostProcessor {
+    private final ObjectProvider<KnotsProperties> properties;
+
+    public NearCachePostProcessor(ObjectProvider<KnotsProperties> properties) {
+        this.properties = properties;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        if (bean instanceof IdempotentHandler && !(bean instanceof NearCacheIdempotentHandler)) {
+            KnotsProperties.NearCache nearCache = properties.getObject().getNearCache();
+            return new NearCacheIdempotentHandler((IdempotentHandler) bean, nearCache.getMaximumSize(), nearCache.getTtl());
+        }
+        return bean;
+    }
+}
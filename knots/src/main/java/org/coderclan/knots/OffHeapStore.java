@@ -0,0 +1,172 @@
+package org.coderclan.knots;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Stores byte arrays out of the Java heap, in slabs of direct {@link ByteBuffer}s.
+ * <p>
+ * Byte arrays are appended to the current slab. A slab is recycled when all byte arrays in it are released, byte arrays
+ * stored at about the same time usually expire at about the same time, so slabs are recycled soon. Slabs which hold
+ * byte arrays which are NOT released are never evicted, if all slabs are used, new byte arrays are NOT stored.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class OffHeapStore {
+    private final int slabSize;
+    private final Slab[] slabs;
+    private final ArrayDeque<Slab> free = new ArrayDeque<>();
+    /**
+     * Slabs which are in use, the oldest first.
+     */
+    private final ArrayDeque<Slab> used = new ArrayDeque<>();
+    private Slab current;
+
+    /**
+     * @param slabSize size (unit: byte) of a slab.
+     * @param maxSlabs maximum number of slabs.
+     */
+    public OffHeapStore(int slabSize, int maxSlabs) {
+        if (slabSize <= 0 || maxSlabs <= 0) {
+            throw new IllegalArgumentException("slabSize and maxSlabs should be positive. slabSize=" + slabSize + ", maxSlabs=" + maxSlabs);
+        }
+        this.slabSize = slabSize;
+        this.slabs = new Slab[maxSlabs];
+    }
+
+    /**
+     * Store the bytes.
+     *
+     * @return reference of the stored bytes, null if the bytes is larger than a slab, or no slab is available.
+     */
+    public Ref store(byte[] bytes) {
+        if (bytes.length > slabSize) {
+            return null;
+        }
+        Slab slab;
+        int offset;
+        long generation;
+        synchronized (this) {
+            if (current == null || current.position + bytes.length > slabSize) {
+                Slab next = nextSlab();
+                if (next == null) {
+                    return null;
+                }
+                current = next;
+            }
+            slab = current;
+            offset = slab.position;
+            generation = slab.generation;
+            slab.position += bytes.length;
+            slab.live++;
+        }
+        // the region is reserved for the bytes(the slab is NOT recycled until they are released), copy without locking.
+        ByteBuffer buffer = slab.buffer.duplicate();
+        buffer.position(offset);
+        buffer.put(bytes);
+        return new Ref(slab, generation, offset, bytes.length);
+    }
+
+    /**
+     * @return the stored bytes, null if the bytes has been released.
+     */
+    public byte[] load(Ref ref) {
+        byte[] bytes = new byte[ref.length];
+        ByteBuffer buffer = ref.slab.buffer.duplicate();
+        buffer.position(ref.offset);
+        buffer.get(bytes);
+        // the slab may be recycled while copying, check it after copying.
+        synchronized (this) {
+            return ref.slab.generation == ref.generation ? bytes : null;
+        }
+    }
+
+    /**
+     * Release the stored bytes, the space is reused after all bytes of the slab are released.
+     */
+    public synchronized void release(Ref ref) {
+        Slab slab = ref.slab;
+        if (slab.generation != ref.generation) {
+            // evicted already
+            return;
+        }
+        slab.live--;
+        if (slab.live == 0 && slab != current) {
+            used.remove(slab);
+            recycle(slab);
+            free.push(slab);
+        }
+    }
+
+    /**
+     * @return bytes allocated out of the Java heap.
+     */
+    public synchronized long getAllocated() {
+        long count = 0;
+        for (Slab slab : slabs) {
+            if (slab != null) {
+                count++;
+            }
+        }
+        return count * slabSize;
+    }
+
+    private Slab nextSlab() {
+        if (current != null) {
+            if (current.live == 0) {
+                recycle(current);
+                return current;
+            }
+            used.addLast(current);
+        }
+        if (!free.isEmpty()) {
+            return free.pop();
+        }
+        for (int i = 0; i < slabs.length; i++) {
+            if (slabs[i] == null) {
+                slabs[i] = new Slab(ByteBuffer.allocateDirect(slabSize));
+                return slabs[i];
+            }
+        }
+        // all slabs hold byte arrays which are NOT released.
+        return null;
+    }
+
+    private void recycle(Slab slab) {
+        slab.generation++;
+        slab.position = 0;
+        slab.live = 0;
+    }
+
+    private static class Slab {
+        private final ByteBuffer buffer;
+        private long generation;
+        private int position;
+        private int live;
+
+        private Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Reference of bytes stored in a {@link OffHeapStore}.
+     */
+    public static class Ref {
+        private final Slab slab;
+        private final long generation;
+        private final int offset;
+        private final int length;
+
+        private Ref(Slab slab, long generation, int offset, int length) {
+            this.slab = slab;
+            this.generation = generation;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.coderclan.knots;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * Reusable buffer of serialized results, its content can be read without copying.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+final class PayloadBuffer extends ByteArrayOutputStream {
+    /**
+     * Buffers larger than this are NOT kept for reuse.
+     */
+    private static final int MAX_POOLED = 64 * 1024;
+
+    PayloadBuffer() {
+        super(256);
+    }
+
+    /**
+     * @return stream of the content, the buffer should NOT be modified until the stream is consumed.
+     */
+    InputStream toInputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+
+    /**
+     * Update the digest with the content, without copying.
+     */
+    void update(MessageDigest digest) {
+        digest.update(buf, 0, count);
+    }
+
+    /**
+     * Clear the content for reuse.
+     */
+    void release() {
+        reset();
+        if (buf.length > MAX_POOLED) {
+            buf = new byte[256];
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.Signature;
+import org.aspectj.lang.reflect.SourceLocation;
+import org.aspectj.runtime.internal.AroundClosure;
+
+/**
+ * The intercepted invocation with its {@link InvocationPlan}, passed to {@link IdempotentHandler}s by
+ * {@link IdempotentAspect}, so they take the method and the result type from the plan(check {@link JoinPoints})
+ * instead of resolving them at each invocation.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+final class PlannedJoinPoint implements ProceedingJoinPoint {
+    private final ProceedingJoinPoint delegate;
+    private final InvocationPlan plan;
+
+    private PlannedJoinPoint(ProceedingJoinPoint delegate, InvocationPlan plan) {
+        this.delegate = delegate;
+        this.plan = plan;
+    }
+
+    static ProceedingJoinPoint of(ProceedingJoinPoint joinPoint, InvocationPlan plan) {
+        return joinPoint instanceof PlannedJoinPoint ? joinPoint : new PlannedJoinPoint(joinPoint, plan);
+    }
+
+    InvocationPlan getPlan() {
+        return plan;
+    }
+
+    @Override
+    public void set$AroundClosure(AroundClosure arc) {
+        delegate.set$AroundClosure(arc);
+    }
+
+    @Override
+    public void stack$AroundClosure(AroundClosure arc) {
+        delegate.stack$AroundClosure(arc);
+    }
+
+    @Override
+    public Object proceed() throws Throwable {
+        return delegate.proceed();
+    }
+
+    @Override
+    public Object proceed(Object[] args) throws Throwable {
+        return delegate.proceed(args);
+    }
+
+    @Override
+    public String toShortString() {
+        return delegate.toShortString();
+    }
+
+    @Override
+    public String toLongString() {
+        return delegate.toLongString();
+    }
+
+    @Override
+    public Object getThis() {
+        return delegate.getThis();
+    }
+
+    @Override
+    public Object getTarget() {
+        return delegate.getTarget();
+    }
+
+    @Override
+    public Object[] getArgs() {
+        return delegate.getArgs();
+    }
+
+    @Override
+    public Signature getSignature() {
+        return delegate.getSignature();
+    }
+
+    @Override
+    public SourceLocation getSourceLocation() {
+        return delegate.getSourceLocation();
+    }
+
+    @Override
+    public String getKind() {
+        return delegate.getKind();
+    }
+
+    @Override
+    public StaticPart getStaticPart() {
+        return delegate.getStaticPart();
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+}
@@ -0,0 +1,366 @@
+package org.coderclan.knots;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Batches of {@link RdbmsIdempotentHandler}, check {@link BatchIdempotentHandler}: Idempotent IDs are looked up by
+ * {@code IN (...)} queries(at most {@link #MAX_BATCH} per statement), locked by multi-row inserts(row by row if any of
+ * them is locked by others concurrently), and saved by JDBC batch updates. Waiting threads of the
+ * {@link CompletionPoller} are checked by batches too, check {@link #ready(Collection)}.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+final class RdbmsBatchOperations {
+    private static final Logger log = LoggerFactory.getLogger(RdbmsBatchOperations.class);
+
+    /**
+     * Max number of Idempotent IDs in one statement of batches.
+     */
+    static final int MAX_BATCH = 500;
+
+    private final RdbmsIdempotentHandler handler;
+    private final LogTable[] logTables;
+    private final LeaseRegistry leases;
+    /**
+     * Store of shared results, null if results are NOT shared.
+     */
+    private final SharedResultStore resultStore;
+    private final Serializer serializer;
+
+    RdbmsBatchOperations(RdbmsIdempotentHandler handler, LogTable[] logTables, LeaseRegistry leases, SharedResultStore resultStore, Serializer serializer) {
+        this.handler = handler;
+        this.logTables = logTables;
+        this.leases = leases;
+        this.resultStore = resultStore;
+        this.serializer = serializer;
+    }
+
+    /**
+     * Check {@link BatchIdempotentHandler#tryLockOrReturnPreviousResults(Collection, org.aspectj.lang.ProceedingJoinPoint)}.
+     */
+    Map<String, Object> tryLockOrReturnPreviousResults(Collection<String> idempotentIds, Method method, Type returnType) throws Exception {
+        Map<String, Object> previousResults = new HashMap<>(idempotentIds.size() * 2);
+        Connection connection = handler.getConnection();
+        try {
+            int[] live = handler.liveTables();
+            List<String> absent = new ArrayList<>(idempotentIds);
+            // look up the older tables first, locks are inserted into the current table (live[0]) only.
+            for (int i = live.length - 1; i >= 0 && !absent.isEmpty(); i--) {
+                absent = lookup(connection, logTables[live[i]], absent, method, returnType, previousResults);
+            }
+            if (!absent.isEmpty()) {
+                insert(connection, logTables[live[0]], absent, previousResults);
+                List<String> locked = new ArrayList<>();
+                for (String idempotentId : absent) {
+                    if (previousResults.get(idempotentId) == null) {
+                        locked.add(idempotentId);
+                    }
+                }
+                for (String idempotentId : handler.backOff(connection, live[0], locked)) {
+                    previousResults.put(idempotentId, IdempotentHandler.IN_PROGRESS);
+                }
+            }
+        } finally {
+            handler.releaseConnection(connection);
+        }
+        return previousResults;
+    }
+
+    /**
+     * Look up previous invocations of the Idempotent IDs in the table, lock the failed ones to execute again.
+     *
+     * @param previousResults null(locked), {@link IdempotentHandler#IN_PROGRESS} or result of the found Idempotent IDs
+     *                        are put into it.
+     * @return Idempotent IDs which are NOT found.
+     */
+    private List<String> lookup(Connection connection, LogTable table, List<String> idempotentIds, Method method, Type returnType, Map<String, Object> previousResults) throws Exception {
+        List<String> absent = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        Map<String, String> expired = new HashMap<>();
+        for (int from = 0; from < idempotentIds.size(); from += MAX_BATCH) {
+            List<String> chunk = idempotentIds.subList(from, Math.min(from + MAX_BATCH, idempotentIds.size()));
+            Set<String> found = new HashSet<>();
+            Set<String> requested = table.hashedKeys ? new HashSet<>(chunk) : null;
+            try (PreparedStatement ps = connection.prepareStatement(table.selectInSql(chunk.size()))) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    table.setKey(ps, i + 1, chunk.get(i));
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        String idempotentId = rs.getString("idempotent_id");
+                        if (requested != null && !requested.contains(idempotentId)) {
+                            throw new IllegalStateException("Hash collision of Idempotent IDs, the key of one of " + chunk + " is the key of " + idempotentId);
+                        }
+                        found.add(idempotentId);
+                        if (rs.getBoolean("success")) { // the "success" column flags a failed invocation
+                            failed.add(idempotentId);
+                            continue;
+                        }
+                        Object previousResult = handler.getResult(connection, rs, returnType);
+                        previousResults.put(idempotentId, Objects.nonNull(previousResult) ? previousResult : IdempotentHandler.IN_PROGRESS);
+                        String expiredOwner = Objects.isNull(previousResult) ? leases.expiredOwner(rs) : null;
+                        if (expiredOwner != null) {
+                            expired.put(idempotentId, expiredOwner);
+                        }
+                    }
+                }
+            }
+            for (String idempotentId : chunk) {
+                if (!found.contains(idempotentId)) {
+                    absent.add(idempotentId);
+                }
+            }
+        }
+
+        for (Map.Entry<String, String> entry : expired.entrySet()) {
+            if (handler.takeOver(connection, table, entry.getKey(), entry.getValue(), method)) {
+                previousResults.put(entry.getKey(), null);
+            }
+        }
+
+        if (!failed.isEmpty()) {
+            // reset the failed rows before retrying invocations, unless other invocations have reset them.
+            int[] counts;
+            LeaseRegistry.Lease[] resetLeases = new LeaseRegistry.Lease[failed.size()];
+            try (PreparedStatement ps = connection.prepareStatement(table.resetSql)) {
+                for (int i = 0; i < failed.size(); i++) {
+                    int index = 1;
+                    if (table.leasing) {
+                        resetLeases[i] = leases.newLease(table);
+                        ps.setString(index++, resetLeases[i].owner); // lease_owner
+                        ps.setLong(index++, resetLeases[i].lockedAt + table.leaseTime); // lease_expire
+                    }
+                    table.setKey(ps, index, failed.get(i));
+                    ps.addBatch();
+                }
+                counts = ps.executeBatch();
+            }
+            handler.commit(connection);
+            for (int i = 0; i < failed.size(); i++) {
+                boolean reset = counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO;
+                previousResults.put(failed.get(i), reset ? null : IdempotentHandler.IN_PROGRESS);
+                if (reset) {
+                    leases.hold(failed.get(i), resetLeases[i]);
+                    handler.metrics.recordReExecution(method);
+                    log.info("Previous invocation failed, retry. idempotentId={}", failed.get(i));
+                }
+            }
+        }
+        return absent;
+    }
+
+    /**
+     * Lock the Idempotent IDs by multi-row inserts. If the dialect skips the existing rows, the inserted ones are found
+     * by the token of the statement, otherwise if any of them is locked by other invocations concurrently, insert them
+     * row by row.
+     *
+     * @param previousResults null(locked) or {@link IdempotentHandler#IN_PROGRESS} of the Idempotent IDs are put into it.
+     */
+    private void insert(Connection connection, LogTable table, List<String> idempotentIds, Map<String, Object> previousResults) throws SQLException {
+        for (int from = 0; from < idempotentIds.size(); from += MAX_BATCH) {
+            List<String> chunk = idempotentIds.subList(from, Math.min(from + MAX_BATCH, idempotentIds.size()));
+            if (table.insertIfAbsentSql(1) != null) {
+                Set<String> locked = handler.insertIfAbsent(connection, table, chunk);
+                for (String idempotentId : chunk) {
+                    previousResults.put(idempotentId, locked.contains(idempotentId) ? null : IdempotentHandler.IN_PROGRESS);
+                }
+                continue;
+            }
+            if (chunk.size() > 1 && insert(connection, table, chunk)) {
+                for (String idempotentId : chunk) {
+                    previousResults.put(idempotentId, null);
+                }
+                continue;
+            }
+            for (String idempotentId : chunk) {
+                boolean locked = insert(connection, table, Collections.singletonList(idempotentId));
+                // if PK is violated, the same impotent ID has been started to process.
+                previousResults.put(idempotentId, locked ? null : IdempotentHandler.IN_PROGRESS);
+            }
+        }
+    }
+
+    /**
+     * @return true if inserted, false if failed(e.g. Primary Key violating).
+     */
+    private boolean insert(Connection connection, LogTable table, List<String> idempotentIds) throws SQLException {
+        // a failed statement aborts the whole transaction on some databases(e.g. PostgreSQL),
+        // rollback to the savepoint to keep the business transaction usable.
+        Savepoint savepoint = handler.isTransactional(connection) ? connection.setSavepoint() : null;
+        LeaseRegistry.Lease[] inserted = new LeaseRegistry.Lease[idempotentIds.size()];
+        try (PreparedStatement ps = connection.prepareStatement(table.insertSql(idempotentIds.size()))) {
+            int index = 1;
+            for (int i = 0; i < idempotentIds.size(); i++) {
+                inserted[i] = leases.newLease(table);
+                index = table.setLock(ps, index, idempotentIds.get(i), inserted[i]);
+            }
+            ps.executeUpdate();
+            handler.commit(connection);
+            for (int i = 0; i < idempotentIds.size(); i++) {
+                leases.hold(idempotentIds.get(i), inserted[i]);
+            }
+            return true;
+        } catch (SQLException e) {
+            log.debug("Insert locks failed. idempotentIds={}", idempotentIds, e);
+            if (savepoint != null) {
+                connection.rollback(savepoint);
+            } else if (!connection.getAutoCommit()) {
+                connection.rollback();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Check {@link BatchIdempotentHandler#trySaveResults(Map, Set, org.aspectj.lang.ProceedingJoinPoint)}.
+     */
+    Set<String> trySaveResults(Map<String, Object> results, Set<String> failed, Method method, Type returnType) throws Exception {
+        // serialize before getting the connection, the payloads of a batch can NOT share the buffer.
+        Map<String, byte[]> payloads = new HashMap<>(results.size() * 2);
+        Map<String, LeaseRegistry.Lease> saved = new HashMap<>(results.size() * 2);
+        for (String idempotentId : results.keySet()) {
+            LeaseRegistry.Lease lease = leases.release(idempotentId);
+            if (lease != null) {
+                saved.put(idempotentId, lease);
+            }
+        }
+        PayloadBuffer payload = handler.payloads.get();
+        try {
+            for (Map.Entry<String, Object> entry : results.entrySet()) {
+                if (entry.getValue() == IdempotentHandler.ACKNOWLEDGED || (entry.getValue() == null && !failed.contains(entry.getKey()))) {
+                    payloads.put(entry.getKey(), RdbmsIdempotentHandler.ACKNOWLEDGED_RESULT);
+                    continue;
+                }
+                serializer.serialize(entry.getValue(), returnType, payload);
+                if (payload.size() > 0) {
+                    handler.metrics.recordPayloadSize(method, payload.size());
+                    payloads.put(entry.getKey(), payload.toByteArray());
+                }
+                payload.release();
+            }
+        } finally {
+            payload.release();
+        }
+
+        Connection connection = handler.getConnection();
+        try {
+            Map<String, byte[]> hashes = new HashMap<>(payloads.size() * 2);
+            if (resultStore != null) {
+                boolean transactional = handler.isTransactional(connection);
+                for (Map.Entry<String, byte[]> entry : payloads.entrySet()) {
+                    if (entry.getValue().length > 0) {
+                        hashes.put(entry.getKey(), resultStore.share(connection, entry.getValue(), transactional));
+                    }
+                }
+            }
+            List<String> unsaved = new ArrayList<>(results.keySet());
+            boolean leasing = leases.isLeasing();
+            // the locks are in the current table, or in older tables if the table is rotated during the invocation.
+            for (int table : handler.liveTables()) {
+                int[] counts;
+                try (PreparedStatement ps = connection.prepareStatement(logTables[table].updateSql)) {
+                    for (String idempotentId : unsaved) {
+                        byte[] value = payloads.get(idempotentId);
+                        byte[] hash = hashes.get(idempotentId);
+                        int index = 1;
+                        if (value == null || hash != null) {
+                            ps.setNull(index++, Types.VARBINARY); // method_result
+                        } else {
+                            ps.setBytes(index++, value); // method_result
+                        }
+                        if (resultStore != null) {
+                            RdbmsIdempotentHandler.setHash(ps, index++, hash); // result_hash
+                        }
+                        ps.setInt(index++, failed.contains(idempotentId) ? 1 : 0); // the "success" column flags a failed invocation
+                        logTables[table].setKey(ps, index++, idempotentId);
+                        if (leasing) {
+                            LeaseRegistry.Lease lease = saved.get(idempotentId);
+                            ps.setString(index, lease == null ? null : lease.owner); // lease_owner
+                        }
+                        ps.addBatch();
+                    }
+                    counts = ps.executeBatch();
+                }
+                List<String> remaining = new ArrayList<>();
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] == 0) {
+                        remaining.add(unsaved.get(i));
+                    }
+                }
+                unsaved = remaining;
+                if (unsaved.isEmpty()) {
+                    break;
+                }
+            }
+            handler.commit(connection);
+
+            if (!unsaved.isEmpty()) {
+                log.error("Save return result failed{}. idempotentIds={}", leasing ? ", the leases have been taken over(leaseTime may be too short)" : "", unsaved);
+            }
+            Set<String> stored = new HashSet<>(results.keySet());
+            stored.removeAll(unsaved);
+            return stored;
+        } finally {
+            handler.releaseConnection(connection);
+        }
+    }
+
+    /**
+     * Check the Idempotent IDs for {@link CompletionPoller}, by one query per table(and per {@link #MAX_BATCH}).
+     *
+     * @return Idempotent IDs which are NOT in progress: finished, failed, whose leases expired, or NOT found.
+     */
+    Set<String> ready(Collection<String> idempotentIds) throws SQLException {
+        Set<String> inProgress = new HashSet<>();
+        long now = leases.databaseTime();
+        boolean leasing = leases.isLeasing();
+        try (Connection connection = handler.dataSource.getConnection()) {
+            List<String> absent = new ArrayList<>(idempotentIds);
+            for (int table : handler.liveTables()) {
+                List<String> remaining = new ArrayList<>();
+                for (int from = 0; from < absent.size(); from += MAX_BATCH) {
+                    List<String> chunk = absent.subList(from, Math.min(from + MAX_BATCH, absent.size()));
+                    Set<String> found = new HashSet<>();
+                    try (PreparedStatement ps = connection.prepareStatement(logTables[table].pollInSql(chunk.size()))) {
+                        for (int i = 0; i < chunk.size(); i++) {
+                            logTables[table].setKey(ps, i + 1, chunk.get(i));
+                        }
+                        try (ResultSet rs = ps.executeQuery()) {
+                            while (rs.next()) {
+                                // a row of another Idempotent ID(hash collision) is NOT found, the waiter will detect it.
+                                String idempotentId = rs.getString("idempotent_id");
+                                found.add(idempotentId);
+                                boolean expired = leasing && rs.getString("lease_owner") != null && rs.getLong("lease_expire") < now;
+                                // the "success" column flags a failed invocation
+                                if (!rs.getBoolean("success") && rs.getInt("finished") == 0 && !expired) {
+                                    inProgress.add(idempotentId);
+                                }
+                            }
+                        }
+                    }
+                    for (String idempotentId : chunk) {
+                        if (!found.contains(idempotentId)) {
+                            remaining.add(idempotentId);
+                        }
+                    }
+                }
+                absent = remaining;
+                if (absent.isEmpty()) {
+                    break;
+                }
+            }
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+            }
+        }
+        Set<String> ready = new HashSet<>(idempotentIds);
+        ready.removeAll(inProgress);
+        return ready;
+    }
+}
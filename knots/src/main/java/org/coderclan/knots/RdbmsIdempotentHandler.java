@@ -3,170 +3,821 @@ package org.coderclan.knots;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.ApplicationListener;
-import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.jdbc.datasource.DataSourceUtils;
 
 import javax.sql.DataSource;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.*;
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Idempotent Handler which use Relational Database to persistent data(lock and invocation result).
+ * <p>
+ * By default, it gets its own connections from the {@link DataSource} and commits the lock and the result separately.
+ * If {@code joinTransaction} is enabled, it uses the connection of the active Spring managed transaction, the lock
+ * and the result are committed or rollback with the business transaction, only one connection is used per invocation.
+ * ({@link IdempotentAspect} must be invoked within the transaction, check {@link KnotsProperties#getAspectOrder()})
+ * <p>
+ * If a {@link TableRotation} is set, the log is split into several tables by time, locks are inserted into the current
+ * table, and previous invocations are looked up in all tables which are not expired. Locks are released if the
+ * Idempotent ID is locked concurrently in an adjacent table, check {@link #backOff(Connection, int, List)}.
+ * <p>
+ * Batches are looked up by {@code IN (...)} queries, locked by multi-row inserts (row by row if any of them is locked
+ * by others concurrently), and saved by JDBC batch updates, check {@link RdbmsBatchOperations}.
+ * <p>
+ * Locks are inserted by statements of the {@link SqlDialect} which skip the existing rows, so the first invocation is
+ * locked by one statement, and conflicts are NOT detected by exceptions. For other databases, the row is selected
+ * first and conflicts of inserts are rollback to savepoints. SQL of each table is built by {@link LogTable}, the tables
+ * are created and upgraded by {@link LogSchema}.
+ * <p>
+ * If {@code hashedKeys} is enabled, the Primary Key is the first 128 bits of SHA-256 of the Idempotent ID(column
+ * {@code idempotent_key}), and the Idempotent ID is kept in a column without index to detect hash collisions. The
+ * index is smaller and Idempotent IDs may be longer than 64 characters. The layout of the table is different, use a
+ * new table to switch it.
+ * <p>
+ * Completions of acknowledge-only methods({@link #ACKNOWLEDGED}) and successful null results are saved as empty results
+ * without serialization, replayed as {@link #ACKNOWLEDGED}.
+ * <p>
+ * If {@code sharedResults} is enabled, each distinct serialized result is saved once into a results table, and rows of
+ * the log refer to it by hash, check {@link SharedResultStore}. Methods which return the same results for many
+ * Idempotent IDs save much less data, replayed results are deserialized once and shared, callers should NOT modify them.
+ * <p>
+ * If {@code leaseTime} is set(and {@code joinTransaction} is NOT enabled), each lock is a lease(columns
+ * {@code lease_owner} and {@code lease_expire}) which is renewed by a heartbeat while the invocation is running(check
+ * {@link LeaseRegistry}). If the
+ * owner crashed before saving the result, waiters take over the expired lease by a conditional update instead of
+ * waiting until timeout, and results of invocations whose leases have been taken over are NOT saved. Leases are timed
+ * by the clock of the database, sampled by the heartbeat({@link SqlDialect#currentTimeMillisSql()}), so clocks of the
+ * instances do NOT need to be synchronized (for {@link SqlDialect#OTHER} they should be, the skew should be much shorter
+ * than {@code leaseTime}). Locks of joined transactions are rollback if the owner crashed, they do NOT need leases.
+ * <p>
+ * If {@code pollInterval} is set(and {@code joinTransaction} is NOT enabled), threads waiting for previous invocations
+ * park in a {@link CompletionPoller}, which checks all of them by one {@code IN (...)} query per table every
+ * {@code pollInterval}, instead of polling by themselves after pauses of the {@link WaitStrategy}.
  *
  * @author aray(dot)chou(dot)cn(at)gmail(dot)com
  */
-public class RdbmsIdempotentHandler implements IdempotentHandler, ApplicationListener<ContextRefreshedEvent> {
+public class RdbmsIdempotentHandler implements BatchIdempotentHandler, InitializingBean, DisposableBean {
     private static final Logger log = LoggerFactory.getLogger(RdbmsIdempotentHandler.class);
 
-    private final DataSource dataSource;
+    /**
+     * Previous invocation is NOT found.
+     */
+    private static final Object ABSENT = new Object();
+    private static final int[] SINGLE_TABLE = {0};
+    /**
+     * Saved into "method_result" for {@link #ACKNOWLEDGED}, an empty value is distinguished from NULL(NOT finished).
+     */
+    static final byte[] ACKNOWLEDGED_RESULT = new byte[0];
+    /**
+     * SHA-256 digests of Idempotent IDs and shared results.
+     */
+    static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    final DataSource dataSource;
     private final Serializer serializer;
     private final String tableName;
+    private final boolean joinTransaction;
+    final ThreadLocal<PayloadBuffer> payloads = ThreadLocal.withInitial(PayloadBuffer::new);
 
-    private final String selectSql;
-    private final String updateSql;
+    private TableRotation tableRotation;
+    private SqlDialect dialect;
+    private boolean hashedKeys;
+    private KnotsProperties.SharedResults sharedResults;
+    /**
+     * Store of shared results, null if results are NOT shared.
+     */
+    private SharedResultStore resultStore;
+    private LogTable[] logTables;
+    private long leaseTime;
+    private boolean leasing;
+    private LeaseRegistry leases;
+    private LogSchema schema;
+    private RdbmsBatchOperations batches;
+    private long pollInterval;
+    private CompletionPoller poller;
+    @Autowired
+    private WaitStrategy waitStrategy;
     @Autowired
-    private KnotsProperties properties;
+    IdempotenceMetrics metrics;
 
 
     public RdbmsIdempotentHandler(Serializer serializer, DataSource dataSource, String tableName) {
+        this(serializer, dataSource, tableName, false);
+    }
+
+    /**
+     * @param joinTransaction true to use the connection of the active Spring managed transaction.
+     */
+    public RdbmsIdempotentHandler(Serializer serializer, DataSource dataSource, String tableName, boolean joinTransaction) {
         this.serializer = serializer;
         this.dataSource = dataSource;
         this.tableName = tableName;
-        this.selectSql = "select idempotent_id,method_result,success from " + tableName + " where idempotent_id=? ";
-        this.updateSql = "update  " + tableName + "  set method_result=?, success=? where idempotent_id=? ";
+        this.joinTransaction = joinTransaction;
+    }
+
+    /**
+     * Split the log into several tables by time. Should be set before {@link #afterPropertiesSet()}.
+     */
+    public void setTableRotation(TableRotation tableRotation) {
+        this.tableRotation = tableRotation;
+    }
+
+    /**
+     * SQL dialect of the database, detected from the DataSource if it is NOT set. Should be set before
+     * {@link #afterPropertiesSet()}.
+     */
+    public void setDialect(SqlDialect dialect) {
+        this.dialect = dialect;
+    }
+
+    /**
+     * Use hashes of Idempotent IDs as the Primary Key, check the documentation of the class. Should be set before
+     * {@link #afterPropertiesSet()}.
+     */
+    public void setHashedKeys(boolean hashedKeys) {
+        this.hashedKeys = hashedKeys;
+    }
+
+    /**
+     * Save each distinct result once, check the documentation of the class. Should be set before
+     * {@link #afterPropertiesSet()}.
+     */
+    public void setSharedResults(KnotsProperties.SharedResults sharedResults) {
+        this.sharedResults = sharedResults;
+    }
+
+    /**
+     * Lock by leases, check the documentation of the class. Should be set before {@link #afterPropertiesSet()}.
+     *
+     * @param leaseTime time (unit: millisecond) to live of leases which are NOT renewed, 0 to disable leases.
+     */
+    public void setLeaseTime(long leaseTime) {
+        this.leaseTime = leaseTime;
+    }
+
+    /**
+     * Poll previous invocations for all waiting threads by batches, check the documentation of the class. Should be set
+     * before {@link #afterPropertiesSet()}.
+     *
+     * @param pollInterval pause (unit: millisecond) between polls, 0 to let waiting threads poll by themselves.
+     */
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
     }
 
     @Override
-    public void onApplicationEvent(ContextRefreshedEvent applicationEvent) {
+    public void afterPropertiesSet() {
+        this.leasing = leaseTime > 0 && !joinTransaction;
+        if (dialect == null) {
+            dialect = detectDialect();
+        }
+        if (sharedResults != null && sharedResults.isEnabled()) {
+            resultStore = new SharedResultStore(tableName, dialect, serializer, sharedResults.getMaximumSize(), sharedResults.getGracePeriod());
+        }
+        String[] names = tableRotation == null ? new String[]{tableName} : tableRotation.getTables();
+        this.logTables = new LogTable[names.length];
+        for (int i = 0; i < names.length; i++) {
+            logTables[i] = new LogTable(names[i], dialect, hashedKeys, resultStore != null, leasing ? leaseTime : 0, joinTransaction);
+        }
+        this.leases = new LeaseRegistry(dataSource, dialect, leasing ? leaseTime : 0);
+        this.schema = new LogSchema(dataSource, logTables, resultStore);
+        this.batches = new RdbmsBatchOperations(this, logTables, leases, resultStore, serializer);
+
         // create table when starting.
-        createTable();
+        schema.create();
+
+        leases.start();
+        if (pollInterval > 0 && !joinTransaction) {
+            poller = new CompletionPoller(batches::ready, "knots-poller", pollInterval);
+        }
+    }
+
+    private SqlDialect detectDialect() {
+        try (Connection conn = dataSource.getConnection()) {
+            SqlDialect detected = SqlDialect.of(conn.getMetaData());
+            log.info("SQL dialect of the idempotent log: {}", detected);
+            return detected;
+        } catch (SQLException e) {
+            log.error("Exception countered while detecting SQL dialect, use {}.", SqlDialect.OTHER, e);
+            return SqlDialect.OTHER;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (leases != null) {
+            leases.stop();
+        }
+        if (poller != null) {
+            poller.shutdown();
+        }
     }
 
     @Override
     public Object lockOrReturnPreviousResult(String idempotentId, ProceedingJoinPoint joinPoint) throws Exception {
-        for (int tried = 0; tried < properties.getRetries(); tried++) {
-            ResultSet rs = null;
-            try (
-                    Connection connection = dataSource.getConnection();
-                    PreparedStatement ps = connection.prepareStatement(selectSql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE)
-            ) {
-                ps.setString(1, idempotentId);
-                rs = ps.executeQuery();
+        Method method = JoinPoints.getMethod(joinPoint);
+        WaitStrategy.Wait wait = null;
+        long deadline = 0;
+        for (int tried = 0; ; tried++) {
+            if (tried > 0) {
+                metrics.recordRetry(method);
+            }
+            Object previousResult = tryLockOrReturnPreviousResult(idempotentId, joinPoint);
+            if (previousResult != IN_PROGRESS) {
+                return previousResult;
+            }
 
-                if (rs.next()) { // Invocation of the same idempotentId has been started.
+            // not result, and not marked as failed, the previous invocation has not been finished yet, wait
+            log.info("Found previous invoke but it has NOT returned yet! idempotentId={}, tried={}", idempotentId, tried);
+            if (wait == null) {
+                metrics.recordWait(method);
+                wait = waitStrategy.start(method);
+                deadline = System.currentTimeMillis() + waitStrategy.getTimeout();
+            }
+            if (poller != null) {
+                // parked until the poller finds the previous invocation is NOT in progress.
+                if (!poller.await(idempotentId, deadline - System.currentTimeMillis())) {
+                    break;
+                }
+                continue;
+            }
+            long pause = wait.nextPause();
+            if (pause < 0) {
+                break;
+            }
+            Thread.sleep(pause);
+        }
+        log.error("Found previous invoke but previous invoke is timeout! idempotentId={}", idempotentId);
+        throw new IdempotentTimeoutException("Found previous invoke but previous invoke is timeout! idempotentId=" + idempotentId);
+    }
 
-                    boolean failed = rs.getBoolean("success"); // success
+    @Override
+    public Object tryLockOrReturnPreviousResult(String idempotentId, ProceedingJoinPoint joinPoint) throws Exception {
+        Method method = JoinPoints.getMethod(joinPoint);
+        Type returnType = JoinPoints.getReturnType(joinPoint);
+        Object previousResult = ABSENT;
+        Connection connection = getConnection();
+        try {
+            int[] live = liveTables();
+            // look up the older tables first, locks are inserted into the current table (live[0]) only.
+            for (int i = live.length - 1; i >= 0 && previousResult == ABSENT; i--) {
+                previousResult = tryLock(connection, logTables[live[i]], idempotentId, i == 0, method, returnType);
+            }
+            if (previousResult == null && !backOff(connection, live[0], Collections.singletonList(idempotentId)).isEmpty()) {
+                previousResult = IN_PROGRESS;
+            }
+        } finally {
+            releaseConnection(connection);
+        }
+        return previousResult == ABSENT ? IN_PROGRESS : previousResult;
+    }
 
-                    // previous invocation has been finished. but failed to invoke.
-                    if (failed) {
+    /**
+     * Look up the previous invocation in the table, lock the idempotentId if it is not found.
+     *
+     * @param insert     true to insert the lock if the previous invocation is NOT found.
+     * @param method     the invoked method, null if unknown.
+     * @param returnType generic return type of the method, to deserialize the result.
+     * @return null if locked, {@link #IN_PROGRESS} if previous invocation has NOT been finished,
+     * {@link #ABSENT} if previous invocation is NOT found and {@code insert} is false, result of the previous invocation otherwise.
+     */
+    private Object tryLock(Connection connection, LogTable table, String idempotentId, boolean insert, Method method, Type returnType) throws Exception {
+        if (insert && table.lockOrFetchSql != null) {
+            return lockOrFetch(connection, table, idempotentId, method, returnType);
+        }
+        if (insert && table.insertIfAbsentSql(1) != null) {
+            // most invocations are the first ones, insert the lock first.
+            if (!insertIfAbsent(connection, table, Collections.singletonList(idempotentId)).isEmpty()) {
+                log.trace("First invocation of idempotentId={}.", idempotentId);
+                return null;
+            }
+            // the row exists, fetch it.
+            Object previousResult = tryLock(connection, table, idempotentId, false, method, returnType);
+            return previousResult == ABSENT ? IN_PROGRESS : previousResult;
+        }
 
-                        // we need to reset the following column before retrying invocation.
-                        rs.updateBinaryStream("method_result", null);
-                        rs.updateBoolean("success", false);
-                        commit(connection);
+        boolean failed = false;
+        String expiredOwner = null;
+        try (
+                PreparedStatement ps = connection.prepareStatement(table.selectSql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE)
+        ) {
+            table.setKey(ps, 1, idempotentId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) { // Invocation of the same idempotentId has been started.
+                    table.verify(rs, idempotentId);
 
-                        log.info("Previous invocation failed, retry. idempotentId={}", idempotentId);
-                        return null;
-                    }
+                    // previous invocation has been finished. but failed to invoke.
+                    failed = rs.getBoolean("success"); // the "success" column flags a failed invocation
 
-                    // previous invocation has been finished. and succeeded.
-                    Object previousResult = getResult(rs);
-                    if (Objects.nonNull(previousResult)) {
-                        log.debug("Previous invocation succeeded. idempotentId={}", idempotentId);
-                        return previousResult;
+                    if (!failed) {
+                        // previous invocation has been finished. and succeeded.
+                        Object previousResult = getResult(connection, rs, returnType);
+                        if (Objects.nonNull(previousResult)) {
+                            log.debug("Previous invocation succeeded. idempotentId={}", idempotentId);
+                            return previousResult;
+                        }
+                        expiredOwner = leases.expiredOwner(rs);
+                        if (expiredOwner == null) {
+                            return IN_PROGRESS;
+                        }
                     }
 
-                    // not result, and not marked as failed, the previous invocation has not been finished yet, wait
-                    log.info("Found previous invoke but it has NOT returned yet! idempotentId={}, tried={}", idempotentId, tried);
-                    Thread.sleep(properties.getRetryWait());
-                    continue;
-
+                } else if (!insert) {
+                    return ABSENT;
                 } else { // Invocation of the same idempotentId has NOT been started.
                     log.trace("First invocation of idempotentId={}.", idempotentId);
                     rs.moveToInsertRow();
+                    if (hashedKeys) {
+                        rs.updateBytes(SqlDialect.keyColumn(true), hash(idempotentId));
+                    }
                     rs.updateString("idempotent_id", idempotentId);
+                    LeaseRegistry.Lease lease = leases.newLease(table);
+                    rs.updateString("lease_owner", lease.owner);
+                    if (leasing) {
+                        rs.updateLong("lease_expire", lease.lockedAt + leaseTime);
+                    }
 
+                    // a failed statement aborts the whole transaction on some databases(e.g. PostgreSQL),
+                    // rollback to the savepoint to keep the business transaction usable.
+                    Savepoint savepoint = isTransactional(connection) ? connection.setSavepoint() : null;
                     try {
                         rs.insertRow();
                         commit(connection);
+                        leases.hold(idempotentId, lease);
+                        return null;
                     } catch (SQLException e) {
                         // SQLException may be caused by bugs, or Primary Key violating.
                         //
                         // if PK is violated, it must be because of the same impotent ID has been started to process.
-                        // continue the tried to get the result.
+                        // wait and continue the tried to get the result.
                         log.info("", e);
-                        continue;
+                        if (savepoint != null) {
+                            connection.rollback(savepoint);
+                        }
+                        return IN_PROGRESS;
                     }
-                    return null;
                 }
+            }
+        }
+        if (failed) {
+            // we need to reset the row before retrying invocation, unless other invocations have reset it.
+            return reset(connection, table, idempotentId, method) ? null : IN_PROGRESS;
+        }
+        // the owner may have crashed, take over the lease after the result set is closed.
+        return takeOver(connection, table, idempotentId, expiredOwner, method) ? null : IN_PROGRESS;
+    }
 
+    /**
+     * Reset the failed invocation of the Idempotent ID to lock it again, if it has NOT been reset by others.
+     *
+     * @return true if reset(locked).
+     */
+    private boolean reset(Connection connection, LogTable table, String idempotentId, Method method) throws SQLException {
+        LeaseRegistry.Lease lease = leasing ? leases.newLease(table) : null;
+        int count;
+        try (PreparedStatement ps = connection.prepareStatement(table.resetSql)) {
+            int index = 1;
+            if (lease != null) {
+                ps.setString(index++, lease.owner); // lease_owner
+                ps.setLong(index++, lease.lockedAt + leaseTime); // lease_expire
+            }
+            table.setKey(ps, index, idempotentId);
+            count = ps.executeUpdate();
+        }
+        commit(connection);
+        if (count != 1) {
+            return false;
+        }
+        leases.hold(idempotentId, lease);
+        metrics.recordReExecution(method);
+        log.info("Previous invocation failed, retry. idempotentId={}", idempotentId);
+        return true;
+    }
 
-            } finally {
-                if (rs != null) {
-                    rs.close();
+    /**
+     * Lock the Idempotent ID(insert the lock, or reset the failed invocation), or fetch the existing row, by one
+     * statement, check {@link SqlDialect#lockOrFetchSql(String, boolean, boolean, boolean)}.
+     *
+     * @return null if locked, {@link #IN_PROGRESS} if previous invocation has NOT been finished, result of the previous
+     * invocation otherwise.
+     */
+    private Object lockOrFetch(Connection connection, LogTable table, String idempotentId, Method method, Type returnType) throws Exception {
+        LeaseRegistry.Lease lease = leases.newLease(table);
+        boolean locked;
+        boolean existed;
+        String expiredOwner = null;
+        Lock statementLock = table.statementLock;
+        if (statementLock != null) {
+            statementLock.lock();
+        }
+        try (PreparedStatement ps = connection.prepareStatement(table.lockOrFetchSql)) {
+            int index = table.setLock(ps, 1, idempotentId, lease);
+            table.setKey(ps, index, idempotentId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    return IN_PROGRESS;
                 }
+                locked = rs.getInt("locked") > 0;
+                existed = rs.getString("idempotent_id") != null;
+                if (existed) {
+                    table.verify(rs, idempotentId);
+                }
+                // the row is NOT visible if it is inserted concurrently, or the failed invocation is reset concurrently.
+                if (!locked && existed && !rs.getBoolean("success")) {
+                    Object previousResult = getResult(connection, rs, returnType);
+                    if (Objects.nonNull(previousResult)) {
+                        log.debug("Previous invocation succeeded. idempotentId={}", idempotentId);
+                        return previousResult;
+                    }
+                    expiredOwner = leases.expiredOwner(rs);
+                }
+            }
+            if (locked) {
+                commit(connection);
+            }
+        } catch (SQLIntegrityConstraintViolationException e) {
+            // MERGE of H2 does NOT check and insert atomically, the row has been inserted concurrently by other
+            // processes, or by transactions which are NOT committed yet, check SqlDialect#H2.
+            if (dialect != SqlDialect.H2) {
+                throw e;
+            }
+            log.debug("Lock is inserted concurrently. idempotentId={}", idempotentId);
+            return IN_PROGRESS;
+        } finally {
+            if (statementLock != null) {
+                statementLock.unlock();
             }
         }
-        log.error("Found previous invoke but previous invoke is timeout! idempotentId={}", idempotentId);
-        throw new RuntimeException("Found previous invoke but previous invoke is timeout!");
+        if (locked) {
+            leases.hold(idempotentId, lease);
+            if (existed) {
+                metrics.recordReExecution(method);
+                log.info("Previous invocation failed, retry. idempotentId={}", idempotentId);
+            } else {
+                log.trace("First invocation of idempotentId={}.", idempotentId);
+            }
+            return null;
+        }
+        // the owner may have crashed, take over the lease.
+        return takeOver(connection, table, idempotentId, expiredOwner, method) ? null : IN_PROGRESS;
+    }
+
+    /**
+     * Take over the expired lease of the Idempotent ID, if it is still held by the owner.
+     *
+     * @param owner owner of the expired lease, null if there is no expired lease.
+     * @return true if taken over(locked).
+     */
+    boolean takeOver(Connection connection, LogTable table, String idempotentId, String owner, Method method) throws SQLException {
+        if (owner == null) {
+            return false;
+        }
+        LeaseRegistry.Lease lease = leases.newLease(table);
+        int count;
+        try (PreparedStatement ps = connection.prepareStatement(table.takeOverSql)) {
+            ps.setString(1, lease.owner); // lease_owner
+            ps.setLong(2, lease.lockedAt + leaseTime); // lease_expire
+            table.setKey(ps, 3, idempotentId);
+            ps.setString(4, owner); // lease_owner
+            ps.setLong(5, lease.lockedAt); // lease_expire
+            count = ps.executeUpdate();
+        }
+        commit(connection);
+        if (count != 1) {
+            // taken over by others.
+            return false;
+        }
+        leases.hold(idempotentId, lease);
+        metrics.recordReExecution(method);
+        log.warn("Lease of previous invocation expired, the owner may have crashed, take over. idempotentId={}, owner={}", idempotentId, owner);
+        return true;
+    }
+
+    /**
+     * @return the first 128 bits of SHA-256 of the Idempotent ID.
+     */
+    static byte[] hash(String idempotentId) {
+        return Arrays.copyOf(DIGESTS.get().digest(idempotentId.getBytes(StandardCharsets.UTF_8)), 16);
+    }
+
+    /**
+     * Bind the hash of the shared result, NULL if the result is NOT shared.
+     */
+    static void setHash(PreparedStatement ps, int index, byte[] hash) throws SQLException {
+        if (hash == null) {
+            ps.setNull(index, Types.VARBINARY);
+        } else {
+            ps.setBytes(index, hash);
+        }
+    }
+
+    @Override
+    public Map<String, Object> tryLockOrReturnPreviousResults(Collection<String> idempotentIds, ProceedingJoinPoint joinPoint) throws Exception {
+        return batches.tryLockOrReturnPreviousResults(idempotentIds, JoinPoints.getMethod(joinPoint), JoinPoints.getReturnType(joinPoint));
+    }
+
+    /**
+     * If the log is rotated, a duplicate on the other side of a bucket boundary (or on an instance whose clock is
+     * skewed) may have missed the lock in the current table and locked the Idempotent ID in an adjacent table. After
+     * locking, look up the tables adjacent to the current one, and release the locks which are found there. Both
+     * duplicates write before they read, so at least one of them backs off, and they meet in one table when they try
+     * again. Rows of joined transactions are NOT visible until they are committed, so the duplicates may still both
+     * execute if their transactions overlap.
+     *
+     * @param current index of the table of the locks.
+     * @param locked  Idempotent IDs locked in the current table.
+     * @return Idempotent IDs whose locks are released, they should be regarded as in progress.
+     */
+    List<String> backOff(Connection connection, int current, List<String> locked) throws SQLException {
+        if (tableRotation == null || locked.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Set<String> requested = new HashSet<>(locked);
+        Set<String> found = new HashSet<>();
+        // the next table may still keep expired rows until it is truncated, they are much older than the concurrent locks.
+        Timestamp since = new Timestamp(System.currentTimeMillis() - tableRotation.getBucketLength() / 2);
+        int[] adjacent = {(current - 1 + logTables.length) % logTables.length, (current + 1) % logTables.length};
+        for (int table : adjacent) {
+            for (int from = 0; from < locked.size(); from += RdbmsBatchOperations.MAX_BATCH) {
+                List<String> chunk = locked.subList(from, Math.min(from + RdbmsBatchOperations.MAX_BATCH, locked.size()));
+                try (PreparedStatement ps = connection.prepareStatement(logTables[table].existsInSql(chunk.size()))) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        logTables[table].setKey(ps, i + 1, chunk.get(i));
+                    }
+                    ps.setTimestamp(chunk.size() + 1, since); // create_time
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            // a row of another Idempotent ID(hash collision) is NOT a duplicate.
+                            if (requested.contains(rs.getString("idempotent_id"))) {
+                                found.add(rs.getString("idempotent_id"));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        if (found.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<String> released = new ArrayList<>(found);
+        try (PreparedStatement ps = connection.prepareStatement(logTables[current].releaseSql)) {
+            for (String idempotentId : released) {
+                LeaseRegistry.Lease lease = leases.release(idempotentId);
+                logTables[current].setKey(ps, 1, idempotentId);
+                if (leasing) {
+                    ps.setString(2, lease == null ? null : lease.owner); // lease_owner
+                }
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        commit(connection);
+        log.info("Idempotent IDs are locked in adjacent tables of the rotation concurrently, back off. idempotentIds={}", released);
+        return released;
     }
 
-    private void commit(Connection connection) throws SQLException {
+    /**
+     * Insert the locks which do NOT exist by the statement of the dialect, the existing rows are skipped without
+     * failing. The rows inserted by one statement share one lease, whose owner identifies them if some rows are skipped.
+     *
+     * @return the locked Idempotent IDs.
+     */
+    Set<String> insertIfAbsent(Connection connection, LogTable table, List<String> idempotentIds) throws SQLException {
+        LeaseRegistry.Lease lease = leases.newLease(table);
+        Set<String> locked = new HashSet<>();
+        Lock statementLock = table.statementLock;
+        if (statementLock != null) {
+            statementLock.lock();
+        }
+        try (PreparedStatement ps = connection.prepareStatement(table.insertIfAbsentSql(idempotentIds.size()))) {
+            int index = 1;
+            for (String idempotentId : idempotentIds) {
+                index = table.setLock(ps, index, idempotentId, lease);
+            }
+            if (dialect.returnsInserted()) {
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        locked.add(rs.getString(1));
+                    }
+                }
+            } else {
+                int count;
+                try {
+                    count = ps.executeUpdate();
+                } catch (SQLIntegrityConstraintViolationException e) {
+                    // MERGE of H2 does NOT check and insert atomically, the row has been inserted concurrently by other
+                    // processes, or by transactions which are NOT committed yet, check SqlDialect#H2.
+                    if (dialect != SqlDialect.H2) {
+                        throw e;
+                    }
+                    log.debug("Lock is inserted concurrently. idempotentIds={}", idempotentIds);
+                    if (idempotentIds.size() > 1) {
+                        // the whole statement failed, lock the others row by row.
+                        for (String idempotentId : idempotentIds) {
+                            locked.addAll(insertIfAbsent(connection, table, Collections.singletonList(idempotentId)));
+                        }
+                        return locked;
+                    }
+                    count = 0;
+                }
+                if (count == idempotentIds.size()) {
+                    locked.addAll(idempotentIds);
+                } else if (count > 0) {
+                    // some of them are locked by other invocations concurrently, find the rows of this statement.
+                    try (PreparedStatement select = connection.prepareStatement(table.selectInSql(idempotentIds.size()))) {
+                        for (int i = 0; i < idempotentIds.size(); i++) {
+                            table.setKey(select, i + 1, idempotentIds.get(i));
+                        }
+                        try (ResultSet rs = select.executeQuery()) {
+                            while (rs.next()) {
+                                if (lease.owner.equals(rs.getString("lease_owner"))) {
+                                    locked.add(rs.getString("idempotent_id"));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            commit(connection);
+        } finally {
+            if (statementLock != null) {
+                statementLock.unlock();
+            }
+        }
+        for (String idempotentId : locked) {
+            leases.hold(idempotentId, lease);
+        }
+        return locked;
+    }
+
+    /**
+     * @return indexes of {@link #logTables} which may contain rows not expired, the current one first.
+     */
+    int[] liveTables() {
+        return tableRotation == null ? SINGLE_TABLE : tableRotation.live(System.currentTimeMillis());
+    }
+
+    Connection getConnection() throws SQLException {
+        return joinTransaction ? DataSourceUtils.getConnection(dataSource) : dataSource.getConnection();
+    }
+
+    void releaseConnection(Connection connection) throws SQLException {
+        if (joinTransaction) {
+            DataSourceUtils.releaseConnection(connection, dataSource);
+        } else {
+            connection.close();
+        }
+    }
+
+    /**
+     * @return true if the connection is bound to the active Spring managed transaction.
+     */
+    boolean isTransactional(Connection connection) {
+        return joinTransaction && DataSourceUtils.isConnectionTransactional(connection, dataSource);
+    }
+
+    void commit(Connection connection) throws SQLException {
+        if (isTransactional(connection)) {
+            // commit or rollback with the business transaction.
+            return;
+        }
         if (!connection.getAutoCommit()) {
             connection.commit();
         }
     }
 
-    private Object getResult(ResultSet rs) throws Exception {
+    /**
+     * @return result of the row, the shared result if it refers to one, null if NOT finished.
+     */
+    Object getResult(Connection connection, ResultSet rs, Type returnType) throws Exception {
+        Object result = readResult(rs, serializer, returnType);
+        if (result == null && resultStore != null) {
+            byte[] hash = rs.getBytes("result_hash");
+            if (hash != null) {
+                result = resultStore.load(connection, hash, returnType);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the deserialized "method_result" column, {@link #ACKNOWLEDGED} if it is empty, null if it is NULL.
+     */
+    static Object readResult(ResultSet rs, Serializer serializer, Type returnType) throws Exception {
         try (InputStream stream = rs.getBinaryStream("method_result")) {
-            return serializer.deserialize(stream);
+            if (stream == null) {
+                return null;
+            }
+            PushbackInputStream in = new PushbackInputStream(stream, 1);
+            int first = in.read();
+            if (first < 0) {
+                return ACKNOWLEDGED;
+            }
+            in.unread(first);
+            return serializer.deserialize(in, returnType);
         }
     }
 
     @Override
     public void saveResult(String idempotentId, Object result, boolean success, ProceedingJoinPoint joinPoint) throws Exception {
-        final byte[] resultByte = Objects.isNull(result) ? null : serializer.serialize(result);
-        try (
-                Connection connection = dataSource.getConnection();
-                PreparedStatement ps = connection.prepareStatement(this.updateSql)
-        ) {
-            //set method_result=?, success=? where idempotent_id=?
-            ps.setBytes(1, resultByte); // method_result
-            ps.setBoolean(2, success); // success
-            ps.setString(3, idempotentId); // idempotent_id
-            int count = ps.executeUpdate();
-            commit(connection);
+        trySaveResult(idempotentId, result, success, joinPoint);
+    }
 
-//            if(true){
-//                throw new RuntimeException("eee");
-//            }
+    @Override
+    public boolean trySaveResult(String idempotentId, Object result, boolean success, ProceedingJoinPoint joinPoint) throws Exception {
+        LeaseRegistry.Lease lease = leases.release(idempotentId);
+        // serialize into the reusable buffer, and stream it to the statement without copying.
+        PayloadBuffer payload = payloads.get();
+        Connection connection = null;
+        try {
+            // a successful null result is saved as a completion, NOT as NULL(in progress), which would be taken over.
+            boolean acknowledged = result == ACKNOWLEDGED || (success && result == null);
+            if (!acknowledged) {
+                serializer.serialize(result, JoinPoints.getReturnType(joinPoint), payload);
+            }
+            if (payload.size() > 0) {
+                metrics.recordPayloadSize(JoinPoints.getMethod(joinPoint), payload.size());
+            }
+            connection = getConnection();
+            byte[] hash = resultStore != null && !acknowledged && payload.size() > 0
+                    ? resultStore.share(connection, payload, isTransactional(connection)) : null;
+            int count = 0;
+            // the lock is in the current table, or in an older table if the table is rotated during the invocation.
+            for (int table : liveTables()) {
+                try (PreparedStatement ps = connection.prepareStatement(logTables[table].updateSql)) {
+                    //set method_result=?, [result_hash=?,] success=? where idempotent_id=?
+                    int index = 1;
+                    if (acknowledged) {
+                        ps.setBytes(index++, ACKNOWLEDGED_RESULT); // method_result
+                    } else if (payload.size() == 0 || hash != null) {
+                        ps.setNull(index++, Types.VARBINARY); // method_result
+                    } else {
+                        ps.setBinaryStream(index++, payload.toInputStream(), payload.size()); // method_result
+                    }
+                    if (resultStore != null) {
+                        setHash(ps, index++, hash); // result_hash
+                    }
+                    ps.setInt(index++, success ? 0 : 1); // the "success" column flags a failed invocation, check lockOrReturnPreviousResult()
+                    logTables[table].setKey(ps, index++, idempotentId);
+                    if (leasing) {
+                        ps.setString(index, lease == null ? null : lease.owner); // lease_owner
+                    }
+                    count = ps.executeUpdate();
+                }
+                if (count > 0) {
+                    break;
+                }
+            }
+            commit(connection);
 
             // "count" should be ONE
             if (count != 1) {
-                log.error("Save return result failed. idempotentId={}", idempotentId);
+                log.error("Save return result failed{}. idempotentId={}", leasing ? ", the lease has been taken over(leaseTime may be too short)" : "", idempotentId);
+                return false;
+            }
+            return true;
+        } finally {
+            payload.release();
+            if (connection != null) {
+                releaseConnection(connection);
             }
         }
     }
 
-    private void createTable() {
-        log.info("Idempotent log table name: {}", this.tableName);
-        try (
-                Connection conn = dataSource.getConnection();
-                Statement statement = conn.createStatement()
-        ) {
+    @Override
+    public void saveResults(Map<String, Object> results, Set<String> failed, ProceedingJoinPoint joinPoint) throws Exception {
+        trySaveResults(results, failed, joinPoint);
+    }
 
-            statement.execute("\n" +
-                    "CREATE TABLE IF NOT EXISTS " + this.tableName + " (\n" +
-                    "  idempotent_id varchar(64) NOT NULL,\n" +
-                    "  success tinyint NOT NULL DEFAULT '0',\n" +
-                    "  create_time datetime NOT NULL default CURRENT_TIMESTAMP(),\n" +
-                    "  method_result varbinary(10240),\n" +
-                    "  PRIMARY KEY (idempotent_id)\n" +
-                    ")");
-        } catch (Exception e) {
-            log.error("", e);
-        }
+    @Override
+    public Set<String> trySaveResults(Map<String, Object> results, Set<String> failed, ProceedingJoinPoint joinPoint) throws Exception {
+        return batches.trySaveResults(results, failed, JoinPoints.getMethod(joinPoint), JoinPoints.getReturnType(joinPoint));
+    }
+
+    /**
+     * Check that all the log tables exist and are accessible, check {@link ShardedIdempotentHandler}.
+     *
+     * @throws IllegalStateException if any of them is NOT accessible.
+     */
+    public void checkTables() {
+        schema.check();
     }
 }
@@ -0,0 +1,31 @@
+package org.coderclan.knots;
+
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Adapts Reactor {@link Mono} to {@link CompletableFuture}, it is loaded only if an idempotent method returns a Mono.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+final class ReactorAdapter {
+    private ReactorAdapter() {
+    }
+
+    /**
+     * @return a Mono which starts the invocation when it is subscribed.
+     */
+    static Object defer(Supplier<CompletableFuture<Object>> invocation) {
+        return Mono.defer(() -> Mono.fromFuture(invocation.get()));
+    }
+
+    /**
+     * Subscribe the Mono returned by the method.
+     */
+    @SuppressWarnings("unchecked")
+    static CompletableFuture<Object> toFuture(Object mono) {
+        return ((Mono<Object>) mono).toFuture();
+    }
+}
@@ -0,0 +1,369 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * Idempotent Handler which use Redis to keep locks and invocation results, to take the traffic off the relational
+ * database.
+ * <p>
+ * The lock is taken by a single {@code SET key token NX PX lockTtl}. While the invocation is running, its lock is
+ * renewed every {@code lockTtl / 3} milli-seconds, so the lock only expires if the instance crashed(or can NOT reach
+ * Redis for {@code lockTtl} milli-seconds). The result replaces the lock and expires after {@code ttl} milli-seconds,
+ * a null result is saved as a mark without the payload, its replays return null. If the invocation failed, the lock is
+ * deleted, so the next invocation will execute again.
+ * <p>
+ * If the result is saved within an active Spring managed transaction, the business data may still be rollback, so the
+ * result is written(and published) after the transaction is committed, and the lock is released if it is rollback.
+ * The lock is renewed until then.
+ * <p>
+ * When the invocation is finished, the Idempotent ID is published to the channel {@code <keyPrefix>completed},
+ * waiters on all instances are woken up at once instead of sleep-polling. Since Pub/Sub messages may be lost, waiters
+ * also check the key again after pauses of {@link WaitStrategy}.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class RedisIdempotentHandler implements IdempotentHandler, InitializingBean, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(RedisIdempotentHandler.class);
+
+    private static final byte LOCKED = 'L';
+    private static final byte DONE = 'D';
+
+    /**
+     * Replace the lock with the result, if the lock is still held by the invocation. KEYS[1]: key, ARGV[1]: lock token,
+     * ARGV[2]: result, ARGV[3]: ttl of the result, ARGV[4]: channel, ARGV[5]: Idempotent ID.
+     */
+    private static final byte[] SAVE_SCRIPT = ("" +
+            "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+            "redis.call('set', KEYS[1], ARGV[2], 'PX', ARGV[3]) " +
+            "redis.call('publish', ARGV[4], ARGV[5]) " +
+            "return 1 end " +
+            "return 0").getBytes(StandardCharsets.UTF_8);
+    /**
+     * Extend the lock, if the lock is still held by the invocation. KEYS[1]: key, ARGV[1]: lock token, ARGV[2]: ttl of
+     * the lock.
+     */
+    private static final byte[] RENEW_SCRIPT = ("" +
+            "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+            "redis.call('pexpire', KEYS[1], ARGV[2]) " +
+            "return 1 end " +
+            "return 0").getBytes(StandardCharsets.UTF_8);
+    /**
+     * Delete the lock, if the lock is still held by the invocation. KEYS[1]: key, ARGV[1]: lock token,
+     * ARGV[2]: channel, ARGV[3]: Idempotent ID.
+     */
+    private static final byte[] RELEASE_SCRIPT = ("" +
+            "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+            "redis.call('del', KEYS[1]) " +
+            "redis.call('publish', ARGV[2], ARGV[3]) " +
+            "return 1 end " +
+            "return 0").getBytes(StandardCharsets.UTF_8);
+
+    private final Serializer serializer;
+    private final RedisConnectionFactory connectionFactory;
+    private final String keyPrefix;
+    private final byte[] channel;
+    private final long lockTtl;
+    private final long ttl;
+    /**
+     * Tokens of the locks held by invocations of this instance, by Idempotent ID.
+     */
+    private final ConcurrentHashMap<String, Lock> locks = new ConcurrentHashMap<>();
+    /**
+     * Signals of the invocations waited by this instance, by Idempotent ID.
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> waiters = new ConcurrentHashMap<>();
+    private RedisMessageListenerContainer listenerContainer;
+    private ScheduledExecutorService heartbeat;
+    @Autowired
+    private WaitStrategy waitStrategy;
+    @Autowired
+    private IdempotenceMetrics metrics;
+
+    /**
+     * @param keyPrefix prefix of the keys and the channel.
+     * @param lockTtl   time to live (unit: millisecond) of locks.
+     * @param ttl       time to live (unit: millisecond) of results.
+     */
+    public RedisIdempotentHandler(Serializer serializer, RedisConnectionFactory connectionFactory, String keyPrefix, long lockTtl, long ttl) {
+        this.serializer = serializer;
+        this.connectionFactory = connectionFactory;
+        this.keyPrefix = keyPrefix;
+        this.channel = bytes(keyPrefix + "completed");
+        this.lockTtl = lockTtl;
+        this.ttl = ttl;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        listenerContainer = new RedisMessageListenerContainer();
+        listenerContainer.setConnectionFactory(connectionFactory);
+        listenerContainer.addMessageListener((message, pattern) -> {
+            CompletableFuture<Void> signal = waiters.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (signal != null) {
+                signal.complete(null);
+            }
+        }, new ChannelTopic(new String(channel, StandardCharsets.UTF_8)));
+        listenerContainer.afterPropertiesSet();
+        listenerContainer.start();
+
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "knots-redis-lock");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1L, lockTtl / 3);
+        heartbeat.scheduleWithFixedDelay(this::renewLocks, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+        }
+        if (listenerContainer != null) {
+            listenerContainer.destroy();
+        }
+    }
+
+    @Override
+    public Object lockOrReturnPreviousResult(String idempotentId, ProceedingJoinPoint joinPoint) throws Exception {
+        byte[] key = bytes(keyPrefix + idempotentId);
+        WaitStrategy.Wait wait = null;
+        try {
+            for (int tried = 0; ; tried++) {
+                Object previous = lookup(key, idempotentId, joinPoint, true);
+                if (previous != IN_PROGRESS) {
+                    return previous;
+                }
+                // null if the message has been received just now.
+                CompletableFuture<Void> signal = waiters.get(idempotentId);
+
+                // the previous invocation has not been finished yet, wait for the message.
+                log.info("Found previous invoke but it has NOT returned yet! idempotentId={}, tried={}", idempotentId, tried);
+                if (wait == null) {
+                    metrics.recordWait(JoinPoints.getMethod(joinPoint));
+                    wait = waitStrategy.start(JoinPoints.getMethod(joinPoint));
+                }
+                long pause = wait.nextPause();
+                if (pause < 0) {
+                    break;
+                }
+                if (signal != null) {
+                    try {
+                        signal.get(pause, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        // the message may be lost, check the key again.
+                    }
+                }
+                metrics.recordRetry(JoinPoints.getMethod(joinPoint));
+            }
+        } finally {
+            CompletableFuture<Void> signal = waiters.get(idempotentId);
+            if (signal != null && !signal.isDone()) {
+                // NOT woken up by the message, do NOT leak the signal.
+                waiters.remove(idempotentId, signal);
+            }
+        }
+        log.error("Found previous invoke but previous invoke is timeout! idempotentId={}", idempotentId);
+        throw new IdempotentTimeoutException("Found previous invoke but previous invoke is timeout! idempotentId=" + idempotentId);
+    }
+
+    @Override
+    public Object tryLockOrReturnPreviousResult(String idempotentId, ProceedingJoinPoint joinPoint) throws Exception {
+        return lookup(bytes(keyPrefix + idempotentId), idempotentId, joinPoint, false);
+    }
+
+    /**
+     * @param subscribe true to register a signal in {@link #waiters} if the previous invocation has NOT been finished.
+     * @return null if locked, {@link #IN_PROGRESS} if the previous invocation has NOT been finished, result of the
+     * previous invocation otherwise.
+     */
+    private Object lookup(byte[] key, String idempotentId, ProceedingJoinPoint joinPoint, boolean subscribe) throws Exception {
+        while (true) {
+            byte[] token = token();
+            byte[] value;
+            try (RedisConnection connection = connectionFactory.getConnection()) {
+                Boolean locked = connection.stringCommands().set(key, token, Expiration.milliseconds(lockTtl), RedisStringCommands.SetOption.SET_IF_ABSENT);
+                if (Boolean.TRUE.equals(locked)) {
+                    locks.put(idempotentId, new Lock(token, System.currentTimeMillis()));
+                    log.trace("First invocation of idempotentId={}.", idempotentId);
+                    return null;
+                }
+                if (subscribe) {
+                    // register the signal before reading the key, to NOT miss the message.
+                    waiters.computeIfAbsent(idempotentId, k -> new CompletableFuture<>());
+                }
+                value = connection.stringCommands().get(key);
+            }
+
+            if (value == null) {
+                // released (failed or expired) just now, try to lock again.
+                continue;
+            }
+            if (value[0] == DONE) {
+                log.debug("Previous invocation succeeded. idempotentId={}", idempotentId);
+                if (value.length == 1) {
+                    return ACKNOWLEDGED;
+                }
+                return serializer.deserialize(new ByteArrayInputStream(value, 1, value.length - 1), JoinPoints.getReturnType(joinPoint));
+            }
+            return IN_PROGRESS;
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if the lock is NOT held any more(e.g. it has expired), the invocation may be
+     *                               executed by others, the business transaction should be rollback.
+     */
+    @Override
+    public void saveResult(String idempotentId, Object result, boolean success, ProceedingJoinPoint joinPoint) throws Exception {
+        if (!trySaveResult(idempotentId, result, success, joinPoint)) {
+            throw new IllegalStateException("Save return result failed, the lock is lost. idempotentId=" + idempotentId);
+        }
+    }
+
+    /**
+     * If a transaction is active, the result is written after it is committed(the lock is released if it is rollback),
+     * and true is returned if the lock is still held now.
+     */
+    @Override
+    public boolean trySaveResult(String idempotentId, Object result, boolean success, ProceedingJoinPoint joinPoint) throws Exception {
+        Lock lock = locks.get(idempotentId);
+        if (lock == null) {
+            log.error("Save return result failed, lock NOT found. idempotentId={}", idempotentId);
+            return false;
+        }
+
+        byte[] value = null; // null to release the lock
+        if (success) {
+            if (result == ACKNOWLEDGED || Objects.isNull(result)) {
+                // the mark only, without the result, replays return null.
+                value = new byte[]{DONE};
+            } else {
+                PayloadBuffer payload = new PayloadBuffer();
+                payload.write(DONE);
+                serializer.serialize(result, JoinPoints.getReturnType(joinPoint), payload);
+                value = payload.toByteArray();
+                metrics.recordPayloadSize(JoinPoints.getMethod(joinPoint), value.length - 1);
+            }
+        }
+
+        if (!TransactionHooks.isActive()) {
+            return complete(idempotentId, lock, value);
+        }
+        // the business data may be rollback, do NOT publish a result which may be replayed.
+        byte[] saved = value;
+        TransactionHooks.afterCompletion(committed -> {
+            try {
+                complete(idempotentId, lock, committed ? saved : null);
+            } catch (RuntimeException e) {
+                log.error("Save return result failed after the transaction completed. idempotentId={}", idempotentId, e);
+            }
+        });
+        return isHeld(idempotentId, lock);
+    }
+
+    /**
+     * Replace the lock with the value, or release the lock(failed, or the transaction is rollback) if the value is
+     * null, and stop renewing it.
+     *
+     * @return true if the lock was still held.
+     */
+    private boolean complete(String idempotentId, Lock lock, byte[] value) {
+        locks.remove(idempotentId, lock);
+        byte[] key = bytes(keyPrefix + idempotentId);
+        byte[] id = bytes(idempotentId);
+        Boolean saved;
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            if (value != null) {
+                saved = connection.scriptingCommands().eval(SAVE_SCRIPT, ReturnType.BOOLEAN, 1, key, lock.token, value, bytes(Long.toString(ttl)), channel, id);
+            } else {
+                // failed, the next invocation will execute again.
+                saved = connection.scriptingCommands().eval(RELEASE_SCRIPT, ReturnType.BOOLEAN, 1, key, lock.token, channel, id);
+            }
+        }
+
+        if (!Boolean.TRUE.equals(saved)) {
+            log.error("Save return result failed, lock expired. lockTtl may be too short. idempotentId={}", idempotentId);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the lock is still held by the invocation.
+     */
+    private boolean isHeld(String idempotentId, Lock lock) {
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            return Arrays.equals(lock.token, connection.stringCommands().get(bytes(keyPrefix + idempotentId)));
+        }
+    }
+
+    /**
+     * Extend the locks of the invocations which have been running for a while, short invocations are finished before
+     * renewed.
+     */
+    private void renewLocks() {
+        long now = System.currentTimeMillis();
+        byte[] ttl = bytes(Long.toString(lockTtl));
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            for (Map.Entry<String, Lock> entry : locks.entrySet()) {
+                Lock lock = entry.getValue();
+                if (now - lock.lockedAt < lockTtl / 3) {
+                    continue;
+                }
+                Boolean renewed = connection.scriptingCommands().eval(RENEW_SCRIPT, ReturnType.BOOLEAN, 1, bytes(keyPrefix + entry.getKey()), lock.token, ttl);
+                if (!Boolean.TRUE.equals(renewed) && locks.get(entry.getKey()) == lock) {
+                    log.error("Lock expired before renewed, the invocation may be executed by others. lockTtl may be too short. idempotentId={}", entry.getKey());
+                }
+            }
+        } catch (Exception e) {
+            log.error("Failed to renew locks.", e);
+        }
+    }
+
+    private static byte[] token() {
+        byte[] uuid = bytes(UUID.randomUUID().toString());
+        byte[] token = new byte[uuid.length + 1];
+        token[0] = LOCKED;
+        System.arraycopy(uuid, 0, token, 1, uuid.length);
+        return token;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Lock held by an invocation of this instance.
+     */
+    private static final class Lock {
+        private final byte[] token;
+        private final long lockedAt;
+
+        private Lock(byte[] token, long lockedAt) {
+            this.token = token;
+            this.lockedAt = lockedAt;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.coderclan.knots;
+
+import org.coderclan.knots.annotation.AcknowledgeOnly;
+
+import java.lang.reflect.Method;
+
+/**
+ * Create results returned to replays of acknowledge-only methods, check {@link AcknowledgeOnly}. e.g. a constant
+ * {@code Result.success()}.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+@FunctionalInterface
+public interface ReplayResultFactory {
+    /**
+     * Replays get null.
+     */
+    ReplayResultFactory NULL = method -> null;
+
+    /**
+     * @param method the invoked method.
+     * @return result returned to a replay of the method.
+     */
+    Object create(Method method);
+}
@@ -1,6 +1,8 @@
 package org.coderclan.knots;
 
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
 
 /**
  * Serializer used to serialize or deserialize the return value of the Invocation.
@@ -11,4 +13,36 @@ public interface Serializer {
     Object deserialize(InputStream is) throws Exception;
 
     byte[] serialize(Object obj) throws Exception;
+
+    /**
+     * Deserialize the return value of a method whose generic return type is known.
+     *
+     * @param type generic return type of the method, or null if it is unknown.
+     */
+    default Object deserialize(InputStream is, Type type) throws Exception {
+        return deserialize(is);
+    }
+
+    /**
+     * Serialize the return value of a method whose generic return type is known. The same type should be passed to
+     * {@link #deserialize(InputStream, Type)}.
+     *
+     * @param type generic return type of the method, or null if it is unknown.
+     */
+    default byte[] serialize(Object obj, Type type) throws Exception {
+        return serialize(obj);
+    }
+
+    /**
+     * Serialize the return value into the stream, without materializing the whole payload if possible. Nothing is
+     * written if the value is null. The stream is NOT closed.
+     *
+     * @param type generic return type of the method, or null if it is unknown.
+     */
+    default void serialize(Object obj, Type type, OutputStream os) throws Exception {
+        byte[] bytes = serialize(obj, type);
+        if (bytes != null) {
+            os.write(bytes);
+        }
+    }
 }
@@ -0,0 +1,172 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+
+import java.util.*;
+
+/**
+ * Idempotent Handler which spreads the Idempotent IDs to several shards(e.g. {@link RdbmsIdempotentHandler}s of
+ * different tables or DataSources), to spread the write contention and the index size of the idempotent log.
+ * <p>
+ * Idempotent IDs are routed by the jump consistent hash(John Lamping, Eric Veach. A Fast, Minimal Memory, Consistent
+ * Hash Algorithm), if a shard is appended, only 1/N of the Idempotent IDs are moved to it. But a moved Idempotent ID is
+ * NOT found in its new shard, so its previous invocation is executed again: changing the shards (appending, reordering
+ * or removing, or changing the number of tables) is NOT safe while the log has rows which are NOT expired. Stop the
+ * traffic of idempotent methods until the log expires (or empty it) before the shards are changed.
+ * <p>
+ * The shards are NOT Spring beans, they are autowired and initialized by this handler, and the tables of
+ * {@link RdbmsIdempotentHandler} shards are checked when the application is started.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class ShardedIdempotentHandler implements BatchIdempotentHandler, BeanFactoryAware, InitializingBean, DisposableBean {
+    private static final Logger log = LoggerFactory.getLogger(ShardedIdempotentHandler.class);
+
+    private final IdempotentHandler[] shards;
+    private AutowireCapableBeanFactory beanFactory;
+
+    public ShardedIdempotentHandler(List<? extends IdempotentHandler> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required.");
+        }
+        this.shards = shards.toArray(new IdempotentHandler[0]);
+    }
+
+    @Override
+    public void setBeanFactory(BeanFactory beanFactory) throws BeansException {
+        if (beanFactory instanceof AutowireCapableBeanFactory) {
+            this.beanFactory = (AutowireCapableBeanFactory) beanFactory;
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        for (IdempotentHandler shard : shards) {
+            if (beanFactory != null) {
+                beanFactory.autowireBean(shard);
+            }
+            if (shard instanceof InitializingBean) {
+                ((InitializingBean) shard).afterPropertiesSet();
+            }
+            if (shard instanceof RdbmsIdempotentHandler) {
+                ((RdbmsIdempotentHandler) shard).checkTables();
+            }
+        }
+        log.info("Idempotent log is sharded into {} shards.", shards.length);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        for (IdempotentHandler shard : shards) {
+            if (shard instanceof DisposableBean) {
+                ((DisposableBean) shard).destroy();
+            }
+        }
+    }
+
+    @Override
+    public Object lockOrReturnPreviousResult(String idempotentId, ProceedingJoinPoint joinPoint) throws Exception {
+        return shardOf(idempotentId).lockOrReturnPreviousResult(idempotentId, joinPoint);
+    }
+
+    @Override
+    public Object tryLockOrReturnPreviousResult(String idempotentId, ProceedingJoinPoint joinPoint) throws Exception {
+        return shardOf(idempotentId).tryLockOrReturnPreviousResult(idempotentId, joinPoint);
+    }
+
+    @Override
+    public void saveResult(String idempotentId, Object result, boolean success, ProceedingJoinPoint joinPoint) throws Exception {
+        shardOf(idempotentId).saveResult(idempotentId, result, success, joinPoint);
+    }
+
+    @Override
+    public boolean trySaveResult(String idempotentId, Object result, boolean success, ProceedingJoinPoint joinPoint) throws Exception {
+        return shardOf(idempotentId).trySaveResult(idempotentId, result, success, joinPoint);
+    }
+
+    @Override
+    public Map<String, Object> tryLockOrReturnPreviousResults(Collection<String> idempotentIds, ProceedingJoinPoint joinPoint) throws Exception {
+        Map<String, Object> previousResults = new HashMap<>(idempotentIds.size() * 2);
+        for (Map.Entry<Integer, List<String>> group : groupByShard(idempotentIds).entrySet()) {
+            IdempotentHandler shard = shards[group.getKey()];
+            if (shard instanceof BatchIdempotentHandler) {
+                previousResults.putAll(((BatchIdempotentHandler) shard).tryLockOrReturnPreviousResults(group.getValue(), joinPoint));
+                continue;
+            }
+            for (String idempotentId : group.getValue()) {
+                previousResults.put(idempotentId, shard.tryLockOrReturnPreviousResult(idempotentId, joinPoint));
+            }
+        }
+        return previousResults;
+    }
+
+    @Override
+    public void saveResults(Map<String, Object> results, Set<String> failed, ProceedingJoinPoint joinPoint) throws Exception {
+        trySaveResults(results, failed, joinPoint);
+    }
+
+    @Override
+    public Set<String> trySaveResults(Map<String, Object> results, Set<String> failed, ProceedingJoinPoint joinPoint) throws Exception {
+        Set<String> stored = new HashSet<>(results.size() * 2);
+        for (Map.Entry<Integer, List<String>> group : groupByShard(results.keySet()).entrySet()) {
+            IdempotentHandler shard = shards[group.getKey()];
+            if (shard instanceof BatchIdempotentHandler) {
+                Map<String, Object> shardResults = new HashMap<>(group.getValue().size() * 2);
+                for (String idempotentId : group.getValue()) {
+                    shardResults.put(idempotentId, results.get(idempotentId));
+                }
+                stored.addAll(((BatchIdempotentHandler) shard).trySaveResults(shardResults, failed, joinPoint));
+                continue;
+            }
+            for (String idempotentId : group.getValue()) {
+                if (shard.trySaveResult(idempotentId, results.get(idempotentId), !failed.contains(idempotentId), joinPoint)) {
+                    stored.add(idempotentId);
+                }
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * @return Idempotent IDs by index of their shards.
+     */
+    private Map<Integer, List<String>> groupByShard(Collection<String> idempotentIds) {
+        Map<Integer, List<String>> groups = new TreeMap<>();
+        for (String idempotentId : idempotentIds) {
+            groups.computeIfAbsent(shard(idempotentId, shards.length), k -> new ArrayList<>()).add(idempotentId);
+        }
+        return groups;
+    }
+
+    private IdempotentHandler shardOf(String idempotentId) {
+        return shards[shard(idempotentId, shards.length)];
+    }
+
+    /**
+     * @return index of the shard of the Idempotent ID, by the jump consistent hash of its 64-bit FNV-1a hash.
+     */
+    static int shard(String idempotentId, int buckets) {
+        long key = 0xcbf29ce484222325L;
+        for (int i = 0; i < idempotentId.length(); i++) {
+            key ^= idempotentId.charAt(i);
+            key *= 0x100000001b3L;
+        }
+
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+}
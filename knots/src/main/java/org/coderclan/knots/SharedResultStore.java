@@ -0,0 +1,183 @@
+package org.coderclan.knots;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.security.MessageDigest;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Content addressed store of serialized results, used by {@link RdbmsIdempotentHandler} if shared results are enabled.
+ * Each distinct payload is saved once into the results table({@code <log table>_result}) by the first 128 bits of its
+ * SHA-256, rows of the log refer to it by the hash({@code result_hash}). Deserialized results are cached in memory by
+ * hash and type, replays of the same payload get the same object, callers should NOT modify them.
+ * <p>
+ * {@code last_used} of a payload is refreshed when it is saved again, at most once per half of the grace period by
+ * each instance. Payloads which are NOT referenced by the log and NOT used within the grace period are deleted by
+ * {@link IdempotentLogPurger}.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+final class SharedResultStore {
+    private static final Logger log = LoggerFactory.getLogger(SharedResultStore.class);
+
+    private final String table;
+    private final Serializer serializer;
+    /**
+     * Deserialized results, by hash and type.
+     */
+    private final LruCache<String, Object> results;
+    /**
+     * Hashes of the payloads whose {@code last_used} has been refreshed by this instance within half of the grace period.
+     */
+    private final LruCache<String, Boolean> refreshed;
+    private final String insertSql;
+    private final String touchSql;
+    private final String selectSql;
+
+    /**
+     * @param logTable    name of the log table(the base name if it is rotated).
+     * @param maximumSize maximum number of cached results.
+     * @param gracePeriod unreferenced payloads are kept at least this period (unit: millisecond).
+     */
+    SharedResultStore(String logTable, SqlDialect dialect, Serializer serializer, int maximumSize, long gracePeriod) {
+        this.table = tableName(logTable);
+        this.serializer = serializer;
+        this.results = new LruCache<>(maximumSize, 0);
+        this.refreshed = new LruCache<>(maximumSize, Math.max(1L, gracePeriod / 2));
+        String insertIfAbsent = dialect.insertResultIfAbsentSql(table);
+        this.insertSql = insertIfAbsent != null ? insertIfAbsent : "insert into " + table + " (result_hash,method_result,last_used) values (?,?,?)";
+        this.touchSql = "update " + table + " set last_used=? where result_hash=?";
+        this.selectSql = "select method_result from " + table + " where result_hash=?";
+    }
+
+    /**
+     * @return name of the results table of the log table.
+     */
+    static String tableName(String logTable) {
+        return logTable + "_result";
+    }
+
+    String getTable() {
+        return table;
+    }
+
+    /**
+     * Save the payload if it does NOT exist, or refresh its {@code last_used}.
+     *
+     * @param transactional true if the connection is bound to the business transaction, the payload is NOT taken as
+     *                      saved until the transaction is committed.
+     * @return hash of the payload.
+     */
+    byte[] share(Connection connection, PayloadBuffer payload, boolean transactional) throws SQLException {
+        MessageDigest digest = RdbmsIdempotentHandler.DIGESTS.get();
+        payload.update(digest);
+        byte[] hash = Arrays.copyOf(digest.digest(), 16);
+        if (!refresh(connection, hash)) {
+            insert(connection, hash, payload.toInputStream(), payload.size(), transactional);
+        }
+        remember(hash, transactional);
+        return hash;
+    }
+
+    /**
+     * @see #share(Connection, PayloadBuffer, boolean)
+     */
+    byte[] share(Connection connection, byte[] payload, boolean transactional) throws SQLException {
+        byte[] hash = Arrays.copyOf(RdbmsIdempotentHandler.DIGESTS.get().digest(payload), 16);
+        if (!refresh(connection, hash)) {
+            insert(connection, hash, new ByteArrayInputStream(payload), payload.length, transactional);
+        }
+        remember(hash, transactional);
+        return hash;
+    }
+
+    /**
+     * @return true if the payload exists, false if it should be inserted.
+     */
+    private boolean refresh(Connection connection, byte[] hash) throws SQLException {
+        if (refreshed.get(key(hash)) != null) {
+            // refreshed recently, NOT collected within the grace period.
+            return true;
+        }
+        return touch(connection, hash);
+    }
+
+    private boolean touch(Connection connection, byte[] hash) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(touchSql)) {
+            ps.setLong(1, System.currentTimeMillis()); // last_used
+            ps.setBytes(2, hash); // result_hash
+            return ps.executeUpdate() > 0;
+        }
+    }
+
+    private void insert(Connection connection, byte[] hash, InputStream payload, int length, boolean transactional) throws SQLException {
+        // a failed statement aborts the whole transaction on some databases(e.g. PostgreSQL),
+        // rollback to the savepoint to keep the business transaction usable.
+        Savepoint savepoint = transactional ? connection.setSavepoint() : null;
+        try (PreparedStatement ps = connection.prepareStatement(insertSql)) {
+            ps.setBytes(1, hash); // result_hash
+            ps.setBinaryStream(2, payload, length); // method_result
+            ps.setLong(3, System.currentTimeMillis()); // last_used
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            log.debug("Insert shared result failed. result_hash={}", key(hash), e);
+            if (savepoint != null) {
+                connection.rollback(savepoint);
+            } else if (!connection.getAutoCommit()) {
+                connection.rollback();
+            }
+            // Primary Key violating if the payload has been inserted by others concurrently, otherwise it's a bug.
+            if (!touch(connection, hash)) {
+                throw e;
+            }
+        }
+    }
+
+    private void remember(byte[] hash, boolean transactional) {
+        String key = key(hash);
+        if (!transactional) {
+            refreshed.put(key, Boolean.TRUE);
+            return;
+        }
+        TransactionHooks.afterCompletion(committed -> {
+            if (committed) {
+                refreshed.put(key, Boolean.TRUE);
+            }
+        });
+    }
+
+    /**
+     * @return the deserialized result of the payload, {@link IdempotentHandler#ACKNOWLEDGED} if it is empty.
+     * @throws IllegalStateException if the payload does NOT exist.
+     */
+    Object load(Connection connection, byte[] hash, Type type) throws Exception {
+        String key = key(hash) + "|" + type.getTypeName();
+        Object result = results.get(key);
+        if (result != null) {
+            return result;
+        }
+        try (PreparedStatement ps = connection.prepareStatement(selectSql)) {
+            ps.setBytes(1, hash); // result_hash
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    throw new IllegalStateException("Shared result NOT found. result_hash=" + key(hash) + ", table=" + table);
+                }
+                result = RdbmsIdempotentHandler.readResult(rs, serializer, type);
+            }
+        }
+        if (result != null) {
+            results.put(key, result);
+        }
+        return result;
+    }
+
+    private static String key(byte[] hash) {
+        return Base64.getEncoder().encodeToString(hash);
+    }
+}
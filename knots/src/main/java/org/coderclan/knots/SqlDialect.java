@@ -0,0 +1,248 @@
+package org.coderclan.knots;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+
+/**
+ * Database specific SQL of the idempotent log used by {@link RdbmsIdempotentHandler}. Locks are inserted by statements
+ * which skip the existing rows instead of failing, so Primary Key violations do NOT abort the transaction, and conflicts
+ * are NOT detected by exceptions.
+ * <p>
+ * Columns of the lock statements are {@link #lockColumns(boolean, boolean)}. Every statement writes its own token into
+ * {@code lease_owner}(whether the locks are leased or NOT), so the rows inserted by a multi-row statement which skipped
+ * some of them are found by the token.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public enum SqlDialect {
+    /**
+     * H2, locks are inserted by {@code MERGE ... WHEN NOT MATCHED THEN INSERT}, and a lock is obtained(or the existing
+     * row is fetched, or the failed invocation is reset) by one statement, check
+     * {@link #lockOrFetchSql(String, boolean, boolean, boolean)}. MERGE of H2 does NOT check and insert atomically,
+     * so {@link RdbmsIdempotentHandler} serializes the lock statements of a table in the JVM(H2 is usually embedded), and
+     * they never fail in one JVM. Primary Key violations of concurrent inserts by other processes(H2 server), or by
+     * joined transactions which are NOT committed yet, are taken as the row is locked by others.
+     */
+    H2,
+    /**
+     * MySQL and MariaDB, locks are inserted by {@code INSERT IGNORE}. If a multi-row insert skips some rows, the inserted
+     * ones are found by the token of the statement. MySQL can NOT return rows from an insert, so the existing row of a
+     * duplicate invocation is fetched by a second statement.
+     */
+    MYSQL,
+    /**
+     * PostgreSQL, locks are inserted by {@code INSERT ... ON CONFLICT DO NOTHING RETURNING}, and a lock is obtained(or the
+     * existing row is fetched, or the failed invocation is reset) by one statement, check {@link #lockOrFetchSql(String, boolean, boolean, boolean)}.
+     */
+    POSTGRESQL,
+    /**
+     * Other databases, locks are inserted by plain {@code INSERT}, Primary Key violations are rollback to savepoints.
+     */
+    OTHER;
+
+    /**
+     * @return dialect of the database.
+     */
+    public static SqlDialect of(DatabaseMetaData meta) throws SQLException {
+        String product = meta.getDatabaseProductName().toLowerCase();
+        if (product.contains("h2")) {
+            return H2;
+        } else if (product.contains("mysql") || product.contains("mariadb")) {
+            return MYSQL;
+        } else if (product.contains("postgresql")) {
+            return POSTGRESQL;
+        }
+        return OTHER;
+    }
+
+    /**
+     * @param hashedKeys true if the Primary Key is the hash of the Idempotent ID({@code idempotent_key}), the Idempotent
+     *                   ID is kept in a column without index.
+     */
+    public String createTableSql(String table, boolean hashedKeys) {
+        if (this == POSTGRESQL) {
+            return "\n" +
+                    "CREATE TABLE IF NOT EXISTS " + table + " (\n" +
+                    (hashedKeys ? "  idempotent_key bytea NOT NULL,\n  idempotent_id varchar(1024) NOT NULL,\n" : "  idempotent_id varchar(64) NOT NULL,\n") +
+                    "  success smallint NOT NULL DEFAULT 0,\n" +
+                    "  create_time timestamp NOT NULL default CURRENT_TIMESTAMP,\n" +
+                    "  method_result bytea,\n" +
+                    "  lease_owner varchar(64),\n" +
+                    "  lease_expire bigint,\n" +
+                    "  result_hash bytea,\n" +
+                    "  PRIMARY KEY (" + keyColumn(hashedKeys) + ")\n" +
+                    ")";
+        }
+        return "\n" +
+                "CREATE TABLE IF NOT EXISTS " + table + " (\n" +
+                (hashedKeys ? "  idempotent_key binary(16) NOT NULL,\n  idempotent_id varchar(1024) NOT NULL,\n" : "  idempotent_id varchar(64) NOT NULL,\n") +
+                "  success tinyint NOT NULL DEFAULT '0',\n" +
+                "  create_time datetime NOT NULL default CURRENT_TIMESTAMP(),\n" +
+                "  method_result varbinary(10240),\n" +
+                "  lease_owner varchar(64),\n" +
+                "  lease_expire bigint,\n" +
+                "  result_hash binary(16),\n" +
+                "  PRIMARY KEY (" + keyColumn(hashedKeys) + ")\n" +
+                ")";
+    }
+
+    /**
+     * @return type of the columns of 128 bits hashes.
+     */
+    public String hashType() {
+        return this == POSTGRESQL ? "bytea" : "binary(16)";
+    }
+
+    /**
+     * Table of shared results, check {@link SharedResultStore}. Each distinct payload is saved once by its hash.
+     */
+    public String createResultTableSql(String table) {
+        return "\n" +
+                "CREATE TABLE IF NOT EXISTS " + table + " (\n" +
+                "  result_hash " + hashType() + " NOT NULL,\n" +
+                "  method_result " + (this == POSTGRESQL ? "bytea" : "varbinary(10240)") + " NOT NULL,\n" +
+                "  last_used bigint NOT NULL,\n" +
+                "  PRIMARY KEY (result_hash)\n" +
+                ")";
+    }
+
+    /**
+     * @return statement which inserts a shared result(parameters: {@code result_hash, method_result, last_used}) if it
+     * does NOT exist, and skips it otherwise. Null if NOT supported.
+     */
+    public String insertResultIfAbsentSql(String table) {
+        String columns = "result_hash,method_result,last_used";
+        switch (this) {
+            case H2:
+                return "MERGE INTO " + table + " USING (VALUES (CAST(? AS VARBINARY),CAST(? AS VARBINARY),CAST(? AS BIGINT))) s(" + columns + ")"
+                        + " ON " + table + ".result_hash=s.result_hash WHEN NOT MATCHED THEN INSERT (" + columns + ") VALUES (s.result_hash,s.method_result,s.last_used)";
+            case MYSQL:
+                return "INSERT IGNORE INTO " + table + " (" + columns + ") VALUES (?,?,?)";
+            case POSTGRESQL:
+                return "INSERT INTO " + table + " (" + columns + ") VALUES (?,?,?) ON CONFLICT DO NOTHING";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return a row of the lock columns for {@code VALUES} of H2, parameters of VALUES need types, VARCHAR without length
+     * does NOT truncate the value.
+     */
+    private static String h2Row(boolean hashedKeys, boolean leased) {
+        return "(" + (hashedKeys ? "CAST(? AS VARBINARY),CAST(? AS VARCHAR)" : "CAST(? AS VARCHAR)")
+                + ",CAST(? AS VARCHAR)" + (leased ? ",CAST(? AS BIGINT)" : "") + ")";
+    }
+
+    /**
+     * @return the Primary Key column of the idempotent log.
+     */
+    public static String keyColumn(boolean hashedKeys) {
+        return hashedKeys ? "idempotent_key" : "idempotent_id";
+    }
+
+    /**
+     * @return columns of a lock, in the order of parameters: the key, the Idempotent ID if keys are hashed, the token of
+     * the statement({@code lease_owner}), and the expiry of the lease if it is leased.
+     */
+    public static String lockColumns(boolean hashedKeys, boolean leased) {
+        return (hashedKeys ? "idempotent_key,idempotent_id" : "idempotent_id") + ",lease_owner" + (leased ? ",lease_expire" : "");
+    }
+
+    /**
+     * @param hashedKeys true if keys are hashed.
+     * @param leased     true if the locks are leased.
+     * @param rows       number of rows.
+     * @return statement which inserts the locks which do NOT exist, and skips the others. Its update count is the
+     * number of inserted rows, or it returns {@code idempotent_id} of the inserted rows if {@link #returnsInserted()}.
+     * Null if NOT supported.
+     */
+    public String insertIfAbsentSql(String table, boolean hashedKeys, boolean leased, int rows) {
+        String columns = lockColumns(hashedKeys, leased);
+        String key = keyColumn(hashedKeys);
+        String row = "(" + repeat("?", columns.split(",").length) + ")";
+        switch (this) {
+            case H2:
+                return "MERGE INTO " + table + " USING (VALUES " + repeat(h2Row(hashedKeys, leased), rows) + ") s(" + columns + ")"
+                        + " ON " + table + "." + key + "=s." + key + " WHEN NOT MATCHED THEN INSERT (" + columns + ") VALUES (s."
+                        + columns.replace(",", ",s.") + ")";
+            case MYSQL:
+                return "INSERT IGNORE INTO " + table + " (" + columns + ") VALUES " + repeat(row, rows);
+            case POSTGRESQL:
+                return "INSERT INTO " + table + " (" + columns + ") VALUES " + repeat(row, rows) + " ON CONFLICT DO NOTHING RETURNING idempotent_id";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return true if {@link #insertIfAbsentSql(String, boolean, boolean, int)} returns the inserted Idempotent IDs.
+     */
+    public boolean returnsInserted() {
+        return this == POSTGRESQL;
+    }
+
+    /**
+     * Statement which inserts the lock, or resets the failed invocation to lock it again, and fetches the existing row in
+     * one round trip. Parameters are the columns of the lock, then the key again. It returns one row: the
+     * number of obtained locks({@code locked}), and columns of the row which existed before the statement(NULL if
+     * absent).
+     *
+     * @param hashedKeys    true if keys are hashed.
+     * @param leased        true if the locks are leased.
+     * @param sharedResults true if results may be shared({@code result_hash}), check {@link SharedResultStore}.
+     * @return the statement, null if NOT supported.
+     */
+    public String lockOrFetchSql(String table, boolean hashedKeys, boolean leased, boolean sharedResults) {
+        String columns = lockColumns(hashedKeys, leased);
+        String key = keyColumn(hashedKeys);
+        String fetched = "t.idempotent_id, t.method_result, t.success" + (sharedResults ? ", t.result_hash" : "")
+                + ", t.lease_owner" + (leased ? ", t.lease_expire" : "");
+        // a failed invocation of another Idempotent ID whose key is the same(hash collision) is NOT reset.
+        String sameId = hashedKeys ? " AND " + table + ".idempotent_id=" + (this == H2 ? "s" : "EXCLUDED") + ".idempotent_id" : "";
+        if (this == H2) {
+            // the joined row is read before the MERGE.
+            return "SELECT (SELECT COUNT(*) FROM FINAL TABLE (MERGE INTO " + table + " USING (VALUES " + h2Row(hashedKeys, leased) + ") s(" + columns + ")"
+                    + " ON " + table + "." + key + "=s." + key
+                    + " WHEN MATCHED AND " + table + ".success=1" + sameId + " THEN UPDATE SET method_result=NULL, success=0"
+                    + (sharedResults ? ", result_hash=NULL" : "")
+                    + ", lease_owner=s.lease_owner" + (leased ? ", lease_expire=s.lease_expire" : "")
+                    + " WHEN NOT MATCHED THEN INSERT (" + columns + ") VALUES (s." + columns.replace(",", ",s.") + "))) AS locked, "
+                    + fetched + " FROM (VALUES 1) d LEFT JOIN " + table + " t ON t." + key + "=?";
+        }
+        if (this != POSTGRESQL) {
+            return null;
+        }
+        return "WITH locked AS (INSERT INTO " + table + " (" + columns + ") VALUES (" + repeat("?", columns.split(",").length) + ")"
+                + " ON CONFLICT (" + key + ") DO UPDATE SET method_result=NULL, success=0"
+                + (sharedResults ? ", result_hash=NULL" : "")
+                + ", lease_owner=EXCLUDED.lease_owner" + (leased ? ", lease_expire=EXCLUDED.lease_expire" : "")
+                + " WHERE " + table + ".success=1" + sameId + " RETURNING idempotent_id)"
+                + " SELECT (SELECT count(*) FROM locked) AS locked, " + fetched
+                + " FROM (SELECT 1) d LEFT JOIN " + table + " t ON t." + key + "=?";
+    }
+
+    /**
+     * @return query of the current time of the database, in milliseconds since the epoch. Null if NOT supported.
+     */
+    public String currentTimeMillisSql() {
+        switch (this) {
+            case H2:
+                return "SELECT CAST(EXTRACT(EPOCH FROM CURRENT_TIMESTAMP) * 1000 AS BIGINT)";
+            case MYSQL:
+                return "SELECT CAST(UNIX_TIMESTAMP(CURRENT_TIMESTAMP(3)) * 1000 AS SIGNED)";
+            case POSTGRESQL:
+                return "SELECT CAST(EXTRACT(EPOCH FROM CLOCK_TIMESTAMP()) * 1000 AS BIGINT)";
+            default:
+                return null;
+        }
+    }
+
+    private static String repeat(String row, int rows) {
+        StringBuilder sql = new StringBuilder();
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "" : ",").append(row);
+        }
+        return sql.toString();
+    }
+}
@@ -0,0 +1,51 @@
+package org.coderclan.knots;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HTTP response saved by {@link IdempotencyKeyFilter}, replayed to the following requests of the same Idempotency-Key.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class StoredResponse implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private int status;
+    private String contentType;
+    /**
+     * Names and values of headers, in pairs.
+     */
+    private List<String> headers = new ArrayList<>();
+    private byte[] body;
+
+    public StoredResponse() {
+    }
+
+    public StoredResponse(int status, String contentType, List<String> headers, byte[] body) {
+        this.status = status;
+        this.contentType = contentType;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return names and values of headers, in pairs: name0, value0, name1, value1, ...
+     */
+    public List<String> getHeaders() {
+        return headers;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+}
@@ -0,0 +1,85 @@
+package org.coderclan.knots;
+
+/**
+ * Time bucketed rotation of the idempotent log table. The log is split into a ring of {@code buckets} tables
+ * ({@code <tableName>_0}, {@code <tableName>_1}, ...), each table receives the locks of one period of time
+ * ({@code bucketLength}) in turn. The table which will receive locks next is truncated in advance, instead of deleting
+ * expired rows one by one.
+ * <p>
+ * Rows are kept at least {@code (buckets - 2) * bucketLength} milli-seconds.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public class TableRotation {
+    private final String[] tables;
+    private final long bucketLength;
+
+    /**
+     * @param tableName    base name of the tables.
+     * @param buckets      number of tables, at least 3.
+     * @param bucketLength period (unit: millisecond) of time of a table.
+     */
+    public TableRotation(String tableName, int buckets, long bucketLength) {
+        if (buckets < 3 || bucketLength <= 0) {
+            throw new IllegalArgumentException("buckets should be at least 3 and bucketLength should be positive. buckets=" + buckets + ", bucketLength=" + bucketLength);
+        }
+        this.tables = new String[buckets];
+        for (int i = 0; i < buckets; i++) {
+            tables[i] = tableName + "_" + i;
+        }
+        this.bucketLength = bucketLength;
+    }
+
+    /**
+     * Create a rotation which keeps rows at least {@code retention} milli-seconds.
+     */
+    public static TableRotation of(String tableName, int buckets, long retention) {
+        return new TableRotation(tableName, buckets, Math.max(1L, retention / (buckets - 2)));
+    }
+
+    /**
+     * @return all tables of the ring.
+     */
+    public String[] getTables() {
+        return tables;
+    }
+
+    /**
+     * @return index of the table which receives locks at the time.
+     */
+    public int current(long time) {
+        return (int) ((time / bucketLength) % tables.length);
+    }
+
+    /**
+     * @return index of the table which will receive locks after the current one, it should be truncated in advance.
+     */
+    public int next(long time) {
+        return (current(time) + 1) % tables.length;
+    }
+
+    /**
+     * Tables which may contain rows which are not expired, the current one first, and then the older ones.
+     *
+     * @return indexes of the tables.
+     */
+    public int[] live(long time) {
+        int current = current(time);
+        int[] live = new int[tables.length - 1];
+        for (int i = 0; i < live.length; i++) {
+            live[i] = (current - i + tables.length) % tables.length;
+        }
+        return live;
+    }
+
+    /**
+     * @return time (unit: millisecond) elapsed since the current table started to receive locks.
+     */
+    public long elapsedInBucket(long time) {
+        return time % bucketLength;
+    }
+
+    public long getBucketLength() {
+        return bucketLength;
+    }
+}
@@ -0,0 +1,41 @@
+package org.coderclan.knots;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.function.Consumer;
+
+/**
+ * Run callbacks after the active Spring managed transaction completes.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+final class TransactionHooks {
+    private TransactionHooks() {
+    }
+
+    /**
+     * @return true if there is an active transaction, whose completion callbacks can be registered.
+     */
+    static boolean isActive() {
+        return TransactionSynchronizationManager.isSynchronizationActive();
+    }
+
+    /**
+     * Run the callback after the active transaction completes, or run it immediately if there is no active transaction.
+     *
+     * @param callback accepts true if the transaction is committed (or there is no active transaction), false if it is rollback.
+     */
+    static void afterCompletion(Consumer<Boolean> callback) {
+        if (!isActive()) {
+            callback.accept(true);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                callback.accept(status == STATUS_COMMITTED);
+            }
+        });
+    }
+}
@@ -0,0 +1,45 @@
+package org.coderclan.knots;
+
+import java.lang.reflect.Method;
+
+/**
+ * Strategy of waiting for the previous invocation of the same Idempotent ID to finish.
+ * It is used by {@link IdempotentHandler} to decide how long to pause between polling the previous invocation result,
+ * and by {@link IdempotentAspect} to decide how long to wait for an in-flight invocation of this JVM.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public interface WaitStrategy {
+    /**
+     * Start to wait for the previous invocation.
+     *
+     * @param method the invoked method, may be null if unknown.
+     * @return a new {@link Wait}, which is used by the current thread only.
+     */
+    Wait start(Method method);
+
+    /**
+     * @return maximum time (unit: millisecond) to wait for the previous invocation.
+     */
+    long getTimeout();
+
+    /**
+     * Record the execution time of the method, strategies may use it to predict when to poll.
+     *
+     * @param method  the invoked method.
+     * @param elapsed execution time of the method (unit: millisecond).
+     */
+    default void recordExecution(Method method, long elapsed) {
+    }
+
+    /**
+     * State of one waiting.
+     */
+    interface Wait {
+        /**
+         * @return pause (unit: millisecond) before polling the previous invocation result again,
+         * negative if the waiting is timeout.
+         */
+        long nextPause();
+    }
+}
@@ -0,0 +1,32 @@
+package org.coderclan.knots.annotation;
+
+import org.coderclan.knots.ReplayResultFactory;
+
+import java.lang.annotation.*;
+
+/**
+ * AcknowledgeOnly indicates that results of the annotated method or all methods in the annotated class are NOT saved,
+ * only the completion of the invocation is recorded. Results are NOT serialized and NOT stored, replays get the result
+ * created by {@link #value()}. It is for methods whose callers only need to know that the request has been processed,
+ * e.g. methods return a trivial {@code Result<Void>}.
+ * <p>
+ * Methods which return {@code void}(or {@code Void}) are acknowledge-only implicitly, their replays return null.
+ * The method(or the class) should still be annotated by {@link Idempotent}.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+@Inherited
+@Documented
+public @interface AcknowledgeOnly {
+    /**
+     * Factory of results returned to replays. It is got from the Spring context if there is a bean of the type,
+     * otherwise it is instantiated by its default constructor. The results should be regarded as success by the
+     * {@link org.coderclan.knots.ResultChecker}.
+     *
+     * @return type of the factory. Default: the {@link ReplayResultFactory} bean of the Spring context, replays return
+     * null if there is no such bean.
+     */
+    Class<? extends ReplayResultFactory> value() default ReplayResultFactory.class;
+}
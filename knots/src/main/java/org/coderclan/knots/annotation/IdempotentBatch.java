@@ -0,0 +1,43 @@
+package org.coderclan.knots.annotation;
+
+import org.coderclan.knots.BatchIdempotentHandler;
+
+import java.lang.annotation.*;
+
+/**
+ * IdempotentBatch indicates that the annotated method processes a collection of items, each item has its own
+ * Idempotent ID. Only the items which have NOT been processed are passed to the method, results of the others are
+ * returned directly.
+ * <p>
+ * The parameter of the items should be declared as {@link java.util.List}, {@link java.util.Collection} or
+ * {@link Iterable}, and the method should return a {@link java.util.List} of the results in the order of the items it
+ * is invoked with (one result per item). e.g.
+ * <pre>
+ * &#64;IdempotentBatch("requestId")
+ * public List&lt;Receipt&gt; pay(List&lt;PayRequest&gt; requests)
+ * </pre>
+ * Items are locked and looked up in one round trip if the {@link org.coderclan.knots.IdempotentHandler} is a
+ * {@link BatchIdempotentHandler}.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+@Documented
+@Idempotent
+public @interface IdempotentBatch {
+
+    /**
+     * SPEL expression which is used to calculate Idempotent ID of an item, the item is the root object of the
+     * expression, e.g. "requestId" or "tenant + ':' + requestId".
+     * If it is empty, the Idempotent ID is marked by {@link IdempotentId} on fields or getters of the item type.
+     *
+     * @return SPEL Expression which is used to calculate Idempotent ID of an item.
+     */
+    String value() default "";
+
+    /**
+     * @return index of the parameter of the items. Default: 0.
+     */
+    int parameter() default 0;
+}
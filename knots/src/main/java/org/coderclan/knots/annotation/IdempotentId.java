@@ -0,0 +1,28 @@
+package org.coderclan.knots.annotation;
+
+import org.coderclan.knots.AnnotatedIdempotentIdFetcher;
+
+import java.lang.annotation.*;
+
+/**
+ * Marks where the Idempotent ID is: a parameter of an idempotent method, or a field or getter of the type of a parameter
+ * (e.g. {@code Request.requestId}). If several parameters, fields or getters are marked, their values are concatenated
+ * by ":" in order of {@link #order()} (e.g. tenant + requestId).
+ * It is used by {@link AnnotatedIdempotentIdFetcher}, the method should still be annotated by
+ * {@link Idempotent} (or the class should be). It is ignored if the method (or the class) is annotated by
+ * {@link IdempotentIdExpression}.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+@Documented
+public @interface IdempotentId {
+    /**
+     * Order of the part in a composite Idempotent ID, lower first. Parts of the same order are in order of the
+     * parameters, and then names of the fields or getters.
+     *
+     * @return order of the part.
+     */
+    int order() default 0;
+}
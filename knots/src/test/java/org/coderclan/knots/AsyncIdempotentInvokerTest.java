@@ -0,0 +1,104 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.TaskDecorator;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+class AsyncIdempotentInvokerTest {
+    private static final ThreadLocal<String> USER = new ThreadLocal<>();
+
+    private final ExecutorService invocationExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "business"));
+    private AsyncIdempotentInvoker invoker;
+
+    @AfterEach
+    void tearDown() {
+        USER.remove();
+        invoker.destroy();
+        invocationExecutor.shutdownNow();
+    }
+
+    @Test
+    void stateOfCallerIsPropagatedByTaskDecorator() throws Exception {
+        invoker = invoker(null, propagateUser());
+
+        USER.set("alice");
+        Object returned = invoke("a");
+        USER.remove();
+
+        assertThat(((CompletableFuture<?>) returned).get(3, TimeUnit.SECONDS)).isEqualTo("alice@knots-async-1");
+    }
+
+    @Test
+    void methodIsInvokedByInvocationExecutor() throws Exception {
+        invoker = invoker(invocationExecutor, propagateUser());
+
+        USER.set("bob");
+        Object returned = invoke("b");
+        USER.remove();
+
+        assertThat(((CompletableFuture<?>) returned).get(3, TimeUnit.SECONDS)).isEqualTo("bob@business");
+    }
+
+    @Test
+    void stateIsLostWithoutTaskDecorator() throws Exception {
+        invoker = invoker(null, null);
+
+        USER.set("carol");
+        Object returned = invoke("c");
+
+        assertThat(((CompletableFuture<?>) returned).get(3, TimeUnit.SECONDS)).isEqualTo("null@knots-async-1");
+    }
+
+    private Object invoke(String idempotentId) throws Exception {
+        Service service = new Service();
+        Method method = Service.class.getMethod("call", String.class);
+        ProceedingJoinPoint joinPoint = JoinPointStub.of(service, method, idempotentId);
+        return invoker.invoke(idempotentId, joinPoint, new InvocationPlanRegistry().getPlan(method, Service.class));
+    }
+
+    private static TaskDecorator propagateUser() {
+        return runnable -> {
+            // captured on the calling thread.
+            String user = USER.get();
+            return () -> {
+                USER.set(user);
+                try {
+                    runnable.run();
+                } finally {
+                    USER.remove();
+                }
+            };
+        };
+    }
+
+    private static AsyncIdempotentInvoker invoker(ExecutorService invocationExecutor, TaskDecorator taskDecorator) {
+        AsyncIdempotentInvoker invoker = new AsyncIdempotentInvoker(1, invocationExecutor, taskDecorator);
+        ReflectionTestUtils.setField(invoker, "idempotentHandler", new IdempotencyKeyFilterTest.RecordingHandler());
+        ReflectionTestUtils.setField(invoker, "resultChecker", (ResultChecker) result -> true);
+        ReflectionTestUtils.setField(invoker, "inFlightRegistry", new InFlightRegistry());
+        ReflectionTestUtils.setField(invoker, "properties", new KnotsProperties());
+        ReflectionTestUtils.setField(invoker, "waitStrategy", new FixedWaitStrategy(3, 100));
+        ReflectionTestUtils.setField(invoker, "metrics", IdempotenceMetrics.NOOP);
+        ReflectionTestUtils.setField(invoker, "monitor", new InvocationMonitor(false, 10, 60000));
+        return invoker;
+    }
+
+    static class Service {
+        public CompletableFuture<String> call(String id) {
+            return CompletableFuture.completedFuture(USER.get() + "@" + Thread.currentThread().getName());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.coderclan.knots;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+class BinarySerializerTest {
+    private final BinarySerializer serializer = new BinarySerializer();
+
+    @Test
+    void roundTripOfDeclaredAndNamedValues() throws Exception {
+        Order order = new Order("o-1", Status.PAID, new Item("apple"), Collections.singletonList(Status.NEW));
+
+        Object read = roundTrip(order, Order.class);
+
+        assertThat(read).isInstanceOf(Order.class);
+        Order copy = (Order) read;
+        assertThat(copy.id).isEqualTo("o-1");
+        assertThat(copy.status).isEqualTo(Status.PAID);
+        assertThat(copy.extra).isInstanceOf(Item.class);
+        assertThat(((Item) copy.extra).name).isEqualTo("apple");
+        assertThat(copy.history).containsExactly(Status.NEW);
+    }
+
+    @Test
+    void untypedRootIsReadWithItsClass() throws Exception {
+        Object read = roundTrip(new Item("pear"), null);
+
+        assertThat(read).isInstanceOf(Item.class);
+        assertThat(((Item) read).name).isEqualTo("pear");
+    }
+
+    @Test
+    void enumsAreWrittenByName() throws Exception {
+        byte[] payload = serializer.serialize(Status.PAID, Status.class);
+
+        assertThat(new String(payload, StandardCharsets.ISO_8859_1)).contains("PAID");
+        assertThat(serializer.deserialize(new ByteArrayInputStream(payload), Status.class)).isEqualTo(Status.PAID);
+    }
+
+    @Test
+    void changedSchemaOfNamedValueFails() throws Exception {
+        byte[] payload = serializer.serialize(new Item("plum"), null);
+        // header(6 bytes), tag, class name, and then the schema hash of the class.
+        String name = Item.class.getName();
+        int hashAt = indexOf(payload, name.getBytes(StandardCharsets.UTF_8)) + name.length();
+        payload[hashAt] ^= 0x5A;
+
+        assertThatThrownBy(() -> serializer.deserialize(new ByteArrayInputStream(payload), null))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining(name);
+    }
+
+    @Test
+    void otherVersionsAreRejected() throws Exception {
+        byte[] payload = serializer.serialize(Status.PAID, Status.class);
+        payload[1] = 1;
+
+        assertThatThrownBy(() -> serializer.deserialize(new ByteArrayInputStream(payload), Status.class))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("version");
+    }
+
+    @Test
+    void resultsOfJdkSerializerAreRead() throws Exception {
+        byte[] payload = new JdkSerializer().serialize(Collections.singletonList("jdk"));
+
+        assertThat(serializer.deserialize(new ByteArrayInputStream(payload), null)).isEqualTo(Collections.singletonList("jdk"));
+    }
+
+    private Object roundTrip(Object value, Class<?> type) throws Exception {
+        return serializer.deserialize(new ByteArrayInputStream(serializer.serialize(value, type)), type);
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + part.length), part)) {
+                return i;
+            }
+        }
+        throw new AssertionError("NOT found.");
+    }
+
+    enum Status {
+        NEW, PAID
+    }
+
+    static class Item {
+        private String name;
+
+        Item(String name) {
+            this.name = name;
+        }
+    }
+
+    static class Order {
+        private String id;
+        private Status status;
+        private Object extra;
+        private List<Status> history;
+
+        Order(String id, Status status, Object extra, List<Status> history) {
+            this.id = id;
+            this.status = status;
+            this.extra = extra;
+            this.history = history;
+        }
+    }
+}
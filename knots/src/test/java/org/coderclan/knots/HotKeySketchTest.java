@@ -0,0 +1,62 @@
+package org.coderclan.knots;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * {@link HotKeySketch}: the most frequent keys are kept, keys colliding in {@link String#hashCode()} are counted
+ * apart, and counts are halved every half-life.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+class HotKeySketchTest {
+
+    @Test
+    void mostFrequentKeysAreKept() {
+        HotKeySketch sketch = new HotKeySketch(2, 0);
+        add(sketch, "a", 5);
+        add(sketch, "b", 3);
+        add(sketch, "c", 1);
+        add(sketch, "d", 8);
+
+        List<Map.Entry<String, Long>> top = sketch.top();
+
+        assertThat(top).extracting(Map.Entry::getKey).containsExactly("d", "a");
+        assertThat(top).extracting(Map.Entry::getValue).containsExactly(8L, 5L);
+    }
+
+    @Test
+    void keysWithSameHashCodeAreCountedApart() {
+        assertThat("Aa".hashCode()).isEqualTo("BB".hashCode());
+        HotKeySketch sketch = new HotKeySketch(2, 0);
+        add(sketch, "BB", 100);
+        add(sketch, "Aa", 1);
+
+        assertThat(sketch.top()).extracting(Map.Entry::getValue).containsExactly(100L, 1L);
+    }
+
+    @Test
+    void countsAreHalvedAfterHalfLife() throws InterruptedException {
+        HotKeySketch sketch = new HotKeySketch(2, 50);
+        add(sketch, "a", 8);
+        add(sketch, "b", 1);
+
+        Thread.sleep(100);
+        // decay is due, it's applied before counting this one.
+        add(sketch, "a", 1);
+
+        // "b" is halved to 0 and leaves the top-K.
+        assertThat(sketch.top()).extracting(Map.Entry::getKey).containsExactly("a");
+        assertThat(sketch.top().get(0).getValue()).isEqualTo(5L);
+    }
+
+    private static void add(HotKeySketch sketch, String key, int times) {
+        for (int i = 0; i < times; i++) {
+            sketch.add(key);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.coderclan.knots.annotation.Idempotent;
+import org.coderclan.knots.annotation.IdempotentIdExpression;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.method.HandlerMethod;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+class IdempotencyKeyFilterTest {
+    private final RecordingHandler handler = new RecordingHandler();
+
+    @AfterEach
+    void tearDown() {
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    @Test
+    void keysAreScopedByMethodUriAndUser() throws Exception {
+        IdempotencyKeyFilter filter = new IdempotencyKeyFilter(handler, IdempotencyKeyFilter.DEFAULT_HEADER, Collections.singletonList("POST"));
+
+        filter.doFilter(request("POST", "/orders", "alice", "k-1"), new MockHttpServletResponse(), new MockFilterChain());
+        filter.doFilter(request("POST", "/orders", "bob", "k-1"), new MockHttpServletResponse(), new MockFilterChain());
+        filter.doFilter(request("POST", "/payments", "alice", "k-1"), new MockHttpServletResponse(), new MockFilterChain());
+        filter.doFilter(request("POST", "/orders", "alice", "k-1"), new MockHttpServletResponse(), new MockFilterChain());
+
+        assertThat(handler.locked).hasSize(4);
+        assertThat(handler.locked.subList(0, 3)).doesNotHaveDuplicates();
+        assertThat(handler.locked.get(3)).isEqualTo(handler.locked.get(0));
+        assertThat(handler.locked.get(0)).startsWith(IdempotencyKeyFilter.KEY_PREFIX).endsWith(":k-1");
+    }
+
+    @Test
+    void lengthOfKeysIsLimitedByIdColumn() throws Exception {
+        String key = repeat('k', 100);
+        IdempotencyKeyFilter filter = new IdempotencyKeyFilter(handler, IdempotencyKeyFilter.DEFAULT_HEADER, Collections.singletonList("POST"));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request("POST", "/orders", "alice", key), response, new MockFilterChain());
+        assertThat(response.getStatus()).isEqualTo(400);
+
+        IdempotencyKeyFilter hashed = new IdempotencyKeyFilter(handler, IdempotencyKeyFilter.DEFAULT_HEADER, Collections.singletonList("POST"),
+                IdempotencyKeyFilter.MAX_HASHED_ID_LENGTH);
+        response = new MockHttpServletResponse();
+        hashed.doFilter(request("POST", "/orders", "alice", key), response, new MockFilterChain());
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(handler.locked).hasSize(1);
+    }
+
+    @Test
+    void headerIsUsedByHandlerMethodOnly() throws Exception {
+        Controller controller = new Controller();
+        Method create = Controller.class.getMethod("create", String.class);
+        Method audit = Controller.class.getMethod("audit", String.class);
+        MockHttpServletRequest request = request("POST", "/orders", "alice", "k-1");
+        request.setAttribute(HeaderIdempotentIdFetcher.HANDLER_ATTRIBUTE, new HandlerMethod(controller, create));
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+
+        HeaderIdempotentIdFetcher fetcher = new HeaderIdempotentIdFetcher(IdempotencyKeyFilter.DEFAULT_HEADER);
+        InvocationPlanRegistry registry = new InvocationPlanRegistry();
+        String id = fetcher.getIdempotentId(JoinPointStub.of(controller, create, "body"), registry.getPlan(create, Controller.class));
+        assertThat(id).startsWith(IdempotencyKeyFilter.KEY_PREFIX).endsWith(":k-1");
+        // invoked by the handler method.
+        assertThat(fetcher.getIdempotentId(JoinPointStub.of(controller, audit, "body"), registry.getPlan(audit, Controller.class)))
+                .isEqualTo("audit:body");
+    }
+
+    private static MockHttpServletRequest request(String method, String uri, String user, String key) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, uri);
+        request.setRemoteUser(user);
+        request.addHeader(IdempotencyKeyFilter.DEFAULT_HEADER, key);
+        return request;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    static class Controller {
+        @Idempotent
+        @IdempotentIdExpression("'create:' + arg[0]")
+        public String create(String body) {
+            return body;
+        }
+
+        @Idempotent
+        @IdempotentIdExpression("'audit:' + arg[0]")
+        public String audit(String body) {
+            return body;
+        }
+    }
+
+    /**
+     * Records locked Idempotent IDs, every invocation is executed.
+     */
+    static class RecordingHandler implements IdempotentHandler {
+        final List<String> locked = new ArrayList<>();
+
+        @Override
+        public Object lockOrReturnPreviousResult(String idempotentId, ProceedingJoinPoint joinPoint) {
+            locked.add(idempotentId);
+            return null;
+        }
+
+        @Override
+        public void saveResult(String idempotentId, Object result, boolean success, ProceedingJoinPoint joinPoint) {
+        }
+    }
+}
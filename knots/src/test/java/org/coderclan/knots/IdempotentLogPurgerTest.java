@@ -0,0 +1,145 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * {@link IdempotentLogPurger} against an in-process H2 database.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+class IdempotentLogPurgerTest {
+    private static final String TABLE = "purged_log";
+    private static final long BUCKET = 3600_000L;
+
+    private final List<RdbmsIdempotentHandler> handlers = new ArrayList<>();
+    private DataSource dataSource;
+    private JdbcTemplate jdbc;
+    private ProceedingJoinPoint joinPoint;
+    private KnotsProperties.Retention retention;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        dataSource = new DriverManagerDataSource("jdbc:h2:mem:knots-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        jdbc = new JdbcTemplate(dataSource);
+        joinPoint = JoinPointStub.of(new Service(), Service.class.getMethod("call", String.class), "id");
+        retention = new KnotsProperties.Retention();
+        retention.setPeriod(24 * 3600_000L);
+        // purged by the test, NOT by the schedule.
+        retention.setPurgeInterval(3600_000L);
+        retention.setBatchSize(2);
+        retention.setBatchPause(0);
+    }
+
+    @AfterEach
+    void tearDown() {
+        handlers.forEach(RdbmsIdempotentHandler::destroy);
+    }
+
+    @Test
+    void expiredRowsAreDeletedInBatches() throws Exception {
+        RdbmsIdempotentHandler handler = handler(null, null);
+        for (String id : new String[]{"a", "b", "c", "d", "e"}) {
+            assertThat(handler.tryLockOrReturnPreviousResult(id, joinPoint)).isNull();
+            assertThat(handler.trySaveResult(id, "result of " + id, true, joinPoint)).isTrue();
+        }
+        jdbc.update("update " + TABLE + " set create_time=DATEADD('DAY', -2, CURRENT_TIMESTAMP) where idempotent_id<>'e'");
+
+        purge(new IdempotentLogPurger(dataSource, TABLE, null, retention));
+
+        assertThat(jdbc.queryForList("select idempotent_id from " + TABLE, String.class)).containsExactly("e");
+    }
+
+    @Test
+    void nextTableIsTruncatedInFirstHalfOfBucket() throws Exception {
+        TableRotationTest.ManualRotation rotation = new TableRotationTest.ManualRotation(TABLE, 3, BUCKET, 2 * BUCKET + 1);
+        RdbmsIdempotentHandler handler = handler(rotation, null);
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isNull();
+        IdempotentLogPurger purger = new IdempotentLogPurger(dataSource, TABLE, rotation, retention);
+
+        // the next table(_2) is becoming the current one in the second half, it is NOT truncated.
+        rotation.now = 4 * BUCKET + BUCKET / 2 + 1;
+        purge(purger);
+        assertThat(count(TABLE + "_2")).isEqualTo(1);
+
+        rotation.now = 4 * BUCKET + 1;
+        purge(purger);
+        assertThat(count(TABLE + "_2")).isZero();
+
+        // truncated once per bucket.
+        jdbc.update("insert into " + TABLE + "_2 (idempotent_id, success) values ('b', 0)");
+        purge(purger);
+        assertThat(count(TABLE + "_2")).isEqualTo(1);
+    }
+
+    @Test
+    void unreferencedSharedResultsAreDeleted() throws Exception {
+        KnotsProperties.SharedResults sharedResults = new KnotsProperties.SharedResults();
+        sharedResults.setEnabled(true);
+        sharedResults.setGracePeriod(3600_000L);
+        RdbmsIdempotentHandler handler = handler(null, sharedResults);
+        for (String id : new String[]{"a", "b", "c"}) {
+            assertThat(handler.tryLockOrReturnPreviousResult(id, joinPoint)).isNull();
+            assertThat(handler.trySaveResult(id, "result of " + id, true, joinPoint)).isTrue();
+        }
+        // "b" and "c" have been purged from the log, "c" is used recently.
+        byte[] c = jdbc.queryForObject("select result_hash from " + TABLE + " where idempotent_id='c'", byte[].class);
+        jdbc.update("delete from " + TABLE + " where idempotent_id in ('b', 'c')");
+        jdbc.update("update " + TABLE + "_result set last_used=0 where result_hash<>?", (Object) c);
+        assertThat(count(TABLE + "_result")).isEqualTo(3);
+
+        purge(new IdempotentLogPurger(Collections.singletonList(new IdempotentLogPurger.Table(dataSource, TABLE, null, false, sharedResults)), retention));
+
+        assertThat(count(TABLE + "_result")).isEqualTo(2);
+        assertThat(jdbc.queryForObject("select count(*) from " + TABLE + "_result where result_hash=?", Integer.class, (Object) c)).isEqualTo(1);
+        // the referenced result is kept.
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isEqualTo("result of a");
+    }
+
+    private void purge(IdempotentLogPurger purger) {
+        purger.start();
+        try {
+            purger.purge();
+        } finally {
+            purger.stop();
+        }
+    }
+
+    private RdbmsIdempotentHandler handler(TableRotation rotation, KnotsProperties.SharedResults sharedResults) {
+        RdbmsIdempotentHandler handler = new RdbmsIdempotentHandler(new BinarySerializer(), dataSource, TABLE);
+        if (rotation != null) {
+            handler.setTableRotation(rotation);
+        }
+        if (sharedResults != null) {
+            handler.setSharedResults(sharedResults);
+        }
+        ReflectionTestUtils.setField(handler, "waitStrategy", new FixedWaitStrategy(3, 1000));
+        ReflectionTestUtils.setField(handler, "metrics", IdempotenceMetrics.NOOP);
+        handler.afterPropertiesSet();
+        handlers.add(handler);
+        return handler;
+    }
+
+    private int count(String table) {
+        return jdbc.queryForObject("select count(*) from " + table, Integer.class);
+    }
+
+    static class Service {
+        public String call(String id) {
+            return "result of " + id;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.coderclan.knots;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * {@link InFlightRegistry}: concurrent invocations of the same Idempotent ID have one owner, the waiters get copies of
+ * its result.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+class InFlightRegistryTest {
+    private static final int THREADS = 16;
+
+    List<String> find() {
+        return new ArrayList<>(Arrays.asList("a", "b"));
+    }
+
+    @Test
+    void concurrentInvocationsHaveOneOwnerAndWaitersGetCopies() throws Exception {
+        InFlightRegistry registry = new InFlightRegistry(new JdkSerializer());
+        List<Object> results = coalesce(registry, find(), true);
+
+        assertThat(results).hasSize(THREADS - 1).allSatisfy(r -> assertThat(r).isEqualTo(Arrays.asList("a", "b")));
+        // every waiter gets its own copy.
+        assertThat(results.stream().map(System::identityHashCode).distinct()).hasSize(THREADS - 1);
+        assertThat(registry.size()).isZero();
+    }
+
+    @Test
+    void resultIsSharedWithoutSerializer() throws Exception {
+        List<String> owned = find();
+        List<Object> results = coalesce(new InFlightRegistry(), owned, true);
+
+        assertThat(results).hasSize(THREADS - 1).allSatisfy(r -> assertThat(r).isSameAs(owned));
+    }
+
+    @Test
+    void waitersRetryIfOwnerFails() throws Exception {
+        List<Object> results = coalesce(new InFlightRegistry(new JdkSerializer()), find(), false);
+
+        assertThat(results).hasSize(THREADS - 1).containsOnly(InFlightRegistry.RETRY);
+    }
+
+    @Test
+    void acknowledgementIsNotCopied() throws Exception {
+        List<Object> results = coalesce(new InFlightRegistry(new JdkSerializer()), IdempotentHandler.ACKNOWLEDGED, true);
+
+        assertThat(results).hasSize(THREADS - 1).containsOnly(IdempotentHandler.ACKNOWLEDGED);
+    }
+
+    @Test
+    void waitersOfAsynchronousInvocationsGetCopies() throws Exception {
+        InFlightRegistry registry = new InFlightRegistry(new JdkSerializer());
+        Method method = getClass().getDeclaredMethod("find");
+        Object owner = new Object();
+        InFlightRegistry.Flight flight = registry.join("id", method, owner);
+        CompletableFuture<Object> waiter = registry.join("id", method, new Object()).toFuture();
+        List<String> owned = find();
+
+        registry.complete(flight, owned, true);
+
+        assertThat(waiter.get()).isEqualTo(owned).isNotSameAs(owned);
+        assertThat(flight.getWaiters()).isZero();
+    }
+
+    @Test
+    void reentrantInvocationIsNotCoalesced() throws Exception {
+        InFlightRegistry registry = new InFlightRegistry();
+        Method method = getClass().getDeclaredMethod("find");
+        InFlightRegistry.Flight flight = registry.join("id", method);
+
+        InFlightRegistry.Flight reentrant = registry.join("id", method);
+
+        assertThat(reentrant).isNotSameAs(flight);
+        assertThat(reentrant.isOwner()).isTrue();
+        assertThat(registry.size()).isEqualTo(1);
+    }
+
+    /**
+     * Join the same Idempotent ID by {@link #THREADS} threads at once, the owner completes the flight after all the
+     * others are waiting.
+     *
+     * @return results got by the waiters.
+     */
+    private List<Object> coalesce(InFlightRegistry registry, Object result, boolean success) throws Exception {
+        Method method = getClass().getDeclaredMethod("find");
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            CyclicBarrier barrier = new CyclicBarrier(THREADS);
+            AtomicInteger owners = new AtomicInteger();
+            List<Future<Object>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(() -> {
+                    barrier.await();
+                    InFlightRegistry.Flight flight = registry.join("id", method);
+                    if (!flight.isOwner()) {
+                        return flight.await(10_000L);
+                    }
+                    owners.incrementAndGet();
+                    while (flight.getWaiters() < THREADS - 1) {
+                        Thread.yield();
+                    }
+                    registry.complete(flight, result, success);
+                    return this;
+                }));
+            }
+            List<Object> results = new ArrayList<>();
+            for (Future<Object> future : futures) {
+                Object r = future.get(10, TimeUnit.SECONDS);
+                if (r != this) {
+                    results.add(r);
+                }
+            }
+            assertThat(owners).hasValue(1);
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.NotSerializableException;
+import java.lang.reflect.Type;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * {@link InMemoryIdempotentHandler}: replays, failures of serialization, and results saved within transactions.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+class InMemoryIdempotentHandlerTest {
+    private InMemoryIdempotentHandler handler;
+    private ProceedingJoinPoint joinPoint;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        handler = handler(new BinarySerializer());
+        joinPoint = JoinPointStub.of(new Service(), Service.class.getMethod("call", String.class), "id");
+    }
+
+    @AfterEach
+    void tearDown() {
+        handler.destroy();
+    }
+
+    private InMemoryIdempotentHandler handler(Serializer serializer) {
+        InMemoryIdempotentHandler handler = new InMemoryIdempotentHandler(serializer, 4, 1024, 64 * 1024, 60000);
+        ReflectionTestUtils.setField(handler, "waitStrategy", new FixedWaitStrategy(3, 1000));
+        ReflectionTestUtils.setField(handler, "metrics", IdempotenceMetrics.NOOP);
+        handler.afterPropertiesSet();
+        return handler;
+    }
+
+    @Test
+    void duplicateReplaysSavedResult() throws Exception {
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isNull();
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isSameAs(IdempotentHandler.IN_PROGRESS);
+
+        handler.saveResult("a", "result of a", true, joinPoint);
+
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isEqualTo("result of a");
+        assertThat(handler.lockOrReturnPreviousResult("a", joinPoint)).isEqualTo("result of a");
+    }
+
+    @Test
+    void failedSerializationDoesNotKeepTheLock() throws Exception {
+        handler.destroy();
+        handler = handler(new BinarySerializer() {
+            @Override
+            public byte[] serialize(Object obj, Type type) throws Exception {
+                throw new NotSerializableException(String.valueOf(obj));
+            }
+        });
+        assertThat(handler.tryLockOrReturnPreviousResult("b", joinPoint)).isNull();
+        CompletableFuture<Object> waiter = CompletableFuture.supplyAsync(() -> {
+            try {
+                return handler.lockOrReturnPreviousResult("b", joinPoint);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        assertThatThrownBy(() -> handler.saveResult("b", "result of b", true, joinPoint)).isInstanceOf(NotSerializableException.class);
+
+        // the waiter takes over the failed invocation at once.
+        assertThat(waiter.get(500, TimeUnit.MILLISECONDS)).isNull();
+    }
+
+    @Test
+    void resultIsReplayedAfterCommit() throws Exception {
+        assertThat(handler.tryLockOrReturnPreviousResult("c", joinPoint)).isNull();
+        TransactionStub.begin();
+        try {
+            handler.saveResult("c", "result of c", true, joinPoint);
+            // the business data may still be rollback.
+            assertThat(handler.tryLockOrReturnPreviousResult("c", joinPoint)).isSameAs(IdempotentHandler.IN_PROGRESS);
+        } finally {
+            TransactionStub.complete(true);
+        }
+
+        assertThat(handler.tryLockOrReturnPreviousResult("c", joinPoint)).isEqualTo("result of c");
+    }
+
+    @Test
+    void rollbackMarksTheInvocationFailed() throws Exception {
+        assertThat(handler.tryLockOrReturnPreviousResult("d", joinPoint)).isNull();
+        TransactionStub.begin();
+        try {
+            handler.saveResult("d", "result of d", true, joinPoint);
+        } finally {
+            TransactionStub.complete(false);
+        }
+
+        // NOT replayed, executed again.
+        assertThat(handler.tryLockOrReturnPreviousResult("d", joinPoint)).isNull();
+    }
+
+    @Test
+    void nullResultIsReplayed() throws Exception {
+        assertThat(handler.tryLockOrReturnPreviousResult("e", joinPoint)).isNull();
+        handler.saveResult("e", null, true, joinPoint);
+
+        assertThat(handler.tryLockOrReturnPreviousResult("e", joinPoint)).isSameAs(IdempotentHandler.ACKNOWLEDGED);
+    }
+
+    static class Service {
+        public String call(String id) {
+            return "result of " + id;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.coderclan.knots;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * {@link InvocationMonitor}: Idempotent IDs are in flight until the last invocation exits, executing invocations are
+ * NOT waiters, and duplicates are reported as hot keys.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+class InvocationMonitorTest {
+
+    @Test
+    void invocationsAreInFlightUntilTheLastExits() throws Exception {
+        InvocationMonitor monitor = new InvocationMonitor(true, 10, 0);
+        Method method = getClass().getDeclaredMethod("invocationsAreInFlightUntilTheLastExits");
+        InvocationMonitor.Entry owner = monitor.enter("id", method);
+        InvocationMonitor.Entry waiter = monitor.enter("id", method);
+        monitor.executing(owner);
+
+        List<InvocationMonitor.InFlight> inFlight = monitor.inFlight(10);
+        assertThat(inFlight).hasSize(1);
+        assertThat(inFlight.get(0).getIdempotentId()).isEqualTo("id");
+        assertThat(inFlight.get(0).getMethod()).isEqualTo(getClass().getName() + ".invocationsAreInFlightUntilTheLastExits");
+        assertThat(inFlight.get(0).isExecuting()).isTrue();
+        assertThat(inFlight.get(0).getWaiters()).isEqualTo(1);
+
+        monitor.executed(owner);
+        monitor.exit(owner);
+        assertThat(monitor.inFlight(10).get(0).isExecuting()).isFalse();
+        assertThat(monitor.inFlight(10).get(0).getWaiters()).isEqualTo(1);
+
+        monitor.exit(waiter);
+        assertThat(monitor.inFlight(10)).isEmpty();
+    }
+
+    @Test
+    void concurrentInvocationsLeaveNothingInFlight() throws Exception {
+        InvocationMonitor monitor = new InvocationMonitor(true, 10, 0);
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CyclicBarrier barrier = new CyclicBarrier(threads);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    barrier.await();
+                    for (int i = 0; i < 1000; i++) {
+                        InvocationMonitor.Entry entry = monitor.enter("id-" + (i % 4), null);
+                        monitor.executing(entry);
+                        monitor.executed(entry);
+                        monitor.exit(entry);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(monitor.inFlight(10)).isEmpty();
+    }
+
+    @Test
+    void oldestInFlightAreListedFirst() throws Exception {
+        InvocationMonitor monitor = new InvocationMonitor(true, 10, 0);
+        monitor.enter("old", null);
+        Thread.sleep(10);
+        monitor.enter("new", null);
+
+        assertThat(monitor.inFlight(10)).extracting(InvocationMonitor.InFlight::getIdempotentId).containsExactly("old", "new");
+        assertThat(monitor.inFlight(1)).extracting(InvocationMonitor.InFlight::getIdempotentId).containsExactly("old");
+    }
+
+    @Test
+    void duplicatesAreHotKeys() {
+        InvocationMonitor monitor = new InvocationMonitor(true, 10, 0);
+        monitor.recordDuplicate("a");
+        monitor.recordDuplicate("a");
+        monitor.recordDuplicate("b");
+
+        assertThat(monitor.hotKeys()).extracting(InvocationMonitor.HotKey::getIdempotentId).containsExactly("a", "b");
+        assertThat(monitor.hotKeys()).extracting(InvocationMonitor.HotKey::getDuplicates).containsExactly(2L, 1L);
+    }
+
+    @Test
+    void disabledMonitorRecordsNothing() {
+        InvocationMonitor monitor = new InvocationMonitor(false, 10, 0);
+        InvocationMonitor.Entry entry = monitor.enter("id", null);
+        monitor.executing(entry);
+        monitor.recordDuplicate("id");
+
+        assertThat(entry).isNull();
+        assertThat(monitor.inFlight(10)).isEmpty();
+        assertThat(monitor.hotKeys()).isEmpty();
+        monitor.exit(entry);
+    }
+}
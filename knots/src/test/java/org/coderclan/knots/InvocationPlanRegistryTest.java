@@ -0,0 +1,83 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.coderclan.knots.annotation.Idempotent;
+import org.coderclan.knots.annotation.IdempotentId;
+import org.coderclan.knots.annotation.IdempotentIdExpression;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+class InvocationPlanRegistryTest {
+    private final InvocationPlanRegistry registry = new InvocationPlanRegistry();
+    private final AnnotatedIdempotentIdFetcher fetcher = new AnnotatedIdempotentIdFetcher();
+
+    @Test
+    void markedFieldIsUsedWithoutExpression() throws Exception {
+        assertThat(idempotentId("marked")).isEqualTo("r-1");
+    }
+
+    @Test
+    void explicitExpressionWinsOverMarkedField() throws Exception {
+        assertThat(idempotentId("explicit")).isEqualTo("t-1");
+    }
+
+    @Test
+    void fetcherCreatedOutsideSpringResolvesPlans() throws Exception {
+        Method method = Service.class.getMethod("explicit", Request.class);
+
+        assertThat(new ArgumentIdempotentIdFetcher().getIdempotentId(JoinPointStub.of(new Service(), method, new Request()))).isEqualTo("t-1");
+    }
+
+    @Test
+    void handlersTakeResultTypeFromPlan() throws Exception {
+        Method method = Service.class.getMethod("async", Request.class);
+        InvocationPlan plan = registry.getPlan(method, Service.class);
+        ProceedingJoinPoint joinPoint = PlannedJoinPoint.of(JoinPointStub.of(new Service(), method, new Request()), plan);
+
+        assertThat(plan.getResultType()).isEqualTo(String.class);
+        assertThat(JoinPoints.getReturnType(joinPoint)).isSameAs(plan.getResultType());
+        assertThat(JoinPoints.getMethod(joinPoint)).isSameAs(plan.getMethod());
+        assertThat(fetcher.getIdempotentId(joinPoint)).isEqualTo("r-1");
+    }
+
+    private String idempotentId(String methodName) throws Exception {
+        Method method = Service.class.getMethod(methodName, Request.class);
+        Request request = new Request();
+        InvocationPlan plan = registry.getPlan(method, Service.class);
+        return fetcher.getIdempotentId(JoinPointStub.of(new Service(), method, request), plan);
+    }
+
+    static class Request {
+        @IdempotentId
+        private String requestId = "r-1";
+        private String transactionId = "t-1";
+
+        public String getTransactionId() {
+            return transactionId;
+        }
+    }
+
+    static class Service {
+        @Idempotent
+        public String marked(Request request) {
+            return null;
+        }
+
+        @IdempotentIdExpression("arg[0].transactionId")
+        public String explicit(Request request) {
+            return null;
+        }
+
+        @Idempotent
+        public CompletableFuture<String> async(Request request) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Join points of invocations, to call {@link IdempotentHandler}s and invokers without the aspect. {@code proceed()}
+ * invokes the method by reflection. Shared with knots-benchmark by the test-jar.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+public final class JoinPointStub {
+    private JoinPointStub() {
+    }
+
+    public static ProceedingJoinPoint of(Object target, Method method, Object... args) {
+        MethodSignature signature = (MethodSignature) Proxy.newProxyInstance(JoinPointStub.class.getClassLoader(), new Class<?>[]{MethodSignature.class}, (proxy, m, a) -> {
+            switch (m.getName()) {
+                case "getMethod":
+                    return method;
+                case "getReturnType":
+                    return method.getReturnType();
+                default:
+                    throw new UnsupportedOperationException(m.getName());
+            }
+        });
+        return (ProceedingJoinPoint) Proxy.newProxyInstance(JoinPointStub.class.getClassLoader(), new Class<?>[]{ProceedingJoinPoint.class}, (proxy, m, a) -> {
+            switch (m.getName()) {
+                case "getArgs":
+                    return args;
+                case "getTarget":
+                case "getThis":
+                    return target;
+                case "getSignature":
+                    return signature;
+                case "proceed":
+                    try {
+                        return method.invoke(target, a == null || a.length == 0 ? args : (Object[]) a[0]);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                default:
+                    throw new UnsupportedOperationException(m.getName());
+            }
+        });
+    }
+}
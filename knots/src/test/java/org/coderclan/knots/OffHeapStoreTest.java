@@ -0,0 +1,66 @@
+package org.coderclan.knots;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * {@link OffHeapStore}: slabs are filled, recycled after all their byte arrays are released, and never evicted
+ * otherwise.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+class OffHeapStoreTest {
+
+    @Test
+    void storedBytesAreLoaded() {
+        OffHeapStore store = new OffHeapStore(16, 2);
+        OffHeapStore.Ref a = store.store(bytes("aaaaaaaa"));
+        OffHeapStore.Ref b = store.store(bytes("bbbbbbbb"));
+
+        assertThat(store.load(a)).isEqualTo(bytes("aaaaaaaa"));
+        assertThat(store.load(b)).isEqualTo(bytes("bbbbbbbb"));
+        assertThat(store.getAllocated()).isEqualTo(16);
+    }
+
+    @Test
+    void bytesLargerThanSlabAreNotStored() {
+        OffHeapStore store = new OffHeapStore(4, 2);
+
+        assertThat(store.store(bytes("abcde"))).isNull();
+    }
+
+    @Test
+    void slabsInUseAreNotEvicted() {
+        OffHeapStore store = new OffHeapStore(8, 2);
+        OffHeapStore.Ref a = store.store(bytes("aaaaaaaa"));
+        OffHeapStore.Ref b = store.store(bytes("bbbbbbbb"));
+
+        assertThat(store.store(bytes("c"))).isNull();
+        assertThat(store.load(a)).isEqualTo(bytes("aaaaaaaa"));
+        assertThat(store.load(b)).isEqualTo(bytes("bbbbbbbb"));
+    }
+
+    @Test
+    void releasedSlabIsRecycled() {
+        OffHeapStore store = new OffHeapStore(8, 2);
+        OffHeapStore.Ref a = store.store(bytes("aaaaaaaa"));
+        OffHeapStore.Ref b = store.store(bytes("bbbbbbbb"));
+        store.release(a);
+
+        OffHeapStore.Ref c = store.store(bytes("cccccccc"));
+
+        assertThat(c).isNotNull();
+        assertThat(store.load(c)).isEqualTo(bytes("cccccccc"));
+        // the released bytes are NOT loaded from the recycled slab.
+        assertThat(store.load(a)).isNull();
+        assertThat(store.load(b)).isEqualTo(bytes("bbbbbbbb"));
+        assertThat(store.getAllocated()).isEqualTo(16);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,132 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import javax.sql.DataSource;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * {@link RdbmsIdempotentHandler} against MySQL: locks inserted by {@code INSERT IGNORE}, batches whose inserted rows are
+ * found by the token of the statement(with or without leases), and the take-over of expired leases. Skipped if Docker
+ * is NOT available.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class RdbmsIdempotentHandlerMysqlTest {
+    private static final long LEASE_TIME = 500;
+    private static final AtomicInteger TABLES = new AtomicInteger();
+
+    @Container
+    private static final MySQLContainer<?> MYSQL = new MySQLContainer<>("mysql:8.0");
+
+    private final List<RdbmsIdempotentHandler> handlers = new ArrayList<>();
+    private DataSource dataSource;
+    private String table;
+    private ProceedingJoinPoint joinPoint;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        dataSource = new DriverManagerDataSource(MYSQL.getJdbcUrl(), MYSQL.getUsername(), MYSQL.getPassword());
+        // a table per test.
+        table = "sys_idempotent_log_" + TABLES.incrementAndGet();
+        joinPoint = JoinPointStub.of(new Service(), Service.class.getMethod("call", String.class), "id");
+    }
+
+    @AfterEach
+    void tearDown() {
+        handlers.forEach(RdbmsIdempotentHandler::destroy);
+    }
+
+    private RdbmsIdempotentHandler handler(long leaseTime) {
+        RdbmsIdempotentHandler handler = new RdbmsIdempotentHandler(new BinarySerializer(), dataSource, table);
+        handler.setLeaseTime(leaseTime);
+        ReflectionTestUtils.setField(handler, "waitStrategy", new FixedWaitStrategy(3, 1000));
+        ReflectionTestUtils.setField(handler, "metrics", IdempotenceMetrics.NOOP);
+        handler.afterPropertiesSet();
+        handlers.add(handler);
+        return handler;
+    }
+
+    @Test
+    void insertIgnoreLocksReplaysAndResets() throws Exception {
+        RdbmsIdempotentHandler handler = handler(0);
+        assertThat(ReflectionTestUtils.getField(handler, "dialect")).isEqualTo(SqlDialect.MYSQL);
+
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isNull();
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isSameAs(IdempotentHandler.IN_PROGRESS);
+
+        assertThat(handler.trySaveResult("a", "failure", false, joinPoint)).isTrue();
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isNull();
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isSameAs(IdempotentHandler.IN_PROGRESS);
+
+        assertThat(handler.trySaveResult("a", "result of a", true, joinPoint)).isTrue();
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isEqualTo("result of a");
+
+        assertThat(handler.tryLockOrReturnPreviousResult("n", joinPoint)).isNull();
+        assertThat(handler.trySaveResult("n", null, true, joinPoint)).isTrue();
+        assertThat(handler.tryLockOrReturnPreviousResult("n", joinPoint)).isSameAs(IdempotentHandler.ACKNOWLEDGED);
+    }
+
+    @Test
+    void batchIsLockedByInsertIgnoreWithoutLeases() throws Exception {
+        RdbmsIdempotentHandler handler = handler(0);
+        assertThat(handler.tryLockOrReturnPreviousResult("b2", joinPoint)).isNull();
+
+        List<String> ids = Arrays.asList("b1", "b2", "b3");
+        // b2 is skipped, the others are found by the token of the statement.
+        assertThat(handler.tryLockOrReturnPreviousResults(ids, joinPoint))
+                .containsEntry("b1", null).containsEntry("b2", IdempotentHandler.IN_PROGRESS).containsEntry("b3", null);
+
+        Map<String, Object> results = new HashMap<>();
+        results.put("b1", "result of b1");
+        results.put("b3", null);
+        assertThat(handler.trySaveResults(results, Collections.emptySet(), joinPoint)).containsExactlyInAnyOrder("b1", "b3");
+        assertThat(handler.tryLockOrReturnPreviousResults(Arrays.asList("b1", "b3"), joinPoint))
+                .containsEntry("b1", "result of b1").containsEntry("b3", IdempotentHandler.ACKNOWLEDGED);
+    }
+
+    @Test
+    void expiredLeaseOfCrashedInstanceIsTakenOver() throws Exception {
+        RdbmsIdempotentHandler crashed = handler(LEASE_TIME);
+        RdbmsIdempotentHandler handler = handler(LEASE_TIME);
+        assertThat(crashed.tryLockOrReturnPreviousResult("c", joinPoint)).isNull();
+        // the lease is NOT renewed any more.
+        crashed.destroy();
+        assertThat(handler.tryLockOrReturnPreviousResult("c", joinPoint)).isSameAs(IdempotentHandler.IN_PROGRESS);
+
+        TimeUnit.MILLISECONDS.sleep(LEASE_TIME * 2);
+
+        assertThat(handler.tryLockOrReturnPreviousResult("c", joinPoint)).isNull();
+        assertThat(crashed.trySaveResult("c", "stale", true, joinPoint)).isFalse();
+        assertThat(handler.trySaveResult("c", "result of c", true, joinPoint)).isTrue();
+        assertThat(handler.tryLockOrReturnPreviousResult("c", joinPoint)).isEqualTo("result of c");
+    }
+
+    @Test
+    void clockOfDatabaseIsRead() {
+        Long now = new JdbcTemplate(dataSource).queryForObject(SqlDialect.MYSQL.currentTimeMillisSql(), Long.class);
+
+        assertThat(now).isCloseTo(System.currentTimeMillis(), within(60000L));
+    }
+
+    static class Service {
+        public String call(String id) {
+            return "result of " + id;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import javax.sql.DataSource;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * {@link RdbmsIdempotentHandler} against PostgreSQL: the single statement lock of
+ * {@link SqlDialect#lockOrFetchSql(String, boolean, boolean, boolean)}, batches locked by
+ * {@code INSERT ... ON CONFLICT DO NOTHING RETURNING}, the take-over of expired leases and the {@link CompletionPoller}.
+ * Skipped if Docker is NOT available.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class RdbmsIdempotentHandlerPostgresTest {
+    private static final long LEASE_TIME = 500;
+    private static final AtomicInteger TABLES = new AtomicInteger();
+
+    @Container
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:14-alpine");
+
+    private final List<RdbmsIdempotentHandler> handlers = new ArrayList<>();
+    private DataSource dataSource;
+    private String table;
+    private ProceedingJoinPoint joinPoint;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        dataSource = new DriverManagerDataSource(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword());
+        // a table per test.
+        table = "sys_idempotent_log_" + TABLES.incrementAndGet();
+        joinPoint = JoinPointStub.of(new Service(), Service.class.getMethod("call", String.class), "id");
+    }
+
+    @AfterEach
+    void tearDown() {
+        handlers.forEach(RdbmsIdempotentHandler::destroy);
+    }
+
+    private RdbmsIdempotentHandler handler(long leaseTime, long pollInterval) {
+        return handler(leaseTime, pollInterval, handler -> {
+        });
+    }
+
+    private RdbmsIdempotentHandler handler(long leaseTime, long pollInterval, Consumer<RdbmsIdempotentHandler> configurer) {
+        RdbmsIdempotentHandler handler = new RdbmsIdempotentHandler(new BinarySerializer(), dataSource, table);
+        handler.setLeaseTime(leaseTime);
+        handler.setPollInterval(pollInterval);
+        configurer.accept(handler);
+        ReflectionTestUtils.setField(handler, "waitStrategy", new FixedWaitStrategy(3, 1000));
+        ReflectionTestUtils.setField(handler, "metrics", IdempotenceMetrics.NOOP);
+        handler.afterPropertiesSet();
+        handlers.add(handler);
+        return handler;
+    }
+
+    @Test
+    void lockOrFetchLocksReplaysAndResets() throws Exception {
+        RdbmsIdempotentHandler handler = handler(0, 0);
+        assertThat(ReflectionTestUtils.getField(handler, "dialect")).isEqualTo(SqlDialect.POSTGRESQL);
+
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isNull();
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isSameAs(IdempotentHandler.IN_PROGRESS);
+
+        // a failed invocation is reset and locked again by the same statement.
+        assertThat(handler.trySaveResult("a", "failure", false, joinPoint)).isTrue();
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isNull();
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isSameAs(IdempotentHandler.IN_PROGRESS);
+
+        assertThat(handler.trySaveResult("a", "result of a", true, joinPoint)).isTrue();
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isEqualTo("result of a");
+
+        assertThat(handler.tryLockOrReturnPreviousResult("n", joinPoint)).isNull();
+        assertThat(handler.trySaveResult("n", null, true, joinPoint)).isTrue();
+        assertThat(handler.tryLockOrReturnPreviousResult("n", joinPoint)).isSameAs(IdempotentHandler.ACKNOWLEDGED);
+    }
+
+    @Test
+    void lockOrFetchWithHashedKeysAndSharedResults() throws Exception {
+        KnotsProperties.SharedResults sharedResults = new KnotsProperties.SharedResults();
+        sharedResults.setEnabled(true);
+        RdbmsIdempotentHandler handler = handler(LEASE_TIME, 0, h -> {
+            h.setHashedKeys(true);
+            h.setSharedResults(sharedResults);
+        });
+
+        assertThat(handler.tryLockOrReturnPreviousResult("h", joinPoint)).isNull();
+        assertThat(handler.tryLockOrReturnPreviousResult("h", joinPoint)).isSameAs(IdempotentHandler.IN_PROGRESS);
+        assertThat(handler.trySaveResult("h", "failure", false, joinPoint)).isTrue();
+        assertThat(handler.tryLockOrReturnPreviousResult("h", joinPoint)).isNull();
+        assertThat(handler.trySaveResult("h", "result of h", true, joinPoint)).isTrue();
+        assertThat(handler.tryLockOrReturnPreviousResult("h", joinPoint)).isEqualTo("result of h");
+    }
+
+    @Test
+    void batchIsLockedByInsertOnConflictReturning() throws Exception {
+        RdbmsIdempotentHandler handler = handler(LEASE_TIME, 0);
+        assertThat(handler.tryLockOrReturnPreviousResult("b2", joinPoint)).isNull();
+        assertThat(handler.tryLockOrReturnPreviousResult("b3", joinPoint)).isNull();
+        assertThat(handler.trySaveResult("b3", "result of b3", true, joinPoint)).isTrue();
+
+        List<String> ids = Arrays.asList("b1", "b2", "b3", "b4");
+        Map<String, Object> previous = handler.tryLockOrReturnPreviousResults(ids, joinPoint);
+        assertThat(previous).containsOnlyKeys(ids);
+        assertThat(previous.get("b1")).isNull();
+        assertThat(previous.get("b2")).isSameAs(IdempotentHandler.IN_PROGRESS);
+        assertThat(previous.get("b3")).isEqualTo("result of b3");
+        assertThat(previous.get("b4")).isNull();
+
+        // locked by the batch.
+        assertThat(handler.tryLockOrReturnPreviousResults(Arrays.asList("b1", "b4"), joinPoint))
+                .containsEntry("b1", IdempotentHandler.IN_PROGRESS).containsEntry("b4", IdempotentHandler.IN_PROGRESS);
+
+        Map<String, Object> results = new HashMap<>();
+        results.put("b1", "result of b1");
+        results.put("b4", null);
+        assertThat(handler.trySaveResults(results, Collections.emptySet(), joinPoint)).containsExactlyInAnyOrder("b1", "b4");
+        assertThat(handler.tryLockOrReturnPreviousResults(Arrays.asList("b1", "b4"), joinPoint))
+                .containsEntry("b1", "result of b1").containsEntry("b4", IdempotentHandler.ACKNOWLEDGED);
+    }
+
+    @Test
+    void expiredLeaseOfCrashedInstanceIsTakenOver() throws Exception {
+        RdbmsIdempotentHandler crashed = handler(LEASE_TIME, 0);
+        RdbmsIdempotentHandler handler = handler(LEASE_TIME, 0);
+        assertThat(crashed.tryLockOrReturnPreviousResult("c", joinPoint)).isNull();
+        // the lease is NOT renewed any more.
+        crashed.destroy();
+        assertThat(handler.tryLockOrReturnPreviousResult("c", joinPoint)).isSameAs(IdempotentHandler.IN_PROGRESS);
+
+        Thread.sleep(LEASE_TIME * 2);
+
+        assertThat(handler.tryLockOrReturnPreviousResult("c", joinPoint)).isNull();
+        assertThat(crashed.trySaveResult("c", "stale", true, joinPoint)).isFalse();
+        assertThat(handler.trySaveResult("c", "result of c", true, joinPoint)).isTrue();
+        assertThat(handler.tryLockOrReturnPreviousResult("c", joinPoint)).isEqualTo("result of c");
+    }
+
+    @Test
+    void waiterIsWokenUpByPoller() throws Exception {
+        RdbmsIdempotentHandler handler = handler(LEASE_TIME, 20);
+        assertThat(handler.tryLockOrReturnPreviousResult("d", joinPoint)).isNull();
+
+        CompletableFuture<Object> waiter = CompletableFuture.supplyAsync(() -> {
+            try {
+                return handler.lockOrReturnPreviousResult("d", joinPoint);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertThat(waiter).isNotDone();
+        handler.saveResult("d", "result of d", true, joinPoint);
+
+        // much shorter than the pauses of the wait strategy.
+        assertThat(waiter.get(500, TimeUnit.MILLISECONDS)).isEqualTo("result of d");
+    }
+
+    @Test
+    void clockOfDatabaseIsRead() {
+        Long now = new JdbcTemplate(dataSource).queryForObject(SqlDialect.POSTGRESQL.currentTimeMillisSql(), Long.class);
+
+        assertThat(now).isCloseTo(System.currentTimeMillis(), within(60000L));
+    }
+
+    static class Service {
+        public String call(String id) {
+            return "result of " + id;
+        }
+    }
+}
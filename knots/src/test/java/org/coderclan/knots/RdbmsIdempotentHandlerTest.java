@@ -0,0 +1,307 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * {@link RdbmsIdempotentHandler} with leases, against an in-process H2 database.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+class RdbmsIdempotentHandlerTest {
+    private static final String TABLE = "sys_idempotent_log";
+    private static final long LEASE_TIME = 300;
+
+    private final List<RdbmsIdempotentHandler> handlers = new ArrayList<>();
+    private final List<String> statements = new CopyOnWriteArrayList<>();
+    private DataSource dataSource;
+    private ProceedingJoinPoint joinPoint;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        dataSource = new DriverManagerDataSource("jdbc:h2:mem:knots-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        joinPoint = JoinPointStub.of(new Service(), Service.class.getMethod("call", String.class), "id");
+    }
+
+    @AfterEach
+    void tearDown() {
+        handlers.forEach(RdbmsIdempotentHandler::destroy);
+    }
+
+    private RdbmsIdempotentHandler handler(long pollInterval) {
+        return handler(LEASE_TIME, pollInterval);
+    }
+
+    private RdbmsIdempotentHandler handler(long leaseTime, long pollInterval) {
+        return handler(leaseTime, pollInterval, handler -> {
+        });
+    }
+
+    private RdbmsIdempotentHandler handler(long leaseTime, long pollInterval, Consumer<RdbmsIdempotentHandler> configurer) {
+        RdbmsIdempotentHandler handler = new RdbmsIdempotentHandler(new BinarySerializer(), recording(dataSource), TABLE);
+        handler.setLeaseTime(leaseTime);
+        handler.setPollInterval(pollInterval);
+        configurer.accept(handler);
+        ReflectionTestUtils.setField(handler, "waitStrategy", new FixedWaitStrategy(3, 1000));
+        ReflectionTestUtils.setField(handler, "metrics", IdempotenceMetrics.NOOP);
+        handler.afterPropertiesSet();
+        handlers.add(handler);
+        return handler;
+    }
+
+    @Test
+    void nullResultIsReplayedAfterLeaseTime() throws Exception {
+        RdbmsIdempotentHandler handler = handler(0);
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isNull();
+        assertThat(handler.trySaveResult("a", null, true, joinPoint)).isTrue();
+
+        Thread.sleep(LEASE_TIME * 2);
+
+        // NOT taken over as a crashed invocation, the completion is replayed(as null by the aspect).
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isSameAs(IdempotentHandler.ACKNOWLEDGED);
+    }
+
+    @Test
+    void nullResultsOfBatchAreReplayed() throws Exception {
+        RdbmsIdempotentHandler handler = handler(0);
+        List<String> ids = Arrays.asList("b1", "b2");
+        assertThat(handler.tryLockOrReturnPreviousResults(ids, joinPoint)).containsOnlyKeys("b1", "b2").containsValues((Object) null);
+        Map<String, Object> results = new HashMap<>();
+        results.put("b1", null);
+        results.put("b2", "result of b2");
+        assertThat(handler.trySaveResults(results, Collections.emptySet(), joinPoint)).containsExactlyInAnyOrder("b1", "b2");
+
+        Thread.sleep(LEASE_TIME * 2);
+
+        assertThat(handler.tryLockOrReturnPreviousResults(ids, joinPoint))
+                .containsEntry("b1", IdempotentHandler.ACKNOWLEDGED).containsEntry("b2", "result of b2");
+    }
+
+    @Test
+    void leaseIsRenewedWhileRunning() throws Exception {
+        RdbmsIdempotentHandler handler = handler(0);
+        assertThat(handler.tryLockOrReturnPreviousResult("c", joinPoint)).isNull();
+
+        Thread.sleep(LEASE_TIME * 4);
+
+        assertThat(handler.tryLockOrReturnPreviousResult("c", joinPoint)).isSameAs(IdempotentHandler.IN_PROGRESS);
+        assertThat(handler.trySaveResult("c", "result of c", true, joinPoint)).isTrue();
+    }
+
+    @Test
+    void expiredLeaseOfCrashedInstanceIsTakenOver() throws Exception {
+        RdbmsIdempotentHandler crashed = handler(0);
+        RdbmsIdempotentHandler handler = handler(0);
+        assertThat(crashed.tryLockOrReturnPreviousResult("d", joinPoint)).isNull();
+        // the lease is NOT renewed any more.
+        crashed.destroy();
+        assertThat(handler.tryLockOrReturnPreviousResult("d", joinPoint)).isSameAs(IdempotentHandler.IN_PROGRESS);
+
+        Thread.sleep(LEASE_TIME * 2);
+
+        assertThat(handler.tryLockOrReturnPreviousResult("d", joinPoint)).isNull();
+        // the result of the crashed owner is NOT saved.
+        assertThat(crashed.trySaveResult("d", "stale", true, joinPoint)).isFalse();
+        assertThat(handler.trySaveResult("d", "result of d", true, joinPoint)).isTrue();
+        assertThat(handler.tryLockOrReturnPreviousResult("d", joinPoint)).isEqualTo("result of d");
+    }
+
+    @Test
+    void leasesAreTimedByDatabaseClock() {
+        RdbmsIdempotentHandler handler = handler(0);
+        long offset = (Long) ReflectionTestUtils.getField(ReflectionTestUtils.getField(handler, "leases"), "clockOffset");
+
+        // the in-process database shares the clock of the JVM.
+        assertThat(Math.abs(offset)).isLessThan(1000);
+    }
+
+    @Test
+    void waiterIsWokenUpByPoller() throws Exception {
+        RdbmsIdempotentHandler handler = handler(20);
+        assertThat(handler.tryLockOrReturnPreviousResult("e", joinPoint)).isNull();
+
+        CompletableFuture<Object> waiter = CompletableFuture.supplyAsync(() -> {
+            try {
+                return handler.lockOrReturnPreviousResult("e", joinPoint);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertThat(waiter).isNotDone();
+        handler.saveResult("e", "result of e", true, joinPoint);
+
+        // much shorter than the pauses of the wait strategy.
+        assertThat(waiter.get(500, TimeUnit.MILLISECONDS)).isEqualTo("result of e");
+    }
+
+    @Test
+    void startupFailsIfLeaseColumnsCanNotBeAdded() {
+        // an existing log without the lease columns, which can NOT be altered.
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        jdbc.execute("CREATE TABLE old_log (idempotent_id varchar(64) PRIMARY KEY, success tinyint, create_time datetime, method_result varbinary(10240))");
+        jdbc.execute("CREATE VIEW " + TABLE + " AS SELECT * FROM old_log");
+
+        assertThatThrownBy(() -> handler(0))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining(TABLE);
+    }
+
+    @Test
+    void batchIsLockedByOneStatementWithoutLeases() throws Exception {
+        RdbmsIdempotentHandler handler = handler(0, 0);
+        assertThat(handler.tryLockOrReturnPreviousResult("g2", joinPoint)).isNull();
+        statements.clear();
+
+        // g2 is skipped, the others are found by the token of the statement.
+        assertThat(handler.tryLockOrReturnPreviousResults(Arrays.asList("g1", "g2", "g3"), joinPoint))
+                .containsEntry("g1", null).containsEntry("g2", IdempotentHandler.IN_PROGRESS).containsEntry("g3", null);
+        assertThat(statements).filteredOn(sql -> sql.startsWith("MERGE")).hasSize(1);
+
+        assertThat(handler.trySaveResults(Collections.singletonMap("g1", "result of g1"), Collections.emptySet(), joinPoint)).containsExactly("g1");
+        assertThat(handler.tryLockOrReturnPreviousResult("g1", joinPoint)).isEqualTo("result of g1");
+    }
+
+    @Test
+    void lockOrFetchIsOneStatementOnH2() throws Exception {
+        KnotsProperties.SharedResults sharedResults = new KnotsProperties.SharedResults();
+        sharedResults.setEnabled(true);
+        RdbmsIdempotentHandler handler = handler(0, 0, h -> {
+            h.setHashedKeys(true);
+            h.setSharedResults(sharedResults);
+        });
+        assertThat(ReflectionTestUtils.getField(handler, "dialect")).isEqualTo(SqlDialect.H2);
+
+        statements.clear();
+        assertThat(handler.tryLockOrReturnPreviousResult("h", joinPoint)).isNull();
+        assertThat(handler.tryLockOrReturnPreviousResult("h", joinPoint)).isSameAs(IdempotentHandler.IN_PROGRESS);
+        // neither the lock nor the duplicate needs a second query.
+        assertThat(statements).hasSize(2).allMatch(sql -> sql.contains("MERGE"));
+
+        // a failed invocation is reset and locked again by the same statement.
+        assertThat(handler.trySaveResult("h", "failure", false, joinPoint)).isTrue();
+        statements.clear();
+        assertThat(handler.tryLockOrReturnPreviousResult("h", joinPoint)).isNull();
+        assertThat(statements).hasSize(1);
+        assertThat(handler.tryLockOrReturnPreviousResult("h", joinPoint)).isSameAs(IdempotentHandler.IN_PROGRESS);
+
+        assertThat(handler.trySaveResult("h", "result of h", true, joinPoint)).isTrue();
+        assertThat(handler.tryLockOrReturnPreviousResult("h", joinPoint)).isEqualTo("result of h");
+    }
+
+    @Test
+    void hashCollisionIsDetected() throws Exception {
+        RdbmsIdempotentHandler handler = handler(0, 0, h -> h.setHashedKeys(true));
+        JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+        // the row of "other" whose key is the hash of "c", as if their hashes collided.
+        assertThat(handler.tryLockOrReturnPreviousResult("c", joinPoint)).isNull();
+        assertThat(handler.trySaveResult("c", "result of c", true, joinPoint)).isTrue();
+        jdbc.update("update " + TABLE + " set idempotent_id='other'");
+
+        assertThatThrownBy(() -> handler.tryLockOrReturnPreviousResult("c", joinPoint))
+                .isInstanceOf(IllegalStateException.class).hasMessageContaining("Hash collision of Idempotent IDs c and other");
+        assertThatThrownBy(() -> handler.tryLockOrReturnPreviousResults(Arrays.asList("c", "d"), joinPoint))
+                .isInstanceOf(IllegalStateException.class).hasMessageContaining("Hash collision of Idempotent IDs");
+
+        // the failed invocation of "other" is NOT reset for "c".
+        jdbc.update("update " + TABLE + " set method_result=null, success=1");
+        assertThatThrownBy(() -> handler.tryLockOrReturnPreviousResult("c", joinPoint))
+                .isInstanceOf(IllegalStateException.class).hasMessageContaining("Hash collision");
+        assertThat(jdbc.queryForObject("select success from " + TABLE + " where idempotent_id='other'", Integer.class)).isEqualTo(1);
+        // Idempotent IDs whose hashes do NOT collide are NOT affected.
+        assertThat(handler.tryLockOrReturnPreviousResult("d", joinPoint)).isNull();
+    }
+
+    @Test
+    void concurrentLocksOnH2DoNotFail() throws Exception {
+        RdbmsIdempotentHandler handler = handler(0, 0);
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < 50; i++) {
+                String idempotentId = "i" + i;
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<Object>> futures = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    futures.add(executor.submit(() -> {
+                        start.await();
+                        return handler.tryLockOrReturnPreviousResult(idempotentId, joinPoint);
+                    }));
+                }
+                start.countDown();
+                int locked = 0;
+                for (Future<Object> future : futures) {
+                    Object previousResult = future.get(5, TimeUnit.SECONDS);
+                    if (previousResult == null) {
+                        locked++;
+                    } else {
+                        assertThat(previousResult).isSameAs(IdempotentHandler.IN_PROGRESS);
+                    }
+                }
+                assertThat(locked).as(idempotentId).isEqualTo(1);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the data source which records the prepared statements into {@link #statements}.
+     */
+    private DataSource recording(DataSource target) {
+        return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{DataSource.class}, (proxy, method, args) -> {
+            Object result = invoke(target, method, args);
+            if (!(result instanceof Connection)) {
+                return result;
+            }
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class}, (p, m, a) -> {
+                if (m.getName().equals("prepareStatement")) {
+                    statements.add((String) a[0]);
+                }
+                return invoke(result, m, a);
+            });
+        });
+    }
+
+    private static Object invoke(Object target, java.lang.reflect.Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    static class Service {
+        public String call(String id) {
+            return "result of " + id;
+        }
+    }
+}
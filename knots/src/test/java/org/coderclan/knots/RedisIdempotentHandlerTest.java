@@ -0,0 +1,185 @@
+package org.coderclan.knots;
+
+import com.github.fppt.jedismock.RedisServer;
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.protocol.ProtocolVersion;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * {@link RedisIdempotentHandler} against an in-process Redis server, which runs the {@code SET NX PX}, the Lua scripts
+ * and the Pub/Sub messages of the handler.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+class RedisIdempotentHandlerTest {
+    private RedisServer server;
+    private LettuceConnectionFactory connectionFactory;
+    private RedisIdempotentHandler handler;
+    private ProceedingJoinPoint joinPoint;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = RedisServer.newRedisServer().start();
+        // the in-process server speaks RESP2 only.
+        LettuceClientConfiguration clientConfiguration = LettuceClientConfiguration.builder()
+                .clientOptions(ClientOptions.builder().protocolVersion(ProtocolVersion.RESP2).build()).build();
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration(server.getHost(), server.getBindPort()), clientConfiguration);
+        connectionFactory.afterPropertiesSet();
+        // the Lua engine of the server is loaded by the first script, it may take longer than the short lockTtl below.
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            connection.scriptingCommands().eval("return 1".getBytes(StandardCharsets.UTF_8), ReturnType.INTEGER, 0);
+        }
+        handler = handler(300);
+        joinPoint = JoinPointStub.of(new Service(), Service.class.getMethod("call", String.class), "id");
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        handler.destroy();
+        connectionFactory.destroy();
+        server.stop();
+    }
+
+    private RedisIdempotentHandler handler(long lockTtl) {
+        RedisIdempotentHandler handler = new RedisIdempotentHandler(new BinarySerializer(), connectionFactory, "knots-test:", lockTtl, 60000);
+        // pauses are long, waiters should be woken up by the messages.
+        ReflectionTestUtils.setField(handler, "waitStrategy", new FixedWaitStrategy(3, 10000));
+        ReflectionTestUtils.setField(handler, "metrics", IdempotenceMetrics.NOOP);
+        handler.afterPropertiesSet();
+        return handler;
+    }
+
+    @Test
+    void duplicateReplaysSavedResult() throws Exception {
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isNull();
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isSameAs(IdempotentHandler.IN_PROGRESS);
+
+        assertThat(handler.trySaveResult("a", "result of a", true, joinPoint)).isTrue();
+
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isEqualTo("result of a");
+    }
+
+    @Test
+    void nullResultIsReplayed() throws Exception {
+        assertThat(handler.tryLockOrReturnPreviousResult("b", joinPoint)).isNull();
+        assertThat(handler.trySaveResult("b", null, true, joinPoint)).isTrue();
+
+        // NOT locked again, the completion is replayed(as null by the aspect).
+        assertThat(handler.tryLockOrReturnPreviousResult("b", joinPoint)).isSameAs(IdempotentHandler.ACKNOWLEDGED);
+    }
+
+    @Test
+    void failedInvocationIsExecutedAgain() throws Exception {
+        assertThat(handler.tryLockOrReturnPreviousResult("c", joinPoint)).isNull();
+        assertThat(handler.trySaveResult("c", "failure", false, joinPoint)).isTrue();
+
+        assertThat(handler.tryLockOrReturnPreviousResult("c", joinPoint)).isNull();
+    }
+
+    @Test
+    void waiterIsWokenUpByMessage() throws Exception {
+        assertThat(handler.tryLockOrReturnPreviousResult("d", joinPoint)).isNull();
+
+        CompletableFuture<Object> waiter = CompletableFuture.supplyAsync(() -> {
+            try {
+                return handler.lockOrReturnPreviousResult("d", joinPoint);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(200);
+        assertThat(waiter).isNotDone();
+        handler.saveResult("d", "result of d", true, joinPoint);
+
+        // much shorter than the pause of the wait strategy.
+        assertThat(waiter.get(3, TimeUnit.SECONDS)).isEqualTo("result of d");
+    }
+
+    @Test
+    void lockIsRenewedWhileRunning() throws Exception {
+        assertThat(handler.tryLockOrReturnPreviousResult("e", joinPoint)).isNull();
+
+        // several times of lockTtl.
+        Thread.sleep(1200);
+
+        assertThat(handler.tryLockOrReturnPreviousResult("e", joinPoint)).isSameAs(IdempotentHandler.IN_PROGRESS);
+        assertThat(handler.trySaveResult("e", "result of e", true, joinPoint)).isTrue();
+    }
+
+    @Test
+    void lockOfCrashedInstanceExpires() throws Exception {
+        RedisIdempotentHandler crashed = handler(300);
+        assertThat(crashed.tryLockOrReturnPreviousResult("f", joinPoint)).isNull();
+        // the lock is NOT renewed any more.
+        crashed.destroy();
+
+        Thread.sleep(600);
+
+        assertThat(handler.tryLockOrReturnPreviousResult("f", joinPoint)).isNull();
+        assertThat(crashed.trySaveResult("f", "result of f", true, joinPoint)).isFalse();
+    }
+
+    @Test
+    void resultIsPublishedAfterCommit() throws Exception {
+        assertThat(handler.tryLockOrReturnPreviousResult("t", joinPoint)).isNull();
+        TransactionStub.begin();
+        try {
+            assertThat(handler.trySaveResult("t", "result of t", true, joinPoint)).isTrue();
+            // the business data may still be rollback.
+            assertThat(handler.tryLockOrReturnPreviousResult("t", joinPoint)).isSameAs(IdempotentHandler.IN_PROGRESS);
+        } finally {
+            TransactionStub.complete(true);
+        }
+
+        assertThat(handler.tryLockOrReturnPreviousResult("t", joinPoint)).isEqualTo("result of t");
+    }
+
+    @Test
+    void lockIsReleasedOnRollback() throws Exception {
+        assertThat(handler.tryLockOrReturnPreviousResult("r", joinPoint)).isNull();
+        TransactionStub.begin();
+        try {
+            assertThat(handler.trySaveResult("r", "result of r", true, joinPoint)).isTrue();
+        } finally {
+            TransactionStub.complete(false);
+        }
+
+        // NOT replayed, executed again.
+        assertThat(handler.tryLockOrReturnPreviousResult("r", joinPoint)).isNull();
+    }
+
+    @Test
+    void saveResultFailsIfLockIsLost() throws Exception {
+        assertThat(handler.tryLockOrReturnPreviousResult("l", joinPoint)).isNull();
+        // expired, and locked by others.
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            connection.stringCommands().set("knots-test:l".getBytes(StandardCharsets.UTF_8), "Lothers".getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertThatThrownBy(() -> handler.saveResult("l", "result of l", true, joinPoint))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("l");
+    }
+
+    static class Service {
+        public String call(String id) {
+            return "result of " + id;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * {@link ShardedIdempotentHandler}: routing of Idempotent IDs is stable across instances and versions, appending a
+ * shard only moves the Idempotent IDs routed to it.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+class ShardedIdempotentHandlerTest {
+    private final List<InMemoryIdempotentHandler> shards = new ArrayList<>();
+    private ShardedIdempotentHandler handler;
+    private ProceedingJoinPoint joinPoint;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            InMemoryIdempotentHandler shard = new InMemoryIdempotentHandler(new BinarySerializer(), 4, 1024, 64 * 1024, 60000);
+            ReflectionTestUtils.setField(shard, "waitStrategy", new FixedWaitStrategy(3, 1000));
+            ReflectionTestUtils.setField(shard, "metrics", IdempotenceMetrics.NOOP);
+            shards.add(shard);
+        }
+        handler = new ShardedIdempotentHandler(shards);
+        handler.afterPropertiesSet();
+        joinPoint = JoinPointStub.of(new Service(), Service.class.getMethod("call", String.class), "id");
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        handler.destroy();
+    }
+
+    @Test
+    void shardsArePinned() {
+        // rows of the shards are persisted, a changed hash would route Idempotent IDs away from their previous invocations.
+        assertThat(shards("a", 2, 3, 8, 100)).containsExactly(1, 2, 2, 31);
+        assertThat(shards("order-1", 2, 3, 8, 100)).containsExactly(1, 1, 6, 66);
+        assertThat(shards("order-2", 2, 3, 8, 100)).containsExactly(0, 0, 4, 45);
+        assertThat(shards("2f1c9a4e-7d3b-4c55-9a0e-1b2c3d4e5f60", 2, 3, 8, 100)).containsExactly(1, 2, 2, 22);
+        assertThat(ShardedIdempotentHandler.shard("a", 1)).isZero();
+    }
+
+    @Test
+    void appendedShardOnlyTakesOverItsShare() {
+        int count = 10000;
+        int[] sizes = new int[8];
+        for (int i = 0; i < count; i++) {
+            String id = UUID.randomUUID().toString();
+            sizes[ShardedIdempotentHandler.shard(id, 8)]++;
+            for (int buckets = 1; buckets < 8; buckets++) {
+                int before = ShardedIdempotentHandler.shard(id, buckets);
+                int after = ShardedIdempotentHandler.shard(id, buckets + 1);
+                assertThat(after).isIn(before, buckets);
+            }
+        }
+        // evenly distributed, 1250 per shard.
+        for (int size : sizes) {
+            assertThat(size).isBetween(1000, 1500);
+        }
+    }
+
+    @Test
+    void idempotentIdsAreRoutedByShard() throws Exception {
+        List<String> ids = Arrays.asList("a", "order-1", "order-2");
+        assertThat(handler.tryLockOrReturnPreviousResults(ids, joinPoint)).containsOnlyKeys(ids).containsValues((Object) null);
+
+        for (String id : ids) {
+            int shard = ShardedIdempotentHandler.shard(id, shards.size());
+            for (int i = 0; i < shards.size(); i++) {
+                // each Idempotent ID is locked in its own shard only.
+                Object previousResult = shards.get(i).tryLockOrReturnPreviousResult(id, joinPoint);
+                assertThat(previousResult).isSameAs(i == shard ? IdempotentHandler.IN_PROGRESS : null);
+            }
+        }
+    }
+
+    private static List<Integer> shards(String idempotentId, int... buckets) {
+        List<Integer> shards = new ArrayList<>();
+        for (int n : buckets) {
+            shards.add(ShardedIdempotentHandler.shard(idempotentId, n));
+        }
+        return shards;
+    }
+
+    static class Service {
+        public String call(String id) {
+            return "result of " + id;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.coderclan.knots;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * {@link SharedResultStore} against an in-process H2 database: payloads are saved once by hash, refreshed at most once
+ * per half of the grace period, and loaded from the cache.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+class SharedResultStoreTest {
+    private static final String TABLE = "shared_log";
+    private static final String RESULTS = SharedResultStore.tableName(TABLE);
+
+    private final Serializer serializer = new BinarySerializer();
+    private DataSource dataSource;
+    private JdbcTemplate jdbc;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new DriverManagerDataSource("jdbc:h2:mem:knots-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        jdbc = new JdbcTemplate(dataSource);
+        jdbc.execute(SqlDialect.H2.createResultTableSql(RESULTS));
+    }
+
+    private SharedResultStore store(long gracePeriod) {
+        return new SharedResultStore(TABLE, SqlDialect.H2, serializer, 16, gracePeriod);
+    }
+
+    @Test
+    void identicalPayloadsAreSavedOnce() throws Exception {
+        SharedResultStore store = store(3600_000L);
+        try (Connection conn = dataSource.getConnection()) {
+            byte[] a = store.share(conn, payload("result"), false);
+            PayloadBuffer buffer = new PayloadBuffer();
+            buffer.write(payload("result"));
+            assertThat(store.share(conn, buffer, false)).isEqualTo(a).hasSize(16);
+            // saved by another instance concurrently.
+            assertThat(store(3600_000L).share(conn, payload("result"), false)).isEqualTo(a);
+            assertThat(store.share(conn, payload("other"), false)).isNotEqualTo(a);
+        }
+        assertThat(count()).isEqualTo(2);
+    }
+
+    @Test
+    void lastUsedIsRefreshedOncePerHalfGracePeriod() throws Exception {
+        SharedResultStore store = store(3600_000L);
+        SharedResultStore shortGrace = store(2);
+        try (Connection conn = dataSource.getConnection()) {
+            byte[] hash = store.share(conn, payload("result"), false);
+            jdbc.update("update " + RESULTS + " set last_used=0");
+
+            // refreshed recently, NOT touched again.
+            store.share(conn, payload("result"), false);
+            assertThat(lastUsed(hash)).isZero();
+
+            shortGrace.share(conn, payload("result"), false);
+            assertThat(lastUsed(hash)).isPositive();
+            jdbc.update("update " + RESULTS + " set last_used=0");
+            Thread.sleep(10);
+            shortGrace.share(conn, payload("result"), false);
+            assertThat(lastUsed(hash)).isPositive();
+        }
+    }
+
+    @Test
+    void rolledBackPayloadIsSavedAgain() throws Exception {
+        SharedResultStore store = store(3600_000L);
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            TransactionStub.begin();
+            store.share(conn, payload("result"), true);
+            conn.rollback();
+            TransactionStub.complete(false);
+            conn.setAutoCommit(true);
+            assertThat(count()).isZero();
+
+            // the rolled back payload is NOT taken as saved.
+            byte[] hash = store.share(conn, payload("result"), false);
+            assertThat(count()).isEqualTo(1);
+            assertThat(store.load(conn, hash, String.class)).isEqualTo("result");
+        }
+    }
+
+    @Test
+    void loadedResultsAreCached() throws Exception {
+        SharedResultStore store = store(3600_000L);
+        try (Connection conn = dataSource.getConnection()) {
+            byte[] hash = store.share(conn, payload("result"), false);
+            byte[] empty = store.share(conn, new byte[0], false);
+
+            Object result = store.load(conn, hash, String.class);
+            assertThat(result).isEqualTo("result");
+            assertThat(store.load(conn, empty, String.class)).isSameAs(IdempotentHandler.ACKNOWLEDGED);
+
+            jdbc.update("delete from " + RESULTS);
+            // replays of the same payload get the same object, without reading the table.
+            assertThat(store.load(conn, hash, String.class)).isSameAs(result);
+            assertThatThrownBy(() -> store(3600_000L).load(conn, hash, String.class))
+                    .isInstanceOf(IllegalStateException.class).hasMessageContaining("Shared result NOT found");
+        }
+    }
+
+    private byte[] payload(String result) throws Exception {
+        return serializer.serialize(result, String.class);
+    }
+
+    private int count() {
+        return jdbc.queryForObject("select count(*) from " + RESULTS, Integer.class);
+    }
+
+    private long lastUsed(byte[] hash) {
+        return jdbc.queryForObject("select last_used from " + RESULTS + " where result_hash=?", Long.class, (Object) hash);
+    }
+}
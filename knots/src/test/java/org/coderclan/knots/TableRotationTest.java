@@ -0,0 +1,148 @@
+package org.coderclan.knots;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * {@link TableRotation}, and {@link RdbmsIdempotentHandler} with a rotated log against an in-process H2 database:
+ * previous invocations are found across bucket boundaries, and duplicates locked in adjacent tables back off.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+class TableRotationTest {
+    private static final String TABLE = "rotated_log";
+    private static final long BUCKET = 3600_000L;
+
+    private final List<RdbmsIdempotentHandler> handlers = new ArrayList<>();
+    private DataSource dataSource;
+    private ProceedingJoinPoint joinPoint;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        dataSource = new DriverManagerDataSource("jdbc:h2:mem:knots-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        joinPoint = JoinPointStub.of(new Service(), Service.class.getMethod("call", String.class), "id");
+    }
+
+    @AfterEach
+    void tearDown() {
+        handlers.forEach(RdbmsIdempotentHandler::destroy);
+    }
+
+    @Test
+    void tablesRotateByBucket() {
+        TableRotation rotation = new TableRotation(TABLE, 4, BUCKET);
+
+        assertThat(rotation.getTables()).containsExactly(TABLE + "_0", TABLE + "_1", TABLE + "_2", TABLE + "_3");
+        assertThat(rotation.current(BUCKET * 5 + 1)).isEqualTo(1);
+        assertThat(rotation.next(BUCKET * 5 + 1)).isEqualTo(2);
+        // the current one first, the next one(being truncated) is NOT live.
+        assertThat(rotation.live(BUCKET * 5 + 1)).containsExactly(1, 0, 3);
+        assertThat(rotation.elapsedInBucket(BUCKET * 5 + 1)).isEqualTo(1);
+        assertThat(TableRotation.of(TABLE, 4, BUCKET * 2).getBucketLength()).isEqualTo(BUCKET);
+    }
+
+    @Test
+    void previousInvocationIsFoundAfterBucketBoundary() throws Exception {
+        ManualRotation rotation = new ManualRotation(TABLE, 3, BUCKET, BUCKET - 1);
+        RdbmsIdempotentHandler handler = handler(rotation);
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isNull();
+        assertThat(handler.tryLockOrReturnPreviousResult("b", joinPoint)).isNull();
+        assertThat(handler.trySaveResult("a", "result of a", true, joinPoint)).isTrue();
+
+        rotation.now = BUCKET + 1;
+
+        // found in the previous table, nothing is locked in the current one.
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isEqualTo("result of a");
+        assertThat(handler.tryLockOrReturnPreviousResults(Arrays.asList("a", "c"), joinPoint))
+                .containsEntry("a", "result of a").containsEntry("c", null);
+        assertThat(count(1)).isEqualTo(1);
+        // the lock taken before the boundary is saved into the previous table.
+        assertThat(handler.trySaveResult("b", "result of b", true, joinPoint)).isTrue();
+        assertThat(handler.tryLockOrReturnPreviousResult("b", joinPoint)).isEqualTo("result of b");
+    }
+
+    @Test
+    void duplicateLockedInAdjacentTableBacksOff() throws Exception {
+        // the clock of the other instance is ahead, it has locked the Idempotent ID in the next table.
+        RdbmsIdempotentHandler ahead = handler(new ManualRotation(TABLE, 3, BUCKET, BUCKET + 1));
+        RdbmsIdempotentHandler handler = handler(new ManualRotation(TABLE, 3, BUCKET, BUCKET - 1));
+        assertThat(ahead.tryLockOrReturnPreviousResult("a", joinPoint)).isNull();
+        assertThat(ahead.tryLockOrReturnPreviousResults(Arrays.asList("b", "c"), joinPoint)).containsEntry("b", null).containsEntry("c", null);
+
+        // the next table is NOT live, the lock is inserted into the current table and released.
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isSameAs(IdempotentHandler.IN_PROGRESS);
+        assertThat(handler.tryLockOrReturnPreviousResults(Arrays.asList("b", "d"), joinPoint))
+                .containsEntry("b", IdempotentHandler.IN_PROGRESS).containsEntry("d", null);
+        assertThat(new JdbcTemplate(dataSource).queryForList("select idempotent_id from " + TABLE + "_0", String.class)).containsExactly("d");
+
+        assertThat(ahead.trySaveResult("a", "result of a", true, joinPoint)).isTrue();
+        // the duplicates meet in one table when they try again after the boundary.
+        assertThat(handler(new ManualRotation(TABLE, 3, BUCKET, BUCKET + 2)).tryLockOrReturnPreviousResult("a", joinPoint)).isEqualTo("result of a");
+    }
+
+    @Test
+    void expiredLocksInAdjacentTableAreIgnored() throws Exception {
+        RdbmsIdempotentHandler ahead = handler(new ManualRotation(TABLE, 3, BUCKET, BUCKET + 1));
+        RdbmsIdempotentHandler handler = handler(new ManualRotation(TABLE, 3, BUCKET, BUCKET - 1));
+        assertThat(ahead.tryLockOrReturnPreviousResult("a", joinPoint)).isNull();
+        // an expired row which has NOT been truncated yet.
+        new JdbcTemplate(dataSource).update("update " + TABLE + "_1 set create_time=DATEADD('HOUR', -2, CURRENT_TIMESTAMP)");
+
+        assertThat(handler.tryLockOrReturnPreviousResult("a", joinPoint)).isNull();
+    }
+
+    private RdbmsIdempotentHandler handler(TableRotation rotation) {
+        RdbmsIdempotentHandler handler = new RdbmsIdempotentHandler(new BinarySerializer(), dataSource, TABLE);
+        handler.setTableRotation(rotation);
+        ReflectionTestUtils.setField(handler, "waitStrategy", new FixedWaitStrategy(3, 1000));
+        ReflectionTestUtils.setField(handler, "metrics", IdempotenceMetrics.NOOP);
+        handler.afterPropertiesSet();
+        handlers.add(handler);
+        return handler;
+    }
+
+    private int count(int table) {
+        return new JdbcTemplate(dataSource).queryForObject("select count(*) from " + TABLE + "_" + table, Integer.class);
+    }
+
+    static class Service {
+        public String call(String id) {
+            return "result of " + id;
+        }
+    }
+
+    /**
+     * Rotation whose time is set by the test, instead of the clock.
+     */
+    static final class ManualRotation extends TableRotation {
+        volatile long now;
+
+        ManualRotation(String tableName, int buckets, long bucketLength, long now) {
+            super(tableName, buckets, bucketLength);
+            this.now = now;
+        }
+
+        @Override
+        public int current(long time) {
+            return super.current(now);
+        }
+
+        @Override
+        public long elapsedInBucket(long time) {
+            return super.elapsedInBucket(now);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.coderclan.knots;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Active transactions of the current thread, to call {@link IdempotentHandler}s within a transaction without a
+ * transaction manager. Only the completion callbacks are run.
+ *
+ * @author aray(dot)chou(dot)cn(at)gmail(dot)com
+ */
+final class TransactionStub {
+    private TransactionStub() {
+    }
+
+    static void begin() {
+        TransactionSynchronizationManager.initSynchronization();
+    }
+
+    /**
+     * Complete the transaction started by {@link #begin()}, run its completion callbacks.
+     */
+    static void complete(boolean committed) {
+        try {
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+                synchronization.afterCompletion(committed ? TransactionSynchronization.STATUS_COMMITTED : TransactionSynchronization.STATUS_ROLLED_BACK);
+            }
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+}